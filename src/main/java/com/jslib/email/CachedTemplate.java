@@ -0,0 +1,65 @@
+package com.jslib.email;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import com.jslib.api.template.Template;
+
+/**
+ * Template loaded into sender templates cache, together with artifacts prepared at load time. Cached template is
+ * immutable and shared by all emails created from the same template file.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class CachedTemplate
+{
+  /** Parsed template. */
+  private final Template template;
+
+  /** Static images embedded into emails created from this template, possible empty. */
+  private final List<InlineImage> inlineImages;
+
+  /** Files read while loading this template, with canonical path: template file, linked style sheets and images. */
+  private final Set<File> dependencies;
+
+  CachedTemplate(Template template, List<InlineImage> inlineImages, Set<File> dependencies)
+  {
+    this.template = template;
+    this.inlineImages = Collections.unmodifiableList(inlineImages);
+    this.dependencies = Collections.unmodifiableSet(dependencies);
+  }
+
+  Template getTemplate()
+  {
+    return template;
+  }
+
+  List<InlineImage> getInlineImages()
+  {
+    return inlineImages;
+  }
+
+  Set<File> getDependencies()
+  {
+    return dependencies;
+  }
+
+  /**
+   * Test if this template was loaded from any of given files, template file itself or a file it references.
+   * 
+   * @param files files with canonical path.
+   * @return true if this template depends on any given file.
+   */
+  boolean dependsOn(Set<File> files)
+  {
+    for(File file : files) {
+      if(dependencies.contains(file)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,52 @@
+package com.jslib.email;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MX resolver decorator caching resolved records for their time to live. Failed resolutions are not cached. Cache is
+ * not bounded since it is keyed by direct delivery domains, that are configured.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class CachingMxResolver implements MxResolver
+{
+  /** Decorated resolver. */
+  private final MxResolver resolver;
+
+  /** Cached records keyed by domain. */
+  private final ConcurrentMap<String, CachedRecords> cache = new ConcurrentHashMap<>();
+
+  CachingMxResolver(MxResolver resolver)
+  {
+    this.resolver = resolver;
+  }
+
+  @Override
+  public MxRecords resolve(String domain)
+  {
+    long now = System.nanoTime();
+    CachedRecords cachedRecords = cache.get(domain);
+    if(cachedRecords == null || now - cachedRecords.expiresAt >= 0) {
+      MxRecords records = resolver.resolve(domain);
+      cachedRecords = new CachedRecords(records, now + TimeUnit.SECONDS.toNanos(records.getTtl()));
+      cache.put(domain, cachedRecords);
+    }
+    return cachedRecords.records;
+  }
+
+  private static final class CachedRecords
+  {
+    final MxRecords records;
+    /** Expiration time, in nanoseconds. */
+    final long expiresAt;
+
+    CachedRecords(MxRecords records, long expiresAt)
+    {
+      this.records = records;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
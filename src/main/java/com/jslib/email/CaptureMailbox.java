@@ -0,0 +1,261 @@
+package com.jslib.email;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.jslib.api.log.Log;
+import com.jslib.api.log.LogFactory;
+
+/**
+ * In-memory mailbox storing captured emails instead of sending them to mail server. Capture mailbox is intended for
+ * development and load tests: emails are fully rendered, including MIME building, but are stored into a bounded ring
+ * buffer so that tests can assert on them at full speed. Capture mailbox is enabled by <code>js.email.capture</code>
+ * property and replaces development mode dump to standard out.
+ * <p>
+ * Ring buffer is lock free: a new email takes the next slot and overwrites the oldest email when buffer is full.
+ * Stored emails are indexed by recipient address, template name and message ID; indexes are updated when an email is
+ * evicted from ring buffer so that they never grow past buffer capacity.
+ * <p>
+ * Optionally, captured emails are also written into a Maildir directory, see {@link MaildirWriter}. Writing is
+ * asynchronous and does not slow down sending threads; if writer falls behind, excess emails are not written.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public final class CaptureMailbox
+{
+  /** Class logger. */
+  private static final Log log = LogFactory.getLog(CaptureMailbox.class);
+
+  /** Ring buffer slots. Slots length is a power of two. */
+  private final AtomicReferenceArray<CapturedEmail> slots;
+
+  /** Mask used to map sequence number to slot index. */
+  private final int mask;
+
+  /** Sequence number for next captured email. */
+  private final AtomicLong sequence = new AtomicLong();
+
+  /** Captured emails indexed by recipient address. */
+  private final ConcurrentMap<String, Queue<CapturedEmail>> recipientsIndex = new ConcurrentHashMap<>();
+
+  /** Captured emails indexed by template name. Ad hoc emails are not indexed. */
+  private final ConcurrentMap<String, Queue<CapturedEmail>> templatesIndex = new ConcurrentHashMap<>();
+
+  /** Captured emails indexed by message ID. */
+  private final ConcurrentMap<String, CapturedEmail> messagesIndex = new ConcurrentHashMap<>();
+
+  /** Optional Maildir writer, null if not configured. */
+  private final MaildirWriter maildirWriter;
+
+  /**
+   * Create capture mailbox with given capacity, rounded up to a power of two.
+   * 
+   * @param capacity mailbox capacity,
+   * @param maildir optional Maildir directory, null if captured emails should be stored only in memory.
+   * @throws IOException if Maildir directories creation fails.
+   */
+  CaptureMailbox(int capacity, File maildir) throws IOException
+  {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    this.slots = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.maildirWriter = maildir != null ? new MaildirWriter(maildir.toPath(), size) : null;
+  }
+
+  /**
+   * Store captured email into ring buffer and update indexes. If buffer is full the oldest email is evicted.
+   * 
+   * @param email captured email.
+   */
+  void add(CapturedEmail email)
+  {
+    // raw messages may have no message ID
+    if(email.getMessageID() != null) {
+      messagesIndex.put(email.getMessageID(), email);
+    }
+    for(String recipient : email.getRecipients()) {
+      index(recipientsIndex, recipient, email);
+    }
+    if(email.getTemplateName() != null) {
+      index(templatesIndex, email.getTemplateName(), email);
+    }
+
+    int slot = (int)(sequence.getAndIncrement() & mask);
+    CapturedEmail evicted = slots.getAndSet(slot, email);
+    if(evicted != null) {
+      if(evicted.getMessageID() != null) {
+        messagesIndex.remove(evicted.getMessageID(), evicted);
+      }
+      for(String recipient : evicted.getRecipients()) {
+        unindex(recipientsIndex, recipient, evicted);
+      }
+      if(evicted.getTemplateName() != null) {
+        unindex(templatesIndex, evicted.getTemplateName(), evicted);
+      }
+    }
+
+    if(maildirWriter != null) {
+      maildirWriter.write(email);
+    }
+  }
+
+  private static void index(ConcurrentMap<String, Queue<CapturedEmail>> index, String key, CapturedEmail email)
+  {
+    // add inside remapping function; adding to a queue got outside it races with unindex removing the emptied queue
+    index.compute(key, (k, emails) -> {
+      if(emails == null) {
+        emails = new ConcurrentLinkedQueue<>();
+      }
+      emails.add(email);
+      return emails;
+    });
+  }
+
+  private static void unindex(ConcurrentMap<String, Queue<CapturedEmail>> index, String key, CapturedEmail email)
+  {
+    // evicted email is the oldest one so it is usually found at queue head
+    index.computeIfPresent(key, (k, emails) -> {
+      emails.remove(email);
+      return emails.isEmpty() ? null : emails;
+    });
+  }
+
+  /**
+   * Get captured email with given message ID.
+   * 
+   * @param messageID message ID value, in RFC2822 format.
+   * @return captured email or null if not found or already evicted.
+   */
+  public CapturedEmail getByMessageID(String messageID)
+  {
+    return messagesIndex.get(messageID);
+  }
+
+  /**
+   * Get captured emails sent to given recipient, in capture order.
+   * 
+   * @param address recipient address, without personal part.
+   * @return captured emails, possible empty.
+   */
+  public List<CapturedEmail> getByRecipient(String address)
+  {
+    return list(recipientsIndex.get(address));
+  }
+
+  /**
+   * Get captured emails rendered from given template, in capture order.
+   * 
+   * @param templateName template name.
+   * @return captured emails, possible empty.
+   */
+  public List<CapturedEmail> getByTemplate(String templateName)
+  {
+    return list(templatesIndex.get(templateName));
+  }
+
+  private static List<CapturedEmail> list(Queue<CapturedEmail> emails)
+  {
+    return emails != null ? new ArrayList<>(emails) : Collections.<CapturedEmail> emptyList();
+  }
+
+  /**
+   * Get all emails currently stored into ring buffer, oldest first.
+   * 
+   * @return captured emails, possible empty.
+   */
+  public List<CapturedEmail> getAll()
+  {
+    List<CapturedEmail> emails = new ArrayList<>();
+    long last = sequence.get();
+    for(long i = Math.max(0, last - slots.length()); i < last; ++i) {
+      CapturedEmail email = slots.get((int)(i & mask));
+      if(email != null) {
+        emails.add(email);
+      }
+    }
+    return emails;
+  }
+
+  /**
+   * Get total number of captured emails, including those evicted from ring buffer.
+   * 
+   * @return captured emails count.
+   */
+  public long getCapturedCount()
+  {
+    return sequence.get();
+  }
+
+  /** Remove all captured emails. This method is not atomic in respect with concurrent captures. */
+  public void clear()
+  {
+    for(int i = 0; i < slots.length(); ++i) {
+      slots.set(i, null);
+    }
+    messagesIndex.clear();
+    recipientsIndex.clear();
+    templatesIndex.clear();
+  }
+
+  /**
+   * Asynchronous writer for Maildir directory. Write every captured email into <code>tmp</code> directory then moves it
+   * atomically into <code>new</code>, as required by Maildir format. Writer runs on a single daemon thread with a
+   * bounded queue; when queue is full captured email is not written.
+   * 
+   * @author Iulian Rotaru
+   */
+  private static final class MaildirWriter
+  {
+    private final Path tmpDir;
+    private final Path newDir;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong counter = new AtomicLong();
+
+    MaildirWriter(Path maildir, int queueCapacity) throws IOException
+    {
+      this.tmpDir = Files.createDirectories(maildir.resolve("tmp"));
+      this.newDir = Files.createDirectories(maildir.resolve("new"));
+      Files.createDirectories(maildir.resolve("cur"));
+
+      this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+        Thread thread = new Thread(runnable, "email-maildir-writer");
+        thread.setDaemon(true);
+        return thread;
+      }, (runnable, executor) -> log.warn("Maildir writer queue is full. Captured email not written."));
+    }
+
+    void write(final CapturedEmail email)
+    {
+      executor.execute(() -> {
+        String fileName = email.getTimestamp() + "." + counter.incrementAndGet() + ".capture";
+        Path tmpFile = tmpDir.resolve(fileName);
+        try {
+          try (OutputStream stream = Files.newOutputStream(tmpFile)) {
+            stream.write(email.getContent());
+          }
+          Files.move(tmpFile, newDir.resolve(fileName), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e) {
+          log.error(e);
+        }
+      });
+    }
+  }
+}
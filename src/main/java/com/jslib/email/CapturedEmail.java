@@ -0,0 +1,100 @@
+package com.jslib.email;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Immutable email message stored by {@link CaptureMailbox}. Captured email holds fully rendered MIME message, as it
+ * would be written on the wire, plus fields used for mailbox indexes: message ID, template name and recipients.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public final class CapturedEmail
+{
+  /** Message ID value, in RFC2822 format, null for a raw message without message ID. */
+  private final String messageID;
+
+  /** Name of the template this email was rendered from or null for ad hoc emails. */
+  private final String templateName;
+
+  /** Email subject. */
+  private final String subject;
+
+  /** All recipients addresses, that is, <code>to</code>, <code>cc</code> and <code>bcc</code> addresses. */
+  private final List<String> recipients;
+
+  /** Rendered MIME message. */
+  private final byte[] content;
+
+  /** Capture timestamp, in milliseconds. */
+  private final long timestamp;
+
+  CapturedEmail(String messageID, String templateName, String subject, List<String> recipients, byte[] content)
+  {
+    this.messageID = messageID;
+    this.templateName = templateName;
+    this.subject = subject;
+    this.recipients = Collections.unmodifiableList(recipients);
+    this.content = content;
+    this.timestamp = System.currentTimeMillis();
+  }
+
+  public String getMessageID()
+  {
+    return messageID;
+  }
+
+  public String getTemplateName()
+  {
+    return templateName;
+  }
+
+  public String getSubject()
+  {
+    return subject;
+  }
+
+  public List<String> getRecipients()
+  {
+    return recipients;
+  }
+
+  /**
+   * Get rendered MIME message. Returned array is not cloned and should not be changed.
+   * 
+   * @return rendered MIME message.
+   */
+  public byte[] getContent()
+  {
+    return content;
+  }
+
+  public long getTimestamp()
+  {
+    return timestamp;
+  }
+
+  /**
+   * Parse rendered content into a MIME message, for tests that need to inspect message parts.
+   * 
+   * @param session JavaMail session used to create MIME message.
+   * @return parsed MIME message.
+   * @throws MessagingException if content parsing fails.
+   */
+  public MimeMessage getMessage(Session session) throws MessagingException
+  {
+    return new MimeMessage(session, new ByteArrayInputStream(content));
+  }
+
+  @Override
+  public String toString()
+  {
+    return messageID;
+  }
+}
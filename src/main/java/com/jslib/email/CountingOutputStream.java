@@ -0,0 +1,38 @@
+package com.jslib.email;
+
+import java.io.OutputStream;
+
+/**
+ * Output stream that discards written bytes and just counts them. Used to measure rendered message size without
+ * keeping message bytes in memory.
+ * 
+ * @author Iulian Rotaru
+ * @version final
+ */
+final class CountingOutputStream extends OutputStream
+{
+  /** Number of bytes written to this stream. */
+  private long count;
+
+  @Override
+  public void write(int b)
+  {
+    ++count;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len)
+  {
+    count += len;
+  }
+
+  /**
+   * Get the number of bytes written to this stream.
+   * 
+   * @return written bytes count.
+   */
+  public long getCount()
+  {
+    return count;
+  }
+}
@@ -0,0 +1,287 @@
+package com.jslib.email;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Inline CSS rules from <code>style</code> elements into <code>style</code> attribute of matching body elements. Many
+ * mail clients ignore or strip style sheets so emails need inline styles, but authoring templates with inline styles is
+ * tedious. This preprocessor allows templates to use style sheets while sent emails carry inline styles.
+ * <p>
+ * Only simple selectors are inlined: element name, class, identifier and their combinations, e.g.
+ * <code>p.note</code> or <code>#footer</code>, possible grouped by comma. Rules are applied in specificity order then
+ * in source order; element own <code>style</code> attribute takes precedence over inlined rules. Rules using other
+ * selectors, e.g. descendant or pseudo-class, and at-rules like <code>@media</code> cannot be inlined and are kept into
+ * a <code>style</code> element.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class CssInlinePreprocessor implements TemplatePreprocessor
+{
+  private static final Pattern STYLE_ELEMENT = Pattern.compile("<style\\b[^>]*>([\\s\\S]*?)</style>", Pattern.CASE_INSENSITIVE);
+  private static final Pattern CSS_COMMENT = Pattern.compile("/\\*[\\s\\S]*?\\*/");
+  private static final Pattern SIMPLE_SELECTOR = Pattern.compile("([a-zA-Z][a-zA-Z0-9]*)?(#[\\w-]+)?((?:\\.[\\w-]+)*)");
+  private static final Pattern BODY_START = Pattern.compile("<body\\b", Pattern.CASE_INSENSITIVE);
+  private static final Pattern START_TAG = Pattern.compile("<([a-zA-Z][a-zA-Z0-9]*)((?:\\s+[^\\s=/>]+(?:\\s*=\\s*(?:\"[^\"]*\"|'[^']*'|[^\\s>]+))?)*)\\s*(/?)>");
+  private static final Pattern ATTRIBUTE = Pattern.compile("([^\\s=/>]+)(?:\\s*=\\s*(\"[^\"]*\"|'[^']*'|[^\\s>]+))?");
+
+  @Override
+  public String preprocess(String source)
+  {
+    List<Rule> rules = new ArrayList<>();
+    StringBuilder residualCss = new StringBuilder();
+
+    StringBuilder builder = new StringBuilder(source.length());
+    Matcher matcher = STYLE_ELEMENT.matcher(source);
+    int index = 0;
+    int residualIndex = -1;
+    while(matcher.find()) {
+      builder.append(source, index, matcher.start());
+      if(residualIndex == -1) {
+        residualIndex = builder.length();
+      }
+      parse(matcher.group(1), rules, residualCss);
+      index = matcher.end();
+    }
+    builder.append(source, index, source.length());
+    if(rules.isEmpty()) {
+      return source;
+    }
+    if(residualCss.length() > 0) {
+      builder.insert(residualIndex, "<style type=\"text/css\">" + residualCss + "</style>");
+    }
+
+    Collections.sort(rules);
+    return inline(builder.toString(), rules);
+  }
+
+  /**
+   * Parse style sheet and store simple selector rules. Rules that cannot be inlined are appended to residual style sheet.
+   * 
+   * @param css style sheet content,
+   * @param rules rules list, updated by this method,
+   * @param residualCss residual style sheet, updated by this method.
+   */
+  private static void parse(String css, List<Rule> rules, StringBuilder residualCss)
+  {
+    css = CSS_COMMENT.matcher(css).replaceAll("");
+    int index = 0;
+    while(index < css.length()) {
+      int blockStart = css.indexOf('{', index);
+      if(blockStart == -1) {
+        break;
+      }
+      String selectors = css.substring(index, blockStart).trim();
+
+      if(selectors.startsWith("@")) {
+        // at-rule; copy it verbatim, taking care of nested blocks
+        int depth = 0;
+        int blockEnd = blockStart;
+        for(; blockEnd < css.length(); ++blockEnd) {
+          char c = css.charAt(blockEnd);
+          if(c == '{') {
+            ++depth;
+          }
+          else if(c == '}' && --depth == 0) {
+            break;
+          }
+        }
+        residualCss.append(css, index, Math.min(blockEnd + 1, css.length()));
+        index = blockEnd + 1;
+        continue;
+      }
+
+      int blockEnd = css.indexOf('}', blockStart);
+      if(blockEnd == -1) {
+        blockEnd = css.length();
+      }
+      String declarations = normalize(css.substring(blockStart + 1, blockEnd));
+      index = blockEnd + 1;
+      if(declarations.isEmpty()) {
+        continue;
+      }
+
+      for(String selector : selectors.split(",")) {
+        selector = selector.trim();
+        Matcher matcher = SIMPLE_SELECTOR.matcher(selector);
+        if(!selector.isEmpty() && matcher.matches()) {
+          rules.add(new Rule(matcher.group(1), matcher.group(2), matcher.group(3), declarations, rules.size()));
+        }
+        else {
+          residualCss.append(selector).append('{').append(declarations).append('}');
+        }
+      }
+    }
+  }
+
+  /**
+   * Normalize declarations block: trim declarations, remove empty ones and use single quotes since declarations end up
+   * into a double quoted attribute.
+   * 
+   * @param declarations declarations block.
+   * @return normalized declarations.
+   */
+  private static String normalize(String declarations)
+  {
+    StringBuilder builder = new StringBuilder();
+    for(String declaration : declarations.split(";")) {
+      declaration = declaration.trim();
+      if(declaration.isEmpty()) {
+        continue;
+      }
+      if(builder.length() > 0) {
+        builder.append("; ");
+      }
+      builder.append(declaration.replace('"', '\''));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Apply rules to matching start tags from body. If source has no body element rules are applied to entire source.
+   * 
+   * @param source template source, with style sheets removed,
+   * @param rules rules sorted by specificity and source order.
+   * @return source with inlined styles.
+   */
+  private static String inline(String source, List<Rule> rules)
+  {
+    Matcher bodyMatcher = BODY_START.matcher(source);
+    int bodyStart = bodyMatcher.find() ? bodyMatcher.start() : 0;
+
+    StringBuilder builder = new StringBuilder(source.length() * 2);
+    builder.append(source, 0, bodyStart);
+    Matcher matcher = START_TAG.matcher(source);
+    int index = bodyStart;
+    while(matcher.find(index)) {
+      builder.append(source, index, matcher.start());
+      index = matcher.end();
+
+      String name = matcher.group(1);
+      String attributes = matcher.group(2);
+      String id = null;
+      String classes = null;
+      String style = null;
+      int styleStart = -1;
+      int styleEnd = -1;
+
+      Matcher attribute = ATTRIBUTE.matcher(attributes);
+      while(attribute.find()) {
+        String value = unquote(attribute.group(2));
+        switch(attribute.group(1).toLowerCase()) {
+        case "id":
+          id = value;
+          break;
+        case "class":
+          classes = value;
+          break;
+        case "style":
+          style = value;
+          styleStart = attribute.start();
+          styleEnd = attribute.end();
+          break;
+        }
+      }
+
+      StringBuilder inlineStyle = new StringBuilder();
+      for(Rule rule : rules) {
+        if(rule.matches(name, id, classes)) {
+          if(inlineStyle.length() > 0) {
+            inlineStyle.append("; ");
+          }
+          inlineStyle.append(rule.declarations);
+        }
+      }
+      if(inlineStyle.length() == 0) {
+        builder.append(matcher.group());
+        continue;
+      }
+      if(style != null && !style.trim().isEmpty()) {
+        inlineStyle.append("; ").append(style.trim());
+      }
+
+      builder.append('<').append(name);
+      if(styleStart != -1) {
+        builder.append(attributes, 0, styleStart);
+        builder.append("style=\"").append(inlineStyle).append('"');
+        builder.append(attributes, styleEnd, attributes.length());
+      }
+      else {
+        builder.append(attributes);
+        builder.append(" style=\"").append(inlineStyle).append('"');
+      }
+      builder.append(matcher.group(3).isEmpty() ? ">" : " />");
+    }
+    builder.append(source, index, source.length());
+    return builder.toString();
+  }
+
+  private static String unquote(String value)
+  {
+    if(value == null) {
+      return null;
+    }
+    if(value.length() >= 2 && (value.charAt(0) == '"' || value.charAt(0) == '\'')) {
+      return value.substring(1, value.length() - 1);
+    }
+    return value;
+  }
+
+  /**
+   * CSS rule with a simple selector. Rules are ordered by specificity, identifier, classes and element, then by source
+   * order.
+   * 
+   * @author Iulian Rotaru
+   */
+  private static final class Rule implements Comparable<Rule>
+  {
+    final String element;
+    final String id;
+    final String[] classes;
+    final String declarations;
+    final int specificity;
+    final int order;
+
+    Rule(String element, String id, String classes, String declarations, int order)
+    {
+      this.element = element;
+      this.id = id != null ? id.substring(1) : null;
+      this.classes = classes.isEmpty() ? new String[0] : classes.substring(1).split("\\.");
+      this.declarations = declarations;
+      this.specificity = (this.id != null ? 10000 : 0) + this.classes.length * 100 + (element != null ? 1 : 0);
+      this.order = order;
+    }
+
+    boolean matches(String element, String id, String classes)
+    {
+      if(this.element != null && !this.element.equalsIgnoreCase(element)) {
+        return false;
+      }
+      if(this.id != null && !this.id.equals(id)) {
+        return false;
+      }
+      if(this.classes.length > 0) {
+        if(classes == null) {
+          return false;
+        }
+        String paddedClasses = " " + classes.trim().replaceAll("\\s+", " ") + " ";
+        for(String cssClass : this.classes) {
+          if(!paddedClasses.contains(" " + cssClass + " ")) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int compareTo(Rule other)
+    {
+      return specificity != other.specificity ? Integer.compare(specificity, other.specificity) : Integer.compare(order, other.order);
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package com.jslib.email;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+
+import com.jslib.api.email.EmailException;
+import com.jslib.api.log.Log;
+import com.jslib.api.log.LogFactory;
+import com.sun.mail.smtp.SMTPMessage;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * Direct-to-MX delivery for configured domains. Recipients from direct delivery domains are grouped by domain and
+ * message is delivered to domain mail exchanger, skipping the relay; other recipients are left for relay delivery.
+ * <p>
+ * Mail exchangers are resolved by a pluggable {@link MxResolver}, wrapped by a {@link CachingMxResolver}, and tried in
+ * preference order; next exchanger is tried only on connection failures and transient errors. Permanent errors,
+ * <code>5xx</code> reply codes, reject domain recipients. Every mail exchanger has its own {@link TransportPool} with a
+ * session derived from relay session properties: host and port are replaced, authentication is disabled and, if relay
+ * uses STARTTLS, exchanger connections use a cached TLS context, see {@link TlsSocketFactory}.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class DirectDelivery
+{
+  /** Class logger. */
+  private static final Log log = LogFactory.getLog(DirectDelivery.class);
+
+  /** Maximum number of TLS sessions cached per mail exchanger. */
+  private static final int TLS_SESSION_CACHE = 16;
+  /** Cached TLS sessions timeout, in seconds. */
+  private static final int TLS_SESSION_TIMEOUT = 86400;
+
+  /** Cached resolver for mail exchangers. */
+  private final MxResolver resolver;
+
+  /** Direct delivery domains, lower case. */
+  private final Set<String> domains;
+
+  /** Mail exchangers SMTP port. */
+  private final int port;
+
+  /** Maximum number of idle transports per mail exchanger. */
+  private final int maxIdle;
+
+  /** Transports pools keyed by mail exchanger host. */
+  private final ConcurrentMap<String, TransportPool> pools = new ConcurrentHashMap<>();
+
+  /**
+   * Create direct delivery.
+   * 
+   * @param resolver MX resolver, not caching,
+   * @param domains direct delivery domains,
+   * @param port mail exchangers SMTP port,
+   * @param maxIdle maximum number of idle transports per mail exchanger.
+   */
+  DirectDelivery(MxResolver resolver, Set<String> domains, int port, int maxIdle)
+  {
+    this.resolver = new CachingMxResolver(resolver);
+    this.domains = domains;
+    this.port = port;
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * Deliver message to recipients from direct delivery domains and return recipients left for relay. Status for direct
+   * recipients is added to given list.
+   * 
+   * @param session relay session, used as template for mail exchangers sessions,
+   * @param message message to deliver, with changes saved,
+   * @param recipients all message recipients,
+   * @param recipientsStatus recipients status list, updated by this method.
+   * @return recipients not handled by direct delivery, possible empty.
+   */
+  Address[] deliver(Session session, SMTPMessage message, Address[] recipients, List<RecipientStatus> recipientsStatus)
+  {
+    Map<String, List<Address>> domainRecipients = new LinkedHashMap<>();
+    List<Address> relayRecipients = new ArrayList<>();
+    for(Address recipient : recipients) {
+      String domain = domain(recipient);
+      if(domain != null && domains.contains(domain)) {
+        domainRecipients.computeIfAbsent(domain, key -> new ArrayList<>()).add(recipient);
+      }
+      else {
+        relayRecipients.add(recipient);
+      }
+    }
+
+    for(Map.Entry<String, List<Address>> entry : domainRecipients.entrySet()) {
+      deliver(session, message, entry.getKey(), entry.getValue().toArray(new Address[0]), recipientsStatus);
+    }
+    return relayRecipients.toArray(new Address[0]);
+  }
+
+  /**
+   * Deliver message to domain recipients, trying mail exchangers in preference order.
+   * 
+   * @param session relay session,
+   * @param message message to deliver,
+   * @param domain recipients domain,
+   * @param recipients domain recipients,
+   * @param recipientsStatus recipients status list, updated by this method.
+   */
+  private void deliver(Session session, SMTPMessage message, String domain, Address[] recipients, List<RecipientStatus> recipientsStatus)
+  {
+    String failure;
+    int returnCode = 0;
+    try {
+      failure = "No mail exchanger available.";
+      for(String host : resolver.resolve(domain).getHosts()) {
+        TransportPool pool = pools.computeIfAbsent(host, mx -> new TransportPool(createSession(session, mx), maxIdle));
+        Transport transport;
+        try {
+          transport = pool.borrow();
+        }
+        catch(EmailException e) {
+          log.warn("Fail to connect mail exchanger |{host}| for domain |{domain}|: {exception}", host, domain, e.getMessage());
+          failure = e.getMessage();
+          continue;
+        }
+
+        boolean reusable = false;
+        try {
+          transport.sendMessage(message, recipients);
+          reusable = true;
+          String response = transport instanceof SMTPTransport ? ((SMTPTransport)transport).getLastServerResponse() : null;
+          for(Address recipient : recipients) {
+            recipientsStatus.add(new RecipientStatus(recipient.toString(), true, 0, response));
+          }
+          return;
+        }
+        catch(MessagingException e) {
+          failure = e.getMessage();
+          returnCode = e instanceof SMTPSendFailedException ? ((SMTPSendFailedException)e).getReturnCode() : 0;
+          if(returnCode / 100 == 5 || (e instanceof SendFailedException && !(e instanceof SMTPSendFailedException))) {
+            // permanent failure; other exchangers of the same domain would reject too
+            break;
+          }
+          log.warn("Fail to deliver to mail exchanger |{host}| for domain |{domain}|: {exception}", host, domain, failure);
+        }
+        finally {
+          pool.release(transport, reusable);
+        }
+      }
+    }
+    catch(EmailException e) {
+      failure = e.getMessage();
+    }
+
+    for(Address recipient : recipients) {
+      recipientsStatus.add(new RecipientStatus(recipient.toString(), false, returnCode, failure));
+    }
+  }
+
+  /**
+   * Create session for mail exchanger from relay session properties.
+   * 
+   * @param session relay session,
+   * @param host mail exchanger host.
+   * @return mail exchanger session.
+   */
+  private Session createSession(Session session, String host)
+  {
+    Properties properties = new Properties();
+    properties.putAll(session.getProperties());
+    properties.put("mail.transport.protocol", "smtp");
+    properties.put("mail.smtp.host", host);
+    properties.put("mail.smtp.port", Integer.toString(port));
+    properties.put("mail.smtp.auth", "false");
+    properties.remove("mail.smtp.ssl.enable");
+    properties.remove("mail.smtp.ssl.socketFactory");
+    if(Boolean.parseBoolean(properties.getProperty("mail.smtp.starttls.enable"))) {
+      properties.put("mail.smtp.ssl.socketFactory", TlsSocketFactory.getInstance(host, port, TLS_SESSION_CACHE, TLS_SESSION_TIMEOUT));
+    }
+    log.debug("Create direct delivery session for mail exchanger |{host}|.", host);
+    Session mxSession = Session.getInstance(properties);
+    try {
+      ExtendedSMTPTransport.register(mxSession);
+    }
+    catch(NoSuchProviderException e) {
+      throw new EmailException(e);
+    }
+    return mxSession;
+  }
+
+  /** Drain all mail exchangers pools. */
+  void drain()
+  {
+    for(TransportPool pool : pools.values()) {
+      pool.drain();
+    }
+    pools.clear();
+  }
+
+  /**
+   * Get recipient address domain, lower case.
+   * 
+   * @param recipient recipient address.
+   * @return address domain or null if address has no domain.
+   */
+  static String domain(Address recipient)
+  {
+    String address = recipient instanceof InternetAddress ? ((InternetAddress)recipient).getAddress() : recipient.toString();
+    int separator = address.lastIndexOf('@');
+    return separator != -1 ? address.substring(separator + 1).toLowerCase(Locale.ROOT) : null;
+  }
+}
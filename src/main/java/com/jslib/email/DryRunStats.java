@@ -0,0 +1,128 @@
+package com.jslib.email;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics collected by sender in dry-run mode. In dry-run mode sender does everything but network write: it renders
+ * template, builds MIME message, encodes attachments and serializes message to a counting null stream. These statistics
+ * allow for sizing render and MIME building capacity separately from email server.
+ * <p>
+ * Collected phases are: <code>render</code> - template serialization, <code>build</code> - MIME message creation and
+ * <code>serialize</code> - message writing, including attachments encoding. Counters are updated concurrently by
+ * sending threads without locking.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public final class DryRunStats
+{
+  private final LongAdder messagesCount = new LongAdder();
+  private final LongAdder bytesCount = new LongAdder();
+  private final LongAdder renderNanos = new LongAdder();
+  private final LongAdder buildNanos = new LongAdder();
+  private final LongAdder serializeNanos = new LongAdder();
+
+  /** Timestamp of the first recorded message, in nanoseconds, zero if no message recorded yet. */
+  private final AtomicLong startTimestamp = new AtomicLong();
+
+  /** Timestamp of the last recorded message, in nanoseconds. */
+  private volatile long lastTimestamp;
+
+  /**
+   * Record dry-run statistics for a message.
+   * 
+   * @param renderNanos template rendering time, zero for ad hoc messages,
+   * @param buildNanos MIME message building time,
+   * @param serializeNanos message serialization time,
+   * @param bytes serialized message size.
+   */
+  void record(long renderNanos, long buildNanos, long serializeNanos, long bytes)
+  {
+    long timestamp = System.nanoTime();
+    startTimestamp.compareAndSet(0, timestamp - renderNanos - buildNanos - serializeNanos);
+    lastTimestamp = timestamp;
+
+    this.messagesCount.increment();
+    this.bytesCount.add(bytes);
+    this.renderNanos.add(renderNanos);
+    this.buildNanos.add(buildNanos);
+    this.serializeNanos.add(serializeNanos);
+  }
+
+  public long getMessagesCount()
+  {
+    return messagesCount.sum();
+  }
+
+  public long getBytesCount()
+  {
+    return bytesCount.sum();
+  }
+
+  /**
+   * Get average bytes per message.
+   * 
+   * @return average message size, zero if no message recorded.
+   */
+  public long getBytesPerMessage()
+  {
+    long messages = messagesCount.sum();
+    return messages != 0 ? bytesCount.sum() / messages : 0;
+  }
+
+  /**
+   * Get throughput, in messages per second, measured from first to last recorded message.
+   * 
+   * @return messages per second, zero if no message recorded.
+   */
+  public double getThroughput()
+  {
+    long elapsed = lastTimestamp - startTimestamp.get();
+    return elapsed > 0 ? messagesCount.sum() * (double)TimeUnit.SECONDS.toNanos(1) / elapsed : 0;
+  }
+
+  public long getRenderNanos()
+  {
+    return renderNanos.sum();
+  }
+
+  public long getBuildNanos()
+  {
+    return buildNanos.sum();
+  }
+
+  public long getSerializeNanos()
+  {
+    return serializeNanos.sum();
+  }
+
+  /** Reset all counters. */
+  public void reset()
+  {
+    messagesCount.reset();
+    bytesCount.reset();
+    renderNanos.reset();
+    buildNanos.reset();
+    serializeNanos.reset();
+    startTimestamp.set(0);
+    lastTimestamp = 0;
+  }
+
+  /**
+   * Format statistics report with throughput, bytes per message and average time per phase, in microseconds.
+   * 
+   * @return statistics report.
+   */
+  @Override
+  public String toString()
+  {
+    long messages = Math.max(messagesCount.sum(), 1);
+    return String.format("messages: %d, throughput: %.1f msg/s, bytes/message: %d, render: %d us, build: %d us, serialize: %d us", //
+        messagesCount.sum(), getThroughput(), getBytesPerMessage(), //
+        TimeUnit.NANOSECONDS.toMicros(renderNanos.sum() / messages), //
+        TimeUnit.NANOSECONDS.toMicros(buildNanos.sum() / messages), //
+        TimeUnit.NANOSECONDS.toMicros(serializeNanos.sum() / messages));
+  }
+}
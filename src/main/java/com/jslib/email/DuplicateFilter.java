@@ -0,0 +1,187 @@
+package com.jslib.email;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded memory store for idempotency keys of sent emails, used to suppress duplicated sends when callers retry. Most
+ * recent keys are kept exactly into a window with fixed capacity; keys evicted from window are added to a Bloom filter
+ * so that older duplicates are still detected, with a configurable false positive probability.
+ * <p>
+ * Bloom filter has two generations. New keys are added to current generation; when current generation reaches its
+ * capacity it becomes the previous generation and the older one is discarded. A key is considered duplicated if found
+ * into window or into any generation. Overall, memory is bounded by window capacity and two Bloom filters sized for
+ * configured capacity and false positive probability.
+ * <p>
+ * Note that a Bloom filter false positive suppresses a legitimate email; false positive probability should be chosen
+ * accordingly.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class DuplicateFilter
+{
+  /** Exact keys window, in insertion order. Window value is not used. */
+  private final Map<String, Boolean> window;
+
+  /** Maximum number of keys kept exactly. */
+  private final int windowCapacity;
+
+  /** Number of bits of a Bloom filter generation. */
+  private final int bitsCount;
+
+  /** Number of hash functions used by Bloom filter. */
+  private final int hashesCount;
+
+  /** Number of keys a Bloom filter generation holds before rotation. */
+  private final int generationCapacity;
+
+  /** Current Bloom filter generation, lazily created on first key evicted from window. */
+  private long[] currentGeneration;
+
+  /** Previous Bloom filter generation, null if not yet rotated. */
+  private long[] previousGeneration;
+
+  /** Number of keys added to current generation. */
+  private int generationSize;
+
+  /**
+   * Create duplicate filter.
+   * 
+   * @param windowCapacity number of keys kept exactly,
+   * @param generationCapacity number of keys per Bloom filter generation,
+   * @param falsePositiveProbability Bloom filter false positive probability for a full generation.
+   */
+  DuplicateFilter(int windowCapacity, int generationCapacity, double falsePositiveProbability)
+  {
+    this.window = new LinkedHashMap<>();
+    this.windowCapacity = windowCapacity;
+
+    // optimal Bloom filter parameters: m = -n * ln(p) / (ln 2)^2 and k = m / n * ln 2
+    long bits = (long)Math.ceil(-generationCapacity * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+    this.bitsCount = (int)Math.max(64, Math.min(bits, Integer.MAX_VALUE - 63));
+    this.hashesCount = Math.max(1, (int)Math.round((double)bitsCount / generationCapacity * Math.log(2)));
+    this.generationCapacity = generationCapacity;
+  }
+
+  /**
+   * Test if idempotency key was already registered, that is, email with given key was already sent and should be
+   * suppressed. Bloom filter false positives are possible for keys evicted from exact window.
+   * 
+   * @param key idempotency key.
+   * @return true if key was registered.
+   */
+  synchronized boolean contains(String key)
+  {
+    if(window.containsKey(key)) {
+      return true;
+    }
+    long[] hashes = hashes(key);
+    return contains(currentGeneration, hashes) || contains(previousGeneration, hashes);
+  }
+
+  /**
+   * Register idempotency key of a sent email and return true if key was not seen before. If this method returns false,
+   * email with given key was already sent and should be suppressed.
+   * 
+   * @param key idempotency key.
+   * @return true if key is new.
+   */
+  synchronized boolean register(String key)
+  {
+    if(window.containsKey(key)) {
+      return false;
+    }
+    long[] hashes = hashes(key);
+    if(contains(currentGeneration, hashes) || contains(previousGeneration, hashes)) {
+      return false;
+    }
+
+    window.put(key, Boolean.TRUE);
+    if(window.size() > windowCapacity) {
+      Iterator<String> iterator = window.keySet().iterator();
+      String eldest = iterator.next();
+      iterator.remove();
+      add(hashes(eldest));
+    }
+    return true;
+  }
+
+  private void add(long[] hashes)
+  {
+    if(currentGeneration == null || generationSize == generationCapacity) {
+      previousGeneration = currentGeneration;
+      currentGeneration = new long[(bitsCount + 63) >>> 6];
+      generationSize = 0;
+    }
+    for(int i = 0; i < hashesCount; ++i) {
+      int bit = bit(hashes, i);
+      currentGeneration[bit >>> 6] |= 1L << bit;
+    }
+    ++generationSize;
+  }
+
+  private boolean contains(long[] generation, long[] hashes)
+  {
+    if(generation == null) {
+      return false;
+    }
+    for(int i = 0; i < hashesCount; ++i) {
+      int bit = bit(hashes, i);
+      if((generation[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get bit index for i-th hash function using double hashing, <code>h1 + i * h2</code>.
+   * 
+   * @param hashes key hashes, see {@link #hashes(String)},
+   * @param i hash function index.
+   * @return bit index.
+   */
+  private int bit(long[] hashes, int i)
+  {
+    return (int)(((hashes[0] + i * hashes[1]) & Long.MAX_VALUE) % bitsCount);
+  }
+
+  /**
+   * Compute two independent 64 bits hashes for key: FNV-1a over key UTF-8 bytes and a mix of it.
+   * 
+   * @param key idempotency key.
+   * @return key hashes.
+   */
+  private static long[] hashes(String key)
+  {
+    long hash = 0xcbf29ce484222325L;
+    for(byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    // finalizer from MurmurHash3 64 bits
+    long mix = hash;
+    mix ^= mix >>> 33;
+    mix *= 0xff51afd7ed558ccdL;
+    mix ^= mix >>> 33;
+    mix *= 0xc4ceb9fe1a85ec53L;
+    mix ^= mix >>> 33;
+    return new long[]
+    {
+        hash, mix | 1
+    };
+  }
+
+  /**
+   * Get the number of keys kept exactly.
+   * 
+   * @return window size.
+   */
+  synchronized int getWindowSize()
+  {
+    return window.size();
+  }
+}
@@ -5,8 +5,13 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
@@ -24,7 +29,7 @@ import com.jslib.util.Strings;
  * 
  * @author Iulian Rotaru
  */
-final class EmailImpl implements Email
+final class EmailImpl implements ExtendedEmail
 {
   /** Email sender, parent of this email instance. */
   private final EmailSenderImpl sender;
@@ -32,6 +37,9 @@ final class EmailImpl implements Email
   /** Reusable email template used to generate this email body. */
   private final Template template;
 
+  /** Static images embedded into this email message, shared with all emails created from the same template. */
+  private final List<InlineImage> inlineImages;
+
   /** Every email instance has an unique message ID. */
   private final MessageID messageID;
 
@@ -74,6 +82,27 @@ final class EmailImpl implements Email
    */
   private File[] files;
 
+  /** Time spent rendering email body from template, in nanoseconds. */
+  private long renderNanos;
+
+  /** Optional email priority. If null sender will use priority configured for template or normal priority. */
+  private Priority priority;
+
+  /** Optional idempotency key used to suppress duplicated sends, null if not set. */
+  private String idempotencyKey;
+
+  /** Optional key of the tenant email is sent on behalf of, null if not set. */
+  private String tenant;
+
+  /** Optional send timeout, in milliseconds, null if sender default timeout applies. */
+  private Long timeout;
+
+  /** Timestamp when send method was invoked, in nanoseconds, zero if email was not sent yet. */
+  private long sendStart;
+
+  /** Wall clock time when email should be sent, null if email is sent immediately. */
+  private Instant sendTime;
+
   /**
    * Initialize this email instance fields from given HTML template. Constructor takes care to only initialize instance
    * fields using information stored into HTML head meta elements - see {@link Email} for meta element syntax and
@@ -85,9 +114,22 @@ final class EmailImpl implements Email
    * @param template email template.
    */
   EmailImpl(EmailSenderImpl sender, Template template)
+  {
+    this(sender, template, Collections.<InlineImage> emptyList());
+  }
+
+  /**
+   * Create email instance for template with inline images.
+   * 
+   * @param sender parent email sender,
+   * @param template email template,
+   * @param inlineImages static images embedded into email message, possible empty.
+   */
+  EmailImpl(EmailSenderImpl sender, Template template, List<InlineImage> inlineImages)
   {
     this.sender = sender;
     this.template = template;
+    this.inlineImages = inlineImages;
     this.messageID = new MessageID();
   }
 
@@ -216,8 +258,90 @@ final class EmailImpl implements Email
     return this;
   }
 
+  @Override
+  public ExtendedEmail priority(Priority priority)
+  {
+    Params.notNull(priority, "Priority");
+    this.priority = priority;
+    return this;
+  }
+
+  @Override
+  public ExtendedEmail idempotencyKey(String key)
+  {
+    Params.notNullOrEmpty(key, "Idempotency key");
+    this.idempotencyKey = key;
+    return this;
+  }
+
+  @Override
+  public ExtendedEmail tenant(String key)
+  {
+    Params.notNullOrEmpty(key, "Tenant key");
+    this.tenant = key;
+    return this;
+  }
+
+  @Override
+  public ExtendedEmail timeout(Duration timeout)
+  {
+    Params.notNull(timeout, "Timeout");
+    if(timeout.isNegative()) {
+      throw new IllegalArgumentException("Timeout is negative.");
+    }
+    this.timeout = timeout.toMillis();
+    return this;
+  }
+
+  @Override
+  public void sendAt(Instant time, Object... args)
+  {
+    Params.notNull(time, "Send time");
+    if(sender.getSendScheduler() == null) {
+      throw new EmailException("Scheduled sends are not enabled. Configure js.email.schedule or js.email.schedule.spool property.");
+    }
+    sendTime = time;
+    send(args);
+  }
+
+  @Override
+  public void sendAfter(Duration delay, Object... args)
+  {
+    Params.notNull(delay, "Delay");
+    sendAt(Instant.now().plus(delay), args);
+  }
+
   @Override
   public void send(Object... args)
+  {
+    sendForResult(args);
+  }
+
+  @Override
+  public SendResult sendForResult(Object... args)
+  {
+    sendStart = System.nanoTime();
+    render(args);
+    return sender.send(this);
+  }
+
+  @Override
+  public CompletableFuture<SendResult> sendAsync(Object... args)
+  {
+    Params.LTE(args.length, 1, "Objects count");
+    sendStart = System.nanoTime();
+    return sender.sendAsync(this, args);
+  }
+
+  /**
+   * Initialize email fields from email model, if given object is an {@link EmailModel}, and render email body from
+   * template. This method is invoked on caller thread by synchronous sends and on send pipeline render stage by
+   * asynchronous sends.
+   * 
+   * @param args optional email model.
+   * @throws EmailException if email model has invalid addresses.
+   */
+  void render(Object... args)
   {
     Params.LTE(args.length, 1, "Objects count");
     Object object = args.length == 1 ? args[0] : new Object();
@@ -260,8 +384,9 @@ final class EmailImpl implements Email
       object = email.model();
     }
 
+    long renderStart = System.nanoTime();
     body = template.serialize(object);
-    sender.send(this);
+    renderNanos = System.nanoTime() - renderStart;
   }
 
   @Override
@@ -373,6 +498,87 @@ final class EmailImpl implements Email
     return files;
   }
 
+  /**
+   * Get static images embedded into this email message. If returned list is not empty, email body is sent as
+   * <code>multipart/related</code>.
+   * 
+   * @return inline images, possible empty.
+   */
+  List<InlineImage> inlineImages()
+  {
+    return inlineImages;
+  }
+
+  /**
+   * Get time spent rendering email body from template, in nanoseconds. Returns zero if email was not rendered yet.
+   * 
+   * @return render time, in nanoseconds.
+   */
+  long renderNanos()
+  {
+    return renderNanos;
+  }
+
+  /**
+   * Get email priority or null if priority was not explicitly set.
+   * 
+   * @return email priority, possible null.
+   */
+  Priority priority()
+  {
+    return priority;
+  }
+
+  /**
+   * Get email idempotency key or null if not set.
+   * 
+   * @return idempotency key, possible null.
+   */
+  String idempotencyKey()
+  {
+    return idempotencyKey;
+  }
+
+  /**
+   * Get tenant key or null if not set.
+   * 
+   * @return tenant key, possible null.
+   */
+  String tenant()
+  {
+    return tenant;
+  }
+
+  /**
+   * Get send timeout or null if not set, in which case sender default timeout applies.
+   * 
+   * @return send timeout, in milliseconds, possible null.
+   */
+  Long timeout()
+  {
+    return timeout;
+  }
+
+  /**
+   * Get timestamp when send method was invoked.
+   * 
+   * @return send start timestamp, in nanoseconds, zero if email was not sent yet.
+   */
+  long sendStart()
+  {
+    return sendStart;
+  }
+
+  /**
+   * Get time when email should be sent or null if email should be sent immediately.
+   * 
+   * @return email send time, possible null.
+   */
+  Instant sendTime()
+  {
+    return sendTime;
+  }
+
   /**
    * Get this email content type. Content type is initialized from HTML template <code>Content-Type</code> meta. If that
    * meta is missing uses sender content type.
@@ -1,9 +1,35 @@
 package com.jslib.email;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
 
 import javax.activation.DataHandler;
 import javax.activation.FileDataSource;
@@ -12,17 +38,22 @@ import javax.mail.BodyPart;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
+import javax.mail.SendFailedException;
 import javax.mail.Transport;
+import javax.mail.internet.ContentType;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
+import javax.mail.util.ByteArrayDataSource;
 
 import com.jslib.api.email.Email;
 import com.jslib.api.email.EmailException;
 import com.jslib.api.email.EmailSender;
 import com.jslib.api.log.Log;
 import com.jslib.api.log.LogFactory;
-import com.jslib.api.template.Template;
 import com.jslib.api.template.TemplateEngine;
 import com.jslib.lang.Config;
 import com.jslib.lang.ConfigBuilder;
@@ -33,7 +64,10 @@ import com.jslib.util.I18nFile;
 import com.jslib.util.I18nPool;
 import com.jslib.util.I18nRepository;
 import com.jslib.util.Params;
+import com.sun.mail.smtp.SMTPAddressFailedException;
 import com.sun.mail.smtp.SMTPMessage;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPTransport;
 
 /**
  * Email sender implementation based on Java Mail API.
@@ -41,11 +75,195 @@ import com.sun.mail.smtp.SMTPMessage;
  * @author Iulian Rotaru
  * @version draft
  */
-public final class EmailSenderImpl implements EmailSender
+public final class EmailSenderImpl implements EmailSender, AutoCloseable
 {
   /** Class logger. */
   private static final Log log = LogFactory.getLog(EmailSenderImpl.class);
 
+  /** Property key for templates repository watcher. If true, templates changed on file system are hot reloaded. */
+  private static final String PROP_REPOSITORY_WATCH = "js.repository.watch";
+  /** Property key for comma separated list of template preprocessors, see {@link TemplatePreprocessor}. */
+  private static final String PROP_TEMPLATE_PREPROCESSORS = "js.template.preprocessors";
+  /** Property key for inline images. If true, static images referenced by templates are embedded into messages. */
+  private static final String PROP_INLINE_IMAGES = "js.email.inline.images";
+  /** Property key for capture mode. If true, emails are stored into {@link CaptureMailbox} instead of being sent. */
+  private static final String PROP_CAPTURE = "js.email.capture";
+  /** Property key for capture mailbox capacity. */
+  private static final String PROP_CAPTURE_CAPACITY = "js.email.capture.capacity";
+  /** Property key for optional Maildir directory where captured emails are also written. */
+  private static final String PROP_CAPTURE_MAILDIR = "js.email.capture.maildir";
+
+  /** Property key for dry-run mode. If true, emails are fully rendered and serialized to a null stream. */
+  private static final String PROP_DRY_RUN = "js.email.dry.run";
+
+  /** Property key for priority gate capacity, that is, concurrent transmissions. If missing, priority gate is disabled. */
+  private static final String PROP_LANES_CAPACITY = "js.email.lanes.capacity";
+  /** Property key for number of gate slots reserved for transactional lane. */
+  private static final String PROP_LANES_TRANSACTIONAL_RESERVED = "js.email.lanes.transactional.reserved";
+  /** Property key for number of gate slots reserved for normal lane, not usable by bulk lane. */
+  private static final String PROP_LANES_NORMAL_RESERVED = "js.email.lanes.normal.reserved";
+  /** Property key for maximum time, in milliseconds, bulk email waits for a gate slot before being shed. */
+  private static final String PROP_LANES_BULK_MAX_WAIT = "js.email.lanes.bulk.max.wait";
+  /** Property key for maximum number of bulk emails waiting for gate slots. */
+  private static final String PROP_LANES_BULK_MAX_QUEUE = "js.email.lanes.bulk.max.queue";
+  /** Prefix for per template priority properties, e.g. <code>js.email.priority.password-reset=TRANSACTIONAL</code>. */
+  private static final String PROP_PRIORITY_PREFIX = "js.email.priority.";
+
+  /**
+   * Property key for tenant scheduler capacity, that is, concurrent transmissions shared fairly between tenants. If
+   * missing, tenant scheduling is disabled.
+   */
+  private static final String PROP_TENANTS_CAPACITY = "js.email.tenants.capacity";
+  /** Property key for transmissions in flight limit of tenants without configured limit. */
+  private static final String PROP_TENANTS_MAX_INFLIGHT = "js.email.tenants.max.inflight";
+  /**
+   * Prefix for per tenant properties: <code>js.email.tenant.acme.weight=4</code> and
+   * <code>js.email.tenant.acme.max.inflight=8</code>.
+   */
+  private static final String PROP_TENANT_PREFIX = "js.email.tenant.";
+  /** Suffix for tenant weight property. */
+  private static final String PROP_TENANT_WEIGHT = ".weight";
+  /** Suffix for tenant transmissions in flight limit property. */
+  private static final String PROP_TENANT_MAX_INFLIGHT = ".max.inflight";
+
+  /**
+   * Property key for scheduled sends. If true, emails can be sent at a future time, see {@link SendScheduler}; scheduled
+   * sends are enabled also by {@link #PROP_SCHEDULE_SPOOL}.
+   */
+  private static final String PROP_SCHEDULE = "js.email.schedule";
+  /** Property key for scheduled emails timing wheel tick duration, in milliseconds. */
+  private static final String PROP_SCHEDULE_TICK = "js.email.schedule.tick";
+  /** Property key for scheduled emails timing wheel size. */
+  private static final String PROP_SCHEDULE_WHEEL_SIZE = "js.email.schedule.wheel.size";
+  /** Property key for optional spool directory where scheduled emails are persisted. */
+  private static final String PROP_SCHEDULE_SPOOL = "js.email.schedule.spool";
+  /** Property key for number of retries of a scheduled email send failed with a transient error. */
+  private static final String PROP_SCHEDULE_RETRIES = "js.email.schedule.retries";
+  /** Property key for delay, in milliseconds, before first retry of a failed scheduled email; doubled on every retry. */
+  private static final String PROP_SCHEDULE_RETRY_DELAY = "js.email.schedule.retry.delay";
+
+  /** Property key for number of most recent idempotency keys kept exactly. */
+  private static final String PROP_IDEMPOTENCY_WINDOW = "js.email.idempotency.window";
+  /** Property key for number of older idempotency keys per Bloom filter generation. */
+  private static final String PROP_IDEMPOTENCY_BLOOM_CAPACITY = "js.email.idempotency.bloom.capacity";
+  /** Property key for Bloom filter false positive probability. */
+  private static final String PROP_IDEMPOTENCY_BLOOM_FPP = "js.email.idempotency.bloom.fpp";
+
+  /** Property key for comma separated list of domains delivered directly to their mail exchangers, skipping relay. */
+  private static final String PROP_DIRECT_DOMAINS = "js.email.direct.domains";
+  /** Property key for optional {@link MxResolver} implementation class. */
+  private static final String PROP_DIRECT_RESOLVER = "js.email.direct.resolver";
+  /** Property key for time to live, in seconds, of mail exchangers resolved by default JNDI resolver. */
+  private static final String PROP_DIRECT_MX_TTL = "js.email.direct.mx.ttl";
+  /** Property key for mail exchangers SMTP port. */
+  private static final String PROP_DIRECT_PORT = "js.email.direct.port";
+  /** Property key for maximum number of idle connections per mail exchanger. */
+  private static final String PROP_DIRECT_MAX_IDLE = "js.email.direct.max.idle";
+
+  /** Property key for shared spool directory. If configured, messages are delivered through spool, see {@link SharedSpool}. */
+  private static final String PROP_SPOOL = "js.email.spool";
+  /** Property key for number of spool worker threads on this node; zero for a node that only produces messages. */
+  private static final String PROP_SPOOL_WORKERS = "js.email.spool.workers";
+  /** Property key for idle spool worker poll interval, in milliseconds. */
+  private static final String PROP_SPOOL_POLL = "js.email.spool.poll";
+  /** Property key for time, in milliseconds, after which a spool claim from a crashed node is recovered. */
+  private static final String PROP_SPOOL_STALE = "js.email.spool.stale";
+
+  /** Property key for optional {@link SendTracer} implementation class. */
+  private static final String PROP_TRACER = "js.email.tracer";
+  /** Property key for slow send threshold, in milliseconds. If configured, default tracer is {@link SlowSendLogger}. */
+  private static final String PROP_TRACE_SLOW = "js.email.trace.slow";
+  /** Property key for fraction of sends traced, from 0 to 1. */
+  private static final String PROP_TRACE_SAMPLE = "js.email.trace.sample";
+
+  /** Property key for send pipeline. If true, asynchronous sends are rendered, built and transmitted on staged pools. */
+  private static final String PROP_PIPELINE = "js.email.pipeline";
+  /** Property key for number of send pipeline CPU threads, for render and build stages. */
+  private static final String PROP_PIPELINE_CPU_THREADS = "js.email.pipeline.cpu.threads";
+  /** Property key for number of send pipeline I/O threads, for transmit stage. */
+  private static final String PROP_PIPELINE_IO_THREADS = "js.email.pipeline.io.threads";
+  /** Property key for send pipeline stage capacity, that is, maximum number of emails queued or running on a stage. */
+  private static final String PROP_PIPELINE_CAPACITY = "js.email.pipeline.capacity";
+
+  /**
+   * Property key for default send timeout, in milliseconds, bounding queue waits, connection and SMTP conversation; zero
+   * disables send deadlines. Send deadlines are disabled by default. Emails can override it, see
+   * {@link ExtendedEmail#timeout(java.time.Duration)}.
+   */
+  private static final String PROP_SEND_TIMEOUT = "js.email.send.timeout";
+
+  /** Property key for number of encoded header values per cache generation; zero disables header encoding cache. */
+  private static final String PROP_HEADER_CACHE = "js.email.header.cache";
+
+  /** Property key for management bean. If true sender is registered on platform MBean server; default is false. */
+  private static final String PROP_JMX = "js.email.jmx";
+  /** Property key for sender name used by management bean object name; default is sender instance index. */
+  private static final String PROP_JMX_NAME = "js.email.jmx.name";
+  /** Property key for templates warm-up. If true, all repository templates are parsed on configuration. */
+  private static final String PROP_TEMPLATES_WARMUP = "js.email.templates.warmup";
+
+  /** Default capture mailbox capacity. */
+  private static final int DEF_CAPTURE_CAPACITY = 1024;
+  /** Default scheduled emails timing wheel tick duration, in milliseconds. */
+  private static final long DEF_SCHEDULE_TICK = 100;
+  /** Default scheduled emails timing wheel size; with default tick a wheel rotation is about 51 seconds. */
+  private static final int DEF_SCHEDULE_WHEEL_SIZE = 512;
+  /** Default number of scheduled email send retries. */
+  private static final int DEF_SCHEDULE_RETRIES = 3;
+  /** Default delay before first scheduled email send retry, in milliseconds. */
+  private static final long DEF_SCHEDULE_RETRY_DELAY = 60000;
+  /** Default number of idempotency keys kept exactly. */
+  private static final int DEF_IDEMPOTENCY_WINDOW = 100000;
+  /** Default number of idempotency keys per Bloom filter generation. */
+  private static final int DEF_IDEMPOTENCY_BLOOM_CAPACITY = 1000000;
+  /** Default Bloom filter false positive probability. */
+  private static final double DEF_IDEMPOTENCY_BLOOM_FPP = 0.0001;
+  /** Default time to live, in seconds, of mail exchangers resolved by default JNDI resolver. */
+  private static final long DEF_DIRECT_MX_TTL = 3600;
+  /** Default mail exchangers SMTP port. */
+  private static final int DEF_DIRECT_PORT = 25;
+  /** Default maximum number of idle connections per mail exchanger. */
+  private static final int DEF_DIRECT_MAX_IDLE = 2;
+  /** Default number of spool worker threads. */
+  private static final int DEF_SPOOL_WORKERS = 2;
+  /** Default idle spool worker poll interval, in milliseconds. */
+  private static final long DEF_SPOOL_POLL = 500;
+  /** Default spool stale claim timeout, in milliseconds. */
+  private static final long DEF_SPOOL_STALE = 600000;
+  /** Default number of send pipeline I/O threads. */
+  private static final int DEF_PIPELINE_IO_THREADS = 16;
+  /** Default send pipeline stage capacity. */
+  private static final int DEF_PIPELINE_CAPACITY = 256;
+  /** Default number of encoded header values per cache generation. */
+  private static final int DEF_HEADER_CACHE = 1024;
+  /** Default fraction of sends traced, that is, all sends. */
+  private static final double DEF_TRACE_SAMPLE = 1.0;
+  /** Default number of gate slots reserved for transactional, respective normal lane. */
+  private static final int DEF_LANES_RESERVED = 1;
+  /** Default bulk lane maximum wait time, in milliseconds. */
+  private static final long DEF_LANES_BULK_MAX_WAIT = 30000;
+  /** Default bulk lane maximum queue length. */
+  private static final int DEF_LANES_BULK_MAX_QUEUE = 1000;
+  /** Default tenant transmissions in flight limit; by default tenants are limited only by scheduler capacity. */
+  private static final int DEF_TENANTS_MAX_INFLIGHT = 0;
+  /** Default send timeout, zero for no send deadline; sends are bounded only by JavaMail socket timeouts. */
+  private static final long DEF_SEND_TIMEOUT = 0;
+
+  /** Headers not written into shared spool files, since spooled content is sent as it is. */
+  private static final String[] SPOOL_IGNORE_HEADERS =
+  {
+      "Bcc", "Content-Length"
+  };
+
+  /** Email sender instances counter, used for default management bean names. */
+  private static final AtomicInteger INSTANCES_COUNTER = new AtomicInteger();
+
+  /** Flag set by {@link #close()}, so that sender resources are released only once. */
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  /** Body charsets cached by content type; empty if content type has no supported charset, see {@link #charset(String)}. */
+  private static final ConcurrentMap<String, Optional<Charset>> BODY_CHARSETS = new ConcurrentHashMap<>();
+
   /** Mail session factory. */
   private SessionFactory sessionFactory;
 
@@ -55,18 +273,128 @@ public final class EmailSenderImpl implements EmailSender
    */
   private boolean developmentMode;
 
-  /** Mail transporter used to send emails. */
-  private Transport transport;
+  /**
+   * Optional capture mailbox, null if capture mode is not enabled. In capture mode emails are fully rendered and stored
+   * into this mailbox instead of being sent to email server; capture mode takes precedence over development mode dump.
+   * Capture mode is activated by {@link #PROP_CAPTURE} property.
+   */
+  private CaptureMailbox captureMailbox;
+
+  /**
+   * Statistics for dry-run mode, null if dry-run mode is not enabled. In dry-run mode sender does everything except the
+   * network write: messages are rendered, MIME built and serialized to a counting null stream. Dry-run mode is activated
+   * by {@link #PROP_DRY_RUN} property and takes precedence over capture and development modes.
+   */
+  private DryRunStats dryRunStats;
+
+  /**
+   * Optional gate controlling transmissions per priority lane, null if {@link #PROP_LANES_CAPACITY} is not configured.
+   * If gate is disabled emails are transmitted in calling thread order, regardless priority.
+   */
+  private PriorityGate priorityGate;
+
+  /**
+   * Optional scheduler sharing transmissions fairly between tenants, null if {@link #PROP_TENANTS_CAPACITY} is not
+   * configured. Tenant scheduler admits transmissions before priority gate.
+   */
+  private TenantScheduler tenantScheduler;
+
+  /** Priority configured per template name. Templates without configured priority use {@link Priority#NORMAL}. */
+  private final Map<String, Priority> templatePriorities = new HashMap<>();
+
+  /**
+   * Scheduler for emails sent at a future time, see {@link ExtendedEmail#sendAt(java.time.Instant, Object...)}. Null if
+   * neither {@link #PROP_SCHEDULE} nor {@link #PROP_SCHEDULE_SPOOL} is configured.
+   */
+  private SendScheduler sendScheduler;
+
+  /**
+   * Idempotency keys store used to suppress duplicated sends, see {@link ExtendedEmail#idempotencyKey(String)}. Created
+   * on first email with idempotency key, see {@link #duplicateFilter()}, so that senders not using idempotency keys do
+   * not pay for it.
+   */
+  private volatile DuplicateFilter duplicateFilter;
+
+  /** Number of idempotency keys kept exactly, see {@link #PROP_IDEMPOTENCY_WINDOW}. */
+  private int idempotencyWindow;
+  /** Number of idempotency keys per Bloom filter generation, see {@link #PROP_IDEMPOTENCY_BLOOM_CAPACITY}. */
+  private int idempotencyBloomCapacity;
+  /** Bloom filter false positive probability, see {@link #PROP_IDEMPOTENCY_BLOOM_FPP}. */
+  private double idempotencyBloomFpp;
+
+  /**
+   * Idempotency keys of emails being sent, mapped to send outcome. A key is added to {@link #duplicateFilter} only after
+   * its email was successfully sent; meanwhile concurrent sends with the same key wait for this outcome.
+   */
+  private final ConcurrentMap<String, CompletableFuture<SendResult>> inFlightKeys = new ConcurrentHashMap<>();
+
+  /** Optional direct-to-MX delivery, null if {@link #PROP_DIRECT_DOMAINS} is not configured. */
+  private DirectDelivery directDelivery;
+
+  /** Optional shared spool, null if {@link #PROP_SPOOL} is not configured. */
+  private SharedSpool sharedSpool;
+
+  /** Optional send pipeline for asynchronous sends, null if {@link #PROP_PIPELINE} is not enabled. */
+  private SendPipeline sendPipeline;
+
+  /** Cache for encoded subjects and display names, null if {@link #PROP_HEADER_CACHE} is zero. */
+  private HeaderEncoder headerEncoder;
+
+  /** Optional tracer for individual sends, null if tracing is not configured. */
+  private SendTracer sendTracer;
+
+  /** Fraction of sends traced, from 0 to 1. */
+  private double traceSample;
 
   /** X(HT)ML template builder. */
   private TemplateEngine templateEngine;
 
-  /** Multi-language template documents pool. Null if this email provider is configured without templates. */
-  private I18nPool<File> templatesPool;
+  /** Template loader running configured preprocessors before template parsing. */
+  private TemplateLoader templateLoader;
+
+  /** Templates repository path or null if this email provider is configured without templates. */
+  private String repositoryPath;
+
+  /** Pattern for template files from {@link #repositoryPath}. */
+  private String filesPattern;
+
+  /** Regular expression for template file names, compiled from {@link #filesPattern}. */
+  private Pattern filesRegex;
+
+  /**
+   * Templates repository snapshot: multi-language template files pool and parsed templates cache. Null if this email
+   * provider is configured without templates. Templates are reusable so there is no need to parse template file for every
+   * email instance. On templates reload a new snapshot replaces this one, with only changed templates evicted.
+   */
+  private volatile TemplatesSnapshot templates;
+
+  /** Optional templates repository watcher, null if {@link #PROP_REPOSITORY_WATCH} is not enabled. */
+  private TemplatesWatcher templatesWatcher;
 
   /** Default content type used when email instance has none specified. */
   private String contentType;
 
+  /** Default send timeout, in milliseconds, zero if sends have no deadline. See {@link SendDeadline}. */
+  private long sendTimeout = DEF_SEND_TIMEOUT;
+
+  /** Number of emails successfully transmitted by this sender, shared spool deliveries excluded. */
+  private final LongAdder sentCount = new LongAdder();
+
+  /** Number of failed transmissions, shared spool deliveries excluded. */
+  private final LongAdder failedCount = new LongAdder();
+
+  /** Latencies of successful transmissions, from message build start to server response. */
+  private final LatencyHistogram sendLatency = new LatencyHistogram();
+
+  /** Number of emails created from templates, see {@link #createEmail(Locale, String)}. */
+  private final LongAdder templateRequestsCount = new LongAdder();
+
+  /** Number of emails created from templates not found into templates cache. */
+  private final LongAdder templateMissesCount = new LongAdder();
+
+  /** Management bean for this sender, null if {@link #PROP_JMX} is disabled. */
+  private EmailSenderMonitor monitor;
+
   /** Default <code>email subject</code> used when email instance has none specified. */
   private String emailSubject;
 
@@ -104,6 +432,9 @@ public final class EmailSenderImpl implements EmailSender
    * {@link #send(String, String, String, String)}. Anyway, if present, repository path should be valid on underlying
    * file system. Files pattern is optional, default to <code>*.htm</code>; it uses the characters '?' and '*' to
    * represent a single or multiple wild card characters.
+   * <p>
+   * If enabled by {@link #PROP_JMX}, on first configuration sender registers its management bean on platform MBean
+   * server, see {@link EmailSenderMXBean}; management bean is unregistered by {@link #close()}.
    * 
    * @param config configuration object.
    * @throws ConfigException if templates repository is defined but not a directory or no templates found.
@@ -119,12 +450,94 @@ public final class EmailSenderImpl implements EmailSender
       return;
     }
 
-    developmentMode = config.getProperty(PROP_DEV_MODE, Boolean.class, false);
+    if(config.getProperty(PROP_DRY_RUN, Boolean.class, false)) {
+      dryRunStats = new DryRunStats();
+    }
+    else if(config.getProperty(PROP_CAPTURE, Boolean.class, false)) {
+      String maildir = config.getProperty(PROP_CAPTURE_MAILDIR);
+      captureMailbox = new CaptureMailbox(config.getProperty(PROP_CAPTURE_CAPACITY, Integer.class, DEF_CAPTURE_CAPACITY), maildir != null ? new File(maildir) : null);
+    }
+    // dry-run and capture modes render full messages and take precedence over development mode dump
+    developmentMode = dryRunStats == null && captureMailbox == null && config.getProperty(PROP_DEV_MODE, Boolean.class, false);
     contentType = config.getProperty(PROP_CONTENT_TYPE, DEF_CONTENT_TYPE);
+    sendTimeout = config.getProperty(PROP_SEND_TIMEOUT, Long.class, DEF_SEND_TIMEOUT);
     if(config.hasProperty(PROP_FROM_ADDRESS)) {
       this.fromAddress = InternetAddress.parse(config.getProperty(PROP_FROM_ADDRESS))[0];
     }
 
+    if(config.hasProperty(PROP_LANES_CAPACITY)) {
+      int transactionalReserved = config.getProperty(PROP_LANES_TRANSACTIONAL_RESERVED, Integer.class, DEF_LANES_RESERVED);
+      int normalReserved = config.getProperty(PROP_LANES_NORMAL_RESERVED, Integer.class, DEF_LANES_RESERVED);
+      long bulkMaxWait = config.getProperty(PROP_LANES_BULK_MAX_WAIT, Long.class, DEF_LANES_BULK_MAX_WAIT);
+      int bulkMaxQueue = config.getProperty(PROP_LANES_BULK_MAX_QUEUE, Integer.class, DEF_LANES_BULK_MAX_QUEUE);
+      priorityGate = new PriorityGate(config.getProperty(PROP_LANES_CAPACITY, Integer.class), transactionalReserved, normalReserved, bulkMaxWait, bulkMaxQueue);
+    }
+    for(String key : config.getProperties().stringPropertyNames()) {
+      if(key.startsWith(PROP_PRIORITY_PREFIX)) {
+        String priority = config.getProperty(key).trim().toUpperCase();
+        try {
+          templatePriorities.put(key.substring(PROP_PRIORITY_PREFIX.length()), Priority.valueOf(priority));
+        }
+        catch(IllegalArgumentException e) {
+          throw new ConfigException("Invalid email priority |%s| for property |%s|.", priority, key);
+        }
+      }
+    }
+
+    if(config.hasProperty(PROP_TENANTS_CAPACITY)) {
+      Map<String, Integer> weights = new HashMap<>();
+      Map<String, Integer> maxInFlights = new HashMap<>();
+      for(String key : config.getProperties().stringPropertyNames()) {
+        if(!key.startsWith(PROP_TENANT_PREFIX)) {
+          continue;
+        }
+        if(key.endsWith(PROP_TENANT_WEIGHT)) {
+          String tenant = key.substring(PROP_TENANT_PREFIX.length(), key.length() - PROP_TENANT_WEIGHT.length());
+          int weight = config.getProperty(key, Integer.class);
+          if(weight <= 0) {
+            throw new ConfigException("Invalid tenant weight |%d| for property |%s|.", weight, key);
+          }
+          weights.put(tenant, weight);
+        }
+        else if(key.endsWith(PROP_TENANT_MAX_INFLIGHT)) {
+          maxInFlights.put(key.substring(PROP_TENANT_PREFIX.length(), key.length() - PROP_TENANT_MAX_INFLIGHT.length()), config.getProperty(key, Integer.class));
+        }
+      }
+      int defaultMaxInFlight = config.getProperty(PROP_TENANTS_MAX_INFLIGHT, Integer.class, DEF_TENANTS_MAX_INFLIGHT);
+      tenantScheduler = new TenantScheduler(config.getProperty(PROP_TENANTS_CAPACITY, Integer.class), defaultMaxInFlight, weights, maxInFlights);
+    }
+
+    idempotencyWindow = config.getProperty(PROP_IDEMPOTENCY_WINDOW, Integer.class, DEF_IDEMPOTENCY_WINDOW);
+    idempotencyBloomCapacity = config.getProperty(PROP_IDEMPOTENCY_BLOOM_CAPACITY, Integer.class, DEF_IDEMPOTENCY_BLOOM_CAPACITY);
+    idempotencyBloomFpp = config.getProperty(PROP_IDEMPOTENCY_BLOOM_FPP, Double.class, DEF_IDEMPOTENCY_BLOOM_FPP);
+
+    String directDomains = config.getProperty(PROP_DIRECT_DOMAINS);
+    if(directDomains != null) {
+      Set<String> domains = new HashSet<>();
+      for(String domain : directDomains.split(",")) {
+        domains.add(domain.trim().toLowerCase(Locale.ROOT));
+      }
+      String resolverClass = config.getProperty(PROP_DIRECT_RESOLVER);
+      MxResolver resolver = resolverClass != null ? Classes.newInstance(resolverClass) : new JndiMxResolver(config.getProperty(PROP_DIRECT_MX_TTL, Long.class, DEF_DIRECT_MX_TTL));
+      int port = config.getProperty(PROP_DIRECT_PORT, Integer.class, DEF_DIRECT_PORT);
+      int maxIdle = config.getProperty(PROP_DIRECT_MAX_IDLE, Integer.class, DEF_DIRECT_MAX_IDLE);
+      directDelivery = new DirectDelivery(resolver, domains, port, maxIdle);
+    }
+
+    int headerCache = config.getProperty(PROP_HEADER_CACHE, Integer.class, DEF_HEADER_CACHE);
+    if(headerCache > 0) {
+      headerEncoder = new HeaderEncoder(null, headerCache);
+    }
+
+    String tracerClass = config.getProperty(PROP_TRACER);
+    if(tracerClass != null) {
+      sendTracer = Classes.newInstance(tracerClass);
+    }
+    else if(config.hasProperty(PROP_TRACE_SLOW)) {
+      sendTracer = new SlowSendLogger(config.getProperty(PROP_TRACE_SLOW, Long.class));
+    }
+    traceSample = config.getProperty(PROP_TRACE_SAMPLE, Double.class, DEF_TRACE_SAMPLE);
+
     // instantiate template engine
     String templateEngineProvider = config.getProperty(PROP_TEMPLATE_ENGINE);
     if(templateEngineProvider != null) {
@@ -135,264 +548,1600 @@ public final class EmailSenderImpl implements EmailSender
       // if template engine is not configured, loads it via Java service loader
       templateEngine = Classes.loadService(TemplateEngine.class);
     }
+    templateLoader = new TemplateLoader(templateEngine, config.getProperty(PROP_TEMPLATE_PREPROCESSORS), config.getProperty(PROP_INLINE_IMAGES, Boolean.class, false));
 
     // scan and initialize templates repository
-    String repositoryPath = config.getProperty(PROP_REPOSITORY_PATH);
+    repositoryPath = config.getProperty(PROP_REPOSITORY_PATH);
     if(repositoryPath != null) {
-      ConfigBuilder builder = new I18nRepository.ConfigBuilder(repositoryPath, config.getProperty(PROP_FILE_PATTERN, DEF_FILE_PATTERN));
-      I18nRepository repository = new I18nRepository(builder.build());
-      templatesPool = repository.getPoolInstance();
-
-      for(I18nFile i18nFile : repository) {
-        final File file = i18nFile.getFile();
-        String templateName = Files.basename(file);
-        if(templatesPool.put(templateName, file, i18nFile.getLocale())) {
-          log.warn("Override email template |{template_name}:{file_path}|", templateName, file);
-        }
-        else {
-          log.debug("Register email template |{template_name}:{file_path}|.", templateName, file);
-        }
+      filesPattern = config.getProperty(PROP_FILE_PATTERN, DEF_FILE_PATTERN);
+      filesRegex = filesRegex(filesPattern);
+      templates = scanRepository(Collections.<File, CachedTemplate> emptyMap());
+
+      if(config.getProperty(PROP_REPOSITORY_WATCH, Boolean.class, false)) {
+        templatesWatcher = new TemplatesWatcher(this, repositoryPath);
+        templatesWatcher.start();
       }
     }
 
     sessionFactory = new SessionFactory();
     sessionFactory.config(config);
-  }
-
-  @Override
-  public Email getEmail(String templateName)
-  {
-    Params.notNullOrEmpty(templateName, "Template name");
-    return createEmail(null, templateName);
-  }
 
-  @Override
-  public Email getEmail(Locale locale, String templateName)
-  {
-    Params.notNull(locale, "Locale");
-    Params.notNullOrEmpty(templateName, "Template name");
-    return createEmail(locale, templateName);
-  }
+    String sharedSpoolDir = config.getProperty(PROP_SPOOL);
+    if(sharedSpoolDir != null) {
+      long pollInterval = config.getProperty(PROP_SPOOL_POLL, Long.class, DEF_SPOOL_POLL);
+      long staleTimeout = config.getProperty(PROP_SPOOL_STALE, Long.class, DEF_SPOOL_STALE);
+      sharedSpool = new SharedSpool(Paths.get(sharedSpoolDir), this::deliverSpooled, pollInterval, staleTimeout);
+      sharedSpool.start(config.getProperty(PROP_SPOOL_WORKERS, Integer.class, DEF_SPOOL_WORKERS));
+    }
 
-  /**
-   * Create localized email instance for requested template file.
-   * 
-   * @param locale locale settings or null for default,
-   * @param templateName template name.
-   * @return email instance.
-   * @throws EmailException if templates repository is not configured or template file is missing.
-   */
-  private Email createEmail(Locale locale, String templateName)
-  {
-    if(templatesPool == null) {
-      throw new EmailException(
-          "Email sender not properly initialized. Attempt to retrieve email template but templates repository is not configured. Maybe forgot to add property |%s|.",
-          PROP_REPOSITORY_PATH);
+    if(config.getProperty(PROP_PIPELINE, Boolean.class, false)) {
+      int cpuThreads = config.getProperty(PROP_PIPELINE_CPU_THREADS, Integer.class, Runtime.getRuntime().availableProcessors());
+      int ioThreads = config.getProperty(PROP_PIPELINE_IO_THREADS, Integer.class, DEF_PIPELINE_IO_THREADS);
+      int capacity = config.getProperty(PROP_PIPELINE_CAPACITY, Integer.class, DEF_PIPELINE_CAPACITY);
+      sendPipeline = new SendPipeline(this, cpuThreads, ioThreads, capacity);
     }
-    File templateFile = locale != null ? templatesPool.get(templateName, locale) : templatesPool.get(templateName);
-    if(templateFile == null) {
-      throw new EmailException(
-          "Email template |%s| not found. Template name may be misspelled, forgot to add template file or template name does not match email files pattern.",
-          templateName);
+
+    // create scheduler after session factory and send pipeline since it reloads spooled emails that may be already due
+    String spoolDir = config.getProperty(PROP_SCHEDULE_SPOOL);
+    if(spoolDir != null || config.getProperty(PROP_SCHEDULE, Boolean.class, false)) {
+      long tickDuration = config.getProperty(PROP_SCHEDULE_TICK, Long.class, DEF_SCHEDULE_TICK);
+      int wheelSize = config.getProperty(PROP_SCHEDULE_WHEEL_SIZE, Integer.class, DEF_SCHEDULE_WHEEL_SIZE);
+      int retries = config.getProperty(PROP_SCHEDULE_RETRIES, Integer.class, DEF_SCHEDULE_RETRIES);
+      long retryDelay = config.getProperty(PROP_SCHEDULE_RETRY_DELAY, Long.class, DEF_SCHEDULE_RETRY_DELAY);
+      sendScheduler = new SendScheduler(this, sessionFactory, tickDuration, wheelSize, spoolDir != null ? new File(spoolDir) : null, retries, retryDelay);
     }
 
-    Template template = null;
-    try {
-      template = templateEngine.getTemplate(templateFile);
+    if(config.getProperty(PROP_TEMPLATES_WARMUP, Boolean.class, false)) {
+      log.debug("Warm-up |{count}| email templates.", warmUpTemplates());
     }
-    catch(IOException e) {
-      throw new EmailException("Fail to load template |%s|.", templateFile);
+    if(config.getProperty(PROP_JMX, Boolean.class, false)) {
+      monitor = EmailSenderMonitor.register(this, config.getProperty(PROP_JMX_NAME, "sender-" + INSTANCES_COUNTER.incrementAndGet()));
     }
-
-    log.debug("Create email from template |{template_name}|.", template.getName());
-    return new EmailImpl(this, template);
   }
 
+  /**
+   * Close this sender and release its resources: unregister management bean, stop templates watcher, send scheduler,
+   * shared spool workers and send pipeline, then drain transports pool. Emails already in send pipeline and spool files
+   * in delivery complete before this method returns. Scheduled emails are kept only if scheduler has a spool, see
+   * {@link #PROP_SCHEDULE_SPOOL}, and are reloaded by next sender on the same spool. Sender should not be used after
+   * close; closing it again does nothing.
+   */
   @Override
-  public void send(String from, String to, String subject, String content)
+  public void close()
   {
-    if(developmentMode) {
-      dumpAdHocEmail(from, to, subject, content);
+    if(!closed.compareAndSet(false, true)) {
       return;
     }
-
-    openTransport();
-    try {
-      SMTPMessage message = new SMTPMessage(sessionFactory.getSession())
-      {
-        protected void updateMessageID() throws MessagingException
-        {
-          setHeader("Message-ID", new MessageID().getValue());
-        }
-      };
-
-      message.setSentDate(new Date());
-      message.setFrom(new InternetAddress(from));
-      message.setEnvelopeFrom(message.getFrom()[0].toString());
-      message.setReplyTo(message.getFrom());
-      message.setRecipients(Message.RecipientType.TO, new Address[]
-      {
-          new InternetAddress(to, true)
-      });
-      message.setSubject(subject);
-      message.setDataHandler(new DataHandler(content, DEF_CONTENT_TYPE));
-      Transport.send(message);
-    }
-    catch(Exception e) {
-      throw new EmailException(e);
-    }
-    finally {
-      closeTransport();
-    }
-  }
-
-  void send(Email emailInstance)
-  {
-    final EmailImpl email = (EmailImpl)emailInstance;
-    if(email.to() == null) {
-      throw new EmailException("Invalid email |%s|. Missing <to> recipient.", email);
+    log.debug("Close email sender.");
+    if(monitor != null) {
+      monitor.unregister();
     }
-    if(email.body() == null) {
-      throw new EmailException("Invalid email |%s|. Missing <body> content.", email);
+    if(templatesWatcher != null) {
+      templatesWatcher.stop();
     }
-
-    // body content type from email instance or from sender default value
-    String contentType = email.contentType();
-    if(contentType == null) {
-      contentType = this.contentType;
+    if(sendScheduler != null) {
+      sendScheduler.stop();
     }
 
-    String subject = email.subject();
-    if(subject == null) {
-      subject = this.emailSubject;
-      if(subject == null) {
-        throw new EmailException("Invalid email |%s|. Missing email subject.", email);
+    boolean interrupted = false;
+    if(sharedSpool != null) {
+      try {
+        sharedSpool.stop();
       }
-    }
-
-    InternetAddress from = email.from();
-    if(from == null) {
-      from = this.fromAddress;
-      if(from == null) {
-        from = sessionFactory.getFromAddress();
-        if(from == null) {
-          throw new EmailException("Invalid email |%s|. Missing <from> address.", email);
-        }
+      catch(InterruptedException e) {
+        interrupted = true;
       }
     }
-
-    String envelopeFrom = email.envelopeFrom();
-    if(envelopeFrom == null) {
-      envelopeFrom = this.envelopeFrom;
-      if(envelopeFrom == null) {
-        envelopeFrom = from.getAddress();
+    if(sendPipeline != null) {
+      try {
+        sendPipeline.stop();
       }
-    }
-
-    InternetAddress[] replyTo = email.replyTo();
-    if(replyTo == null) {
-      replyTo = this.replyToAddresses;
-      if(replyTo == null) {
-        replyTo = new InternetAddress[]
-        {
-            from
-        };
+      catch(InterruptedException e) {
+        interrupted = true;
       }
     }
-
-    if(developmentMode) {
-      email.dump(from.getAddress(), envelopeFrom, contentType, subject);
-      return;
+    if(interrupted) {
+      log.warn("Interrupted while waiting for email sender threads to stop.");
+      Thread.currentThread().interrupt();
     }
 
-    openTransport();
-
-    try {
-      SMTPMessage message = new SMTPMessage(sessionFactory.getSession())
-      {
-        protected void updateMessageID() throws MessagingException
-        {
-          setHeader("Message-ID", email.messageID().getValue());
-        }
-      };
-
-      message.setSentDate(new Date());
-      message.setFrom(from);
-      message.setEnvelopeFrom(envelopeFrom);
-      message.setReplyTo(replyTo);
-
-      // null recipients are valid for SMTPMessage but we still need a destination
-      message.setRecipients(Message.RecipientType.TO, email.to());
-      message.setRecipients(Message.RecipientType.BCC, email.bcc());
-      message.setRecipients(Message.RecipientType.CC, email.cc());
-
-      // null subject is valid in which case SMTPMessage remove existing subject, if any
-      message.setSubject(subject);
-
-      if(email.files() == null) {
-        message.setDataHandler(new DataHandler(email.body(), contentType));
-      }
-      else {
-        Multipart multipart = new MimeMultipart();
-
-        BodyPart bodyPart = new MimeBodyPart();
-        bodyPart.setDataHandler(new DataHandler(email.body(), contentType));
-        multipart.addBodyPart(bodyPart);
-
-        for(File file : email.files()) {
-          BodyPart attachPart = new MimeBodyPart();
-          attachPart.setDataHandler(new DataHandler(new FileDataSource(file)));
-          attachPart.setFileName(file.getName());
-          multipart.addBodyPart(attachPart);
-        }
-
-        message.setContent(multipart);
-      }
-
-      Transport.send(message);
-    }
-    catch(Exception e) {
-      throw new EmailException(e);
-    }
-    finally {
-      closeTransport();
+    if(sessionFactory != null) {
+      sessionFactory.close();
     }
   }
 
   /**
-   * Helper method to open transporter. Initialize transport and connect it; intercept checked exception and throw this
-   * package specific exception.
+   * Scan templates repository and create a new templates snapshot. Returned snapshot templates pool is fully initialized
+   * and is not changed after this method returns.
    * 
-   * @throws EmailException if connection is rejected.
+   * @param cache parsed templates still valid for the new snapshot.
+   * @return newly created templates snapshot.
    */
-  private void openTransport()
+  private TemplatesSnapshot scanRepository(Map<File, CachedTemplate> cache)
   {
-    try {
-      transport = sessionFactory.getSession().getTransport();
-      transport.connect();
-    }
-    catch(MessagingException e) {
-      throw new EmailException(e);
+    I18nRepository repository = repository();
+    Map<File, Locale> files = new LinkedHashMap<>();
+    for(I18nFile i18nFile : repository) {
+      files.put(i18nFile.getFile().getAbsoluteFile(), i18nFile.getLocale());
     }
+    return new TemplatesSnapshot(repository, createPool(repository, files), files, cache);
+  }
+
+  private I18nRepository repository()
+  {
+    ConfigBuilder builder = new I18nRepository.ConfigBuilder(repositoryPath, filesPattern);
+    return new I18nRepository(builder.build());
   }
 
   /**
-   * Helper method to close transport. Catch any exceptions and just log to error.
+   * Create templates pool instance for given template files.
+   * 
+   * @param repository templates repository, used as pool factory,
+   * @param files template files mapped to their locale.
+   * @return newly created templates pool.
    */
-  private void closeTransport()
+  private static I18nPool<File> createPool(I18nRepository repository, Map<File, Locale> files)
   {
-    try {
-      transport.close();
-    }
-    catch(MessagingException e) {
-      log.error("Fatal error closing connection.", e);
+    I18nPool<File> templatesPool = repository.getPoolInstance();
+    for(Map.Entry<File, Locale> entry : files.entrySet()) {
+      File file = entry.getKey();
+      String templateName = Files.basename(file);
+      if(templatesPool.put(templateName, file, entry.getValue())) {
+        log.warn("Override email template |{template_name}:{file_path}|", templateName, file);
+      }
+      else {
+        log.debug("Register email template |{template_name}:{file_path}|.", templateName, file);
+      }
     }
+    return templatesPool;
   }
 
   /**
-   * Dump ad hoc email to standard out.
+   * Compile files pattern to regular expression. Files pattern uses '?' and '*' to represent a single or multiple wild
+   * card characters.
    * 
-   * @param from sender address,
+   * @param filesPattern files pattern.
+   * @return files pattern regular expression.
+   */
+  private static Pattern filesRegex(String filesPattern)
+  {
+    StringBuilder regex = new StringBuilder();
+    for(char c : filesPattern.toCharArray()) {
+      switch(c) {
+      case '*':
+        regex.append(".*");
+        break;
+
+      case '?':
+        regex.append('.');
+        break;
+
+      default:
+        regex.append(Pattern.quote(Character.toString(c)));
+      }
+    }
+    return Pattern.compile(regex.toString());
+  }
+
+  /**
+   * Parse and cache repository templates not already cached so that first emails do not pay template parsing. Templates
+   * failing to load are logged and skipped; they fail again when email is created. Warm-up loads are not accounted by
+   * templates cache hit ratio.
+   * 
+   * @return the number of templates parsed.
+   */
+  int warmUpTemplates()
+  {
+    TemplatesSnapshot templates = this.templates;
+    if(templates == null) {
+      return 0;
+    }
+    int count = 0;
+    for(File file : templates.getFiles().keySet()) {
+      if(templates.getCache().containsKey(file)) {
+        continue;
+      }
+      try {
+        if(templates.getCache().putIfAbsent(file, templateLoader.load(file)) == null) {
+          ++count;
+        }
+      }
+      catch(EmailException e) {
+        log.warn("Fail to warm-up email template |{file_path}|: {exception}", file, e.getMessage());
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Reload templates repository after changes detected by {@link TemplatesWatcher}. Changed files are applied
+   * incrementally on current templates snapshot: deleted template files are unregistered and created template files are
+   * registered with the locale of templates from the same directory; files not matching templates files pattern, e.g.
+   * style sheets or images, do not change templates pool. Repository is scanned again only if a created template is
+   * into a directory without registered templates or changed files contains a directory, e.g. repository root on watch
+   * events overflow.
+   * <p>
+   * Parsed templates depending on changed files, see {@link CachedTemplate#getDependencies()}, are not carried to the new
+   * snapshot; unchanged templates are not parsed again. On watch events overflow all parsed templates are dropped. New
+   * snapshot replaces current one with a single write; emails already created keep their template instance so in-flight
+   * sends are not affected by reload.
+   * <p>
+   * This method is invoked only by templates watcher thread.
+   * 
+   * @param changedFiles absolute paths of created, modified or deleted files.
+   */
+  void reloadTemplates(Set<File> changedFiles)
+  {
+    log.debug("Reload email templates repository |{repository_path}|.", repositoryPath);
+    TemplatesSnapshot templates = this.templates;
+    Map<File, Locale> files = new LinkedHashMap<>(templates.getFiles());
+    boolean overflow = false;
+    boolean rescan = false;
+    for(File file : changedFiles) {
+      if(file.isDirectory()) {
+        overflow = true;
+        rescan = true;
+        break;
+      }
+      if(!filesRegex.matcher(file.getName()).matches()) {
+        continue;
+      }
+      if(!file.isFile()) {
+        if(files.remove(file) != null) {
+          log.debug("Unregister deleted email template |{file_path}|.", file);
+        }
+        continue;
+      }
+      if(!files.containsKey(file) && !registerTemplate(files, file)) {
+        rescan = true;
+      }
+    }
+
+    Map<File, CachedTemplate> cache = new HashMap<>();
+    if(!overflow) {
+      Set<File> canonicalFiles = canonicalFiles(changedFiles);
+      for(Map.Entry<File, CachedTemplate> entry : templates.getCache().entrySet()) {
+        if(entry.getValue().dependsOn(canonicalFiles)) {
+          log.debug("Evict changed email template |{file_path}|.", entry.getKey());
+          continue;
+        }
+        cache.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    if(rescan) {
+      this.templates = scanRepository(cache);
+      return;
+    }
+    this.templates = new TemplatesSnapshot(templates.getRepository(), createPool(templates.getRepository(), files), files, cache);
+  }
+
+  /**
+   * Register created template file with the locale of a template already registered from the same directory.
+   * 
+   * @param files registered template files, updated by this method,
+   * @param file created template file.
+   * @return true if template file was registered, false if its directory has no registered templates.
+   */
+  private static boolean registerTemplate(Map<File, Locale> files, File file)
+  {
+    File directory = file.getParentFile();
+    for(Map.Entry<File, Locale> entry : files.entrySet()) {
+      if(directory.equals(entry.getKey().getParentFile())) {
+        log.debug("Register created email template |{file_path}|.", file);
+        files.put(file, entry.getValue());
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Set<File> canonicalFiles(Set<File> files)
+  {
+    Set<File> canonicalFiles = new HashSet<>();
+    for(File file : files) {
+      try {
+        canonicalFiles.add(file.getCanonicalFile());
+      }
+      catch(IOException e) {
+        canonicalFiles.add(file.getAbsoluteFile());
+      }
+    }
+    return canonicalFiles;
+  }
+
+  /**
+   * Get capture mailbox or null if capture mode is not enabled.
+   * 
+   * @return capture mailbox, possible null.
+   * @see #captureMailbox
+   */
+  public CaptureMailbox getCaptureMailbox()
+  {
+    return captureMailbox;
+  }
+
+  /**
+   * Get send pipeline or null if send pipeline is not enabled.
+   * 
+   * @return send pipeline, possible null.
+   * @see #sendPipeline
+   */
+  public SendPipeline getSendPipeline()
+  {
+    return sendPipeline;
+  }
+
+  /**
+   * Get tenant scheduler or null if tenant scheduling is not enabled.
+   * 
+   * @return tenant scheduler, possible null.
+   * @see #tenantScheduler
+   */
+  TenantScheduler getTenantScheduler()
+  {
+    return tenantScheduler;
+  }
+
+  PriorityGate getPriorityGate()
+  {
+    return priorityGate;
+  }
+
+  SendScheduler getSendScheduler()
+  {
+    return sendScheduler;
+  }
+
+  /**
+   * Register idempotency key of a scheduled email reloaded from spool, so that its duplicates are still suppressed after
+   * restart.
+   * 
+   * @param idempotencyKey scheduled email idempotency key.
+   */
+  void registerIdempotencyKey(String idempotencyKey)
+  {
+    duplicateFilter().register(idempotencyKey);
+  }
+
+  /**
+   * Get idempotency keys store, creating it on first use.
+   * 
+   * @return idempotency keys store.
+   */
+  private DuplicateFilter duplicateFilter()
+  {
+    DuplicateFilter filter = duplicateFilter;
+    if(filter == null) {
+      synchronized(this) {
+        filter = duplicateFilter;
+        if(filter == null) {
+          duplicateFilter = filter = new DuplicateFilter(idempotencyWindow, idempotencyBloomCapacity, idempotencyBloomFpp);
+        }
+      }
+    }
+    return filter;
+  }
+
+  SharedSpool getSharedSpool()
+  {
+    return sharedSpool;
+  }
+
+  /**
+   * Get current transports pool or null if sender is not configured.
+   * 
+   * @return transports pool, possible null.
+   */
+  TransportPool getTransportPool()
+  {
+    return sessionFactory != null ? sessionFactory.getTransportPool() : null;
+  }
+
+  long getSentCount()
+  {
+    return sentCount.sum();
+  }
+
+  long getFailedCount()
+  {
+    return failedCount.sum();
+  }
+
+  LatencyHistogram getSendLatency()
+  {
+    return sendLatency;
+  }
+
+  int getTemplateCacheSize()
+  {
+    TemplatesSnapshot templates = this.templates;
+    return templates != null ? templates.getCache().size() : 0;
+  }
+
+  /**
+   * Get current templates repository snapshot or null if sender is configured without templates.
+   * 
+   * @return templates snapshot, possible null.
+   */
+  TemplatesSnapshot getTemplates()
+  {
+    return templates;
+  }
+
+  /**
+   * Get the ratio of emails created from templates already cached.
+   * 
+   * @return templates cache hit ratio, from 0 to 1, zero if no email was created from template.
+   */
+  double getTemplateCacheHitRatio()
+  {
+    long requests = templateRequestsCount.sum();
+    return requests != 0 ? (requests - templateMissesCount.sum()) / (double)requests : 0;
+  }
+
+  /**
+   * Get management bean or null if management bean is disabled.
+   * 
+   * @return management bean, possible null.
+   */
+  EmailSenderMonitor getMonitor()
+  {
+    return monitor;
+  }
+
+  /**
+   * Get dry-run statistics or null if dry-run mode is not enabled.
+   * 
+   * @return dry-run statistics, possible null.
+   * @see #dryRunStats
+   */
+  public DryRunStats getDryRunStats()
+  {
+    return dryRunStats;
+  }
+
+  @Override
+  public Email getEmail(String templateName)
+  {
+    Params.notNullOrEmpty(templateName, "Template name");
+    return createEmail(null, templateName);
+  }
+
+  @Override
+  public Email getEmail(Locale locale, String templateName)
+  {
+    Params.notNull(locale, "Locale");
+    Params.notNullOrEmpty(templateName, "Template name");
+    return createEmail(locale, templateName);
+  }
+
+  /**
+   * Create localized email instance for requested template file.
+   * 
+   * @param locale locale settings or null for default,
+   * @param templateName template name.
+   * @return email instance.
+   * @throws EmailException if templates repository is not configured or template file is missing.
+   */
+  private Email createEmail(Locale locale, String templateName)
+  {
+    // use local reference to snapshot instance since it can be replaced by templates reload
+    TemplatesSnapshot templates = this.templates;
+    if(templates == null) {
+      throw new EmailException(
+          "Email sender not properly initialized. Attempt to retrieve email template but templates repository is not configured. Maybe forgot to add property |%s|.",
+          PROP_REPOSITORY_PATH);
+    }
+    File templateFile = locale != null ? templates.getPool().get(templateName, locale) : templates.getPool().get(templateName);
+    if(templateFile == null) {
+      throw new EmailException(
+          "Email template |%s| not found. Template name may be misspelled, forgot to add template file or template name does not match email files pattern.",
+          templateName);
+    }
+
+    templateRequestsCount.increment();
+    CachedTemplate template = templates.getCache().computeIfAbsent(templateFile.getAbsoluteFile(), this::loadTemplate);
+
+    log.debug("Create email from template |{template_name}|.", template.getTemplate().getName());
+    return new EmailImpl(this, template.getTemplate(), template.getInlineImages());
+  }
+
+  /**
+   * Load template file using configured template loader. This method is invoked only on templates cache miss.
+   * 
+   * @param templateFile template file.
+   * @return loaded template.
+   * @throws EmailException if template file loading fails.
+   */
+  private CachedTemplate loadTemplate(File templateFile)
+  {
+    templateMissesCount.increment();
+    return templateLoader.load(templateFile);
+  }
+
+  @Override
+  public void send(String from, String to, String subject, String content)
+  {
+    sendMessage(from, to, subject, content);
+  }
+
+  /**
+   * Send ad hoc email and return send result. This method is the same as {@link #send(String, String, String, String)}
+   * but returns message ID, server response and send phases timings.
+   * 
+   * @param from sender address,
+   * @param to destination address,
+   * @param subject email subject,
+   * @param content email content, with {@link EmailSender#DEF_CONTENT_TYPE} content type.
+   * @return send result.
+   * @throws EmailException if sending fails.
+   */
+  public SendResult sendMessage(String from, String to, String subject, String content)
+  {
+    // message ID should be stable since SMTP transport saves changes again when converts body to 8bit
+    final MessageID messageID = new MessageID();
+    if(developmentMode) {
+      dumpAdHocEmail(from, to, subject, content);
+      return new SendResult(messageID.getValue(), SendResult.Outcome.DUMPED, 0, 0);
+    }
+
+    long buildStart = System.nanoTime();
+    TransportPool transportPool = sessionFactory.getTransportPool();
+    try {
+      SMTPMessage message = new SMTPMessage(transportPool.getSession())
+      {
+        protected void updateMessageID() throws MessagingException
+        {
+          setHeader("Message-ID", messageID.getValue());
+        }
+      };
+
+      message.setSentDate(new Date());
+      message.setFrom(new InternetAddress(from));
+      message.setEnvelopeFrom(message.getFrom()[0].toString());
+      message.setReplyTo(message.getFrom());
+      message.setRecipients(Message.RecipientType.TO, new Address[]
+      {
+          new InternetAddress(to, true)
+      });
+      message.setSubject(subject);
+      message.setDataHandler(bodyHandler(content, DEF_CONTENT_TYPE));
+      return dispatch(transportPool, message, null, buildStart, false);
+    }
+    catch(EmailException e) {
+      throw e;
+    }
+    catch(Exception e) {
+      throw new EmailException(e);
+    }
+  }
+
+  /**
+   * Send pre-rendered RFC 5322 message file using given envelope. Message file is sent as it is, without being parsed
+   * into a MIME message: transport streams file content straight to SMTP DATA phase, see
+   * {@link ExtendedSMTPTransport#sendRaw(Path, long, String, List)}. Only message headers are read, in order to report
+   * message ID; header reading time is reported as build time. Message file is not changed so a message without
+   * <code>Message-ID</code> header is sent without it, leaving relay to add one, and its send result has null message
+   * ID.
+   * <p>
+   * Development, dry-run, capture and shared spool modes are honored. Raw messages are sent to relay with no priority lane and no
+   * direct-to-MX delivery; if session is configured with a custom transport class, message file is parsed and sent by
+   * that transport.
+   * 
+   * @param file pre-rendered message file,
+   * @param from envelope sender, empty for null reverse path,
+   * @param recipients envelope recipients, not empty.
+   * @return send result.
+   * @throws EmailException if sending fails.
+   */
+  public SendResult sendRaw(Path file, String from, List<String> recipients)
+  {
+    Params.notNull(file, "Message file");
+    Params.notNull(from, "Envelope sender");
+    Params.notNull(recipients, "Envelope recipients");
+    if(recipients.isEmpty()) {
+      throw new EmailException("Invalid raw message |%s|. Missing envelope recipients.", file);
+    }
+
+    long buildStart = System.nanoTime();
+    try {
+      InternetHeaders headers;
+      try (InputStream stream = new BufferedInputStream(java.nio.file.Files.newInputStream(file))) {
+        headers = new InternetHeaders(stream);
+      }
+      String messageID = headers.getHeader("Message-ID", null);
+      long buildEnd = System.nanoTime();
+
+      if(developmentMode) {
+        dumpRawEmail(file, from, recipients);
+        return new SendResult(messageID, SendResult.Outcome.DUMPED, 0, buildEnd - buildStart);
+      }
+      if(dryRunStats != null) {
+        long size = java.nio.file.Files.size(file);
+        dryRunStats.record(0, buildEnd - buildStart, 0, size);
+        return new SendResult(messageID, SendResult.Outcome.DRY_RUN, 0, buildEnd - buildStart);
+      }
+      if(captureMailbox != null) {
+        captureMailbox.add(new CapturedEmail(messageID, null, headers.getHeader("Subject", null), recipients, java.nio.file.Files.readAllBytes(file)));
+        return new SendResult(messageID, SendResult.Outcome.CAPTURED, 0, System.nanoTime() - buildStart);
+      }
+      if(sharedSpool != null) {
+        sharedSpool.submit(from, recipients, stream -> java.nio.file.Files.copy(file, stream));
+        long spoolEnd = System.nanoTime();
+        return new SendResult(messageID, SendResult.Outcome.SPOOLED, null, Collections.<RecipientStatus> emptyList(), 0, buildEnd - buildStart, 0, spoolEnd - buildEnd);
+      }
+
+      SendDeadline deadline = beginDeadline(sendTimeout, buildStart);
+      SendTrace trace = beginTrace(messageID, null);
+      TransportPool transportPool = sessionFactory.getTransportPool();
+      List<RecipientStatus> recipientsStatus;
+      String serverResponse = null;
+      long transmitStart;
+      boolean reusable = false;
+      try {
+        Transport transport = transportPool.borrow();
+        transmitStart = System.nanoTime();
+        if(trace != null) {
+          trace.phase(TracePhase.ACQUIRE, transmitStart - buildEnd, 0);
+        }
+        try {
+          recipientsStatus = transmitRaw(transport, transportPool, file, 0, from, recipients);
+          if(transport instanceof SMTPTransport) {
+            serverResponse = ((SMTPTransport)transport).getLastServerResponse();
+          }
+          reusable = true;
+        }
+        finally {
+          transportPool.release(transport, reusable);
+        }
+      }
+      finally {
+        if(reusable) {
+          sentCount.increment();
+        }
+        else {
+          failedCount.increment();
+        }
+        if(trace != null) {
+          trace.end(reusable);
+        }
+        if(deadline != null) {
+          deadline.end();
+        }
+      }
+
+      long transmitEnd = System.nanoTime();
+      sendLatency.record(transmitEnd - buildStart);
+      return new SendResult(messageID, SendResult.Outcome.SENT, serverResponse, recipientsStatus, 0, buildEnd - buildStart, transmitStart - buildEnd, transmitEnd - transmitStart);
+    }
+    catch(EmailException e) {
+      throw e;
+    }
+    catch(Exception e) {
+      throw new EmailException(e);
+    }
+  }
+
+  /**
+   * Send email instance rendered by {@link EmailImpl#sendForResult(Object...)}. If email has an idempotency key already
+   * seen, email is not sent and returned result outcome is {@link SendResult.Outcome#SUPPRESSED}. If an email with the
+   * same key is being sent, current thread waits for its outcome: email is suppressed if original send succeeds and is
+   * sent otherwise.
+   * 
+   * @param emailInstance rendered email instance.
+   * @return send result.
+   * @throws EmailException if email is not valid or sending fails.
+   */
+  SendResult send(Email emailInstance)
+  {
+    final EmailImpl email = (EmailImpl)emailInstance;
+    String idempotencyKey = email.idempotencyKey();
+    if(idempotencyKey == null) {
+      return buildAndDispatch(email);
+    }
+
+    for(;;) {
+      CompletableFuture<SendResult> inFlight = new CompletableFuture<>();
+      CompletableFuture<SendResult> original = inFlightKeys.putIfAbsent(idempotencyKey, inFlight);
+      if(original != null) {
+        try {
+          original.join();
+          return suppressed(email, idempotencyKey, email.renderNanos());
+        }
+        catch(CompletionException | CancellationException e) {
+          // original send failed so this email is not a duplicate; compete again for sending it
+          continue;
+        }
+      }
+
+      try {
+        SendResult result;
+        if(duplicateFilter().contains(idempotencyKey)) {
+          result = suppressed(email, idempotencyKey, email.renderNanos());
+        }
+        else {
+          result = buildAndDispatch(email);
+          duplicateFilter().register(idempotencyKey);
+        }
+        // remove key before completing so that a send arriving meanwhile finds it into duplicate filter
+        inFlightKeys.remove(idempotencyKey);
+        inFlight.complete(result);
+        return result;
+      }
+      catch(RuntimeException | Error e) {
+        // sending failed so caller retry should not be suppressed; concurrent retries waiting for this send are released
+        inFlightKeys.remove(idempotencyKey);
+        inFlight.completeExceptionally(e);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Create send result for an email suppressed because its idempotency key was already sent.
+   * 
+   * @param email suppressed email,
+   * @param idempotencyKey email idempotency key,
+   * @param renderNanos email rendering time, zero if email was not rendered.
+   * @return send result with {@link SendResult.Outcome#SUPPRESSED} outcome.
+   */
+  private static SendResult suppressed(EmailImpl email, String idempotencyKey, long renderNanos)
+  {
+    log.info("Duplicated email |{email}| with idempotency key |{key}|. Acknowledge without sending.", email, idempotencyKey);
+    return new SendResult(email.messageID().getValue(), SendResult.Outcome.SUPPRESSED, renderNanos, 0);
+  }
+
+  /**
+   * Send email instance asynchronously, through send pipeline: email is rendered and its message built on CPU pool then
+   * transmitted on I/O pool, see {@link SendPipeline}. Returned future completes with send result or with the exception
+   * that failed the send. If send pipeline is not configured, email is sent on caller thread and returned future is
+   * already completed.
+   * <p>
+   * Idempotency key, if any, is checked on caller thread; a suppressed email is not rendered. If an email with the same
+   * key is being sent, returned future waits for its outcome: email is suppressed if original send succeeds and is
+   * submitted to send pipeline otherwise.
+   * 
+   * @param email email instance, not yet rendered,
+   * @param args optional email model.
+   * @return send result future.
+   * @throws EmailException if send pipeline is shut down.
+   */
+  CompletableFuture<SendResult> sendAsync(EmailImpl email, Object[] args)
+  {
+    if(sendPipeline == null) {
+      CompletableFuture<SendResult> future = new CompletableFuture<>();
+      try {
+        future.complete(email.sendForResult(args));
+      }
+      catch(RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+      return future;
+    }
+
+    final String idempotencyKey = email.idempotencyKey();
+    if(idempotencyKey == null) {
+      return sendPipeline.submit(email, args);
+    }
+    final CompletableFuture<SendResult> inFlight = new CompletableFuture<>();
+    CompletableFuture<SendResult> original = inFlightKeys.putIfAbsent(idempotencyKey, inFlight);
+    if(original != null) {
+      // async handler runs off the thread completing original send, since resubmit may block on send pipeline
+      return original.handleAsync((result, exception) -> exception == null ? CompletableFuture.completedFuture(suppressed(email, idempotencyKey, 0)) : sendAsync(email, args)).thenCompose(future -> future);
+    }
+    if(duplicateFilter().contains(idempotencyKey)) {
+      SendResult result = suppressed(email, idempotencyKey, 0);
+      inFlightKeys.remove(idempotencyKey);
+      inFlight.complete(result);
+      return inFlight;
+    }
+
+    CompletableFuture<SendResult> future;
+    try {
+      future = sendPipeline.submit(email, args);
+    }
+    catch(RuntimeException e) {
+      inFlightKeys.remove(idempotencyKey);
+      inFlight.completeExceptionally(e);
+      throw e;
+    }
+    future.whenComplete((result, exception) -> {
+      // remove key before completing so that a send arriving meanwhile finds it into duplicate filter or sends again
+      if(exception == null) {
+        duplicateFilter().register(idempotencyKey);
+      }
+      inFlightKeys.remove(idempotencyKey);
+      if(exception == null) {
+        inFlight.complete(result);
+      }
+      else {
+        // sending failed so caller retry should not be suppressed
+        inFlight.completeExceptionally(exception);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Build message for email instance and dispatch it, or schedule it if email has a send time.
+   * 
+   * @param email email instance.
+   * @return send result.
+   * @throws EmailException if email is not valid or sending fails.
+   */
+  private SendResult buildAndDispatch(EmailImpl email)
+  {
+    BuiltMessage builtMessage = build(email);
+    return builtMessage.result != null ? builtMessage.result : dispatch(builtMessage, false);
+  }
+
+  /**
+   * Build message for rendered email instance. If email has a send time, built message is scheduled; on development
+   * mode email is dumped to standard out. In both cases returned built message has send result and should not be
+   * dispatched.
+   * 
+   * @param email rendered email instance.
+   * @return built message.
+   * @throws EmailException if email is not valid or message building fails.
+   */
+  BuiltMessage build(final EmailImpl email)
+  {
+    if(email.to() == null) {
+      throw new EmailException("Invalid email |%s|. Missing <to> recipient.", email);
+    }
+    if(email.body() == null) {
+      throw new EmailException("Invalid email |%s|. Missing <body> content.", email);
+    }
+
+    // body content type from email instance or from sender default value
+    String contentType = email.contentType();
+    if(contentType == null) {
+      contentType = this.contentType;
+    }
+
+    String subject = email.subject();
+    if(subject == null) {
+      subject = this.emailSubject;
+      if(subject == null) {
+        throw new EmailException("Invalid email |%s|. Missing email subject.", email);
+      }
+    }
+
+    InternetAddress from = email.from();
+    if(from == null) {
+      from = this.fromAddress;
+      if(from == null) {
+        from = sessionFactory.getFromAddress();
+        if(from == null) {
+          throw new EmailException("Invalid email |%s|. Missing <from> address.", email);
+        }
+      }
+    }
+
+    String envelopeFrom = email.envelopeFrom();
+    if(envelopeFrom == null) {
+      envelopeFrom = this.envelopeFrom;
+      if(envelopeFrom == null) {
+        envelopeFrom = from.getAddress();
+      }
+    }
+
+    InternetAddress[] replyTo = email.replyTo();
+    if(replyTo == null) {
+      replyTo = this.replyToAddresses;
+      if(replyTo == null) {
+        replyTo = new InternetAddress[]
+        {
+            from
+        };
+      }
+    }
+
+    if(developmentMode) {
+      email.dump(from.getAddress(), envelopeFrom, contentType, subject);
+      return new BuiltMessage(new SendResult(email.messageID().getValue(), SendResult.Outcome.DUMPED, email.renderNanos(), 0));
+    }
+
+    long buildStart = System.nanoTime();
+    TransportPool transportPool = sessionFactory.getTransportPool();
+    try {
+      SMTPMessage message = new SMTPMessage(transportPool.getSession())
+      {
+        protected void updateMessageID() throws MessagingException
+        {
+          setHeader("Message-ID", email.messageID().getValue());
+        }
+      };
+
+      message.setSentDate(new Date());
+      message.setEnvelopeFrom(envelopeFrom);
+
+      // null recipients are valid for SMTPMessage but we still need a destination
+      message.setRecipients(Message.RecipientType.TO, email.to());
+      message.setRecipients(Message.RecipientType.BCC, email.bcc());
+      message.setRecipients(Message.RecipientType.CC, email.cc());
+
+      if(headerEncoder != null) {
+        // sender and reply to display names and subject recur across messages; reuse their encoded values
+        message.setFrom(headerEncoder.address(from));
+        message.setReplyTo(headerEncoder.addresses(replyTo));
+        message.setHeader("Subject", headerEncoder.subject(subject));
+      }
+      else {
+        message.setFrom(from);
+        message.setReplyTo(replyTo);
+        message.setSubject(subject);
+      }
+
+      setContent(message, email, contentType);
+      if(email.sendTime() != null) {
+        sendScheduler.schedule(message, email.sendTime().toEpochMilli(), tenant(email), priority(email), email.timeout(), email.idempotencyKey());
+        return new BuiltMessage(new SendResult(email.messageID().getValue(), SendResult.Outcome.SCHEDULED, email.renderNanos(), System.nanoTime() - buildStart));
+      }
+      return new BuiltMessage(transportPool, message, email, buildStart);
+    }
+    catch(EmailException e) {
+      throw e;
+    }
+    catch(Exception e) {
+      throw new EmailException(e);
+    }
+  }
+
+  /**
+   * Dispatch message built by {@link #build(EmailImpl)}.
+   * 
+   * @param builtMessage built message, without send result,
+   * @param admitted true if caller already has transmission admitted by tenant scheduler.
+   * @return send result.
+   * @throws EmailException if message send fails.
+   */
+  SendResult dispatch(BuiltMessage builtMessage, boolean admitted)
+  {
+    try {
+      return dispatch(builtMessage.transportPool, builtMessage.message, builtMessage.email, builtMessage.buildStart, admitted);
+    }
+    catch(EmailException e) {
+      throw e;
+    }
+    catch(Exception e) {
+      throw new EmailException(e);
+    }
+  }
+
+  /**
+   * Send message released by scheduler when its due time comes. Scheduled messages are dispatched like messages sent
+   * immediately, with tenant and priority of the email they were built from. Send deadline, if any, starts at release.
+   * 
+   * @param message scheduled message,
+   * @param tenant key of the tenant message is sent on behalf of,
+   * @param priority message priority,
+   * @param timeout email send timeout, in milliseconds, null for sender default timeout,
+   * @param admitted true if caller already has transmission admitted by tenant scheduler.
+   * @return send result.
+   * @throws EmailException if message send fails.
+   */
+  SendResult sendScheduled(SMTPMessage message, String tenant, Priority priority, Long timeout, boolean admitted)
+  {
+    try {
+      long sendStart = System.nanoTime();
+      return dispatch(sessionFactory.getTransportPool(), message, null, tenant, priority, timeout != null ? timeout : sendTimeout, sendStart, 0, sendStart, admitted);
+    }
+    catch(EmailException e) {
+      throw e;
+    }
+    catch(Exception e) {
+      throw new EmailException(e);
+    }
+  }
+
+  /**
+   * Set message content from email body, inline images and attached files. If email has only body, message content is
+   * the body itself. Inline images are grouped with body into a <code>multipart/related</code> content; if email has
+   * attached files, body or related multipart is the first part of a <code>multipart/mixed</code> content.
+   * 
+   * @param message message under construction,
+   * @param email email instance,
+   * @param contentType body content type.
+   * @throws MessagingException if message content setting fails.
+   */
+  private static void setContent(SMTPMessage message, EmailImpl email, String contentType) throws MessagingException
+  {
+    if(email.files() == null && email.inlineImages().isEmpty()) {
+      message.setDataHandler(bodyHandler(email.body(), contentType));
+      return;
+    }
+
+    MimeBodyPart bodyPart = new MimeBodyPart();
+    bodyPart.setDataHandler(bodyHandler(email.body(), contentType));
+
+    if(!email.inlineImages().isEmpty()) {
+      MimeMultipart related = new MimeMultipart("related");
+      related.addBodyPart(bodyPart);
+      for(InlineImage image : email.inlineImages()) {
+        related.addBodyPart(image.createBodyPart());
+      }
+      if(email.files() == null) {
+        message.setContent(related);
+        return;
+      }
+      bodyPart = new MimeBodyPart();
+      bodyPart.setContent(related);
+    }
+
+    Multipart multipart = new MimeMultipart();
+    multipart.addBodyPart(bodyPart);
+    for(File file : email.files()) {
+      BodyPart attachPart = new MimeBodyPart();
+      attachPart.setDataHandler(new DataHandler(new FileDataSource(file)));
+      attachPart.setFileName(file.getName());
+      multipart.addBodyPart(attachPart);
+    }
+    message.setContent(multipart);
+  }
+
+  /**
+   * Create data handler for email body, with body pre-encoded to content type charset. JavaMail keeps string content as
+   * it is and encodes it on every content access: once when transfer encoding is detected, again when transport checks
+   * for 8bit conversion and again when message is written. Pre-encoded body is encoded once per message and its bytes
+   * are streamed as they are.
+   * <p>
+   * Template static markup is still encoded on every message, together with evaluated content. Templates are not
+   * compiled into pre-encoded static segments and dynamic holes since template API exposes only template
+   * serialization, with no access to template nodes; segments cut from template source would not match engine
+   * serialization.
+   * <p>
+   * If content type has no charset or charset is not supported, body is left to JavaMail string handler.
+   * 
+   * @param body email body,
+   * @param contentType body content type.
+   * @return body data handler.
+   */
+  private static DataHandler bodyHandler(String body, String contentType)
+  {
+    Optional<Charset> charset = BODY_CHARSETS.computeIfAbsent(contentType, EmailSenderImpl::charset);
+    if(!charset.isPresent()) {
+      return new DataHandler(body, contentType);
+    }
+    return new DataHandler(new ByteArrayDataSource(body.getBytes(charset.get()), contentType));
+  }
+
+  /**
+   * Get charset from content type <code>charset</code> parameter.
+   * 
+   * @param contentType content type.
+   * @return content type charset or empty if content type has no charset, is not valid or charset is not supported.
+   */
+  private static Optional<Charset> charset(String contentType)
+  {
+    try {
+      String charset = new ContentType(contentType).getParameter("charset");
+      if(charset != null) {
+        return Optional.of(Charset.forName(MimeUtility.javaCharset(charset)));
+      }
+    }
+    catch(ParseException | IllegalArgumentException e) {
+      log.debug("Invalid content type |{content_type}|. Body encoding left to JavaMail.", contentType);
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Dispatch fully built message to its destination. In dry-run mode message is serialized to a null stream; if capture
+   * mode is enabled message is stored into capture mailbox, otherwise is sent to email server. If tenant scheduler is
+   * enabled and transmission is not already admitted, sending thread waits for email tenant turn; then, if priority gate
+   * is enabled, sending thread waits for a slot on email priority lane before transmission. If send has timeout, waits
+   * and transmission are bounded by send deadline, see {@link SendDeadline}.
+   * 
+   * @param transportPool pool of connected transports,
+   * @param message message to dispatch,
+   * @param email email instance message was built from, null for ad hoc messages,
+   * @param buildStart timestamp when message building started, in nanoseconds,
+   * @param admitted true if caller already has transmission admitted by tenant scheduler.
+   * @return send result.
+   * @throws MessagingException if message send fails.
+   * @throws IOException if message rendering fails.
+   */
+  private SendResult dispatch(TransportPool transportPool, SMTPMessage message, EmailImpl email, long buildStart, boolean admitted) throws MessagingException, IOException
+  {
+    long renderNanos = email != null ? email.renderNanos() : 0;
+    long timeout = email != null && email.timeout() != null ? email.timeout() : sendTimeout;
+    long sendStart = email != null && email.sendStart() != 0 ? email.sendStart() : buildStart;
+    return dispatch(transportPool, message, templateName(email), tenant(email), priority(email), timeout, sendStart, renderNanos, buildStart, admitted);
+  }
+
+  /**
+   * Dispatch fully built message with explicit send attributes, see {@link #dispatch(TransportPool, SMTPMessage, EmailImpl, long, boolean)}.
+   * 
+   * @param transportPool pool of connected transports,
+   * @param message message to dispatch,
+   * @param templateName name of the template message was rendered from, null for ad hoc messages,
+   * @param tenant key of the tenant message is sent on behalf of,
+   * @param priority message priority,
+   * @param timeout send timeout, in milliseconds, zero for no send deadline,
+   * @param sendStart timestamp when send started, in nanoseconds,
+   * @param renderNanos render time, in nanoseconds,
+   * @param buildStart timestamp when message building started, in nanoseconds,
+   * @param admitted true if caller already has transmission admitted by tenant scheduler.
+   * @return send result.
+   * @throws MessagingException if message send fails.
+   * @throws IOException if message rendering fails.
+   */
+  private SendResult dispatch(TransportPool transportPool, SMTPMessage message, String templateName, String tenant, Priority priority, long timeout, long sendStart, long renderNanos, long buildStart, boolean admitted)
+      throws MessagingException, IOException
+  {
+    if(dryRunStats != null) {
+      message.saveChanges();
+      long serializeStart = System.nanoTime();
+      CountingOutputStream stream = new CountingOutputStream();
+      message.writeTo(stream);
+      long serializeEnd = System.nanoTime();
+      dryRunStats.record(renderNanos, serializeStart - buildStart, serializeEnd - serializeStart, stream.getCount());
+      return new SendResult(message.getMessageID(), SendResult.Outcome.DRY_RUN, null, Collections.<RecipientStatus> emptyList(), renderNanos, serializeStart - buildStart, 0, serializeEnd - serializeStart);
+    }
+    if(captureMailbox != null) {
+      capture(message, templateName);
+      return new SendResult(message.getMessageID(), SendResult.Outcome.CAPTURED, renderNanos, System.nanoTime() - buildStart);
+    }
+
+    if(sharedSpool != null) {
+      return spool(message, renderNanos, buildStart);
+    }
+
+    SendDeadline deadline = beginDeadline(timeout, sendStart);
+    try {
+      if(deadline != null) {
+        // asynchronous sends may have spent their time budget on send pipeline queues
+        deadline.check();
+      }
+      if(tenantScheduler == null || admitted) {
+        return gateAndTransmit(transportPool, message, templateName, priority, renderNanos, buildStart, 0);
+      }
+      long tenantNanos = tenantScheduler.acquire(tenant);
+      try {
+        return gateAndTransmit(transportPool, message, templateName, priority, renderNanos, buildStart, tenantNanos);
+      }
+      finally {
+        tenantScheduler.release(tenant);
+      }
+    }
+    finally {
+      if(deadline != null) {
+        deadline.end();
+      }
+    }
+  }
+
+  /**
+   * Begin deadline context for a send, if send has timeout. Timeout is email timeout, if set, otherwise sender default
+   * timeout; for emails deadline starts when email send method was invoked. Returned deadline context is bound to
+   * current thread and should be ended by caller, see {@link SendDeadline#end()}.
+   * 
+   * @param timeout send timeout, in milliseconds, zero for no send deadline,
+   * @param start send start timestamp, in nanoseconds.
+   * @return deadline context or null if send has no timeout.
+   */
+  private static SendDeadline beginDeadline(long timeout, long start)
+  {
+    if(timeout == 0) {
+      return null;
+    }
+    return SendDeadline.begin(timeout, start);
+  }
+
+  /**
+   * Transmit message after waiting for a slot on email priority lane, if priority gate is enabled.
+   * 
+   * @param transportPool pool of connected transports,
+   * @param message message to transmit,
+   * @param templateName name of the template message was rendered from, null for ad hoc messages,
+   * @param priority message priority,
+   * @param renderNanos email body render time, in nanoseconds,
+   * @param buildStart timestamp when message building started, in nanoseconds,
+   * @param tenantNanos time spent waiting for tenant turn, in nanoseconds.
+   * @return send result.
+   * @throws MessagingException if message send fails.
+   */
+  private SendResult gateAndTransmit(TransportPool transportPool, SMTPMessage message, String templateName, Priority priority, long renderNanos, long buildStart, long tenantNanos) throws MessagingException
+  {
+    if(priorityGate == null) {
+      return transmit(transportPool, message, templateName, renderNanos, buildStart, tenantNanos);
+    }
+    long gateNanos = priorityGate.acquire(priority);
+    try {
+      return transmit(transportPool, message, templateName, renderNanos, buildStart, tenantNanos + gateNanos);
+    }
+    finally {
+      priorityGate.release();
+    }
+  }
+
+  /**
+   * Get key of the tenant email is sent on behalf of. Ad hoc messages and emails without tenant key belong to
+   * {@link TenantScheduler#DEFAULT_TENANT}.
+   * 
+   * @param email email instance, null for ad hoc messages.
+   * @return tenant key.
+   */
+  static String tenant(EmailImpl email)
+  {
+    return email != null && email.tenant() != null ? email.tenant() : TenantScheduler.DEFAULT_TENANT;
+  }
+
+  /**
+   * Get name of the template email was rendered from.
+   * 
+   * @param email email instance, null for ad hoc messages.
+   * @return template name, null for ad hoc messages.
+   */
+  private static String templateName(EmailImpl email)
+  {
+    return email != null ? email.templateName() : null;
+  }
+
+  /**
+   * Begin trace context for a send, if tracing is configured and send is sampled. Returned trace context is bound to
+   * current thread and should be ended by caller, see {@link SendTrace#end(boolean)}.
+   * 
+   * @param messageID message ID, possible null for raw messages,
+   * @param templateName template name, null for ad hoc messages.
+   * @return trace context or null if send is not traced.
+   */
+  private SendTrace beginTrace(String messageID, String templateName)
+  {
+    if(sendTracer == null || (traceSample < 1 && ThreadLocalRandom.current().nextDouble() >= traceSample)) {
+      return null;
+    }
+    return SendTrace.begin(sendTracer, messageID, templateName);
+  }
+
+  /**
+   * Get email priority. Returns priority explicitly set on email instance, if any, then priority configured for email
+   * template. Ad hoc messages and templates without configured priority have {@link Priority#NORMAL}.
+   * 
+   * @param email email instance, null for ad hoc messages.
+   * @return email priority.
+   */
+  private Priority priority(EmailImpl email)
+  {
+    if(email == null) {
+      return Priority.NORMAL;
+    }
+    if(email.priority() != null) {
+      return email.priority();
+    }
+    Priority priority = templatePriorities.get(email.templateName());
+    return priority != null ? priority : Priority.NORMAL;
+  }
+
+  /**
+   * Write message into shared spool incoming directory. Envelope sender is message envelope from or, if missing, message
+   * <code>from</code> address.
+   * 
+   * @param message message to spool,
+   * @param renderNanos render time, in nanoseconds,
+   * @param buildStart timestamp when message building started, in nanoseconds.
+   * @return send result.
+   * @throws MessagingException if message serialization fails.
+   * @throws IOException if spool file writing fails.
+   */
+  private SendResult spool(SMTPMessage message, long renderNanos, long buildStart) throws MessagingException, IOException
+  {
+    message.saveChanges();
+    long spoolStart = System.nanoTime();
+    String from = message.getEnvelopeFrom();
+    if(from == null && message.getFrom() != null) {
+      from = ((InternetAddress)message.getFrom()[0]).getAddress();
+    }
+    List<String> recipients = new ArrayList<>();
+    for(Address address : message.getAllRecipients()) {
+      recipients.add(((InternetAddress)address).getAddress());
+    }
+    // spooled messages are sent raw, as written into spool, and are not signed by transport
+    // blind recipients are into envelope only; drop header as SMTP transport does on send
+    DkimSigner dkimSigner = DkimSigner.getInstance(sessionFactory.getSession());
+    if(dkimSigner == null) {
+      sharedSpool.submit(from, recipients, stream -> message.writeTo(stream, SPOOL_IGNORE_HEADERS));
+    }
+    else {
+      sharedSpool.submit(from, recipients, stream -> {
+        DkimSigner.SigningStream signingStream = dkimSigner.signingStream(message, SPOOL_IGNORE_HEADERS, stream);
+        message.writeTo(signingStream, SPOOL_IGNORE_HEADERS);
+        signingStream.finish();
+      });
+    }
+    return new SendResult(message.getMessageID(), SendResult.Outcome.SPOOLED, null, Collections.<RecipientStatus> emptyList(), renderNanos, spoolStart - buildStart, 0, System.nanoTime() - spoolStart);
+  }
+
+  /**
+   * Deliver message claimed from shared spool by a spool worker. Spool file content is already rendered, with message ID
+   * generated by spooling node, so it is sent to relay as it is, using envelope from spool file. Recipients rejected by
+   * relay are logged; delivery fails only if no recipient was accepted.
+   * 
+   * @param file claimed spool file,
+   * @param offset message content offset into spool file,
+   * @param from envelope sender, possible empty,
+   * @param recipients envelope recipients.
+   * @throws Exception if delivery fails.
+   */
+  private void deliverSpooled(Path file, long offset, String from, List<String> recipients) throws Exception
+  {
+    SendDeadline deadline = beginDeadline(sendTimeout, System.nanoTime());
+    try {
+      TransportPool transportPool = sessionFactory.getTransportPool();
+      Transport transport = transportPool.borrow();
+      boolean reusable = false;
+      try {
+        for(RecipientStatus recipientStatus : transmitRaw(transport, transportPool, file, offset, from, recipients)) {
+          if(!recipientStatus.isAccepted()) {
+            log.warn("Spooled message |{file}| rejected for recipient |{recipient}|.", file, recipientStatus);
+          }
+        }
+        reusable = true;
+      }
+      finally {
+        transportPool.release(transport, reusable);
+      }
+    }
+    finally {
+      if(deadline != null) {
+        deadline.end();
+      }
+    }
+  }
+
+  /**
+   * Send pre-rendered message from file using given transport. If transport is {@link ExtendedSMTPTransport}, message
+   * file is streamed to email server without parsing. Otherwise message is parsed from file, keeping its original
+   * message ID, and sent by standard transport; in this case all recipients are reported as accepted since standard
+   * transport fails the entire send on rejected recipients, unless partial sending is enabled.
+   * 
+   * @param transport connected transport borrowed from given pool,
+   * @param transportPool transports pool, used for session when message should be parsed,
+   * @param file message file,
+   * @param offset message content offset into file,
+   * @param from envelope sender, empty for null reverse path,
+   * @param recipients envelope recipients.
+   * @return recipients status.
+   * @throws MessagingException if message send fails.
+   * @throws IOException if message file reading fails.
+   */
+  private static List<RecipientStatus> transmitRaw(Transport transport, TransportPool transportPool, Path file, long offset, String from, List<String> recipients) throws MessagingException, IOException
+  {
+    if(transport instanceof ExtendedSMTPTransport) {
+      return ((ExtendedSMTPTransport)transport).sendRaw(file, offset, from, recipients);
+    }
+
+    SMTPMessage message;
+    try (InputStream stream = new BufferedInputStream(java.nio.file.Files.newInputStream(file))) {
+      for(long skipped = 0; skipped < offset;) {
+        skipped += stream.skip(offset - skipped);
+      }
+      message = new SMTPMessage(transportPool.getSession(), stream)
+      {
+        protected void updateMessageID() throws MessagingException
+        {
+          // keep message ID from message file
+        }
+      };
+    }
+    if(!from.isEmpty()) {
+      message.setEnvelopeFrom(from);
+    }
+
+    Address[] addresses = new Address[recipients.size()];
+    List<RecipientStatus> recipientsStatus = new ArrayList<>(addresses.length);
+    for(int i = 0; i < addresses.length; ++i) {
+      addresses[i] = new InternetAddress(recipients.get(i));
+      recipientsStatus.add(new RecipientStatus(recipients.get(i), true, 0, null));
+    }
+    transport.sendMessage(message, addresses);
+    return recipientsStatus;
+  }
+
+  /**
+   * Render message to bytes and store it into capture mailbox.
+   * 
+   * @param message message to capture,
+   * @param templateName name of the template message was rendered from, null for ad hoc messages.
+   * @throws MessagingException if message rendering fails.
+   * @throws IOException if message rendering fails.
+   */
+  private void capture(SMTPMessage message, String templateName) throws MessagingException, IOException
+  {
+    message.saveChanges();
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    message.writeTo(content);
+
+    List<String> recipients = new ArrayList<>();
+    for(Address address : message.getAllRecipients()) {
+      recipients.add(((InternetAddress)address).getAddress());
+    }
+    captureMailbox.add(new CapturedEmail(message.getMessageID(), templateName, message.getSubject(), recipients, content.toByteArray()));
+  }
+
+  /**
+   * Send message using a transport borrowed from given pool. Save message changes - that updates message ID, then send
+   * it to all message recipients. Transport is returned to pool after send; if send fails transport is not reused.
+   * <p>
+   * If direct delivery is enabled, recipients from direct delivery domains are delivered to their domain mail exchangers
+   * first, see {@link DirectDelivery}, and only remaining recipients are sent to relay. Direct delivery failures are
+   * reported into returned result recipients status; send fails only if no recipient was accepted.
+   * <p>
+   * If partial sending is enabled, see <code>mail.smtp.sendpartial</code>, and server rejects some recipients but
+   * accepts message data, send is successful and rejected recipients are reported into returned result.
+   * <p>
+   * Given message should be created using pool session, see {@link TransportPool#getSession()}. If send is sampled for
+   * tracing, connection acquire and protocol phases are reported to configured {@link SendTracer}. Transmission outcome
+   * and latency are accounted for sender management bean, see {@link EmailSenderMXBean}.
+   * 
+   * @param transportPool pool of connected transports,
+   * @param message message to send,
+   * @param templateName name of the template message was rendered from, null for ad hoc messages,
+   * @param renderNanos email body render time, in nanoseconds,
+   * @param buildStart timestamp when message building started, in nanoseconds,
+   * @param gateNanos time spent waiting on tenant queue and priority lane, in nanoseconds.
+   * @return send result.
+   * @throws MessagingException if message send fails.
+   * @throws EmailException if transport connection is rejected.
+   */
+  private SendResult transmit(TransportPool transportPool, SMTPMessage message, String templateName, long renderNanos, long buildStart, long gateNanos) throws MessagingException
+  {
+    message.saveChanges();
+    SendTrace trace = beginTrace(message.getMessageID(), templateName);
+    boolean success = false;
+    try {
+      SendResult result = transmitMessage(transportPool, message, trace, renderNanos, buildStart, gateNanos);
+      success = true;
+      sendLatency.record(System.nanoTime() - buildStart);
+      return result;
+    }
+    finally {
+      if(success) {
+        sentCount.increment();
+      }
+      else {
+        failedCount.increment();
+      }
+      if(trace != null) {
+        trace.end(success);
+      }
+    }
+  }
+
+  /**
+   * Send message with saved changes, see {@link #transmit(TransportPool, SMTPMessage, String, long, long, long)}.
+   * 
+   * @param transportPool pool of connected transports,
+   * @param message message to send, with changes saved,
+   * @param trace send trace context, null if send is not traced,
+   * @param renderNanos email body render time, in nanoseconds,
+   * @param buildStart timestamp when message building started, in nanoseconds,
+   * @param gateNanos time spent waiting on tenant queue and priority lane, in nanoseconds.
+   * @return send result.
+   * @throws MessagingException if message send fails.
+   * @throws EmailException if transport connection is rejected.
+   */
+  private SendResult transmitMessage(TransportPool transportPool, SMTPMessage message, SendTrace trace, long renderNanos, long buildStart, long gateNanos) throws MessagingException
+  {
+    Address[] recipients = message.getAllRecipients();
+    List<RecipientStatus> recipientsStatus = new ArrayList<>();
+
+    long directNanos = 0;
+    if(directDelivery != null) {
+      long directStart = System.nanoTime();
+      recipients = directDelivery.deliver(transportPool.getSession(), message, recipients, recipientsStatus);
+      directNanos = System.nanoTime() - directStart;
+      if(recipients.length == 0) {
+        return directResult(message, recipientsStatus, renderNanos, directStart - buildStart, gateNanos, directNanos);
+      }
+    }
+
+    long acquireStart = System.nanoTime();
+    Transport transport = transportPool.borrow();
+    long transmitStart = System.nanoTime();
+    if(trace != null) {
+      trace.phase(TracePhase.ACQUIRE, gateNanos + transmitStart - acquireStart, 0);
+    }
+
+    String serverResponse = null;
+    boolean reusable = false;
+    try {
+      try {
+        transport.sendMessage(message, recipients);
+        for(Address recipient : recipients) {
+          recipientsStatus.add(new RecipientStatus(recipient.toString(), true, 0, null));
+        }
+      }
+      catch(SMTPSendFailedException e) {
+        if(e.getReturnCode() / 100 != 2 || e.getValidSentAddresses() == null || e.getValidSentAddresses().length == 0) {
+          throw e;
+        }
+        // partial send: message data accepted but some recipients rejected
+        partialSendStatus(e, recipientsStatus);
+      }
+      if(transport instanceof SMTPTransport) {
+        serverResponse = ((SMTPTransport)transport).getLastServerResponse();
+      }
+      reusable = true;
+    }
+    finally {
+      transportPool.release(transport, reusable);
+    }
+
+    long transmitEnd = System.nanoTime();
+    return new SendResult(message.getMessageID(), SendResult.Outcome.SENT, serverResponse, recipientsStatus, renderNanos, acquireStart - buildStart - directNanos, gateNanos + transmitStart - acquireStart,
+        directNanos + transmitEnd - transmitStart);
+  }
+
+  /**
+   * Create send result for message delivered only to mail exchangers. Direct delivery connection acquisition is not
+   * measured separately and is included into transmit time.
+   * 
+   * @param message delivered message,
+   * @param recipientsStatus direct recipients status,
+   * @param renderNanos render time, in nanoseconds,
+   * @param buildNanos build time, in nanoseconds,
+   * @param gateNanos time spent waiting on tenant queue and priority lane, in nanoseconds,
+   * @param transmitNanos direct delivery time, in nanoseconds.
+   * @return send result.
+   * @throws MessagingException if message ID reading fails.
+   * @throws EmailException if no recipient was accepted.
+   */
+  private static SendResult directResult(SMTPMessage message, List<RecipientStatus> recipientsStatus, long renderNanos, long buildNanos, long gateNanos, long transmitNanos) throws MessagingException
+  {
+    for(RecipientStatus recipientStatus : recipientsStatus) {
+      if(recipientStatus.isAccepted()) {
+        return new SendResult(message.getMessageID(), SendResult.Outcome.SENT, null, recipientsStatus, renderNanos, buildNanos, gateNanos, transmitNanos);
+      }
+    }
+    throw new EmailException("Direct delivery failed for all recipients: %s", recipientsStatus);
+  }
+
+  /**
+   * Collect recipients status from partial send exception. Accepted recipients are valid sent addresses; server response
+   * for rejected recipients is found into exceptions chain.
+   * 
+   * @param exception partial send exception,
+   * @param recipientsStatus recipients status list, updated by this method.
+   */
+  private static void partialSendStatus(SendFailedException exception, List<RecipientStatus> recipientsStatus)
+  {
+    for(Address address : exception.getValidSentAddresses()) {
+      recipientsStatus.add(new RecipientStatus(address.toString(), true, 0, null));
+    }
+
+    Map<String, SMTPAddressFailedException> failures = new HashMap<>();
+    for(Exception next = exception.getNextException(); next instanceof MessagingException; next = ((MessagingException)next).getNextException()) {
+      if(next instanceof SMTPAddressFailedException) {
+        SMTPAddressFailedException failure = (SMTPAddressFailedException)next;
+        failures.put(failure.getAddress().toString(), failure);
+      }
+    }
+
+    List<Address> rejected = new ArrayList<>();
+    if(exception.getInvalidAddresses() != null) {
+      rejected.addAll(Arrays.asList(exception.getInvalidAddresses()));
+    }
+    if(exception.getValidUnsentAddresses() != null) {
+      rejected.addAll(Arrays.asList(exception.getValidUnsentAddresses()));
+    }
+    for(Address address : rejected) {
+      SMTPAddressFailedException failure = failures.get(address.toString());
+      if(failure != null) {
+        recipientsStatus.add(new RecipientStatus(address.toString(), false, failure.getReturnCode(), failure.getMessage()));
+      }
+      else {
+        recipientsStatus.add(new RecipientStatus(address.toString(), false, 0, "Not sent."));
+      }
+    }
+  }
+
+  /**
+   * Dump ad hoc email to standard out.
+   * 
+   * @param from sender address,
    * @param to destination address,
    * @param subject email subject,
    * @param content email content.
@@ -411,4 +2160,63 @@ public final class EmailSenderImpl implements EmailSender
     System.out.println();
     System.out.println(content);
   }
+
+  /**
+   * Dump pre-rendered message envelope and file content, as it is, to standard out.
+   * 
+   * @param file pre-rendered message file,
+   * @param from envelope sender,
+   * @param recipients envelope recipients.
+   * @throws IOException if message file reading fails.
+   */
+  private static void dumpRawEmail(Path file, String from, List<String> recipients) throws IOException
+  {
+    System.out.print("ENVELOPE FROM: ");
+    System.out.println(from);
+
+    System.out.print("TO: ");
+    System.out.println(String.join(", ", recipients));
+
+    System.out.println();
+    java.nio.file.Files.copy(file, System.out);
+    System.out.println();
+  }
+
+  /**
+   * Message built from email instance and waiting for dispatch. If email was completed at build time, that is,
+   * scheduled or dumped, built message has only send result.
+   * 
+   * @author Iulian Rotaru
+   */
+  static final class BuiltMessage
+  {
+    /** Transports pool message session belongs to, null if message has send result. */
+    final TransportPool transportPool;
+    /** Built message, null if message has send result. */
+    final SMTPMessage message;
+    /** Email instance message was built from. */
+    final EmailImpl email;
+    /** Timestamp when message building started, in nanoseconds. */
+    final long buildStart;
+    /** Send result for email completed at build time, null if message should be dispatched. */
+    final SendResult result;
+
+    BuiltMessage(TransportPool transportPool, SMTPMessage message, EmailImpl email, long buildStart)
+    {
+      this.transportPool = transportPool;
+      this.message = message;
+      this.email = email;
+      this.buildStart = buildStart;
+      this.result = null;
+    }
+
+    BuiltMessage(SendResult result)
+    {
+      this.transportPool = null;
+      this.message = null;
+      this.email = null;
+      this.buildStart = 0;
+      this.result = result;
+    }
+  }
 }
@@ -0,0 +1,111 @@
+package com.jslib.email;
+
+/**
+ * Management interface of an email sender instance, registered on platform MBean server when sender is configured, see
+ * {@link EmailSenderMonitor}. Attributes are live counters and gauges readable by any JMX client, e.g. JConsole or
+ * VisualVM, without extra dependencies. Queue depths of optional components are zero when component is not enabled.
+ *
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public interface EmailSenderMXBean
+{
+  /**
+   * Get the number of emails successfully transmitted, directly or from shared spool.
+   *
+   * @return sent emails count.
+   */
+  long getSentCount();
+
+  /**
+   * Get the number of failed transmissions, directly or from shared spool.
+   *
+   * @return failed transmissions count.
+   */
+  long getFailedCount();
+
+  /**
+   * Get the number of spooled emails delivered again after their claim became stale, e.g. by node crash.
+   *
+   * @return retried emails count.
+   */
+  long getRetriedCount();
+
+  /** Median send latency, from message build start to server response, in milliseconds. */
+  double getLatencyP50();
+
+  /** 95th percentile of send latency, in milliseconds. */
+  double getLatencyP95();
+
+  /** 99th percentile of send latency, in milliseconds. */
+  double getLatencyP99();
+
+  /** Maximum send latency, in milliseconds. */
+  double getLatencyMax();
+
+  /** Number of idle connections from transports pool. */
+  int getPoolIdleCount();
+
+  /** Number of transports currently borrowed by this sender. */
+  int getPoolActiveCount();
+
+  /** Number of connections opened by transports pool. */
+  long getPoolConnectsCount();
+
+  /** Average time to borrow a transport, waiting and connecting included, in milliseconds. */
+  double getPoolAverageWait();
+
+  /** Number of emails waiting for render stage of send pipeline. */
+  int getRenderQueueDepth();
+
+  /** Number of emails waiting for build stage of send pipeline. */
+  int getBuildQueueDepth();
+
+  /** Number of emails waiting for transmit stage of send pipeline. */
+  int getTransmitQueueDepth();
+
+  /** Number of emails waiting on tenant queues, all tenants. */
+  int getTenantQueueDepth();
+
+  /** Number of emails waiting on priority lanes, all lanes. */
+  int getPriorityQueueDepth();
+
+  /** Number of emails scheduled for sending at a future time. */
+  int getScheduledCount();
+
+  /** Number of emails waiting into shared spool incoming directory. */
+  int getSpoolIncomingCount();
+
+  /** Number of parsed templates from templates cache. */
+  int getTemplateCacheSize();
+
+  /**
+   * Get the ratio of email creations served from templates cache, from 0 to 1.
+   *
+   * @return templates cache hit ratio, zero if no email was created from template.
+   */
+  double getTemplateCacheHitRatio();
+
+  /** Test if shared spool draining is paused, see {@link #pauseDraining()}. */
+  boolean isDrainingPaused();
+
+  /**
+   * Close idle connections from transports pool. Transports in use are not affected.
+   *
+   * @return the number of closed connections.
+   */
+  int flushIdleConnections();
+
+  /** Pause shared spool draining on this node. Emails are still spooled, to be delivered after resume. */
+  void pauseDraining();
+
+  /** Resume shared spool draining paused by {@link #pauseDraining()}. */
+  void resumeDraining();
+
+  /**
+   * Parse repository templates not already cached. Returns immediately if templates repository is not configured.
+   *
+   * @return the number of templates parsed.
+   */
+  int warmUpTemplates();
+}
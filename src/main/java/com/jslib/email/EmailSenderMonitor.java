@@ -0,0 +1,292 @@
+package com.jslib.email;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.jslib.api.log.Log;
+import com.jslib.api.log.LogFactory;
+
+/**
+ * Email sender management bean, see {@link EmailSenderMXBean}. Monitor does not keep state; attributes are read on
+ * demand from email sender and its components, so that reading is always consistent with sender current configuration,
+ * warm reconfiguration included.
+ * <p>
+ * Monitor is registered on platform MBean server with object name <code>com.jslib.email:type=EmailSender,name=</code>
+ * followed by configured sender name. Registration failure, e.g. name already in use, is logged but does not fail
+ * sender configuration.
+ *
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class EmailSenderMonitor implements EmailSenderMXBean
+{
+  /** Class logger. */
+  private static final Log log = LogFactory.getLog(EmailSenderMonitor.class);
+
+  /** JMX domain for email sender object names. */
+  static final String DOMAIN = "com.jslib.email";
+
+  private final EmailSenderImpl sender;
+
+  /** Object name this monitor is registered with, null if not registered. */
+  private ObjectName objectName;
+
+  EmailSenderMonitor(EmailSenderImpl sender)
+  {
+    this.sender = sender;
+  }
+
+  /**
+   * Create monitor for email sender and register it on platform MBean server.
+   *
+   * @param sender email sender,
+   * @param name sender name, unique on JVM.
+   * @return email sender monitor, possible not registered.
+   */
+  static EmailSenderMonitor register(EmailSenderImpl sender, String name)
+  {
+    EmailSenderMonitor monitor = new EmailSenderMonitor(sender);
+    try {
+      ObjectName objectName = new ObjectName(DOMAIN + ":type=EmailSender,name=" + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(monitor, objectName);
+      monitor.objectName = objectName;
+      log.debug("Register email sender MBean |{object_name}|.", objectName);
+    }
+    catch(JMException e) {
+      log.warn("Fail to register email sender MBean |{name}|: {exception}", name, e.getMessage());
+    }
+    return monitor;
+  }
+
+  /** Unregister this monitor from platform MBean server. Does nothing if monitor is not registered. */
+  void unregister()
+  {
+    if(objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+    catch(JMException e) {
+      log.warn("Fail to unregister email sender MBean |{object_name}|: {exception}", objectName, e.getMessage());
+    }
+    objectName = null;
+  }
+
+  ObjectName getObjectName()
+  {
+    return objectName;
+  }
+
+  // ----------------------------------------------------------------------------------------------
+  // ATTRIBUTES
+
+  @Override
+  public long getSentCount()
+  {
+    SharedSpool spool = sender.getSharedSpool();
+    return sender.getSentCount() + (spool != null ? spool.getDeliveredCount() : 0);
+  }
+
+  @Override
+  public long getFailedCount()
+  {
+    SharedSpool spool = sender.getSharedSpool();
+    return sender.getFailedCount() + (spool != null ? spool.getFailedCount() : 0);
+  }
+
+  @Override
+  public long getRetriedCount()
+  {
+    SharedSpool spool = sender.getSharedSpool();
+    return spool != null ? spool.getRecoveredCount() : 0;
+  }
+
+  @Override
+  public double getLatencyP50()
+  {
+    return millis(sender.getSendLatency().getPercentile(50));
+  }
+
+  @Override
+  public double getLatencyP95()
+  {
+    return millis(sender.getSendLatency().getPercentile(95));
+  }
+
+  @Override
+  public double getLatencyP99()
+  {
+    return millis(sender.getSendLatency().getPercentile(99));
+  }
+
+  @Override
+  public double getLatencyMax()
+  {
+    return millis(sender.getSendLatency().getMax());
+  }
+
+  @Override
+  public int getPoolIdleCount()
+  {
+    TransportPool pool = sender.getTransportPool();
+    return pool != null ? pool.getIdleCount() : 0;
+  }
+
+  @Override
+  public int getPoolActiveCount()
+  {
+    TransportPool pool = sender.getTransportPool();
+    return pool != null ? pool.getActiveCount() : 0;
+  }
+
+  @Override
+  public long getPoolConnectsCount()
+  {
+    TransportPool pool = sender.getTransportPool();
+    return pool != null ? pool.getConnectsCount() : 0;
+  }
+
+  @Override
+  public double getPoolAverageWait()
+  {
+    TransportPool pool = sender.getTransportPool();
+    return pool != null ? millis(pool.getAverageBorrowNanos()) : 0;
+  }
+
+  @Override
+  public int getRenderQueueDepth()
+  {
+    SendPipeline pipeline = sender.getSendPipeline();
+    return pipeline != null ? pipeline.getRenderQueueDepth() : 0;
+  }
+
+  @Override
+  public int getBuildQueueDepth()
+  {
+    SendPipeline pipeline = sender.getSendPipeline();
+    return pipeline != null ? pipeline.getBuildQueueDepth() : 0;
+  }
+
+  @Override
+  public int getTransmitQueueDepth()
+  {
+    SendPipeline pipeline = sender.getSendPipeline();
+    return pipeline != null ? pipeline.getTransmitQueueDepth() : 0;
+  }
+
+  @Override
+  public int getTenantQueueDepth()
+  {
+    TenantScheduler scheduler = sender.getTenantScheduler();
+    if(scheduler == null) {
+      return 0;
+    }
+    int depth = 0;
+    for(String tenant : scheduler.getTenants()) {
+      depth += scheduler.getQueueDepth(tenant);
+    }
+    return depth;
+  }
+
+  @Override
+  public int getPriorityQueueDepth()
+  {
+    PriorityGate gate = sender.getPriorityGate();
+    if(gate == null) {
+      return 0;
+    }
+    int depth = 0;
+    for(Priority priority : Priority.values()) {
+      depth += gate.getQueueDepth(priority);
+    }
+    return depth;
+  }
+
+  @Override
+  public int getScheduledCount()
+  {
+    SendScheduler scheduler = sender.getSendScheduler();
+    return scheduler != null ? scheduler.getPendingCount() : 0;
+  }
+
+  @Override
+  public int getSpoolIncomingCount()
+  {
+    SharedSpool spool = sender.getSharedSpool();
+    if(spool == null) {
+      return 0;
+    }
+    try {
+      return spool.getIncomingCount();
+    }
+    catch(IOException e) {
+      log.warn("Fail to scan spool incoming directory: {exception}", e.getMessage());
+      return -1;
+    }
+  }
+
+  @Override
+  public int getTemplateCacheSize()
+  {
+    return sender.getTemplateCacheSize();
+  }
+
+  @Override
+  public double getTemplateCacheHitRatio()
+  {
+    return sender.getTemplateCacheHitRatio();
+  }
+
+  @Override
+  public boolean isDrainingPaused()
+  {
+    SharedSpool spool = sender.getSharedSpool();
+    return spool != null && spool.isPaused();
+  }
+
+  // ----------------------------------------------------------------------------------------------
+  // OPERATIONS
+
+  @Override
+  public int flushIdleConnections()
+  {
+    TransportPool pool = sender.getTransportPool();
+    return pool != null ? pool.closeIdle() : 0;
+  }
+
+  @Override
+  public void pauseDraining()
+  {
+    SharedSpool spool = sender.getSharedSpool();
+    if(spool != null) {
+      log.info("Pause shared spool draining.");
+      spool.pause();
+    }
+  }
+
+  @Override
+  public void resumeDraining()
+  {
+    SharedSpool spool = sender.getSharedSpool();
+    if(spool != null) {
+      log.info("Resume shared spool draining.");
+      spool.resume();
+    }
+  }
+
+  @Override
+  public int warmUpTemplates()
+  {
+    return sender.warmUpTemplates();
+  }
+
+  private static double millis(long nanos)
+  {
+    return nanos / (double)TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
@@ -0,0 +1,66 @@
+package com.jslib.email;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Remove elements marked with <code>data-exclude="true"</code>, together with their content. Email templates use this
+ * operator to keep in source elements that should not be part of email body, most commonly the <code>head</code>
+ * element. Template engine evaluates the operator on every serialization; removing excluded elements at load time
+ * saves that work and makes parsed template smaller.
+ * <p>
+ * Excluded elements are located by start tag and matched with end tag by counting nested elements with the same name.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class ExcludePreprocessor implements TemplatePreprocessor
+{
+  /** Start tag having exclude operator with <code>true</code> value. Group 1 is element name. */
+  private static final Pattern EXCLUDED_ELEMENT = Pattern.compile("<([a-zA-Z][a-zA-Z0-9]*)\\b[^>]*\\sdata-exclude\\s*=\\s*[\"']true[\"'][^>]*>");
+
+  @Override
+  public String preprocess(String source)
+  {
+    StringBuilder builder = new StringBuilder(source.length());
+    Matcher matcher = EXCLUDED_ELEMENT.matcher(source);
+    int index = 0;
+    while(matcher.find(index)) {
+      builder.append(source, index, matcher.start());
+      if(matcher.group().endsWith("/>")) {
+        index = matcher.end();
+        continue;
+      }
+      index = elementEnd(source, matcher.group(1), matcher.end());
+    }
+    builder.append(source, index, source.length());
+    return builder.toString();
+  }
+
+  /**
+   * Get index after the end tag matching an element start tag. Returns source length if end tag is missing.
+   * 
+   * @param source template source,
+   * @param name element name,
+   * @param index index after element start tag.
+   * @return index after element end tag.
+   */
+  static int elementEnd(String source, String name, int index)
+  {
+    Pattern tag = Pattern.compile("<(/?)" + name + "\\b[^>]*?(/?)>", Pattern.CASE_INSENSITIVE);
+    Matcher matcher = tag.matcher(source);
+    int depth = 1;
+    while(matcher.find(index)) {
+      index = matcher.end();
+      if(!matcher.group(1).isEmpty()) {
+        if(--depth == 0) {
+          return index;
+        }
+      }
+      else if(matcher.group(2).isEmpty()) {
+        ++depth;
+      }
+    }
+    return source.length();
+  }
+}
@@ -0,0 +1,109 @@
+package com.jslib.email;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+
+import com.jslib.api.email.Email;
+import com.jslib.api.email.EmailException;
+
+/**
+ * Extensions to {@link Email} interface supported by this email sender implementation. Email instances returned by
+ * {@link EmailSenderImpl} implement this interface, so that applications needing these extensions can cast:
+ * 
+ * <pre>
+ * ((ExtendedEmail)sender.getEmail("password-reset")).priority(Priority.TRANSACTIONAL).to(address).send(user);
+ * </pre>
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public interface ExtendedEmail extends Email
+{
+  /**
+   * Set email priority. If not set, email uses priority configured for its template or {@link Priority#NORMAL}.
+   * 
+   * @param priority email priority.
+   * @return this pointer.
+   * @throws IllegalArgumentException if <code>priority</code> argument is null.
+   */
+  ExtendedEmail priority(Priority priority);
+
+  /**
+   * Set email idempotency key. Sender remembers keys of sent emails and acknowledges without sending an email with a
+   * key already seen, so that caller retries do not send duplicates. Key should identify the business event, e.g.
+   * <code>order-shipped:12345</code>. Key is remembered only after email is sent, so that a failed send does not
+   * suppress retry; a retry concurrent with a send in progress waits for its outcome.
+   * 
+   * @param key idempotency key.
+   * @return this pointer.
+   * @throws IllegalArgumentException if <code>key</code> argument is null or empty.
+   */
+  ExtendedEmail idempotencyKey(String key);
+
+  /**
+   * Set key of the tenant this email is sent on behalf of. If sender has tenant scheduling enabled, transmissions are
+   * shared fairly between tenants, by configured tenant weights, so that a tenant burst does not delay other tenants
+   * emails. Emails without tenant key belong to a default tenant.
+   * 
+   * @param key tenant key.
+   * @return this pointer.
+   * @throws IllegalArgumentException if <code>key</code> argument is null or empty.
+   */
+  ExtendedEmail tenant(String key);
+
+  /**
+   * Set send timeout, overriding sender default timeout. Send deadline starts when send method is invoked and bounds
+   * the whole send: waiting on send pipeline, tenant queue, priority lane and transports pool, connection setup, every
+   * server reply and message content write. If deadline expires, send fails with {@link SendTimeoutException} that
+   * records the phase exceeding the deadline. Zero timeout disables deadline for this email. Sender default timeout is
+   * zero, that is, without email timeout sends have no deadline unless sender is configured otherwise.
+   * 
+   * @param timeout send timeout.
+   * @return this pointer.
+   * @throws IllegalArgumentException if <code>timeout</code> argument is null or negative.
+   */
+  ExtendedEmail timeout(Duration timeout);
+
+  /**
+   * Render and send email and return send result. This method is the same as {@link #send(Object...)} but returns
+   * message ID, email server response, recipients status and send phases timings.
+   * 
+   * @param args optional email model.
+   * @return send result.
+   * @throws EmailException if email is not valid or sending fails.
+   */
+  SendResult sendForResult(Object... args);
+
+  /**
+   * Render and send email asynchronously. If sender has send pipeline enabled, email is rendered and its message built
+   * on CPU pool then transmitted on I/O pool; caller blocks only if pipeline render stage is full. Otherwise email is
+   * sent on caller thread and returned future is already completed.
+   * 
+   * @param args optional email model.
+   * @return future completed with send result or with the exception that failed the send.
+   */
+  CompletableFuture<SendResult> sendAsync(Object... args);
+
+  /**
+   * Render email and schedule it for sending at given time. Email is fully built when this method is invoked and waits
+   * into sender scheduler till due time; arguments are the same as for {@link #send(Object...)}. If given time is in the
+   * past email is sent as soon as possible, still asynchronously. Scheduled sends should be enabled on sender.
+   * 
+   * @param time wall clock time when email should be sent,
+   * @param args optional email model.
+   * @throws IllegalArgumentException if <code>time</code> argument is null.
+   * @throws EmailException if scheduled sends are not enabled, email is not valid or scheduling fails.
+   */
+  void sendAt(Instant time, Object... args);
+
+  /**
+   * Convenient variant of {@link #sendAt(Instant, Object...)} for sending after given delay from now.
+   * 
+   * @param delay delay after which email should be sent,
+   * @param args optional email model.
+   * @throws IllegalArgumentException if <code>delay</code> argument is null.
+   * @throws EmailException if scheduled sends are not enabled, email is not valid or scheduling fails.
+   */
+  void sendAfter(Duration delay, Object... args);
+}
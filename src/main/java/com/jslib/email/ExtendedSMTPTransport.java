@@ -0,0 +1,394 @@
+package com.jslib.email;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * SMTP transport able to send pre-rendered messages. Standard JavaMail transport sends only {@link javax.mail.Message}
+ * instances so that a message already serialized to a file should be parsed back, with all its MIME parts, only to be
+ * serialized again on DATA phase. This transport runs SMTP envelope commands itself and streams message file straight
+ * to DATA output stream, see {@link #sendRaw(Path, long, String, List)}.
+ * <p>
+ * DATA output stream provided by JavaMail does dot-stuffing and line endings normalization incrementally, on every
+ * written chunk, so message file is never loaded into memory. File channel transfers file content in chunks directly
+ * into output stream channel, avoiding an intermediate buffered input stream.
+ * <p>
+ * If current thread executes a traced send, see {@link SendTrace}, transport reports connection setup and every SMTP
+ * command round trip to send tracer. Tracing is hooked into JavaMail command and reply primitives so that it covers
+ * both standard and raw sends.
+ * <p>
+ * If DKIM signing is configured, see {@link DkimSigner}, standard sends are signed on DATA phase, after message 8bit
+ * conversion. Raw sends are transmitted as they are.
+ * <p>
+ * If current thread executes a send with timeout, see {@link SendDeadline}, transport updates deadline phase on every
+ * command and fails fast if deadline already expired. While connecting and sending, transport is watched by deadline
+ * watchdog that aborts connection on deadline expiration, so that a blocked read or DATA write does not outlive the
+ * deadline; transport failure caused by abort is reported as {@link SendTimeoutException}. JavaMail does not expose
+ * transport socket so it is accessed reflectively; if not accessible, deadline is checked only between commands and
+ * socket I/O is bounded by session timeouts.
+ * <p>
+ * Transport is registered to JavaMail session by {@link #register(Session)} and replaces standard transport for both
+ * <code>smtp</code> and <code>smtps</code> protocols. This class is public only because JavaMail instantiates
+ * transports reflectively; it is not part of email sender API.
+ *
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public class ExtendedSMTPTransport extends SMTPTransport
+{
+  /** JavaMail transport socket field, null if not accessible. */
+  private static final Field SOCKET_FIELD = socketField();
+
+  /** Headers excluded by JavaMail SMTP transport when message is written on DATA phase. */
+  private static final String[] DATA_IGNORE_HEADERS =
+  {
+      "Bcc", "Content-Length"
+  };
+
+  /** DKIM signer registered into session, null if DKIM signing is not configured. */
+  private DkimSigner dkimSigner;
+
+  /** Message being sent by {@link #sendMessage(Message, Address[])}, to be signed on DATA phase. */
+  private MimeMessage signedMessage;
+
+  /** Stream signing message on DATA phase, finished before DATA terminating dot; null if message is not signed. */
+  private DkimSigner.SigningStream signingStream;
+
+  /** Flag set by {@link #abort()}. */
+  private volatile boolean aborted;
+
+  /**
+   * Register this transport class to JavaMail session for <code>smtp</code> and <code>smtps</code> protocols. If
+   * session properties already configure other transport class for a protocol, that protocol is left untouched.
+   *
+   * @param session JavaMail session.
+   * @throws NoSuchProviderException if provider registration fails.
+   */
+  static void register(Session session) throws NoSuchProviderException
+  {
+    for(String protocol : new String[]
+    {
+        "smtp", "smtps"
+    }) {
+      String className = session.getProperty("mail." + protocol + ".class");
+      if(className == null || className.equals(ExtendedSMTPTransport.class.getName())) {
+        session.setProvider(new Provider(Provider.Type.TRANSPORT, protocol, ExtendedSMTPTransport.class.getName(), "js-lib", null));
+      }
+    }
+  }
+
+  /**
+   * Create transport instance. Constructor signature is required by JavaMail service factory.
+   *
+   * @param session JavaMail session,
+   * @param urlname transport URL name, null for default <code>smtp</code> protocol.
+   */
+  public ExtendedSMTPTransport(Session session, URLName urlname)
+  {
+    super(session, urlname, protocol(urlname), "smtps".equals(protocol(urlname)));
+    this.dkimSigner = DkimSigner.getInstance(session);
+  }
+
+  private static String protocol(URLName urlname)
+  {
+    return urlname != null && urlname.getProtocol() != null ? urlname.getProtocol() : "smtp";
+  }
+
+  /**
+   * Replace DKIM signer registered into transport session. Used when transport is shared by email senders with
+   * different signing domains; signer is set by every borrow, see {@link TransportPool#borrow()}.
+   *
+   * @param dkimSigner DKIM signer, null to disable signing.
+   */
+  void setDkimSigner(DkimSigner dkimSigner)
+  {
+    this.dkimSigner = dkimSigner;
+  }
+
+  /**
+   * Send message, DKIM signing it if signer is configured. Message is signed on DATA phase, after SMTP transport applied
+   * 8bit conversion, if any, so that signature covers message content as sent. Message is serialized once, into a
+   * signing stream that hashes and buffers it, and sent with signature header when serialization completes.
+   *
+   * @param message message to send,
+   * @param addresses recipients addresses.
+   * @throws MessagingException if message send fails.
+   */
+  @Override
+  public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException
+  {
+    signedMessage = dkimSigner != null && message instanceof MimeMessage ? (MimeMessage)message : null;
+    SendDeadline deadline = SendDeadline.current();
+    if(deadline != null) {
+      deadline.watch(this);
+    }
+    try {
+      super.sendMessage(message, addresses);
+    }
+    catch(MessagingException e) {
+      if(deadline != null && deadline.isExpired()) {
+        throw deadline.timeout();
+      }
+      throw e;
+    }
+    finally {
+      signedMessage = null;
+      signingStream = null;
+      if(deadline != null && deadline.unwatch()) {
+        abort();
+      }
+    }
+  }
+
+  @Override
+  protected OutputStream data() throws MessagingException
+  {
+    OutputStream stream = super.data();
+    if(signedMessage != null) {
+      stream = signingStream = dkimSigner.signingStream(signedMessage, DATA_IGNORE_HEADERS, stream);
+    }
+    SendDeadline deadline = SendDeadline.current();
+    if(deadline != null) {
+      deadline.enter(TracePhase.CONTENT);
+    }
+    return stream;
+  }
+
+  @Override
+  protected void finishData() throws IOException, MessagingException
+  {
+    if(signingStream != null) {
+      DkimSigner.SigningStream stream = signingStream;
+      signingStream = null;
+      stream.finish();
+    }
+    super.finishData();
+  }
+
+  @Override
+  protected synchronized boolean protocolConnect(String host, int port, String user, String password) throws MessagingException
+  {
+    SendDeadline deadline = SendDeadline.current();
+    if(deadline == null) {
+      return tracedConnect(host, port, user, password);
+    }
+    deadline.enter(TracePhase.CONNECT);
+    deadline.watch(this);
+    try {
+      return tracedConnect(host, port, user, password);
+    }
+    catch(MessagingException e) {
+      if(deadline.isExpired()) {
+        throw deadline.timeout();
+      }
+      throw e;
+    }
+    finally {
+      if(deadline.unwatch()) {
+        abort();
+      }
+    }
+  }
+
+  private boolean tracedConnect(String host, int port, String user, String password) throws MessagingException
+  {
+    SendTrace trace = SendTrace.current();
+    if(trace == null) {
+      return super.protocolConnect(host, port, user, password);
+    }
+    long start = System.nanoTime();
+    boolean connected = super.protocolConnect(host, port, user, password);
+    trace.phase(TracePhase.CONNECT, System.nanoTime() - start, 0);
+    return connected;
+  }
+
+  @Override
+  protected void sendCommand(String command) throws MessagingException
+  {
+    SendDeadline deadline = SendDeadline.current();
+    if(deadline != null) {
+      TracePhase phase = SendTrace.phase(command);
+      if(phase != null) {
+        deadline.enter(phase);
+      }
+    }
+    SendTrace trace = SendTrace.current();
+    if(trace != null) {
+      trace.commandSent(command);
+    }
+    super.sendCommand(command);
+  }
+
+  @Override
+  protected int readServerResponse() throws MessagingException
+  {
+    int returnCode = super.readServerResponse();
+    SendTrace trace = SendTrace.current();
+    if(trace != null) {
+      trace.replyReceived(returnCode);
+    }
+    return returnCode;
+  }
+
+  /**
+   * Send pre-rendered RFC 5322 message from file, using given envelope. Message content starts at given offset into
+   * file and lasts till file end; it is sent as it is, with no MIME parsing or headers update.
+   * <p>
+   * Recipients rejected by server are reported into returned statuses list. If all recipients are rejected or if any
+   * envelope command or DATA phase fails, this method throws exception; on envelope failure transaction is reset with
+   * <code>RSET</code> so that transport remains reusable. Transport should be already connected, as borrowed from
+   * transports pool.
+   *
+   * @param file message file,
+   * @param offset message content offset into file, in bytes,
+   * @param from envelope sender, empty for null reverse path,
+   * @param recipients envelope recipients.
+   * @return recipients statuses, in envelope order.
+   * @throws SMTPSendFailedException if server rejects envelope or message content.
+   * @throws MessagingException if SMTP conversation fails.
+   * @throws IOException if message file reading fails.
+   */
+  public synchronized List<RecipientStatus> sendRaw(Path file, long offset, String from, List<String> recipients) throws MessagingException, IOException
+  {
+    SendDeadline deadline = SendDeadline.current();
+    if(deadline == null) {
+      return transmitRaw(file, offset, from, recipients);
+    }
+    deadline.watch(this);
+    try {
+      return transmitRaw(file, offset, from, recipients);
+    }
+    catch(MessagingException | IOException e) {
+      if(deadline.isExpired()) {
+        throw deadline.timeout();
+      }
+      throw e;
+    }
+    finally {
+      if(deadline.unwatch()) {
+        abort();
+      }
+    }
+  }
+
+  /** Send pre-rendered message, see {@link #sendRaw(Path, long, String, List)}. */
+  private List<RecipientStatus> transmitRaw(Path file, long offset, String from, List<String> recipients) throws MessagingException, IOException
+  {
+    StringBuilder mailFrom = new StringBuilder("MAIL FROM:<").append(from).append('>');
+    if(supportsExtension("8BITMIME")) {
+      // message content is not inspected so announce 8bit body; it is harmless for 7bit messages
+      mailFrom.append(" BODY=8BITMIME");
+    }
+    int returnCode = simpleCommand(mailFrom.toString());
+    if(returnCode != 250) {
+      throw reset(mailFrom.toString(), returnCode, getLastServerResponse());
+    }
+
+    List<RecipientStatus> statuses = new ArrayList<>(recipients.size());
+    boolean accepted = false;
+    for(String recipient : recipients) {
+      returnCode = simpleCommand("RCPT TO:<" + recipient + ">");
+      if(returnCode == 250 || returnCode == 251) {
+        statuses.add(new RecipientStatus(recipient, true, returnCode, null));
+        accepted = true;
+      }
+      else {
+        statuses.add(new RecipientStatus(recipient, false, returnCode, getLastServerResponse()));
+      }
+    }
+    if(!accepted) {
+      throw reset("RCPT TO", returnCode, "No recipient accepted.");
+    }
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      OutputStream stream = data();
+      WritableByteChannel target = Channels.newChannel(stream);
+      long size = channel.size();
+      for(long position = offset; position < size;) {
+        position += channel.transferTo(position, size - position, target);
+      }
+    }
+    finishData();
+    return statuses;
+  }
+
+  /**
+   * Abort connection by closing transport socket, forcing blocked socket I/O to fail. Invoked by deadline watchdog from
+   * its own thread, without transport lock since sending thread holds it, and by sending thread if watchdog fired after
+   * transport operation completed. Aborted transport is not reusable, see {@link #isAborted()}. Socket closing does
+   * nothing if transport socket is not accessible or transport not connected.
+   */
+  void abort()
+  {
+    aborted = true;
+    if(SOCKET_FIELD == null) {
+      return;
+    }
+    try {
+      Socket socket = (Socket)SOCKET_FIELD.get(this);
+      if(socket != null) {
+        socket.close();
+      }
+    }
+    catch(IllegalAccessException | IOException ignore) {}
+  }
+
+  /**
+   * Test if transport connection was aborted by send deadline. An aborted transport should be closed, not returned to
+   * pool, even if its last operation succeeded.
+   *
+   * @return true if transport was aborted.
+   */
+  boolean isAborted()
+  {
+    return aborted;
+  }
+
+  private static Field socketField()
+  {
+    try {
+      Field field = SMTPTransport.class.getDeclaredField("serverSocket");
+      field.setAccessible(true);
+      return field;
+    }
+    catch(ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Reset current mail transaction after envelope command failure and create exception for failed command.
+   *
+   * @param command failed SMTP command,
+   * @param returnCode server return code,
+   * @param response server response.
+   * @return send failed exception.
+   * @throws MessagingException if reset command fails.
+   */
+  private SMTPSendFailedException reset(String command, int returnCode, String response) throws MessagingException
+  {
+    simpleCommand("RSET");
+    return new SMTPSendFailedException(command, returnCode, response, null, null, null, null);
+  }
+}
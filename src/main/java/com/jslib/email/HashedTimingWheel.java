@@ -0,0 +1,200 @@
+package com.jslib.email;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.jslib.api.log.Log;
+import com.jslib.api.log.LogFactory;
+
+/**
+ * Hashed timing wheel holding items till their due time. Wheel is a circular array of buckets; a worker thread advances
+ * one bucket every tick and releases expired items from current bucket. An item due after more than one wheel rotation
+ * stays into its bucket with a remaining rounds counter decremented on every visit, so that scheduling and expiring
+ * are constant time regardless the number of pending items.
+ * <p>
+ * Scheduling threads do not touch buckets; new items are added to a lock free pending queue transferred to buckets by
+ * worker thread on every tick. Items expired on the same tick are released together, as a batch, to the consumer
+ * provided to constructor. Consumer runs on worker thread and should hand off the batch quickly.
+ * <p>
+ * Due time is wall clock time, in milliseconds, and wheel precision is the tick duration. Worker thread is started
+ * lazily, on first scheduled item.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ * @param <T> scheduled items type.
+ */
+final class HashedTimingWheel<T> implements Runnable
+{
+  /** Class logger. */
+  private static final Log log = LogFactory.getLog(HashedTimingWheel.class);
+
+  /** Tick duration, in milliseconds. */
+  private final long tickDuration;
+
+  /** Wheel buckets, every bucket being a singly linked list of entries. Accessed only by worker thread. */
+  private final Entry<T>[] buckets;
+
+  /** Mask used to map tick to bucket index. Buckets length is a power of two. */
+  private final int mask;
+
+  /** Consumer for batches of expired items. */
+  private final Consumer<List<T>> releaser;
+
+  /** Items scheduled but not yet transferred into buckets. */
+  private final Queue<Entry<T>> pendingEntries = new ConcurrentLinkedQueue<>();
+
+  /** Number of items waiting on wheel, including pending ones. */
+  private final AtomicInteger size = new AtomicInteger();
+
+  private final AtomicBoolean started = new AtomicBoolean();
+
+  private final Thread thread;
+
+  /** Wall clock time when worker thread started, in milliseconds. Tick zero begins at this time. */
+  private volatile long startTime;
+
+  /**
+   * Create timing wheel instance.
+   * 
+   * @param tickDuration tick duration, in milliseconds,
+   * @param wheelSize number of buckets, rounded up to a power of two,
+   * @param releaser consumer for batches of expired items.
+   */
+  @SuppressWarnings("unchecked")
+  HashedTimingWheel(long tickDuration, int wheelSize, Consumer<List<T>> releaser)
+  {
+    int length = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+    this.tickDuration = tickDuration;
+    this.buckets = new Entry[length];
+    this.mask = length - 1;
+    this.releaser = releaser;
+    this.thread = new Thread(this, "email-timing-wheel");
+    this.thread.setDaemon(true);
+  }
+
+  /**
+   * Schedule item for release at given due time. If due time is in the past item is released on next tick.
+   * 
+   * @param item item to schedule,
+   * @param dueTime wall clock due time, in milliseconds.
+   */
+  void schedule(T item, long dueTime)
+  {
+    if(started.compareAndSet(false, true)) {
+      startTime = System.currentTimeMillis();
+      thread.start();
+    }
+    size.incrementAndGet();
+    pendingEntries.add(new Entry<>(item, dueTime));
+  }
+
+  /**
+   * Get the number of items waiting on this wheel.
+   * 
+   * @return pending items count.
+   */
+  int size()
+  {
+    return size.get();
+  }
+
+  /** Stop worker thread. Items still on wheel are discarded. */
+  void stop()
+  {
+    thread.interrupt();
+  }
+
+  @Override
+  public void run()
+  {
+    log.debug("Start email timing wheel.");
+    long tick = 0;
+    try {
+      for(;;) {
+        long tickEnd = startTime + (tick + 1) * tickDuration;
+        for(long delay = tickEnd - System.currentTimeMillis(); delay > 0; delay = tickEnd - System.currentTimeMillis()) {
+          Thread.sleep(delay);
+        }
+
+        transferPendingEntries(tick);
+        List<T> batch = expire((int)(tick & mask));
+        if(!batch.isEmpty()) {
+          size.addAndGet(-batch.size());
+          try {
+            releaser.accept(batch);
+          }
+          catch(Throwable t) {
+            log.error(t);
+          }
+        }
+        ++tick;
+      }
+    }
+    catch(InterruptedException e) {
+      log.debug("Stop email timing wheel.");
+    }
+  }
+
+  /**
+   * Move pending entries into wheel buckets. Entry bucket is computed from due time; entries already due are placed
+   * into current tick bucket.
+   * 
+   * @param tick current tick.
+   */
+  private void transferPendingEntries(long tick)
+  {
+    for(Entry<T> entry = pendingEntries.poll(); entry != null; entry = pendingEntries.poll()) {
+      long dueTick = Math.max((entry.dueTime - startTime) / tickDuration, tick);
+      entry.rounds = (dueTick - tick) / buckets.length;
+      int index = (int)(dueTick & mask);
+      entry.next = buckets[index];
+      buckets[index] = entry;
+    }
+  }
+
+  /**
+   * Remove from bucket entries with no remaining rounds and decrement remaining rounds for the others.
+   * 
+   * @param index bucket index.
+   * @return expired items, possible empty.
+   */
+  private List<T> expire(int index)
+  {
+    List<T> batch = new ArrayList<>();
+    Entry<T> previous = null;
+    for(Entry<T> entry = buckets[index]; entry != null; entry = entry.next) {
+      if(entry.rounds > 0) {
+        --entry.rounds;
+        previous = entry;
+        continue;
+      }
+      batch.add(entry.item);
+      if(previous == null) {
+        buckets[index] = entry.next;
+      }
+      else {
+        previous.next = entry.next;
+      }
+    }
+    return batch;
+  }
+
+  private static final class Entry<T>
+  {
+    final T item;
+    final long dueTime;
+    long rounds;
+    Entry<T> next;
+
+    Entry(T item, long dueTime)
+    {
+      this.item = item;
+      this.dueTime = dueTime;
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package com.jslib.email;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * Cache for RFC 2047 encoded header values that recur across messages, like localized campaign subjects and sender
+ * display names. Encoded values are cached by raw value; an encoder instance is bound to a single charset, null for
+ * JavaMail default MIME charset.
+ * <p>
+ * Every cache is bounded and has two generations. New values are added to current generation; when current generation
+ * reaches its capacity it becomes the previous generation and the older one is discarded. A value found only into
+ * previous generation is promoted to current one. Lookups are lock free; generation rotation is rare and only swaps
+ * references.
+ *
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class HeaderEncoder
+{
+  /** Charset used for encoding, null for JavaMail default MIME charset. */
+  private final String charset;
+
+  /** Encoded subjects, folded for <code>Subject</code> header. */
+  private final Cache subjects;
+
+  /** Encoded display names. */
+  private final Cache personals;
+
+  /**
+   * Create header encoder.
+   *
+   * @param charset charset used for encoding, null for default MIME charset,
+   * @param capacity number of values per cache generation.
+   */
+  HeaderEncoder(String charset, int capacity)
+  {
+    this.charset = charset;
+    this.subjects = new Cache(capacity);
+    this.personals = new Cache(capacity);
+  }
+
+  /**
+   * Get <code>Subject</code> header value for given subject, encoded and folded as by
+   * {@link javax.mail.internet.MimeMessage#setSubject(String)}.
+   *
+   * @param subject raw subject.
+   * @return encoded subject.
+   * @throws UnsupportedEncodingException if encoder charset is not supported.
+   */
+  String subject(String subject) throws UnsupportedEncodingException
+  {
+    String encoded = subjects.get(subject);
+    if(encoded == null) {
+      encoded = MimeUtility.fold(9, MimeUtility.encodeText(subject, charset, null));
+      subjects.put(subject, encoded);
+    }
+    return encoded;
+  }
+
+  /**
+   * Get address with display name already encoded, so that serializing it into a header does not encode again. Address
+   * without display name is returned as it is.
+   *
+   * @param address address, possible with display name.
+   * @return address with encoded display name.
+   * @throws UnsupportedEncodingException if encoder charset is not supported.
+   */
+  InternetAddress address(InternetAddress address) throws UnsupportedEncodingException
+  {
+    String personal = address.getPersonal();
+    if(personal == null) {
+      return address;
+    }
+    String encoded = personals.get(personal);
+    if(encoded == null) {
+      encoded = MimeUtility.encodeWord(personal, charset, null);
+      personals.put(personal, encoded);
+    }
+    return new EncodedAddress(address.getAddress(), personal, encoded);
+  }
+
+  /**
+   * Get addresses with display names already encoded, see {@link #address(InternetAddress)}.
+   *
+   * @param addresses addresses, possible with display names.
+   * @return newly created array of addresses with encoded display names.
+   * @throws UnsupportedEncodingException if encoder charset is not supported.
+   */
+  InternetAddress[] addresses(InternetAddress[] addresses) throws UnsupportedEncodingException
+  {
+    InternetAddress[] encodedAddresses = new InternetAddress[addresses.length];
+    for(int i = 0; i < addresses.length; ++i) {
+      encodedAddresses[i] = address(addresses[i]);
+    }
+    return encodedAddresses;
+  }
+
+  /**
+   * Internet address created with display name already encoded. Standard constructors encode display name eagerly.
+   *
+   * @author Iulian Rotaru
+   */
+  @SuppressWarnings("serial")
+  private static final class EncodedAddress extends InternetAddress
+  {
+    EncodedAddress(String address, String personal, String encodedPersonal)
+    {
+      this.address = address;
+      this.personal = personal;
+      this.encodedPersonal = encodedPersonal;
+    }
+  }
+
+  /**
+   * Bounded two generations concurrent cache.
+   *
+   * @author Iulian Rotaru
+   */
+  private static final class Cache
+  {
+    /** Number of values per generation. */
+    private final int capacity;
+
+    private volatile ConcurrentMap<String, String> currentGeneration = new ConcurrentHashMap<>();
+    private volatile ConcurrentMap<String, String> previousGeneration = new ConcurrentHashMap<>();
+
+    Cache(int capacity)
+    {
+      this.capacity = capacity;
+    }
+
+    /**
+     * Get cached value, promoting it to current generation if found only into previous one.
+     *
+     * @param key raw value.
+     * @return encoded value or null if not cached.
+     */
+    String get(String key)
+    {
+      String value = currentGeneration.get(key);
+      if(value == null) {
+        value = previousGeneration.get(key);
+        if(value != null) {
+          put(key, value);
+        }
+      }
+      return value;
+    }
+
+    void put(String key, String value)
+    {
+      ConcurrentMap<String, String> generation = currentGeneration;
+      if(generation.size() >= capacity) {
+        generation = rotate(generation);
+      }
+      generation.put(key, value);
+    }
+
+    /**
+     * Rotate generations, if not already rotated by a concurrent thread.
+     *
+     * @param fullGeneration current generation found full by caller.
+     * @return current generation after rotation.
+     */
+    private synchronized ConcurrentMap<String, String> rotate(ConcurrentMap<String, String> fullGeneration)
+    {
+      if(currentGeneration == fullGeneration) {
+        previousGeneration = fullGeneration;
+        currentGeneration = new ConcurrentHashMap<>();
+      }
+      return currentGeneration;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package com.jslib.email;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.Enumeration;
+
+import javax.activation.FileTypeMap;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+
+/**
+ * Static image embedded into email message as <code>multipart/related</code> part, referenced from email body by
+ * <code>cid:</code> URL. Image file is read and base64 encoded once, when template is loaded; encoded bytes are shared
+ * by all messages rendered from that template. Inline image instance is immutable and thread safe.
+ * <p>
+ * For every message, {@link #createBodyPart()} creates a lightweight body part that writes pre-encoded bytes as they
+ * are, without decoding and encoding again image content.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class InlineImage
+{
+  /** Content ID, without angle brackets, used by email body to reference this image. */
+  private final String contentID;
+
+  /** Image content type, e.g. <code>image/png</code>. */
+  private final String contentType;
+
+  /** Image file name. */
+  private final String fileName;
+
+  /** Image content, base64 encoded with MIME line breaks. */
+  private final byte[] encodedContent;
+
+  /**
+   * Read and encode image file.
+   * 
+   * @param contentID content ID, without angle brackets,
+   * @param file image file.
+   * @throws IOException if image file reading fails.
+   */
+  InlineImage(String contentID, File file) throws IOException
+  {
+    this.contentID = contentID;
+    this.contentType = contentType(file);
+    this.fileName = file.getName();
+    this.encodedContent = Base64.getMimeEncoder().encode(Files.readAllBytes(file.toPath()));
+  }
+
+  String getContentID()
+  {
+    return contentID;
+  }
+
+  String getContentType()
+  {
+    return contentType;
+  }
+
+  /**
+   * Create body part for this inline image. Created body part is bound to a single message but shares image encoded
+   * bytes with all other body parts created from this inline image.
+   * 
+   * @return newly created body part.
+   * @throws MessagingException if body part creation fails.
+   */
+  MimeBodyPart createBodyPart() throws MessagingException
+  {
+    InternetHeaders headers = new InternetHeaders();
+    headers.setHeader("Content-Type", contentType + "; name=\"" + fileName + "\"");
+    headers.setHeader("Content-Transfer-Encoding", "base64");
+    headers.setHeader("Content-ID", "<" + contentID + ">");
+    headers.setHeader("Content-Disposition", "inline; filename=\"" + fileName + "\"");
+    return new PreencodedBodyPart(headers, encodedContent);
+  }
+
+  private static String contentType(File file)
+  {
+    String name = file.getName().toLowerCase();
+    if(name.endsWith(".png")) {
+      return "image/png";
+    }
+    if(name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+      return "image/jpeg";
+    }
+    if(name.endsWith(".gif")) {
+      return "image/gif";
+    }
+    if(name.endsWith(".svg")) {
+      return "image/svg+xml";
+    }
+    return FileTypeMap.getDefaultFileTypeMap().getContentType(file);
+  }
+
+  /**
+   * Body part with already encoded content. Headers are not updated on message save and content is written as it is,
+   * so that shared encoded bytes are never decoded or encoded again.
+   * 
+   * @author Iulian Rotaru
+   */
+  private static final class PreencodedBodyPart extends MimeBodyPart
+  {
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    PreencodedBodyPart(InternetHeaders headers, byte[] encodedContent) throws MessagingException
+    {
+      super(headers, encodedContent);
+    }
+
+    @Override
+    protected void updateHeaders()
+    {
+      // headers are already complete
+    }
+
+    @Override
+    public void writeTo(OutputStream stream) throws IOException, MessagingException
+    {
+      Enumeration<?> headerLines = getAllHeaderLines();
+      while(headerLines.hasMoreElements()) {
+        stream.write(((String)headerLines.nextElement()).getBytes(StandardCharsets.US_ASCII));
+        stream.write(CRLF);
+      }
+      stream.write(CRLF);
+      stream.write(content);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package com.jslib.email;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+import com.jslib.api.email.EmailException;
+
+/**
+ * MX resolver querying DNS via JNDI DNS service provider. JNDI does not expose DNS answer time to live so this resolver
+ * uses a configured one, see {@link #JndiMxResolver(long)}.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public final class JndiMxResolver implements MxResolver
+{
+  /** Default time to live for resolved records, in seconds. */
+  private static final long DEF_TTL = 3600;
+
+  /** JNDI environment for DNS directory context. */
+  private final Hashtable<String, String> environment = new Hashtable<>();
+
+  /** Time to live for resolved records, in seconds. */
+  private final long ttl;
+
+  public JndiMxResolver()
+  {
+    this(DEF_TTL);
+  }
+
+  /**
+   * Create resolver with given time to live for resolved records.
+   * 
+   * @param ttl time to live, in seconds.
+   */
+  public JndiMxResolver(long ttl)
+  {
+    this.ttl = ttl;
+    this.environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+    this.environment.put(Context.PROVIDER_URL, "dns:");
+  }
+
+  @Override
+  public MxRecords resolve(String domain)
+  {
+    DirContext context = null;
+    try {
+      context = new InitialDirContext(environment);
+      Attributes attributes = context.getAttributes(domain, new String[]
+      {
+          "MX"
+      });
+      Attribute attribute = attributes.get("MX");
+      List<String> records = new ArrayList<>();
+      if(attribute != null) {
+        NamingEnumeration<?> values = attribute.getAll();
+        while(values.hasMore()) {
+          records.add(values.next().toString());
+        }
+      }
+      return new MxRecords(parse(domain, records), ttl);
+    }
+    catch(NameNotFoundException e) {
+      throw new EmailException("Email domain |%s| not found.", domain);
+    }
+    catch(NamingException e) {
+      throw new EmailException(e);
+    }
+    finally {
+      if(context != null) {
+        try {
+          context.close();
+        }
+        catch(NamingException ignore) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Parse MX records, in <code>preference host</code> format, and return hosts sorted by preference. Hosts trailing dot
+   * is removed. If there are no MX records returns domain itself, as implicit MX.
+   * 
+   * @param domain email domain,
+   * @param records MX records, possible empty.
+   * @return hosts sorted by preference.
+   */
+  static List<String> parse(String domain, List<String> records)
+  {
+    Map<Integer, List<String>> preferences = new TreeMap<>();
+    for(String record : records) {
+      String[] parts = record.trim().split("\\s+");
+      if(parts.length != 2) {
+        continue;
+      }
+      String host = parts[1].endsWith(".") ? parts[1].substring(0, parts[1].length() - 1) : parts[1];
+      preferences.computeIfAbsent(Integer.parseInt(parts[0]), preference -> new ArrayList<>()).add(host);
+    }
+
+    List<String> hosts = new ArrayList<>();
+    for(List<String> preferenceHosts : preferences.values()) {
+      hosts.addAll(preferenceHosts);
+    }
+    if(hosts.isEmpty()) {
+      hosts.add(domain);
+    }
+    return hosts;
+  }
+}
@@ -0,0 +1,131 @@
+package com.jslib.email;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Lock free histogram of send latencies used to report percentiles. Latencies are recorded with microsecond resolution
+ * into log-linear buckets: every power of two range is split into {@link #SUB_BUCKETS} linear buckets, so that reported
+ * percentile is within 12.5% of recorded latency, for a fixed memory footprint of few kilobytes. Latencies above
+ * {@link #MAX_EXPONENT} power of two microseconds, about 12 days, are recorded into last bucket.
+ * <p>
+ * Recording is a couple of bit operations and an atomic increment and does not allocate. Percentiles are computed by
+ * scanning buckets; concurrent recordings may be missed or partially accounted by a percentile snapshot, acceptable for
+ * monitoring. Histogram accumulates since creation.
+ *
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class LatencyHistogram
+{
+  /** Number of linear buckets per power of two range. */
+  private static final int SUB_BUCKETS = 8;
+
+  /** Binary logarithm of {@link #SUB_BUCKETS}. */
+  private static final int SUB_BUCKETS_BITS = 3;
+
+  /** Highest power of two range, in microseconds. */
+  private static final int MAX_EXPONENT = 40;
+
+  /** Recorded latencies count per bucket. */
+  private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKETS_BITS + 1) * SUB_BUCKETS);
+
+  /** Maximum recorded latency, in nanoseconds. */
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /**
+   * Record latency.
+   *
+   * @param nanos latency, in nanoseconds.
+   */
+  void record(long nanos)
+  {
+    counts.incrementAndGet(index(TimeUnit.NANOSECONDS.toMicros(nanos)));
+    max.accumulate(nanos);
+  }
+
+  /**
+   * Get latency below which given percent of recorded latencies fall. Returned value is the upper bound of the bucket
+   * containing requested percentile, capped to maximum recorded latency; for last bucket returns maximum latency.
+   *
+   * @param percent percent, from 0 exclusive to 100 inclusive.
+   * @return latency percentile, in nanoseconds, zero if there is no latency recorded.
+   */
+  long getPercentile(double percent)
+  {
+    long[] snapshot = new long[counts.length()];
+    long total = 0;
+    for(int i = 0; i < snapshot.length; ++i) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if(total == 0) {
+      return 0;
+    }
+
+    long rank = (long)Math.ceil(total * percent / 100);
+    long count = 0;
+    for(int i = 0; i < snapshot.length; ++i) {
+      count += snapshot[i];
+      if(count >= rank) {
+        // last bucket has no upper bound
+        return i < snapshot.length - 1 ? Math.min(TimeUnit.MICROSECONDS.toNanos(upperBound(i)), max.get()) : max.get();
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Get maximum recorded latency.
+   *
+   * @return maximum latency, in nanoseconds, zero if there is no latency recorded.
+   */
+  long getMax()
+  {
+    return max.get();
+  }
+
+  long getCount()
+  {
+    long total = 0;
+    for(int i = 0; i < counts.length(); ++i) {
+      total += counts.get(i);
+    }
+    return total;
+  }
+
+  /**
+   * Get bucket index for latency. Latencies below {@link #SUB_BUCKETS} microseconds have a bucket per microsecond;
+   * above, bucket is selected by latency binary exponent and next {@link #SUB_BUCKETS_BITS} most significant bits.
+   *
+   * @param micros latency, in microseconds.
+   * @return bucket index.
+   */
+  private static int index(long micros)
+  {
+    if(micros < SUB_BUCKETS) {
+      return (int)Math.max(micros, 0);
+    }
+    int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+    int shift = exponent - SUB_BUCKETS_BITS;
+    int subBucket = (int)Math.min((micros >>> shift) - SUB_BUCKETS, SUB_BUCKETS - 1);
+    return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * Get the largest latency recorded into bucket.
+   *
+   * @param index bucket index.
+   * @return bucket upper bound, in microseconds.
+   */
+  private static long upperBound(int index)
+  {
+    if(index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+    int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+    return ((SUB_BUCKETS + subBucket + 1L) << shift) - 1;
+  }
+}
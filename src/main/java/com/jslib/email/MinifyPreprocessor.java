@@ -0,0 +1,57 @@
+package com.jslib.email;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Remove comments and collapse white spaces from template source. Conditional comments, <code>&lt;!--[if</code>, are
+ * preserved since some mail clients rely on them. Content of <code>pre</code> and <code>textarea</code> elements is
+ * copied verbatim.
+ * <p>
+ * A white spaces run containing a line break is replaced by a single line break, otherwise by a single space. Line
+ * breaks are kept in order to not create lines longer than 998 bytes, limit that would prevent sending body with 8bit
+ * transfer encoding.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class MinifyPreprocessor implements TemplatePreprocessor
+{
+  /** Comment, not conditional. */
+  private static final Pattern COMMENT = Pattern.compile("<!--(?!\\[if)(?!<!)[\\s\\S]*?-->");
+
+  /** Elements with preformatted content. */
+  private static final Pattern PREFORMATTED = Pattern.compile("<(pre|textarea)\\b[\\s\\S]*?</\\1>", Pattern.CASE_INSENSITIVE);
+
+  /** White spaces run. */
+  private static final Pattern WHITE_SPACES = Pattern.compile("\\s+");
+
+  @Override
+  public String preprocess(String source)
+  {
+    source = COMMENT.matcher(source).replaceAll("");
+
+    StringBuilder builder = new StringBuilder(source.length());
+    Matcher matcher = PREFORMATTED.matcher(source);
+    int index = 0;
+    while(matcher.find()) {
+      collapse(source.substring(index, matcher.start()), builder);
+      builder.append(matcher.group());
+      index = matcher.end();
+    }
+    collapse(source.substring(index), builder);
+    return builder.toString().trim();
+  }
+
+  private static void collapse(String text, StringBuilder builder)
+  {
+    Matcher matcher = WHITE_SPACES.matcher(text);
+    int index = 0;
+    while(matcher.find()) {
+      builder.append(text, index, matcher.start());
+      builder.append(matcher.group().indexOf('\n') != -1 ? '\n' : ' ');
+      index = matcher.end();
+    }
+    builder.append(text, index, text.length());
+  }
+}
@@ -0,0 +1,41 @@
+package com.jslib.email;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable mail exchangers of a domain, as resolved by {@link MxResolver}, with the time to live of DNS answer.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public final class MxRecords
+{
+  /** Mail exchangers host names, most preferred first. */
+  private final List<String> hosts;
+
+  /** Time to live, in seconds. */
+  private final long ttl;
+
+  public MxRecords(List<String> hosts, long ttl)
+  {
+    this.hosts = Collections.unmodifiableList(hosts);
+    this.ttl = ttl;
+  }
+
+  public List<String> getHosts()
+  {
+    return hosts;
+  }
+
+  public long getTtl()
+  {
+    return ttl;
+  }
+
+  @Override
+  public String toString()
+  {
+    return hosts.toString();
+  }
+}
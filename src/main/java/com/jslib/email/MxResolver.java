@@ -0,0 +1,25 @@
+package com.jslib.email;
+
+import com.jslib.api.email.EmailException;
+
+/**
+ * Resolver for mail exchangers of a domain, used by direct-to-MX delivery. Default implementation queries DNS via JNDI,
+ * see {@link JndiMxResolver}; a custom implementation can be configured by <code>js.email.direct.resolver</code>
+ * property and should have a default constructor. Resolvers are wrapped by {@link CachingMxResolver} so implementations
+ * do not need to cache.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public interface MxResolver
+{
+  /**
+   * Resolve mail exchangers for domain. Returned hosts are sorted by MX preference, most preferred first. If domain has
+   * no MX records, returned hosts should contain domain itself, as implicit MX.
+   * 
+   * @param domain email domain.
+   * @return domain mail exchangers.
+   * @throws EmailException if domain does not exist or resolving fails.
+   */
+  MxRecords resolve(String domain);
+}
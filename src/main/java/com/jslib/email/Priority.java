@@ -0,0 +1,18 @@
+package com.jslib.email;
+
+/**
+ * Email priority class. Priority selects the lane an email waits into for connection capacity, see
+ * {@link PriorityGate}. Constants are declared in descending priority order.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public enum Priority
+{
+  /** User triggered emails that should not wait, e.g. password reset or account confirmation. */
+  TRANSACTIONAL,
+  /** Default priority used when email and template have none configured. */
+  NORMAL,
+  /** Campaign and newsletter emails; bulk emails are delayed and, under overload, rejected. */
+  BULK
+}
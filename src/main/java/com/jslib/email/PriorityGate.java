@@ -0,0 +1,272 @@
+package com.jslib.email;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.jslib.api.email.EmailException;
+import com.jslib.api.log.Log;
+import com.jslib.api.log.LogFactory;
+
+/**
+ * Gate controlling connection capacity per priority lane, so that transactional emails are not starved by bulk ones.
+ * Every transmission takes a slot from gate capacity and releases it when done. Each {@link Priority} has its own lane
+ * where sending threads wait for a free slot.
+ * <p>
+ * Gate reserves capacity for higher lanes: a lane may take a slot only if slots in use are less than capacity minus
+ * slots reserved for all higher lanes. Also, a lane is not admitted while a higher lane has waiting threads. Under
+ * overload bulk emails are shed: if bulk lane is full or bulk email waits longer than configured time, send is rejected
+ * with {@link EmailException}.
+ * <p>
+ * For every lane gate collects queue time metrics: admitted and shed emails count, total and maximum time spent
+ * waiting.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class PriorityGate
+{
+  /** Class logger. */
+  private static final Log log = LogFactory.getLog(PriorityGate.class);
+
+  /** Priority lanes, in descending priority order. */
+  private static final Priority[] LANES = Priority.values();
+
+  /** Total number of slots, that is, concurrent transmissions. */
+  private final int capacity;
+
+  /** Slots usage limit per lane, indexed by priority ordinal. */
+  private final int[] limits;
+
+  /** Maximum time bulk email waits for a slot, in nanoseconds. */
+  private final long bulkMaxWait;
+
+  /** Maximum number of bulk emails waiting for slots. */
+  private final int bulkMaxQueue;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition[] conditions = new Condition[LANES.length];
+
+  /** Number of waiting threads per lane. Guarded by {@link #lock}. */
+  private final int[] waiting = new int[LANES.length];
+
+  /** Number of slots in use. Guarded by {@link #lock}. */
+  private int inUse;
+
+  private final LongAdder[] admittedCount = new LongAdder[LANES.length];
+  private final LongAdder[] shedCount = new LongAdder[LANES.length];
+  private final LongAdder[] queueNanos = new LongAdder[LANES.length];
+  private final AtomicLong[] maxQueueNanos = new AtomicLong[LANES.length];
+
+  /**
+   * Create priority gate.
+   * 
+   * @param capacity total number of slots,
+   * @param transactionalReserved slots reserved for transactional lane,
+   * @param normalReserved slots reserved for normal lane, not usable by bulk lane,
+   * @param bulkMaxWait maximum bulk wait time, in milliseconds,
+   * @param bulkMaxQueue maximum number of waiting bulk emails.
+   */
+  PriorityGate(int capacity, int transactionalReserved, int normalReserved, long bulkMaxWait, int bulkMaxQueue)
+  {
+    this.capacity = capacity;
+    this.limits = new int[LANES.length];
+    this.limits[Priority.TRANSACTIONAL.ordinal()] = capacity;
+    this.limits[Priority.NORMAL.ordinal()] = Math.max(1, capacity - transactionalReserved);
+    this.limits[Priority.BULK.ordinal()] = Math.max(1, capacity - transactionalReserved - normalReserved);
+    this.bulkMaxWait = TimeUnit.MILLISECONDS.toNanos(bulkMaxWait);
+    this.bulkMaxQueue = bulkMaxQueue;
+
+    for(int i = 0; i < LANES.length; ++i) {
+      conditions[i] = lock.newCondition();
+      admittedCount[i] = new LongAdder();
+      shedCount[i] = new LongAdder();
+      queueNanos[i] = new LongAdder();
+      maxQueueNanos[i] = new AtomicLong();
+    }
+  }
+
+  /**
+   * Wait for a slot on given priority lane. Transactional and normal lanes wait till a slot is available; bulk lane
+   * waits at most configured time. If current thread executes a send with timeout, see {@link SendDeadline}, waiting
+   * on any lane is also bounded by send deadline.
+   * 
+   * @param priority email priority.
+   * @return time spent waiting, in nanoseconds.
+   * @throws SendTimeoutException if send deadline expires.
+   * @throws EmailException if bulk email is shed or waiting thread is interrupted.
+   */
+  long acquire(Priority priority)
+  {
+    final int lane = priority.ordinal();
+    final long start = System.nanoTime();
+    final SendDeadline deadline = SendDeadline.current();
+
+    lock.lock();
+    try {
+      if(priority == Priority.BULK && waiting[lane] >= bulkMaxQueue) {
+        shed(lane);
+      }
+
+      ++waiting[lane];
+      boolean admitted = false;
+      try {
+        long remaining = bulkMaxWait;
+        while(!admissible(lane)) {
+          if(deadline != null) {
+            deadline.check();
+          }
+          if(priority != Priority.BULK) {
+            if(deadline == null) {
+              conditions[lane].await();
+            }
+            else {
+              conditions[lane].awaitNanos(deadline.remaining());
+            }
+            continue;
+          }
+          if(remaining <= 0) {
+            shed(lane);
+          }
+          long waitNanos = deadline != null ? Math.min(remaining, deadline.remaining()) : remaining;
+          remaining -= waitNanos - conditions[lane].awaitNanos(waitNanos);
+        }
+        admitted = true;
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new EmailException("Interrupted while waiting on |%s| lane.", priority);
+      }
+      finally {
+        --waiting[lane];
+        if(!admitted) {
+          // a lower lane may be admissible now that this thread left its lane
+          signalNext();
+        }
+      }
+
+      ++inUse;
+      // a lower lane may be admissible now that this lane has no waiting threads
+      signalNext();
+    }
+    finally {
+      lock.unlock();
+    }
+
+    long queueTime = System.nanoTime() - start;
+    admittedCount[lane].increment();
+    queueNanos[lane].add(queueTime);
+    maxQueueNanos[lane].accumulateAndGet(queueTime, Math::max);
+    return queueTime;
+  }
+
+  /** Release slot acquired by {@link #acquire(Priority)} and wake up the highest waiting lane. */
+  void release()
+  {
+    lock.lock();
+    try {
+      --inUse;
+      signalNext();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean admissible(int lane)
+  {
+    if(inUse >= limits[lane]) {
+      return false;
+    }
+    for(int i = 0; i < lane; ++i) {
+      if(waiting[i] > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void signalNext()
+  {
+    for(int i = 0; i < LANES.length; ++i) {
+      if(waiting[i] > 0) {
+        if(inUse < limits[i]) {
+          conditions[i].signal();
+        }
+        return;
+      }
+    }
+  }
+
+  private void shed(int lane)
+  {
+    shedCount[lane].increment();
+    log.warn("Email sender overloaded. Shed |{priority}| email.", LANES[lane]);
+    throw new EmailException("Email sender overloaded. |%s| email rejected.", LANES[lane]);
+  }
+
+  // ----------------------------------------------------------------------------------------------
+  // METRICS
+
+  int getCapacity()
+  {
+    return capacity;
+  }
+
+  int getInUse()
+  {
+    lock.lock();
+    try {
+      return inUse;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of threads currently waiting on priority lane.
+   * 
+   * @param priority priority lane.
+   * @return lane queue depth.
+   */
+  int getQueueDepth(Priority priority)
+  {
+    lock.lock();
+    try {
+      return waiting[priority.ordinal()];
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  long getAdmittedCount(Priority priority)
+  {
+    return admittedCount[priority.ordinal()].sum();
+  }
+
+  long getShedCount(Priority priority)
+  {
+    return shedCount[priority.ordinal()].sum();
+  }
+
+  /**
+   * Get average time spent waiting on priority lane, in nanoseconds.
+   * 
+   * @param priority priority lane.
+   * @return average queue time, zero if no email admitted yet.
+   */
+  long getAverageQueueNanos(Priority priority)
+  {
+    long count = admittedCount[priority.ordinal()].sum();
+    return count != 0 ? queueNanos[priority.ordinal()].sum() / count : 0;
+  }
+
+  long getMaxQueueNanos(Priority priority)
+  {
+    return maxQueueNanos[priority.ordinal()].get();
+  }
+}
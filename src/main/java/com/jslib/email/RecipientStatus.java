@@ -0,0 +1,63 @@
+package com.jslib.email;
+
+/**
+ * Delivery status of a message recipient, as reported by email server. A recipient is accepted if server accepted it
+ * on <code>RCPT TO</code> command; rejected recipients carry server return code and response.
+ * <p>
+ * Server rejected recipients are reported only if partial sending is enabled, that is, JavaMail property
+ * <code>mail.smtp.sendpartial</code> is true; otherwise a rejected recipient fails the entire send.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public final class RecipientStatus
+{
+  /** Recipient address. */
+  private final String address;
+
+  /** True if server accepted this recipient. */
+  private final boolean accepted;
+
+  /** Server return code for rejected recipient, zero if recipient was accepted or code is not known. */
+  private final int returnCode;
+
+  /**
+   * Server response for rejected recipient. For accepted recipient it is the mail exchanger response on direct delivery
+   * and null otherwise; relay response is reported by {@link SendResult#getServerResponse()}.
+   */
+  private final String response;
+
+  RecipientStatus(String address, boolean accepted, int returnCode, String response)
+  {
+    this.address = address;
+    this.accepted = accepted;
+    this.returnCode = returnCode;
+    this.response = response;
+  }
+
+  public String getAddress()
+  {
+    return address;
+  }
+
+  public boolean isAccepted()
+  {
+    return accepted;
+  }
+
+  public int getReturnCode()
+  {
+    return returnCode;
+  }
+
+  public String getResponse()
+  {
+    return response;
+  }
+
+  @Override
+  public String toString()
+  {
+    return accepted ? address : address + ": " + response;
+  }
+}
@@ -0,0 +1,198 @@
+package com.jslib.email;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Deadline context for a send with timeout. Deadline context is bound to sending thread for send duration so that
+ * blocking steps, see {@link TenantScheduler}, {@link PriorityGate}, {@link TransportPool} and
+ * {@link ExtendedSMTPTransport}, bound their waits to remaining time without deadline being passed through JavaMail API.
+ * <p>
+ * Deadline context tracks current send phase, updated by blocking steps on entry, so that an expired deadline fails the
+ * send with {@link SendTimeoutException} reporting the phase that exceeded the deadline. Waits on queues and pool are
+ * timed waits; socket I/O cannot be timed per call on JavaMail so transport is watched while talking to server: if
+ * deadline expires, a watchdog thread aborts transport connection and blocked read or write fails immediately.
+ * <p>
+ * This class is not thread safe, except watchdog expiration; a deadline context is used only by the thread executing
+ * the send.
+ *
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class SendDeadline
+{
+  /** Deadline context bound to current thread, null if current thread does not execute a send with timeout. */
+  private static final ThreadLocal<SendDeadline> CURRENT = new ThreadLocal<>();
+
+  /** Send timeout, in milliseconds. */
+  private final long timeout;
+
+  /** Deadline timestamp, in nanoseconds. */
+  private final long deadline;
+
+  /** Current send phase. Volatile since it is read by watchdog thread. */
+  private volatile TracePhase phase = TracePhase.ACQUIRE;
+
+  /** Flag set by watchdog when it aborts watched transport. */
+  private volatile boolean expired;
+
+  /** Watchdog for currently watched transport, null if no transport is watched. */
+  private ScheduledFuture<?> watchdog;
+
+  /**
+   * Flag claimed by either watchdog, to abort watched transport, or by {@link #unwatch()}, to end watching, so that a
+   * transport is never aborted after its watch ended. Null if no transport is watched.
+   */
+  private AtomicBoolean watchEnded;
+
+  private SendDeadline(long timeout, long start)
+  {
+    this.timeout = timeout;
+    this.deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+  }
+
+  /**
+   * Create deadline context and bind it to current thread.
+   *
+   * @param timeout send timeout, in milliseconds,
+   * @param start send start timestamp, in nanoseconds.
+   * @return newly created deadline context.
+   */
+  static SendDeadline begin(long timeout, long start)
+  {
+    SendDeadline deadline = new SendDeadline(timeout, start);
+    CURRENT.set(deadline);
+    return deadline;
+  }
+
+  /**
+   * Get deadline context bound to current thread.
+   *
+   * @return current deadline context or null if current thread does not execute a send with timeout.
+   */
+  static SendDeadline current()
+  {
+    return CURRENT.get();
+  }
+
+  /** Unbind this deadline context from current thread and stop watchdog, if any. */
+  void end()
+  {
+    CURRENT.remove();
+    unwatch();
+  }
+
+  /**
+   * Get time remaining till deadline.
+   *
+   * @return remaining time, in nanoseconds, zero or negative if deadline expired.
+   */
+  long remaining()
+  {
+    return deadline - System.nanoTime();
+  }
+
+  /**
+   * Enter send phase, failing fast if deadline already expired.
+   *
+   * @param phase send phase.
+   * @throws SendTimeoutException if deadline expired.
+   */
+  void enter(TracePhase phase)
+  {
+    this.phase = phase;
+    check();
+  }
+
+  /**
+   * Check deadline.
+   *
+   * @throws SendTimeoutException if deadline expired.
+   */
+  void check()
+  {
+    if(expired || remaining() <= 0) {
+      throw timeout();
+    }
+  }
+
+  /**
+   * Test if deadline expired while transport was watched. Transport failures after expiration are caused by watchdog
+   * abort and should be reported as timeout.
+   *
+   * @return true if watchdog aborted watched transport.
+   */
+  boolean isExpired()
+  {
+    return expired;
+  }
+
+  /**
+   * Create timeout exception for current phase.
+   *
+   * @return send timeout exception.
+   */
+  SendTimeoutException timeout()
+  {
+    return new SendTimeoutException(phase, timeout);
+  }
+
+  /**
+   * Watch transport till {@link #unwatch()}: if deadline expires meanwhile, transport connection is aborted.
+   *
+   * @param transport transport talking to server on behalf of this send.
+   */
+  void watch(ExtendedSMTPTransport transport)
+  {
+    unwatch();
+    AtomicBoolean watchEnded = new AtomicBoolean();
+    this.watchEnded = watchEnded;
+    watchdog = Watchdog.SCHEDULER.schedule(() -> {
+      if(watchEnded.compareAndSet(false, true)) {
+        expired = true;
+        transport.abort();
+      }
+    }, remaining(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Stop watching transport. Does nothing if no transport is watched. Watchdog cancellation does not stop a watchdog
+   * already running, so this method reports if watchdog won the race: in that case watched transport is aborted, or is
+   * being aborted, even if its operation completed, and should not be reused.
+   *
+   * @return true if watchdog aborted watched transport.
+   */
+  boolean unwatch()
+  {
+    if(watchdog == null) {
+      return false;
+    }
+    watchdog.cancel(false);
+    watchdog = null;
+    boolean aborted = !watchEnded.compareAndSet(false, true);
+    watchEnded = null;
+    if(aborted) {
+      // watchdog may not have set the flag yet
+      expired = true;
+    }
+    return aborted;
+  }
+
+  // ----------------------------------------------------------------------------------------------
+
+  /** Lazily created daemon thread shared by all send deadlines. */
+  private static final class Watchdog
+  {
+    static final ScheduledThreadPoolExecutor SCHEDULER = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "email-send-watchdog");
+      thread.setDaemon(true);
+      return thread;
+    });
+    static {
+      // most sends complete before deadline; do not keep cancelled watchdogs till their delay
+      SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+  }
+}
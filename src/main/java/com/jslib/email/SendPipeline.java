@@ -0,0 +1,505 @@
+package com.jslib.email;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jslib.api.email.EmailException;
+
+/**
+ * Staged pipeline for asynchronous sends, so that CPU heavy templates and slow email servers do not block each other.
+ * An email passes three stages: render, where email body is rendered from template, build, where MIME message is built,
+ * and transmit, where message is dispatched to email server. Render and build stages run on a fork-join pool sized for
+ * CPU work; transmit stage runs on a fixed I/O thread pool.
+ * <p>
+ * Every stage has a bounded capacity, that is, maximum number of emails queued or running on stage. A stage hands off
+ * to next one before releasing its slot so that, when a stage is full, backpressure propagates upstream till the caller
+ * submitting emails blocks. Stage threads never block on hand off: if next stage is full, email waits on next stage
+ * backlog, keeping its slot on current stage, and is dispatched by the thread releasing next stage slot. So fork-join
+ * threads are not blocked and pool does not create compensation threads; only caller thread blocks, on a full render
+ * stage or, for already built messages, on a full transmit stage.
+ * <p>
+ * If sender has tenant scheduling enabled, see {@link TenantScheduler}, transmit stage hands emails to I/O pool in tenant
+ * scheduler order, so that a tenant burst queued on transmit stage does not delay other tenants emails.
+ * <p>
+ * Pipeline exposes per stage queue depth, that is, number of emails waiting for a stage thread.
+ *
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public final class SendPipeline
+{
+  /** Email sender building and dispatching messages. */
+  private final EmailSenderImpl sender;
+
+  /** Pool for CPU bound stages, that is, render and build. */
+  private final ForkJoinPool cpuPool;
+
+  /** Pool for transmit stage. */
+  private final ThreadPoolExecutor ioPool;
+
+  /** Sender tenant scheduler, null if tenant scheduling is not enabled. */
+  private final TenantScheduler tenantScheduler;
+
+  /** Number of emails submitted and not yet completed. */
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  /** Flag set when pipeline is stopping; pipeline does not accept emails after. */
+  private volatile boolean stopped;
+
+  private final Stage renderStage;
+  private final Stage buildStage;
+  private final Stage transmitStage;
+
+  /**
+   * Create send pipeline.
+   *
+   * @param sender email sender,
+   * @param cpuThreads number of threads for render and build stages,
+   * @param ioThreads number of threads for transmit stage,
+   * @param capacity maximum number of emails queued or running on a stage.
+   */
+  SendPipeline(EmailSenderImpl sender, int cpuThreads, int ioThreads, int capacity)
+  {
+    this.sender = sender;
+    this.cpuPool = new ForkJoinPool(cpuThreads, pool -> {
+      ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+      thread.setName("email-pipeline-cpu-" + thread.getPoolIndex());
+      return thread;
+    }, null, true);
+
+    AtomicInteger ioThreadIndex = new AtomicInteger();
+    this.ioPool = new ThreadPoolExecutor(ioThreads, ioThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(capacity), runnable -> {
+      Thread thread = new Thread(runnable, "email-pipeline-io-" + ioThreadIndex.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    this.renderStage = new Stage(cpuPool, capacity);
+    this.buildStage = new Stage(cpuPool, capacity);
+    this.transmitStage = new Stage(ioPool, capacity);
+    this.tenantScheduler = sender.getTenantScheduler();
+  }
+
+  /**
+   * Submit email to pipeline render stage. Caller blocks while render stage is full.
+   *
+   * @param email email instance, not yet rendered,
+   * @param args optional email model.
+   * @return future completed with send result or with the exception that failed the send.
+   * @throws EmailException if caller is interrupted while waiting for render stage or pipeline is shut down.
+   */
+  CompletableFuture<SendResult> submit(EmailImpl email, Object[] args)
+  {
+    CompletableFuture<SendResult> future = future();
+    renderStage.submit(future, () -> {
+      email.render(args);
+      buildStage.handOff(renderStage, future, () -> {
+        EmailSenderImpl.BuiltMessage builtMessage = sender.build(email);
+        if(builtMessage.result != null) {
+          future.complete(builtMessage.result);
+          return false;
+        }
+        transmit(buildStage, future, EmailSenderImpl.tenant(email), admitted -> sender.dispatch(builtMessage, admitted));
+        return true;
+      });
+      return true;
+    });
+    return future;
+  }
+
+  /**
+   * Submit transmission straight to pipeline transmit stage, e.g. for a scheduled message already built. Caller blocks
+   * while transmit stage is full.
+   *
+   * @param tenant key of the tenant message is sent on behalf of,
+   * @param transmission message transmission.
+   * @return future completed with send result or with the exception that failed the send.
+   * @throws EmailException if caller is interrupted while waiting for transmit stage or pipeline is shut down.
+   */
+  CompletableFuture<SendResult> transmit(String tenant, Transmission transmission)
+  {
+    CompletableFuture<SendResult> future = future();
+    transmit(null, future, tenant, transmission);
+    return future;
+  }
+
+  /**
+   * Hand transmission to transmit stage, in tenant scheduler order if tenant scheduling is enabled. If transmission
+   * comes from an upstream stage, hand off does not block, see {@link Stage#handOff(Stage, CompletableFuture, Task)};
+   * otherwise caller blocks while transmit stage is full.
+   *
+   * @param upstream stage handing off transmission, null if transmission is submitted by caller,
+   * @param future send future,
+   * @param tenant key of the tenant message is sent on behalf of,
+   * @param transmission message transmission.
+   */
+  private void transmit(Stage upstream, CompletableFuture<SendResult> future, String tenant, Transmission transmission)
+  {
+    Task task = () -> {
+      future.complete(transmission.transmit(tenantScheduler != null));
+      return false;
+    };
+    Dispatcher dispatcher = transmitStage.executorDispatcher;
+    if(tenantScheduler != null) {
+      dispatcher = (command, rejected) -> tenantScheduler.execute(tenant, ioPool, command, rejected);
+    }
+    if(upstream == null) {
+      transmitStage.submit(future, task, dispatcher);
+    }
+    else {
+      transmitStage.handOff(upstream, future, task, dispatcher);
+    }
+  }
+
+  /**
+   * Create send future for a new email and count it in flight till completed.
+   *
+   * @return send future.
+   * @throws EmailException if pipeline is stopped.
+   */
+  private CompletableFuture<SendResult> future()
+  {
+    inFlight.incrementAndGet();
+    if(stopped) {
+      completed();
+      throw new EmailException("Send pipeline is shut down.");
+    }
+    CompletableFuture<SendResult> future = new CompletableFuture<>();
+    future.whenComplete((result, exception) -> completed());
+    return future;
+  }
+
+  private void completed()
+  {
+    if(inFlight.decrementAndGet() == 0 && stopped) {
+      synchronized(inFlight) {
+        inFlight.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Stop pipeline and wait for emails already submitted to complete. Emails waiting on stage backlogs are still handed
+   * to their next stage, so pools are shut down only after all emails in flight complete. Emails submitted after stop
+   * fail with {@link EmailException}.
+   *
+   * @throws InterruptedException if waiting for emails in flight or pipeline threads is interrupted.
+   */
+  void stop() throws InterruptedException
+  {
+    stopped = true;
+    synchronized(inFlight) {
+      while(inFlight.get() > 0) {
+        inFlight.wait();
+      }
+    }
+    cpuPool.shutdown();
+    cpuPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    ioPool.shutdown();
+    ioPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Get number of emails waiting for render.
+   *
+   * @return render stage queue depth.
+   */
+  public int getRenderQueueDepth()
+  {
+    return renderStage.queued.get();
+  }
+
+  /**
+   * Get number of rendered emails waiting for message building.
+   *
+   * @return build stage queue depth.
+   */
+  public int getBuildQueueDepth()
+  {
+    return buildStage.queued.get();
+  }
+
+  /**
+   * Get number of built messages waiting for transmission.
+   *
+   * @return transmit stage queue depth.
+   */
+  public int getTransmitQueueDepth()
+  {
+    return transmitStage.queued.get();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "render=" + renderStage.queued + " build=" + buildStage.queued + " transmit=" + transmitStage.queued;
+  }
+
+  // --------------------------------------------------------------------------------------------
+
+  /**
+   * Message transmission run on transmit stage.
+   *
+   * @author Iulian Rotaru
+   */
+  interface Transmission
+  {
+    /**
+     * Transmit message.
+     *
+     * @param admitted true if transmission was already admitted by tenant scheduler.
+     * @return send result.
+     * @throws Exception if transmission fails.
+     */
+    SendResult transmit(boolean admitted) throws Exception;
+  }
+
+  /**
+   * Stage task. Exceptions thrown by task complete send future exceptionally.
+   *
+   * @author Iulian Rotaru
+   */
+  private interface Task
+  {
+    /**
+     * Run task.
+     *
+     * @return true if task handed email off to next stage, that releases this stage slot when accepts the email.
+     * @throws Exception if task fails.
+     */
+    boolean run() throws Exception;
+  }
+
+  /**
+   * Hands stage command to an executor. Executor rejection is reported either by throwing
+   * {@link RejectedExecutionException} or, if command is rejected later, by invoking rejection handler.
+   *
+   * @author Iulian Rotaru
+   */
+  private interface Dispatcher
+  {
+    void dispatch(Runnable command, Runnable rejected);
+  }
+
+  /**
+   * Pipeline stage with bounded capacity. Stage is its own managed blocker, used only by caller threads submitting
+   * emails; blocker acquires a stage slot and has no other state, as required by fork-join pool that may invoke it
+   * repeatedly. Emails handed off by upstream stage threads while this stage is full wait on stage backlog.
+   *
+   * @author Iulian Rotaru
+   */
+  private static final class Stage implements ForkJoinPool.ManagedBlocker
+  {
+    /** Executor running stage tasks. */
+    private final Executor executor;
+
+    /** Dispatcher handing stage tasks to stage executor. */
+    final Dispatcher executorDispatcher;
+
+    /** Stage slots, one for every email queued or running on stage. */
+    private final Semaphore slots;
+
+    /** Emails handed off by upstream stage while this stage was full, waiting for a slot. */
+    private final Queue<HandOff> backlog = new ConcurrentLinkedQueue<>();
+
+    /** Number of emails waiting for a stage thread. */
+    final AtomicInteger queued = new AtomicInteger();
+
+    Stage(Executor executor, int capacity)
+    {
+      this.executor = executor;
+      this.executorDispatcher = (command, rejected) -> this.executor.execute(command);
+      this.slots = new Semaphore(capacity);
+    }
+
+    /**
+     * Wait for a stage slot then execute task. Slot is released after task completes or, if task hands email off to next
+     * stage, when next stage accepts the email.
+     *
+     * @param future send future, completed exceptionally if task fails,
+     * @param task stage task.
+     * @throws EmailException if current thread is interrupted while waiting for slot or stage executor is shut down.
+     */
+    void submit(CompletableFuture<SendResult> future, Task task)
+    {
+      submit(future, task, executorDispatcher);
+    }
+
+    /**
+     * Wait for a stage slot then hand task to given dispatcher, instead of stage executor. If dispatcher rejects task
+     * after this method returns, stage slot is released and send future is completed exceptionally.
+     *
+     * @param future send future, completed exceptionally if task fails,
+     * @param task stage task,
+     * @param dispatcher dispatcher handing task to an executor.
+     * @throws EmailException if current thread is interrupted while waiting for slot or executor is shut down.
+     */
+    void submit(CompletableFuture<SendResult> future, Task task, Dispatcher dispatcher)
+    {
+      try {
+        ForkJoinPool.managedBlock(this);
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw fail(future, new EmailException("Interrupted while waiting for send pipeline stage."));
+      }
+      if(!dispatch(new HandOff(null, future, task, dispatcher))) {
+        throw fail(future, new EmailException("Send pipeline is shut down."));
+      }
+    }
+
+    /**
+     * Complete send future with exception thrown to caller, so that email is not left in flight.
+     *
+     * @param future send future,
+     * @param exception exception thrown to caller.
+     * @return given exception.
+     */
+    private static EmailException fail(CompletableFuture<SendResult> future, EmailException exception)
+    {
+      future.completeExceptionally(exception);
+      return exception;
+    }
+
+    /**
+     * Hand email off from upstream stage task, without blocking. If this stage has a free slot task is dispatched at
+     * once, otherwise it waits on stage backlog till a slot is released. Upstream stage slot is released when this stage
+     * accepts the email. If executor rejects task, send future is completed exceptionally.
+     *
+     * @param upstream upstream stage, whose task hands email off,
+     * @param future send future, completed exceptionally if task fails,
+     * @param task stage task.
+     */
+    void handOff(Stage upstream, CompletableFuture<SendResult> future, Task task)
+    {
+      handOff(upstream, future, task, executorDispatcher);
+    }
+
+    /**
+     * Hand email off from upstream stage task to given dispatcher, without blocking, see
+     * {@link #handOff(Stage, CompletableFuture, Task)}.
+     *
+     * @param upstream upstream stage, whose task hands email off,
+     * @param future send future, completed exceptionally if task fails,
+     * @param task stage task,
+     * @param dispatcher dispatcher handing task to an executor.
+     */
+    void handOff(Stage upstream, CompletableFuture<SendResult> future, Task task, Dispatcher dispatcher)
+    {
+      backlog.add(new HandOff(upstream, future, task, dispatcher));
+      drain();
+    }
+
+    /**
+     * Dispatch emails from backlog while there are free slots. A thread adding to backlog and a thread releasing a slot
+     * both drain backlog after, so that a backlog email is not left behind a free slot.
+     */
+    private void drain()
+    {
+      while(!backlog.isEmpty() && slots.tryAcquire()) {
+        HandOff handOff = backlog.poll();
+        if(handOff == null) {
+          // backlog drained meanwhile by another thread
+          slots.release();
+          continue;
+        }
+        if(!dispatch(handOff)) {
+          handOff.future.completeExceptionally(new EmailException("Send pipeline is shut down."));
+        }
+      }
+    }
+
+    /**
+     * Dispatch email with stage slot already acquired and release upstream stage slot, if any.
+     *
+     * @param handOff email hand off.
+     * @return false if dispatcher rejected email on the spot, in which case stage slot is released.
+     */
+    private boolean dispatch(HandOff handOff)
+    {
+      queued.incrementAndGet();
+      if(handOff.upstream != null) {
+        handOff.upstream.release();
+      }
+      try {
+        handOff.dispatcher.dispatch(() -> {
+          queued.decrementAndGet();
+          boolean handedOff = false;
+          try {
+            handedOff = handOff.task.run();
+          }
+          catch(Throwable t) {
+            handOff.future.completeExceptionally(t);
+          }
+          finally {
+            if(!handedOff) {
+              release();
+            }
+          }
+        }, () -> {
+          queued.decrementAndGet();
+          release();
+          handOff.future.completeExceptionally(new EmailException("Send pipeline is shut down."));
+        });
+        return true;
+      }
+      catch(RejectedExecutionException e) {
+        queued.decrementAndGet();
+        release();
+        return false;
+      }
+    }
+
+    /** Release stage slot and dispatch next backlog email, if any. */
+    private void release()
+    {
+      slots.release();
+      drain();
+    }
+
+    @Override
+    public boolean block() throws InterruptedException
+    {
+      slots.acquire();
+      return true;
+    }
+
+    @Override
+    public boolean isReleasable()
+    {
+      return slots.tryAcquire();
+    }
+  }
+
+  /**
+   * Email handed to a stage, with stage task and dispatcher.
+   *
+   * @author Iulian Rotaru
+   */
+  private static final class HandOff
+  {
+    /** Upstream stage whose slot is released when email is accepted, null if email is submitted by caller. */
+    final Stage upstream;
+    final CompletableFuture<SendResult> future;
+    final Task task;
+    final Dispatcher dispatcher;
+
+    HandOff(Stage upstream, CompletableFuture<SendResult> future, Task task, Dispatcher dispatcher)
+    {
+      this.upstream = upstream;
+      this.future = future;
+      this.task = task;
+      this.dispatcher = dispatcher;
+    }
+  }
+}
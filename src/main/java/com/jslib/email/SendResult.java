@@ -0,0 +1,149 @@
+package com.jslib.email;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable result of an email send. Send result allows correlating a send with its message ID and with email server
+ * queue ID, usually found into last server response, e.g. <code>250 2.0.0 Ok: queued as 4F1C2A</code>. It also
+ * carries timings, in nanoseconds, for send phases:
+ * <ul>
+ * <li>render - rendering email body from template, zero for ad hoc emails,
+ * <li>build - MIME message building, including message serialization preparation,
+ * <li>acquire - waiting for priority lane and acquiring a connected transport,
+ * <li>transmit - sending message to email server, from envelope to end of data response.
+ * </ul>
+ * Only sent emails have server response, recipients status and acquire and transmit timings; for dry-run outcome
+ * transmit time is message serialization time.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public final class SendResult
+{
+  /** Send outcome. */
+  public enum Outcome
+  {
+    /** Message sent to email server. */
+    SENT,
+    /** Message scheduled for sending at a future time. */
+    SCHEDULED,
+    /** Message written into shared spool, to be delivered by a spool worker from any node. */
+    SPOOLED,
+    /** Message not sent because its idempotency key was already seen. */
+    SUPPRESSED,
+    /** Message stored into capture mailbox. */
+    CAPTURED,
+    /** Message serialized to null stream, on dry-run mode. */
+    DRY_RUN,
+    /** Message dumped to standard out, on development mode. */
+    DUMPED
+  }
+
+  /** Message ID value, in RFC2822 format, null for a raw message without message ID. */
+  private final String messageID;
+
+  /** Send outcome. */
+  private final Outcome outcome;
+
+  /** Last response from email server, null if message was not sent. */
+  private final String serverResponse;
+
+  /** Recipients status, empty if message was not sent. */
+  private final List<RecipientStatus> recipients;
+
+  private final long renderNanos;
+  private final long buildNanos;
+  private final long acquireNanos;
+  private final long transmitNanos;
+
+  /**
+   * Create result for email not sent to email server.
+   * 
+   * @param messageID message ID,
+   * @param outcome send outcome,
+   * @param renderNanos render time, in nanoseconds,
+   * @param buildNanos message building time, in nanoseconds.
+   */
+  SendResult(String messageID, Outcome outcome, long renderNanos, long buildNanos)
+  {
+    this(messageID, outcome, null, Collections.<RecipientStatus> emptyList(), renderNanos, buildNanos, 0, 0);
+  }
+
+  SendResult(String messageID, Outcome outcome, String serverResponse, List<RecipientStatus> recipients, long renderNanos, long buildNanos, long acquireNanos, long transmitNanos)
+  {
+    this.messageID = messageID;
+    this.outcome = outcome;
+    this.serverResponse = serverResponse;
+    this.recipients = Collections.unmodifiableList(recipients);
+    this.renderNanos = renderNanos;
+    this.buildNanos = buildNanos;
+    this.acquireNanos = acquireNanos;
+    this.transmitNanos = transmitNanos;
+  }
+
+  public String getMessageID()
+  {
+    return messageID;
+  }
+
+  public Outcome getOutcome()
+  {
+    return outcome;
+  }
+
+  public String getServerResponse()
+  {
+    return serverResponse;
+  }
+
+  public List<RecipientStatus> getRecipients()
+  {
+    return recipients;
+  }
+
+  public long getRenderNanos()
+  {
+    return renderNanos;
+  }
+
+  public long getBuildNanos()
+  {
+    return buildNanos;
+  }
+
+  public long getAcquireNanos()
+  {
+    return acquireNanos;
+  }
+
+  public long getTransmitNanos()
+  {
+    return transmitNanos;
+  }
+
+  /**
+   * Get total send time, that is, the sum of all phases timings.
+   * 
+   * @return total send time, in nanoseconds.
+   */
+  public long getTotalNanos()
+  {
+    return renderNanos + buildNanos + acquireNanos + transmitNanos;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder builder = new StringBuilder();
+    builder.append(outcome).append(' ').append(messageID);
+    if(serverResponse != null) {
+      builder.append(" [").append(serverResponse.trim()).append(']');
+    }
+    builder.append(" render=").append(renderNanos / 1000).append("us");
+    builder.append(" build=").append(buildNanos / 1000).append("us");
+    builder.append(" acquire=").append(acquireNanos / 1000).append("us");
+    builder.append(" transmit=").append(transmitNanos / 1000).append("us");
+    return builder.toString();
+  }
+}
@@ -0,0 +1,431 @@
+package com.jslib.email;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+
+import com.jslib.api.email.EmailException;
+import com.jslib.api.log.Log;
+import com.jslib.api.log.LogFactory;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPMessage;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * Scheduler for emails to be sent at a future time. Scheduled messages are fully built at schedule time and wait on a
+ * {@link HashedTimingWheel} till due time, together with tenant, priority and timeout of the email they were built from.
+ * Due messages are released in batches to a dedicated daemon thread that dispatches them through email sender, exactly
+ * as messages sent immediately. If send pipeline is enabled, release thread only hands due messages to pipeline
+ * transmit stage so that they are sent concurrently, in tenant scheduler order; otherwise release thread sends due
+ * messages one by one.
+ * <p>
+ * A send failed with a transient error, e.g. connection failure, send timeout or SMTP 4xx reply, is retried after a
+ * delay doubled on every retry, up to configured retries count. Retry attempts are counted in memory only.
+ * <p>
+ * If a spool directory is configured, scheduled messages are also persisted there so that they survive restarts. On
+ * scheduler creation spool directory is scanned and found messages are scheduled again; messages already due are sent
+ * on first tick. Spooled messages are not kept in memory while waiting: wheel entries hold only the spool file and
+ * send attributes, and message is loaded at release time. A spool file is deleted after message dispatch; if dispatch
+ * fails permanently or runs out of retries, file is renamed with <code>.failed</code> extension and left for
+ * inspection.
+ * <p>
+ * Spool file is message raw content prefixed by six lines: due time, in milliseconds, envelope from address, possible
+ * empty, tenant key, priority, timeout in milliseconds, empty for sender default timeout, and idempotency key, empty if
+ * missing. Tenant and idempotency keys are URL encoded.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class SendScheduler
+{
+  /** Class logger. */
+  private static final Log log = LogFactory.getLog(SendScheduler.class);
+
+  /** Spool file extension for scheduled messages. */
+  private static final String SPOOL_EXTENSION = ".eml";
+
+  /** Email sender dispatching due messages. */
+  private final EmailSenderImpl sender;
+
+  /** Session factory providing current mail session for messages loaded from spool. */
+  private final SessionFactory sessionFactory;
+
+  /** Optional spool directory, null if scheduled messages are kept only in memory. */
+  private final Path spoolDir;
+
+  /** Timing wheel holding scheduled messages till due time. */
+  private final HashedTimingWheel<ScheduledMessage> timingWheel;
+
+  /**
+   * Single thread dispatching due messages, or handing them to send pipeline, so that timing wheel ticks are not delayed
+   * by message transmission.
+   */
+  private final ExecutorService releaseExecutor;
+
+  /** Number of retries of a send failed with a transient error. */
+  private final int retries;
+
+  /** Delay before first retry, in milliseconds; doubled on every retry. */
+  private final long retryDelay;
+
+  private final AtomicLong counter = new AtomicLong();
+
+  /** Flag set when scheduler is stopped; spooled messages failing after stop are kept for next start. */
+  private volatile boolean stopped;
+
+  /**
+   * Create scheduler and reload messages persisted into spool directory, if configured.
+   * 
+   * @param sender email sender dispatching due messages,
+   * @param sessionFactory mail session factory,
+   * @param tickDuration timing wheel tick duration, in milliseconds,
+   * @param wheelSize timing wheel size,
+   * @param spoolDir optional spool directory, null if scheduled messages are not persisted,
+   * @param retries number of retries of a send failed with a transient error,
+   * @param retryDelay delay before first retry, in milliseconds.
+   * @throws IOException if spool directory creation or scanning fails.
+   */
+  SendScheduler(EmailSenderImpl sender, SessionFactory sessionFactory, long tickDuration, int wheelSize, File spoolDir, int retries, long retryDelay) throws IOException
+  {
+    this.sender = sender;
+    this.sessionFactory = sessionFactory;
+    this.retries = retries;
+    this.retryDelay = retryDelay;
+    this.timingWheel = new HashedTimingWheel<>(tickDuration, wheelSize, this::release);
+    this.releaseExecutor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "email-scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    this.spoolDir = spoolDir != null ? Files.createDirectories(spoolDir.toPath()) : null;
+    if(this.spoolDir != null) {
+      reloadSpool();
+    }
+  }
+
+  /**
+   * Schedule message for sending at given due time. If spool is configured, message is persisted before this method
+   * returns.
+   * 
+   * @param message fully built message,
+   * @param dueTime wall clock due time, in milliseconds,
+   * @param tenant key of the tenant message is sent on behalf of,
+   * @param priority message priority,
+   * @param timeout email send timeout, in milliseconds, null for sender default timeout,
+   * @param idempotencyKey optional email idempotency key, null if missing.
+   * @throws MessagingException if message serialization fails.
+   * @throws IOException if spool file writing fails.
+   */
+  void schedule(SMTPMessage message, long dueTime, String tenant, Priority priority, Long timeout, String idempotencyKey) throws MessagingException, IOException
+  {
+    if(spoolDir == null) {
+      timingWheel.schedule(new ScheduledMessage(message, null, tenant, priority, timeout, idempotencyKey, 0), dueTime);
+      return;
+    }
+
+    String fileName = dueTime + "." + System.nanoTime() + "." + counter.incrementAndGet();
+    Path tmpFile = spoolDir.resolve(fileName + ".tmp");
+    try (OutputStream stream = Files.newOutputStream(tmpFile)) {
+      String envelopeFrom = message.getEnvelopeFrom();
+      writeLine(stream, Long.toString(dueTime));
+      writeLine(stream, envelopeFrom != null ? envelopeFrom : "");
+      writeLine(stream, URLEncoder.encode(tenant, "UTF-8"));
+      writeLine(stream, priority.name());
+      writeLine(stream, timeout != null ? timeout.toString() : "");
+      writeLine(stream, idempotencyKey != null ? URLEncoder.encode(idempotencyKey, "UTF-8") : "");
+      message.saveChanges();
+      message.writeTo(stream);
+    }
+    Path spoolFile = Files.move(tmpFile, spoolDir.resolve(fileName + SPOOL_EXTENSION), StandardCopyOption.ATOMIC_MOVE);
+    timingWheel.schedule(new ScheduledMessage(null, spoolFile, tenant, priority, timeout, idempotencyKey, 0), dueTime);
+  }
+
+  /**
+   * Get the number of messages waiting for due time.
+   * 
+   * @return scheduled messages count.
+   */
+  int getPendingCount()
+  {
+    return timingWheel.size();
+  }
+
+  /**
+   * Stop timing wheel and release thread. Spooled messages are not lost and are reloaded on next start. Without spool,
+   * scheduled messages are kept only in memory and messages still waiting for due time are lost; their count is logged.
+   */
+  void stop()
+  {
+    stopped = true;
+    timingWheel.stop();
+    int pendingCount = timingWheel.size();
+    if(spoolDir == null && pendingCount > 0) {
+      log.warn("Stop email scheduler with |{count}| scheduled emails not sent. Configure scheduler spool to keep scheduled emails over restart.", pendingCount);
+    }
+    releaseExecutor.shutdown();
+  }
+
+  private void reloadSpool() throws IOException
+  {
+    int count = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(spoolDir, "*" + SPOOL_EXTENSION)) {
+      for(Path file : files) {
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file))) {
+          long dueTime = Long.parseLong(readLine(stream));
+          readLine(stream);
+          String tenant = URLDecoder.decode(readLine(stream), "UTF-8");
+          Priority priority = Priority.valueOf(readLine(stream));
+          String timeout = readLine(stream);
+          String idempotencyKey = readLine(stream);
+          ScheduledMessage scheduledMessage = new ScheduledMessage(null, file, tenant, priority, timeout.isEmpty() ? null : Long.valueOf(timeout), idempotencyKey.isEmpty() ? null : URLDecoder.decode(idempotencyKey, "UTF-8"), 0);
+          if(scheduledMessage.idempotencyKey != null) {
+            // duplicate filter is not persisted; keep suppressing duplicates of emails still scheduled
+            sender.registerIdempotencyKey(scheduledMessage.idempotencyKey);
+          }
+          timingWheel.schedule(scheduledMessage, dueTime);
+          ++count;
+        }
+        catch(IllegalArgumentException | EmailException e) {
+          log.error("Invalid scheduled email spool file |{file}|. Ignore it.", file);
+        }
+      }
+    }
+    log.debug("Reload |{count}| scheduled emails from spool |{spool}|.", count, spoolDir);
+  }
+
+  /**
+   * Timing wheel releaser. Hand off due messages batch to release thread that sends them or, if send pipeline is
+   * enabled, hands them to pipeline transmit stage.
+   * 
+   * @param batch due messages.
+   */
+  private void release(final List<ScheduledMessage> batch)
+  {
+    releaseExecutor.execute(() -> {
+      SendPipeline sendPipeline = sender.getSendPipeline();
+      for(ScheduledMessage scheduledMessage : batch) {
+        if(sendPipeline == null) {
+          try {
+            send(scheduledMessage, false);
+            complete(scheduledMessage, null);
+          }
+          catch(Throwable t) {
+            complete(scheduledMessage, t);
+          }
+          continue;
+        }
+        try {
+          // blocks while transmit stage is full
+          sendPipeline.transmit(scheduledMessage.tenant, admitted -> send(scheduledMessage, admitted)).whenComplete((result, exception) -> complete(scheduledMessage, exception));
+        }
+        catch(EmailException e) {
+          complete(scheduledMessage, e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Send scheduled message, loading it from spool file if message is not kept in memory.
+   * 
+   * @param scheduledMessage scheduled message,
+   * @param admitted true if transmission was already admitted by tenant scheduler.
+   * @return send result.
+   * @throws IOException if spool file reading fails.
+   * @throws MessagingException if spooled message parsing fails.
+   * @throws EmailException if message send fails.
+   */
+  private SendResult send(ScheduledMessage scheduledMessage, boolean admitted) throws IOException, MessagingException
+  {
+    SMTPMessage message = scheduledMessage.message != null ? scheduledMessage.message : load(scheduledMessage.spoolFile);
+    return sender.sendScheduled(message, scheduledMessage.tenant, scheduledMessage.priority, scheduledMessage.timeout, admitted);
+  }
+
+  /**
+   * Complete scheduled message send. On success delete spool file, if any. A send failed with a transient error is
+   * scheduled again after retry delay, if there are retries left; otherwise failure is logged and spool file renamed as
+   * failed. If scheduler is stopped failed message is not retried and its spool file is kept for next start.
+   * 
+   * @param scheduledMessage scheduled message,
+   * @param exception exception that failed the send, null on success.
+   */
+  private void complete(ScheduledMessage scheduledMessage, Throwable exception)
+  {
+    if(exception == null) {
+      if(scheduledMessage.spoolFile != null) {
+        try {
+          Files.delete(scheduledMessage.spoolFile);
+        }
+        catch(IOException e) {
+          log.error(e);
+        }
+      }
+      return;
+    }
+
+    if(stopped) {
+      if(scheduledMessage.spoolFile != null) {
+        log.warn("Scheduler stopped while sending email from spool file |{file}|. Keep it for next start.", scheduledMessage.spoolFile);
+      }
+      else {
+        log.error(exception);
+      }
+      return;
+    }
+    if(scheduledMessage.attempts < retries && isTransient(exception)) {
+      long delay = retryDelay << scheduledMessage.attempts;
+      log.warn("Fail to send scheduled email: {exception}. Retry in |{delay}| ms.", exception.getMessage(), delay);
+      timingWheel.schedule(scheduledMessage.retry(), System.currentTimeMillis() + delay);
+      return;
+    }
+    log.error(exception);
+    if(scheduledMessage.spoolFile != null) {
+      fail(scheduledMessage.spoolFile);
+    }
+  }
+
+  /**
+   * Test if send failure is transient and send may succeed if retried. Send timeouts, connection failures and SMTP 4xx
+   * replies are transient; rejected addresses, SMTP 5xx replies and message loading errors are not.
+   * 
+   * @param exception exception that failed the send.
+   * @return true if send failure is transient.
+   */
+  static boolean isTransient(Throwable exception)
+  {
+    for(Throwable cause = exception; cause != null; cause = cause.getCause()) {
+      if(cause instanceof SendTimeoutException) {
+        return true;
+      }
+      if(cause instanceof SMTPSendFailedException) {
+        return ((SMTPSendFailedException)cause).getReturnCode() / 100 == 4;
+      }
+      if(cause instanceof SMTPAddressFailedException) {
+        return ((SMTPAddressFailedException)cause).getReturnCode() / 100 == 4;
+      }
+      if(cause instanceof MessagingException && !(cause instanceof SendFailedException) && cause.getCause() instanceof IOException) {
+        // connection failed or broken while talking to server
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Load message from spool file. Returned message keeps its original message ID.
+   * 
+   * @param spoolFile spool file.
+   * @return loaded message.
+   * @throws IOException if spool file reading fails.
+   * @throws MessagingException if message parsing fails.
+   */
+  private SMTPMessage load(Path spoolFile) throws IOException, MessagingException
+  {
+    Session session = sessionFactory.getTransportPool().getSession();
+    try (InputStream stream = new BufferedInputStream(Files.newInputStream(spoolFile))) {
+      readLine(stream);
+      String envelopeFrom = readLine(stream);
+      // send attributes are already loaded by spool scan
+      for(int i = 0; i < 4; ++i) {
+        readLine(stream);
+      }
+      SMTPMessage message = new SMTPMessage(session, stream)
+      {
+        protected void updateMessageID() throws MessagingException
+        {
+          // keep message ID generated when email was scheduled
+        }
+      };
+      if(!envelopeFrom.isEmpty()) {
+        message.setEnvelopeFrom(envelopeFrom);
+      }
+      return message;
+    }
+  }
+
+  private static void fail(Path spoolFile)
+  {
+    try {
+      Files.move(spoolFile, spoolFile.resolveSibling(spoolFile.getFileName() + ".failed"));
+    }
+    catch(IOException e) {
+      log.error(e);
+    }
+  }
+
+  private static void writeLine(OutputStream stream, String line) throws IOException
+  {
+    stream.write(line.getBytes(StandardCharsets.US_ASCII));
+    stream.write('\n');
+  }
+
+  private static String readLine(InputStream stream) throws IOException
+  {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    for(;;) {
+      int b = stream.read();
+      if(b == -1) {
+        // truncated header, e.g. spool file written by a crashed process
+        throw new EmailException("Unexpected end of scheduled email spool file.");
+      }
+      if(b == '\n') {
+        break;
+      }
+      line.write(b);
+    }
+    return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+  }
+
+  private static final class ScheduledMessage
+  {
+    /** Message kept in memory, null if message is spooled. */
+    final SMTPMessage message;
+    /** Spool file, null if spool is not configured. */
+    final Path spoolFile;
+    /** Key of the tenant message is sent on behalf of. */
+    final String tenant;
+    /** Message priority. */
+    final Priority priority;
+    /** Email send timeout, in milliseconds, null for sender default timeout. */
+    final Long timeout;
+    /** Email idempotency key, null if missing. */
+    final String idempotencyKey;
+    /** Number of failed send attempts. */
+    final int attempts;
+
+    ScheduledMessage(SMTPMessage message, Path spoolFile, String tenant, Priority priority, Long timeout, String idempotencyKey, int attempts)
+    {
+      this.message = message;
+      this.spoolFile = spoolFile;
+      this.tenant = tenant;
+      this.priority = priority;
+      this.timeout = timeout;
+      this.idempotencyKey = idempotencyKey;
+      this.attempts = attempts;
+    }
+
+    ScheduledMessage retry()
+    {
+      return new ScheduledMessage(message, spoolFile, tenant, priority, timeout, idempotencyKey, attempts + 1);
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.jslib.email;
+
+import com.jslib.api.email.EmailException;
+
+/**
+ * Send failed because its deadline expired, see {@link ExtendedEmail#timeout(java.time.Duration)}. Exception records
+ * the send phase that exceeded the deadline: {@link TracePhase#ACQUIRE} for waiting on tenant queue, priority lane or
+ * transports pool, {@link TracePhase#CONNECT} for connection setup and protocol phases for SMTP conversation.
+ *
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public class SendTimeoutException extends EmailException
+{
+  /** Java serialization version. */
+  private static final long serialVersionUID = -2410539461706158927L;
+
+  /** Send phase that exceeded the deadline. */
+  private final TracePhase phase;
+
+  /** Send timeout, in milliseconds. */
+  private final long timeout;
+
+  /**
+   * Create send timeout exception.
+   *
+   * @param phase send phase that exceeded the deadline,
+   * @param timeout send timeout, in milliseconds.
+   */
+  public SendTimeoutException(TracePhase phase, long timeout)
+  {
+    super("Send timeout of |%d| ms exceeded on |%s| phase.", timeout, phase);
+    this.phase = phase;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Get send phase that exceeded the deadline.
+   *
+   * @return send phase.
+   */
+  public TracePhase getPhase()
+  {
+    return phase;
+  }
+
+  /**
+   * Get send timeout.
+   *
+   * @return send timeout, in milliseconds.
+   */
+  public long getTimeout()
+  {
+    return timeout;
+  }
+}
@@ -0,0 +1,184 @@
+package com.jslib.email;
+
+/**
+ * Trace context for a sampled send. Trace context is bound to sending thread for send duration so that transports,
+ * see {@link ExtendedSMTPTransport}, report protocol phases without trace being passed through JavaMail API. Commands
+ * sent and waiting for server reply are kept into a small ring buffer, in sending order, so that pipelined commands are
+ * matched with their replies.
+ * <p>
+ * This class is not thread safe; a trace context is used only by the thread executing the send.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class SendTrace
+{
+  /** Trace context bound to current thread, null if current thread does not execute a sampled send. */
+  private static final ThreadLocal<SendTrace> CURRENT = new ThreadLocal<>();
+
+  /** Maximum number of commands waiting for reply. If exceeded, oldest command is not traced. */
+  private static final int MAX_PENDING = 16;
+
+  /** Tracer receiving events for this send. */
+  private final SendTracer tracer;
+
+  /** Message ID, possible null for raw messages. */
+  private final String messageID;
+
+  /** Template name, null for ad hoc messages. */
+  private final String templateName;
+
+  /** Send start timestamp, in nanoseconds. */
+  private final long startTimestamp;
+
+  /** Phases of commands waiting for server reply, ring buffer. */
+  private final TracePhase[] pendingPhases = new TracePhase[MAX_PENDING];
+  /** Timestamps of commands waiting for server reply, parallel with {@link #pendingPhases}. */
+  private final long[] pendingTimestamps = new long[MAX_PENDING];
+  /** Index of oldest command waiting for reply. */
+  private int pendingHead;
+  /** Number of commands waiting for reply. */
+  private int pendingSize;
+
+  /** Timestamp when server accepted message content, zero if not on content streaming. */
+  private long contentTimestamp;
+
+  private SendTrace(SendTracer tracer, String messageID, String templateName)
+  {
+    this.tracer = tracer;
+    this.messageID = messageID;
+    this.templateName = templateName;
+    this.startTimestamp = System.nanoTime();
+  }
+
+  /**
+   * Create trace context and bind it to current thread.
+   * 
+   * @param tracer tracer receiving events,
+   * @param messageID message ID, possible null,
+   * @param templateName template name, null for ad hoc messages.
+   * @return newly created trace context.
+   */
+  static SendTrace begin(SendTracer tracer, String messageID, String templateName)
+  {
+    SendTrace trace = new SendTrace(tracer, messageID, templateName);
+    CURRENT.set(trace);
+    return trace;
+  }
+
+  /**
+   * Get trace context bound to current thread.
+   * 
+   * @return current trace context or null if current thread does not execute a sampled send.
+   */
+  static SendTrace current()
+  {
+    return CURRENT.get();
+  }
+
+  /**
+   * Report phase measured by caller.
+   * 
+   * @param phase completed phase,
+   * @param nanos phase duration, in nanoseconds,
+   * @param returnCode server return code, zero if not applicable.
+   */
+  void phase(TracePhase phase, long nanos, int returnCode)
+  {
+    tracer.onPhase(messageID, templateName, phase, nanos, returnCode);
+  }
+
+  /**
+   * Record SMTP command sent to server. Commands not mapped to a trace phase are ignored. End of data mark completes
+   * content streaming phase.
+   * 
+   * @param command SMTP command.
+   */
+  void commandSent(String command)
+  {
+    TracePhase phase = phase(command);
+    if(phase == null) {
+      return;
+    }
+    long timestamp = System.nanoTime();
+    if(phase == TracePhase.FINAL_REPLY && contentTimestamp != 0) {
+      tracer.onPhase(messageID, templateName, TracePhase.CONTENT, timestamp - contentTimestamp, 0);
+      contentTimestamp = 0;
+    }
+    if(pendingSize == MAX_PENDING) {
+      pendingHead = (pendingHead + 1) % MAX_PENDING;
+      --pendingSize;
+    }
+    int tail = (pendingHead + pendingSize) % MAX_PENDING;
+    pendingPhases[tail] = phase;
+    pendingTimestamps[tail] = timestamp;
+    ++pendingSize;
+  }
+
+  /**
+   * Record server reply and report phase of the oldest command waiting for reply. Replies for not traced commands, like
+   * server greeting, are ignored.
+   * 
+   * @param returnCode server return code.
+   */
+  void replyReceived(int returnCode)
+  {
+    if(pendingSize == 0) {
+      return;
+    }
+    TracePhase phase = pendingPhases[pendingHead];
+    long timestamp = System.nanoTime();
+    tracer.onPhase(messageID, templateName, phase, timestamp - pendingTimestamps[pendingHead], returnCode);
+    pendingHead = (pendingHead + 1) % MAX_PENDING;
+    --pendingSize;
+    if(phase == TracePhase.DATA && returnCode == 354) {
+      contentTimestamp = timestamp;
+    }
+  }
+
+  /**
+   * Unbind this trace context from current thread and report send completion.
+   * 
+   * @param success true if message was accepted for at least one recipient.
+   */
+  void end(boolean success)
+  {
+    CURRENT.remove();
+    tracer.onComplete(messageID, templateName, System.nanoTime() - startTimestamp, success);
+  }
+
+  /**
+   * Get trace phase for SMTP command.
+   * 
+   * @param command SMTP command.
+   * @return command trace phase or null if command is not traced.
+   */
+  static TracePhase phase(String command)
+  {
+    if(command.startsWith("RCPT")) {
+      return TracePhase.RCPT_TO;
+    }
+    if(command.startsWith("MAIL")) {
+      return TracePhase.MAIL_FROM;
+    }
+    if(command.equals("DATA")) {
+      return TracePhase.DATA;
+    }
+    if(command.equals(".")) {
+      return TracePhase.FINAL_REPLY;
+    }
+    if(command.startsWith("EHLO") || command.startsWith("HELO")) {
+      return TracePhase.EHLO;
+    }
+    if(command.equals("STARTTLS")) {
+      return TracePhase.STARTTLS;
+    }
+    if(command.startsWith("AUTH")) {
+      return TracePhase.AUTH;
+    }
+    if(command.equals("RSET")) {
+      return TracePhase.RSET;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,41 @@
+package com.jslib.email;
+
+/**
+ * Tracing SPI for individual sends. Email sender reports every send phase, see {@link TracePhase}, then send
+ * completion. Events are passed as plain arguments so that tracing does not allocate event objects; a send has a single
+ * trace context allocated only if send is sampled.
+ * <p>
+ * Events for a send are reported synchronously, on the thread executing the send and in protocol order. Tracer
+ * implementations are shared by all sending threads and should be thread safe; implementations should also be fast
+ * since they run on send critical path.
+ * <p>
+ * Tracer is configured by <code>js.email.tracer</code> property, with a custom implementation class that should have a
+ * default constructor, or by <code>js.email.trace.slow</code> threshold for default {@link SlowSendLogger}. Sampling
+ * rate is configured by <code>js.email.trace.sample</code>.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public interface SendTracer
+{
+  /**
+   * Send phase completed.
+   * 
+   * @param messageID message ID, in RFC2822 format, possible null for raw messages without message ID,
+   * @param templateName name of the template message was rendered from, null for ad hoc messages,
+   * @param phase completed phase,
+   * @param nanos phase duration, in nanoseconds,
+   * @param returnCode server return code, zero for phases not related to a server reply.
+   */
+  void onPhase(String messageID, String templateName, TracePhase phase, long nanos, int returnCode);
+
+  /**
+   * Send completed, successfully or not.
+   * 
+   * @param messageID message ID, possible null for raw messages without message ID,
+   * @param templateName name of the template message was rendered from, null for ad hoc messages,
+   * @param nanos total transmission time, from connection acquire to final reply, in nanoseconds,
+   * @param success true if message was accepted for at least one recipient.
+   */
+  void onComplete(String messageID, String templateName, long nanos, boolean success);
+}
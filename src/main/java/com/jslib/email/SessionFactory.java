@@ -1,9 +1,16 @@
 package com.jslib.email;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Enumeration;
 import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.mail.Authenticator;
+import javax.mail.NoSuchProviderException;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
 import javax.mail.internet.AddressException;
@@ -23,11 +30,26 @@ import com.jslib.lang.Config;
  * object has user name, and password for that mater, created session is authenticated.
  * <p>
  * JavaMail session mandates <code>mail.smtp.host</code> property. If it is missing session factory uses
- * <code>localhost</code>.
+ * <code>localhost</code>. Also, if not explicitly disabled, session factory enables <code>8BITMIME</code> usage so that
+ * non-ASCII bodies are not inflated by transfer encoding when email server supports it. Connection and socket read
+ * timeouts, <code>mail.smtp.connectiontimeout</code> and <code>mail.smtp.timeout</code> - with transport protocol
+ * prefix, are also set when missing since JavaMail default is to wait forever on an unresponsive server.
  * <p>
- * This factory allows for session warm reconfiguration; current implementation just recreate JavaMail session with
- * newly provided configuration object. In order to support warm reconfiguration all session factory methods are
- * synchronized.
+ * Session factory also owns the pool of connected transports bound to current session, see {@link TransportPool}. Pool
+ * is configured by <code>js.email.pool.*</code> properties: maximum and minimum idle connections, heartbeat period and
+ * server idle timeout.
+ * <p>
+ * If <code>js.email.pool.shared</code> is enabled, transports are borrowed from a process wide pool shared by all email
+ * senders using the same relay - transport protocol, host, port, user and TLS mode, see {@link SharedTransportPools}.
+ * Password and <code>mail.*</code> session properties should also be the same; they are part of shared pool key, as a
+ * fingerprint. This way tenants with their own email sender instances share connections to a common relay. Shared pool limit on
+ * connections, <code>js.email.pool.shared.max.active</code>, is relay wide; <code>js.email.pool.max.active</code> limits
+ * connections used by this email sender.
+ * <p>
+ * This factory allows for session warm reconfiguration; new JavaMail session and its transports pool are created off
+ * to the side, from newly provided configuration object, and published atomically as an immutable {@link Snapshot}.
+ * Getters just read current snapshot and never block. Transports pool bound to replaced session is drained: idle
+ * connections are closed immediately and connections in use are closed when returned to pool.
  * 
  * @author Iulian Rotaru
  * @version draft
@@ -48,7 +70,7 @@ final class SessionFactory
   private static final String PROP_SMTP_HOST = "mail.smtp.host";
   /**
    * Property key for container from address. This property is optional and its value is stored into
-   * {@link #fromAddress}.
+   * {@link Snapshot#fromAddress}.
    */
   private static final String PROP_SMTP_FROM = "mail.smtp.from";
   /** Property key for optional user name. If user name is configured session is authenticated. */
@@ -57,12 +79,92 @@ final class SessionFactory
   private static final String PROP_EMAIL_PASSWORD = "js.email.password";
   /** Property key for Java Mail API debug. */
   private static final String PROP_MAIL_DEBUG = "mail.debug";
+  /**
+   * Property key for 8BITMIME usage. If enabled and server advertises 8BITMIME extension, text parts encoded
+   * quoted-printable or base64 are sent as 8bit, provided no line is longer than 998 bytes; otherwise transfer encoding
+   * is preserved.
+   */
+  private static final String PROP_ALLOW_8BITMIME = "mail.smtp.allow8bitmime";
+  /** Suffix for connection timeout property, in milliseconds, prefixed by <code>mail.</code> and transport protocol. */
+  private static final String PROP_CONNECTION_TIMEOUT = ".connectiontimeout";
+  /** Suffix for socket read timeout property, in milliseconds, prefixed by <code>mail.</code> and transport protocol. */
+  private static final String PROP_TIMEOUT = ".timeout";
+  /** Property key for maximum number of idle connections kept by transports pool. */
+  private static final String PROP_POOL_MAX_IDLE = "js.email.pool.max.idle";
 
-  /** JavaMail session instance created and configured by {@link #config(Config)}. */
-  private Session session;
+  /** Property key for number of connections opened on configuration and kept idle by transports pool heartbeat. */
+  private static final String PROP_POOL_MIN = "js.email.pool.min";
+  /** Property key for transports pool heartbeat period, in milliseconds. Heartbeat sends NOOP on idle connections. */
+  private static final String PROP_POOL_HEARTBEAT = "js.email.pool.heartbeat";
+  /**
+   * Property key for email server idle timeout, in milliseconds. Idle connections are replaced before server drops them;
+   * needs heartbeat enabled.
+   */
+  private static final String PROP_POOL_IDLE_TIMEOUT = "js.email.pool.idle.timeout";
+  /** Property key for maximum number of connections used by this email sender at a time. */
+  private static final String PROP_POOL_MAX_ACTIVE = "js.email.pool.max.active";
+  /** Property key for maximum time, in milliseconds, to wait for a connection when connections limit is reached. */
+  private static final String PROP_POOL_MAX_WAIT = "js.email.pool.max.wait";
+  /**
+   * Property key for time, in milliseconds, an idle connection used by a send or probed by heartbeat is trusted without
+   * NOOP check on borrow. Zero to check connection on every borrow.
+   */
+  private static final String PROP_POOL_VALIDATE_AFTER = "js.email.pool.validate.after";
+  /** Property key for transports pool sharing with other email senders using the same relay and credentials. */
+  private static final String PROP_POOL_SHARED = "js.email.pool.shared";
+  /**
+   * Property key for maximum number of connections to relay used by all email senders sharing transports pool. Used only
+   * by email sender that creates shared pool.
+   */
+  private static final String PROP_POOL_SHARED_MAX_ACTIVE = "js.email.pool.shared.max.active";
+
+  /**
+   * Property key for TLS context reuse. If not disabled and transport uses SSL or STARTTLS, session is configured with
+   * a TLS socket factory cached per relay, see {@link TlsSocketFactory}, so that connections resume TLS sessions.
+   */
+  private static final String PROP_TLS_REUSE = "js.email.tls.reuse";
+  /** Property key for maximum number of TLS sessions cached per relay. */
+  private static final String PROP_TLS_SESSION_CACHE = "js.email.tls.session.cache";
+  /** Property key for cached TLS sessions timeout, in seconds. */
+  private static final String PROP_TLS_SESSION_TIMEOUT = "js.email.tls.session.timeout";
 
-  /** Default <code>from</code> address configured by container, used when email instance has none specified. */
-  private InternetAddress fromAddress;
+  /** Property key for DKIM signing domain. If configured, sent messages are DKIM signed, see {@link DkimSigner}. */
+  private static final String PROP_DKIM_DOMAIN = "js.email.dkim.domain";
+  /** Property key for DKIM selector, mandatory if signing domain is configured. */
+  private static final String PROP_DKIM_SELECTOR = "js.email.dkim.selector";
+  /** Property key for DKIM private key file, PKCS#8 PEM or DER, mandatory if signing domain is configured. */
+  private static final String PROP_DKIM_KEY = "js.email.dkim.key";
+  /** Property key for optional colon separated list of headers to sign. */
+  private static final String PROP_DKIM_HEADERS = "js.email.dkim.headers";
+
+  /** Default value for maximum number of idle connections kept by transports pool. */
+  private static final int DEF_POOL_MAX_IDLE = 4;
+  /** Default number of pre-connected transports. By default connections are opened on demand. */
+  private static final int DEF_POOL_MIN = 0;
+  /** Default heartbeat period. By default heartbeat is disabled. */
+  private static final long DEF_POOL_HEARTBEAT = 0;
+  /** Default server idle timeout. By default server idle timeout is not known. */
+  private static final long DEF_POOL_IDLE_TIMEOUT = 0;
+  /** Default maximum number of connections used at a time. By default there is no limit. */
+  private static final int DEF_POOL_MAX_ACTIVE = 0;
+  /** Default maximum time, in milliseconds, to wait for a connection when connections limit is reached. */
+  private static final long DEF_POOL_MAX_WAIT = 30000;
+  /** Default time, in milliseconds, idle connections are trusted without NOOP check. */
+  private static final long DEF_POOL_VALIDATE_AFTER = 2000;
+  /** Default connection timeout, in milliseconds. */
+  private static final int DEF_CONNECTION_TIMEOUT = 30000;
+  /** Default socket read timeout, in milliseconds. */
+  private static final int DEF_TIMEOUT = 60000;
+  /** Default maximum number of TLS sessions cached per relay. */
+  private static final int DEF_TLS_SESSION_CACHE = 64;
+  /** Default cached TLS sessions timeout, in seconds. */
+  private static final int DEF_TLS_SESSION_TIMEOUT = 86400;
+
+  /** Current session snapshot, null before {@link #config(Config)} execution. */
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+
+  /** Flag set by {@link #close()}. Guarded by this session factory lock. */
+  private boolean closed;
 
   /**
    * Create JavaMail session and configure from given configuration object. Configuration object should contain only
@@ -71,7 +173,7 @@ final class SessionFactory
    * 
    * @param config configuration object.
    */
-  public synchronized void config(final Config config)
+  public void config(final Config config)
   {
     if(!config.hasProperty(PROP_TRASNPORT_PROTOCOL)) {
       log.debug("Email property |{email_property}| is missing. Force to |smtp|.", PROP_TRASNPORT_PROTOCOL);
@@ -88,11 +190,28 @@ final class SessionFactory
       config.setProperty(PROP_MAIL_DEBUG, false);
     }
 
+    if(!config.hasProperty(PROP_ALLOW_8BITMIME)) {
+      log.debug("Email property |{email_property}| is missing. Force to |true|.", PROP_ALLOW_8BITMIME);
+      config.setProperty(PROP_ALLOW_8BITMIME, true);
+    }
+
+    String prefix = "mail." + config.getProperty(PROP_TRASNPORT_PROTOCOL);
+    if(!config.hasProperty(prefix + PROP_CONNECTION_TIMEOUT)) {
+      log.debug("Email property |{email_property}| is missing. Force to |{value}|.", prefix + PROP_CONNECTION_TIMEOUT, DEF_CONNECTION_TIMEOUT);
+      config.setProperty(prefix + PROP_CONNECTION_TIMEOUT, DEF_CONNECTION_TIMEOUT);
+    }
+    if(!config.hasProperty(prefix + PROP_TIMEOUT)) {
+      log.debug("Email property |{email_property}| is missing. Force to |{value}|.", prefix + PROP_TIMEOUT, DEF_TIMEOUT);
+      config.setProperty(prefix + PROP_TIMEOUT, DEF_TIMEOUT);
+    }
+
+    int maxActive = config.getProperty(PROP_POOL_MAX_ACTIVE, Integer.class, DEF_POOL_MAX_ACTIVE);
     String resourceReference = config.getProperty(PROP_RESOURCE_REFERENCE);
     if(resourceReference != null) {
       log.debug("Lookup container JavaMail session.");
 
       // if resource reference is defined there should be a container that provides JNDI context
+      Session session;
       try {
         Context initialContext = new InitialContext();
         Context environmentContext = (Context)initialContext.lookup(ROOT_CONTEXT);
@@ -102,45 +221,274 @@ final class SessionFactory
         throw new EmailException("Missing container or bad mail resource configuration |%s|. Unable to create Java Mail Session.", resourceReference);
       }
 
-      String fromAddress = session.getProperties().getProperty(PROP_SMTP_FROM);
-      if(fromAddress != null) {
+      InternetAddress fromAddress = null;
+      String from = session.getProperties().getProperty(PROP_SMTP_FROM);
+      if(from != null) {
         try {
-          this.fromAddress = InternetAddress.parse(fromAddress)[0];
-          log.debug("Initialize <from> address to |{email_from}| from |{email_property}| property.", fromAddress, PROP_SMTP_FROM);
+          fromAddress = InternetAddress.parse(from)[0];
+          log.debug("Initialize <from> address to |{email_from}| from |{email_property}| property.", from, PROP_SMTP_FROM);
         }
         catch(AddressException e) {
           throw new EmailException(e);
         }
       }
-      else {
-        this.fromAddress = null;
-      }
+      publish(new Snapshot(session, fromAddress, createTransportPool(session, config, maxActive), null));
       return;
     }
 
     log.debug("Create JavaMail session:{dump}", dump(config.getProperties()));
+    Session session = createSession(config);
+    if(!config.getProperty(PROP_POOL_SHARED, Boolean.class, false)) {
+      publish(new Snapshot(session, null, createTransportPool(session, config, maxActive), null));
+      return;
+    }
+
+    // shared pool connects using session of the email sender that creates it; credentials and session properties are
+    // the same, by relay key fingerprint
+    String relay = relay(config);
+    TransportPool sharedPool = SharedTransportPools.acquire(relay, () -> createTransportPool(session, config, config.getProperty(PROP_POOL_SHARED_MAX_ACTIVE, Integer.class, DEF_POOL_MAX_ACTIVE)));
+    long maxWait = config.getProperty(PROP_POOL_MAX_WAIT, Long.class, DEF_POOL_MAX_WAIT);
+    publish(new Snapshot(session, null, new TransportPool(session, sharedPool, maxActive, maxWait), relay));
+  }
+
+  /**
+   * Create transports pool bound to JavaMail session, configured by <code>js.email.pool.*</code> properties.
+   * 
+   * @param session JavaMail session,
+   * @param config configuration object,
+   * @param maxActive maximum number of transports borrowed at a time, zero for no limit.
+   * @return newly created transports pool, not started.
+   */
+  private static TransportPool createTransportPool(Session session, Config config, int maxActive)
+  {
+    int maxIdle = config.getProperty(PROP_POOL_MAX_IDLE, Integer.class, DEF_POOL_MAX_IDLE);
+    int minIdle = config.getProperty(PROP_POOL_MIN, Integer.class, DEF_POOL_MIN);
+    long heartbeat = config.getProperty(PROP_POOL_HEARTBEAT, Long.class, DEF_POOL_HEARTBEAT);
+    long idleTimeout = config.getProperty(PROP_POOL_IDLE_TIMEOUT, Long.class, DEF_POOL_IDLE_TIMEOUT);
+    long maxWait = config.getProperty(PROP_POOL_MAX_WAIT, Long.class, DEF_POOL_MAX_WAIT);
+    long validateAfter = config.getProperty(PROP_POOL_VALIDATE_AFTER, Long.class, DEF_POOL_VALIDATE_AFTER);
+    return new TransportPool(session, maxIdle, minIdle, heartbeat, idleTimeout, maxActive, maxWait, validateAfter);
+  }
+
+  /**
+   * Get relay key used to share transports pool, in <code>protocol://user@host:port/tls#fingerprint</code> format, where
+   * TLS mode is one of <code>ssl</code>, <code>starttls</code> or <code>plain</code>. User is missing for not
+   * authenticated sessions. Fingerprint covers session settings not visible into key, see
+   * {@link #fingerprint(Config)}, so that email senders with different password or session properties do not share
+   * transports connected with other settings.
+   * 
+   * @param config configuration object.
+   * @return relay key.
+   */
+  static String relay(Config config)
+  {
+    Properties properties = config.getProperties();
+    String protocol = properties.getProperty(PROP_TRASNPORT_PROTOCOL);
+    String prefix = "mail." + protocol;
+    String host = properties.getProperty(prefix + ".host", properties.getProperty(PROP_SMTP_HOST));
+    String port = properties.getProperty(prefix + ".port", "smtps".equals(protocol) ? "465" : "25");
 
+    String tls = "plain";
+    if("smtps".equals(protocol) || Boolean.parseBoolean(properties.getProperty(prefix + ".ssl.enable"))) {
+      tls = "ssl";
+    }
+    else if(Boolean.parseBoolean(properties.getProperty(prefix + ".starttls.enable"))) {
+      tls = "starttls";
+    }
+
+    String user = config.getProperty(PROP_EMAIL_USER);
+    return protocol + "://" + (user != null ? user + '@' : "") + host + ':' + port + '/' + tls + '#' + fingerprint(config);
+  }
+
+  /**
+   * Compute fingerprint of user password and <code>mail.*</code> session properties, e.g. timeouts, envelope sender or
+   * authentication mechanisms. Fingerprint is the hexadecimal form of first 8 bytes of SHA-256 digest, so that password
+   * is not exposed by relay key.
+   * 
+   * @param config configuration object.
+   * @return session settings fingerprint.
+   */
+  private static String fingerprint(Config config)
+  {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    }
+    catch(NoSuchAlgorithmException e) {
+      throw new EmailException(e);
+    }
+
+    String password = config.getProperty(PROP_EMAIL_PASSWORD);
+    if(password != null) {
+      digest.update(password.getBytes(StandardCharsets.UTF_8));
+    }
+    Properties properties = config.getProperties();
+    // sorted names for a fingerprint independent of properties order
+    for(String name : new TreeSet<>(properties.stringPropertyNames())) {
+      if(name.startsWith("mail.")) {
+        digest.update((byte)'\n');
+        digest.update((name + '=' + properties.getProperty(name)).getBytes(StandardCharsets.UTF_8));
+      }
+    }
+
+    StringBuilder fingerprint = new StringBuilder(16);
+    byte[] bytes = digest.digest();
+    for(int i = 0; i < 8; ++i) {
+      fingerprint.append(String.format("%02x", bytes[i]));
+    }
+    return fingerprint.toString();
+  }
+
+  /**
+   * Create JavaMail session from configuration object. If configuration object has user name created session is
+   * authenticated. Created session uses {@link ExtendedSMTPTransport} unless configuration selects its own transport
+   * class.
+   * 
+   * @param config configuration object.
+   * @return newly created JavaMail session.
+   * @throws EmailException if user name is present but password is missing.
+   */
+  private static Session createSession(Config config)
+  {
+    Properties properties = config.getProperties();
+    configureTls(config, properties);
+    configureDkim(config, properties);
+
+    Session session;
     final String user = config.getProperty(PROP_EMAIL_USER);
     if(user == null) {
       // not authenticated session
-      session = Session.getInstance(config.getProperties());
+      session = Session.getInstance(properties);
+    }
+    else {
+      // here user is defined so password is mandatory
+      final String password = config.getProperty(PROP_EMAIL_PASSWORD);
+      if(password == null) {
+        throw new EmailException("Missing user |%s| password for authenticated session.", user);
+      }
+
+      // authenticated session
+      session = Session.getInstance(properties, new Authenticator()
+      {
+        protected PasswordAuthentication getPasswordAuthentication()
+        {
+          return new PasswordAuthentication(user, password);
+        }
+      });
+    }
+
+    try {
+      ExtendedSMTPTransport.register(session);
+    }
+    catch(NoSuchProviderException e) {
+      throw new EmailException(e);
+    }
+    return session;
+  }
+
+  /**
+   * Register relay TLS socket factory into session properties, if transport uses SSL or STARTTLS. Socket factory is not
+   * registered if TLS reuse is disabled or if configuration already has a socket factory or trusted hosts; JavaMail
+   * ignores trusted hosts when socket factory is present.
+   * 
+   * @param config configuration object,
+   * @param properties session properties, updated by this method.
+   */
+  private static void configureTls(Config config, Properties properties)
+  {
+    if(!config.getProperty(PROP_TLS_REUSE, Boolean.class, true)) {
       return;
     }
 
-    // here user is defined so password is mandatory
-    final String password = config.getProperty(PROP_EMAIL_PASSWORD);
-    if(password == null) {
-      throw new EmailException("Missing user |%s| password for authenticated session.", user);
+    String protocol = properties.getProperty(PROP_TRASNPORT_PROTOCOL);
+    String prefix = "mail." + protocol;
+    boolean ssl = "smtps".equals(protocol) || Boolean.parseBoolean(properties.getProperty(prefix + ".ssl.enable"));
+    boolean startTls = Boolean.parseBoolean(properties.getProperty(prefix + ".starttls.enable"));
+    if(!ssl && !startTls) {
+      return;
+    }
+    if(properties.containsKey(prefix + ".ssl.socketFactory") || properties.containsKey(prefix + ".ssl.socketFactory.class") || properties.containsKey(prefix + ".ssl.trust")) {
+      log.debug("Email session has custom SSL socket factory or trusted hosts. TLS context reuse disabled.");
+      return;
     }
 
-    // authenticated session
-    session = Session.getInstance(config.getProperties(), new Authenticator()
-    {
-      protected PasswordAuthentication getPasswordAuthentication()
-      {
-        return new PasswordAuthentication(user, password);
+    String host = properties.getProperty(prefix + ".host", properties.getProperty(PROP_SMTP_HOST));
+    String port = properties.getProperty(prefix + ".port");
+    int relayPort = port != null ? Integer.parseInt(port) : "smtps".equals(protocol) ? 465 : 25;
+
+    int sessionCache = config.getProperty(PROP_TLS_SESSION_CACHE, Integer.class, DEF_TLS_SESSION_CACHE);
+    int sessionTimeout = config.getProperty(PROP_TLS_SESSION_TIMEOUT, Integer.class, DEF_TLS_SESSION_TIMEOUT);
+    TlsSocketFactory socketFactory = TlsSocketFactory.getInstance(host, relayPort, sessionCache, sessionTimeout);
+    log.debug("Use cached TLS context for email relay |{relay}|.", socketFactory.getRelay());
+    properties.put(prefix + ".ssl.socketFactory", socketFactory);
+  }
+
+  /**
+   * Register DKIM signer into session properties, if signing domain is configured. Private key is loaded here, once per
+   * session; sessions created on warm reconfiguration load it again so that key rotation does not need restart.
+   * 
+   * @param config configuration object,
+   * @param properties session properties, updated by this method.
+   * @throws EmailException if selector or private key is missing or private key loading fails.
+   */
+  private static void configureDkim(Config config, Properties properties)
+  {
+    String domain = config.getProperty(PROP_DKIM_DOMAIN);
+    if(domain == null) {
+      return;
+    }
+    String selector = config.getProperty(PROP_DKIM_SELECTOR);
+    if(selector == null) {
+      throw new EmailException("Missing DKIM selector for signing domain |%s|.", domain);
+    }
+    String key = config.getProperty(PROP_DKIM_KEY);
+    if(key == null) {
+      throw new EmailException("Missing DKIM private key for signing domain |%s|.", domain);
+    }
+    String headers = config.getProperty(PROP_DKIM_HEADERS);
+
+    DkimSigner signer = new DkimSigner(domain, selector, DkimSigner.loadPrivateKey(Paths.get(key)), headers != null ? headers.trim().split("\\s*:\\s*") : null);
+    log.debug("Sign emails with DKIM key |{dkim_key}|.", signer);
+    properties.put(DkimSigner.SESSION_PROPERTY, signer);
+  }
+
+  /**
+   * Atomically replace current snapshot with newly created one. New snapshot transports pool is started before
+   * publishing so that, on warm reconfiguration, sends switch to already connected transports. If there is a replaced
+   * snapshot, drain its transports pool; sends in progress complete on old session connections that are closed on
+   * release. Replaced snapshot reference to shared transports pool, if any, is released.
+   * 
+   * @param snapshot newly created snapshot.
+   */
+  private void publish(Snapshot snapshot)
+  {
+    snapshot.transportPool.start();
+    Snapshot oldSnapshot = this.snapshot.getAndSet(snapshot);
+    if(oldSnapshot != null) {
+      log.debug("Drain transports pool for replaced JavaMail session.");
+      oldSnapshot.transportPool.drain();
+      if(oldSnapshot.sharedRelay != null) {
+        SharedTransportPools.release(oldSnapshot.sharedRelay);
       }
-    });
+    }
+  }
+
+  /**
+   * Close session factory: drain current transports pool and release its reference to shared transports pool, if any.
+   * Sends still in progress complete on their transports that are closed on release. Session factory should not be used
+   * after close; closing it again does nothing.
+   */
+  synchronized void close()
+  {
+    Snapshot snapshot = this.snapshot.get();
+    if(snapshot == null || closed) {
+      return;
+    }
+    closed = true;
+    snapshot.transportPool.drain();
+    if(snapshot.sharedRelay != null) {
+      SharedTransportPools.release(snapshot.sharedRelay);
+    }
   }
 
   /**
@@ -169,9 +517,23 @@ final class SessionFactory
    * 
    * @return JavaMail session instance.
    */
-  public synchronized Session getSession()
+  public Session getSession()
   {
-    return session;
+    Snapshot snapshot = this.snapshot.get();
+    return snapshot != null ? snapshot.session : null;
+  }
+
+  /**
+   * Get pool of connected transports bound to currently configured JavaMail session. This getter should be called after
+   * {@link #config(Config)}, otherwise always returns null. Callers should use {@link TransportPool#getSession()} when
+   * create messages for borrowed transports since session can be replaced by warm reconfiguration.
+   * 
+   * @return transports pool instance.
+   */
+  public TransportPool getTransportPool()
+  {
+    Snapshot snapshot = this.snapshot.get();
+    return snapshot != null ? snapshot.transportPool : null;
   }
 
   /**
@@ -180,8 +542,38 @@ final class SessionFactory
    * 
    * @return container from address, possible null.
    */
-  public synchronized InternetAddress getFromAddress()
+  public InternetAddress getFromAddress()
+  {
+    Snapshot snapshot = this.snapshot.get();
+    return snapshot != null ? snapshot.fromAddress : null;
+  }
+
+  /**
+   * Immutable session snapshot. Holds JavaMail session, related configuration values and the pool of transports bound to
+   * session. Snapshot is created off to the side and published atomically by {@link SessionFactory#publish(Snapshot)}.
+   * 
+   * @author Iulian Rotaru
+   */
+  private static final class Snapshot
   {
-    return fromAddress;
+    /** JavaMail session instance. */
+    final Session session;
+
+    /** Default <code>from</code> address configured by container, used when email instance has none specified. */
+    final InternetAddress fromAddress;
+
+    /** Pool of connected transports bound to this snapshot session, tenant pool if transports are shared. */
+    final TransportPool transportPool;
+
+    /** Relay key of shared transports pool, null if transports are not shared. */
+    final String sharedRelay;
+
+    Snapshot(Session session, InternetAddress fromAddress, TransportPool transportPool, String sharedRelay)
+    {
+      this.session = session;
+      this.fromAddress = fromAddress;
+      this.transportPool = transportPool;
+      this.sharedRelay = sharedRelay;
+    }
   }
 }
@@ -0,0 +1,438 @@
+package com.jslib.email;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.mail.MessagingException;
+
+import com.jslib.api.email.EmailException;
+import com.jslib.api.log.Log;
+import com.jslib.api.log.LogFactory;
+
+/**
+ * Outbound spool directory shared by multiple JVMs. Rendered messages are written as <code>.eml</code> files into
+ * spool <code>incoming</code> directory and delivered by worker threads running on any JVM configured with the same
+ * spool directory. Spool does not use locks: a worker claims a message by atomically renaming it from
+ * <code>incoming</code> into <code>processing</code> directory; if rename fails with file not found, another worker
+ * claimed it first. After delivery, message file is moved into <code>done</code> or <code>failed</code> directory.
+ * Throughput scales with the number of workers and nodes, limited by file system rename rate.
+ * <p>
+ * Message files are written into spool <code>tmp</code> directory and atomically moved into <code>incoming</code> so
+ * that workers never see partially written files. Spool directories should be on a file system with atomic rename,
+ * shared by all nodes.
+ * <p>
+ * Every spool file starts with envelope lines, <code>X-Spool-From</code> and one <code>X-Spool-To</code> per
+ * recipient, followed by message raw content. Envelope lines are valid headers so spool files still open as regular
+ * <code>.eml</code> files; they are stripped on delivery, see {@link Deliverer}.
+ * <p>
+ * A node crashing while delivering leaves claimed files into <code>processing</code> directory. Claimed file last
+ * modified time is set to claim time and every worker periodically moves back into <code>incoming</code> files claimed
+ * more than stale timeout ago. Stale timeout should be larger than longest delivery time, otherwise a message still in
+ * delivery can be claimed again and sent twice.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class SharedSpool
+{
+  /** Class logger. */
+  private static final Log log = LogFactory.getLog(SharedSpool.class);
+
+  /** Envelope sender line prefix. */
+  private static final String FROM_PREFIX = "X-Spool-From:";
+  /** Envelope recipient line prefix. */
+  private static final String TO_PREFIX = "X-Spool-To:";
+  /** Spool files extension. */
+  private static final String EXTENSION = ".eml";
+
+  /**
+   * Delivery of a spooled message, executed on worker thread. Message raw content starts at given offset into spool
+   * file, after envelope lines.
+   * 
+   * @author Iulian Rotaru
+   */
+  interface Deliverer
+  {
+    /**
+     * Deliver message from spool file.
+     * 
+     * @param file claimed spool file,
+     * @param offset message content offset into file,
+     * @param from envelope sender, possible empty,
+     * @param recipients envelope recipients.
+     * @throws Exception if delivery fails; message file is moved to failed directory.
+     */
+    void deliver(Path file, long offset, String from, List<String> recipients) throws Exception;
+  }
+
+  /**
+   * Writer for message raw content.
+   * 
+   * @author Iulian Rotaru
+   */
+  interface ContentWriter
+  {
+    /**
+     * Write message raw content.
+     * 
+     * @param stream spool file output stream.
+     * @throws IOException if writing fails.
+     * @throws MessagingException if message serialization fails.
+     */
+    void write(OutputStream stream) throws IOException, MessagingException;
+  }
+
+  private final Path tmpDir;
+  private final Path incomingDir;
+  private final Path processingDir;
+  private final Path doneDir;
+  private final Path failedDir;
+
+  /** Node identifier used into spool file names, unique per JVM. */
+  private final String nodeID;
+
+  /** Delivery for claimed messages. */
+  private final Deliverer deliverer;
+
+  /** Interval, in milliseconds, an idle worker waits before scanning incoming directory again. */
+  private final long pollInterval;
+
+  /** Time, in milliseconds, after which a claimed file is considered abandoned. */
+  private final long staleTimeout;
+
+  /** Worker threads. */
+  private final List<Thread> workers = new ArrayList<>();
+
+  private final AtomicLong counter = new AtomicLong();
+  private final LongAdder deliveredCount = new LongAdder();
+  private final LongAdder failedCount = new LongAdder();
+  private final LongAdder recoveredCount = new LongAdder();
+
+  /** Wall clock time of last stale claims recovery, in milliseconds. */
+  private final AtomicLong lastRecovery = new AtomicLong();
+
+  private volatile boolean stopped;
+
+  /** Flag set while draining is paused; paused workers do not claim incoming messages. */
+  private volatile boolean paused;
+
+  /**
+   * Create spool on given directory, creating spool directories if missing.
+   * 
+   * @param spoolDir spool root directory,
+   * @param deliverer delivery for claimed messages,
+   * @param pollInterval idle worker poll interval, in milliseconds,
+   * @param staleTimeout stale claim timeout, in milliseconds.
+   * @throws IOException if spool directories creation fails.
+   */
+  SharedSpool(Path spoolDir, Deliverer deliverer, long pollInterval, long staleTimeout) throws IOException
+  {
+    this.tmpDir = Files.createDirectories(spoolDir.resolve("tmp"));
+    this.incomingDir = Files.createDirectories(spoolDir.resolve("incoming"));
+    this.processingDir = Files.createDirectories(spoolDir.resolve("processing"));
+    this.doneDir = Files.createDirectories(spoolDir.resolve("done"));
+    this.failedDir = Files.createDirectories(spoolDir.resolve("failed"));
+    // runtime name is pid@host, unique for JVMs sharing the same file system
+    this.nodeID = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9-]", "_");
+    this.deliverer = deliverer;
+    this.pollInterval = pollInterval;
+    this.staleTimeout = staleTimeout;
+  }
+
+  /**
+   * Start worker threads. A node with no workers only produces messages, delivered by other nodes.
+   * 
+   * @param workersCount number of worker threads.
+   */
+  void start(int workersCount)
+  {
+    for(int i = 0; i < workersCount; ++i) {
+      Thread worker = new Thread(this::work, "email-spool-worker-" + i);
+      worker.setDaemon(true);
+      workers.add(worker);
+      worker.start();
+    }
+  }
+
+  /**
+   * Stop worker threads and wait for them to finish. Messages in delivery are completed; not claimed messages stay into
+   * spool. Workers are not interrupted since an interrupt would abort delivery on interruptible channels.
+   * 
+   * @throws InterruptedException if waiting for workers is interrupted.
+   */
+  void stop() throws InterruptedException
+  {
+    synchronized(workers) {
+      stopped = true;
+      workers.notifyAll();
+    }
+    for(Thread worker : workers) {
+      worker.join();
+    }
+  }
+
+  /**
+   * Pause draining. Messages in delivery are completed but workers do not claim incoming messages till
+   * {@link #resume()}; meanwhile messages are still submitted into spool. Pausing affects only this node workers.
+   */
+  void pause()
+  {
+    paused = true;
+  }
+
+  /** Resume draining paused by {@link #pause()}. Idle workers are woken up and start claiming immediately. */
+  void resume()
+  {
+    synchronized(workers) {
+      paused = false;
+      workers.notifyAll();
+    }
+  }
+
+  boolean isPaused()
+  {
+    return paused;
+  }
+
+  /**
+   * Write message into spool incoming directory. Given writer should write only message raw content; envelope lines are
+   * written by this method.
+   * 
+   * @param from envelope sender, possible null,
+   * @param recipients envelope recipients,
+   * @param writer message content writer.
+   * @return spool file from incoming directory.
+   * @throws IOException if spool file writing fails.
+   * @throws MessagingException if message serialization fails.
+   */
+  Path submit(String from, List<String> recipients, ContentWriter writer) throws IOException, MessagingException
+  {
+    String fileName = System.currentTimeMillis() + "." + nodeID + "." + counter.incrementAndGet() + EXTENSION;
+    Path tmpFile = tmpDir.resolve(fileName);
+    try (OutputStream stream = Files.newOutputStream(tmpFile)) {
+      stream.write((FROM_PREFIX + ' ' + (from != null ? from : "") + "\r\n").getBytes(StandardCharsets.US_ASCII));
+      for(String recipient : recipients) {
+        stream.write((TO_PREFIX + ' ' + recipient + "\r\n").getBytes(StandardCharsets.US_ASCII));
+      }
+      writer.write(stream);
+    }
+    return Files.move(tmpFile, incomingDir.resolve(fileName), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Worker loop: claim and deliver incoming messages; when incoming directory is empty or draining is paused wait poll
+   * interval.
+   */
+  private void work()
+  {
+    while(!stopped) {
+      try {
+        if(paused) {
+          synchronized(workers) {
+            if(!stopped && paused) {
+              workers.wait(pollInterval);
+            }
+          }
+          continue;
+        }
+        recoverStaleClaims();
+        if(drainIncoming() == 0) {
+          synchronized(workers) {
+            if(!stopped) {
+              workers.wait(pollInterval);
+            }
+          }
+        }
+      }
+      catch(InterruptedException e) {
+        break;
+      }
+      catch(Throwable t) {
+        log.error(t);
+      }
+    }
+  }
+
+  /**
+   * Scan incoming directory and deliver every message this worker succeeds to claim.
+   * 
+   * @return the number of messages delivered by this worker.
+   * @throws IOException if incoming directory scanning fails.
+   */
+  int drainIncoming() throws IOException
+  {
+    int count = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(incomingDir, "*" + EXTENSION)) {
+      for(Path file : files) {
+        if(stopped || paused) {
+          break;
+        }
+        Path claimedFile = claim(file);
+        if(claimedFile != null) {
+          deliver(claimedFile);
+          ++count;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Claim incoming file by atomic rename into processing directory. Returns null if file was already claimed by another
+   * worker, from this or other node.
+   * 
+   * @param file incoming file.
+   * @return claimed file or null.
+   * @throws IOException if rename fails for other reason than missing source file.
+   */
+  private Path claim(Path file) throws IOException
+  {
+    Path claimedFile = processingDir.resolve(file.getFileName());
+    try {
+      Files.move(file, claimedFile, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch(NoSuchFileException e) {
+      return null;
+    }
+    // rename preserves modification time; update it so that stale claims recovery measures from claim time
+    Files.setLastModifiedTime(claimedFile, FileTime.fromMillis(System.currentTimeMillis()));
+    return claimedFile;
+  }
+
+  private void deliver(Path claimedFile) throws IOException
+  {
+    Path targetDir = doneDir;
+    try {
+      String from = "";
+      List<String> recipients = new ArrayList<>();
+      long offset = 0;
+      try (InputStream stream = new BufferedInputStream(Files.newInputStream(claimedFile))) {
+        for(;;) {
+          byte[] line = readLine(stream);
+          String text = new String(line, StandardCharsets.US_ASCII).trim();
+          if(text.startsWith(FROM_PREFIX)) {
+            from = text.substring(FROM_PREFIX.length()).trim();
+          }
+          else if(text.startsWith(TO_PREFIX)) {
+            recipients.add(text.substring(TO_PREFIX.length()).trim());
+          }
+          else {
+            break;
+          }
+          offset += line.length;
+        }
+      }
+      if(recipients.isEmpty()) {
+        throw new EmailException("Spool file |%s| has no envelope recipients.", claimedFile);
+      }
+      deliverer.deliver(claimedFile, offset, from, recipients);
+      deliveredCount.increment();
+    }
+    catch(Exception e) {
+      log.error("Fail to deliver spool file |{file}|: {exception}", claimedFile, e);
+      failedCount.increment();
+      targetDir = failedDir;
+    }
+    Files.move(claimedFile, targetDir.resolve(claimedFile.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Move back into incoming directory files claimed more than stale timeout ago. Recovery runs at most once per stale
+   * timeout per node; concurrent recovery from other nodes is safe since rename is atomic.
+   * 
+   * @throws IOException if processing directory scanning fails.
+   */
+  void recoverStaleClaims() throws IOException
+  {
+    long now = System.currentTimeMillis();
+    long last = lastRecovery.get();
+    if(now - last < staleTimeout || !lastRecovery.compareAndSet(last, now)) {
+      return;
+    }
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(processingDir, "*" + EXTENSION)) {
+      for(Path file : files) {
+        try {
+          if(now - Files.getLastModifiedTime(file).toMillis() < staleTimeout) {
+            continue;
+          }
+          Files.move(file, incomingDir.resolve(file.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+          log.warn("Recover stale spool claim |{file}|.", file);
+          recoveredCount.increment();
+        }
+        catch(NoSuchFileException e) {
+          // delivered or recovered meanwhile
+        }
+      }
+    }
+  }
+
+  /**
+   * Read line including line terminator.
+   * 
+   * @param stream input stream.
+   * @return line bytes.
+   * @throws IOException if stream reading fails.
+   */
+  private static byte[] readLine(InputStream stream) throws IOException
+  {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    for(int b = stream.read(); b != -1; b = stream.read()) {
+      line.write(b);
+      if(b == '\n') {
+        break;
+      }
+    }
+    return line.toByteArray();
+  }
+
+  long getDeliveredCount()
+  {
+    return deliveredCount.sum();
+  }
+
+  long getFailedCount()
+  {
+    return failedCount.sum();
+  }
+
+  long getRecoveredCount()
+  {
+    return recoveredCount.sum();
+  }
+
+  /**
+   * Get the number of messages waiting into incoming directory. This method scans directory and should not be called
+   * often.
+   * 
+   * @return incoming messages count.
+   * @throws IOException if directory scanning fails.
+   */
+  int getIncomingCount() throws IOException
+  {
+    int count = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(incomingDir, "*" + EXTENSION)) {
+      for(@SuppressWarnings("unused")
+      Path file : files) {
+        ++count;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,99 @@
+package com.jslib.email;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.jslib.api.log.Log;
+import com.jslib.api.log.LogFactory;
+
+/**
+ * Process wide registry of transports pools shared by email senders, usually one per tenant, that use the same relay
+ * and credentials. Shared pools are keyed by relay, see {@link SessionFactory}: transport protocol, host, port, user
+ * and TLS mode, plus a fingerprint of password and session properties. Without sharing every email sender opens its
+ * own connections to the same relay.
+ * <p>
+ * A shared pool is created by first email sender acquiring it, from its configuration; pool parameters and connection
+ * session provided by following email senders are ignored. Shared pool limit on borrowed transports is relay wide
+ * whereas every email sender borrows through its own tenant pool, with tenant limit, see {@link TransportPool}.
+ * <p>
+ * Shared pools are reference counted: every tenant pool acquires shared pool on creation and releases it when drained.
+ * Shared pool is drained and removed from registry when last reference is released. Registry operations are rare,
+ * performed on email senders configuration, and are synchronized.
+ *
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class SharedTransportPools
+{
+  /** Class logger. */
+  private static final Log log = LogFactory.getLog(SharedTransportPools.class);
+
+  /** Shared pools, keyed by relay. */
+  private static final Map<String, Entry> pools = new HashMap<>();
+
+  /**
+   * Acquire shared pool for relay, creating and starting it on first request.
+   *
+   * @param relay relay key,
+   * @param factory shared pool factory, used only if pool does not exist.
+   * @return shared pool.
+   */
+  static synchronized TransportPool acquire(String relay, Supplier<TransportPool> factory)
+  {
+    Entry entry = pools.get(relay);
+    if(entry == null) {
+      log.debug("Create shared transports pool for relay |{relay}|.", relay);
+      TransportPool pool = factory.get();
+      pool.start();
+      entry = new Entry(pool);
+      pools.put(relay, entry);
+    }
+    ++entry.references;
+    return entry.pool;
+  }
+
+  /**
+   * Release shared pool for relay. If there are no more references, drain pool and remove it from registry.
+   *
+   * @param relay relay key.
+   */
+  static synchronized void release(String relay)
+  {
+    Entry entry = pools.get(relay);
+    if(entry == null) {
+      return;
+    }
+    if(--entry.references == 0) {
+      log.debug("Drain shared transports pool for relay |{relay}|.", relay);
+      pools.remove(relay);
+      entry.pool.drain();
+    }
+  }
+
+  /**
+   * Get shared pools, keyed by relay.
+   *
+   * @return shared pools snapshot.
+   */
+  static synchronized Map<String, TransportPool> getInstances()
+  {
+    Map<String, TransportPool> instances = new HashMap<>();
+    for(Map.Entry<String, Entry> entry : pools.entrySet()) {
+      instances.put(entry.getKey(), entry.getValue().pool);
+    }
+    return instances;
+  }
+
+  /** Shared pool with its references count. */
+  private static final class Entry
+  {
+    final TransportPool pool;
+    int references;
+
+    Entry(TransportPool pool)
+    {
+      this.pool = pool;
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.jslib.email;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.jslib.api.log.Log;
+import com.jslib.api.log.LogFactory;
+
+/**
+ * Default send tracer logging sends slower than a configured threshold, with per phase timings breakdown. Phases timings
+ * are accumulated per sending thread, in a reused array, and logged only on slow send completion so that fast sends do
+ * not allocate.
+ * <p>
+ * Slow send logger is enabled by <code>js.email.trace.slow</code> property, with threshold in milliseconds. Note that
+ * only sampled sends are traced; for slow sends logging sampling rate should be left to default, that is, all sends.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public final class SlowSendLogger implements SendTracer
+{
+  /** Class logger. */
+  private static final Log log = LogFactory.getLog(SlowSendLogger.class);
+
+  /** Trace phases, cached to avoid values array cloning. */
+  private static final TracePhase[] PHASES = TracePhase.values();
+
+  /** Slow send threshold, in nanoseconds. */
+  private final long thresholdNanos;
+
+  /** Phases timings accumulated for send in progress on current thread, indexed by phase ordinal. */
+  private final ThreadLocal<long[]> phasesNanos = ThreadLocal.withInitial(() -> new long[PHASES.length]);
+
+  /**
+   * Create slow send logger.
+   * 
+   * @param thresholdMillis slow send threshold, in milliseconds.
+   */
+  public SlowSendLogger(long thresholdMillis)
+  {
+    this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+  }
+
+  @Override
+  public void onPhase(String messageID, String templateName, TracePhase phase, long nanos, int returnCode)
+  {
+    phasesNanos.get()[phase.ordinal()] += nanos;
+  }
+
+  @Override
+  public void onComplete(String messageID, String templateName, long nanos, boolean success)
+  {
+    long[] phasesNanos = this.phasesNanos.get();
+    if(nanos >= thresholdNanos) {
+      StringBuilder phases = new StringBuilder();
+      for(int i = 0; i < PHASES.length; ++i) {
+        if(phasesNanos[i] != 0) {
+          if(phases.length() != 0) {
+            phases.append(", ");
+          }
+          phases.append(PHASES[i]).append('=').append(phasesNanos[i] / 1000).append("us");
+        }
+      }
+      log.warn("Slow email |{message_id}| from template |{template_name}| {status} in {time}ms: {phases}", messageID, templateName, success ? "sent" : "failed", nanos / 1000000, phases);
+    }
+    Arrays.fill(phasesNanos, 0);
+  }
+}
@@ -0,0 +1,248 @@
+package com.jslib.email;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.jslib.api.email.EmailException;
+import com.jslib.api.log.Log;
+import com.jslib.api.log.LogFactory;
+import com.jslib.api.template.Template;
+import com.jslib.api.template.TemplateEngine;
+import com.jslib.util.Classes;
+
+/**
+ * Load email templates from files. If template preprocessors are configured, loader reads template source, runs
+ * preprocessors chain then parses processed source; otherwise template file is parsed directly by template engine.
+ * Loader is invoked only on sender templates cache miss so preprocessing cost is paid once per template file.
+ * <p>
+ * If inline images are enabled, loader also looks for <code>img</code> elements with <code>src</code> attribute
+ * pointing to an existing file, relative to template directory. Found images are loaded and encoded as
+ * {@link InlineImage} and <code>src</code> attribute is replaced by <code>cid:</code> URL. Dynamic images, e.g.
+ * <code>data-src</code> operator, and absolute URLs are not changed.
+ * <p>
+ * If CSS inline preprocessor is configured, style sheets linked by template with relative URL are loaded and replaced
+ * by <code>style</code> elements before preprocessing, so that their rules are inlined too. Loaded template records all
+ * files read while loading, see {@link CachedTemplate#getDependencies()}, so that a changed style sheet or image evicts
+ * templates referencing it.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class TemplateLoader
+{
+  /** Class logger. */
+  private static final Log log = LogFactory.getLog(TemplateLoader.class);
+
+  /** Template engine used to parse templates. */
+  private final TemplateEngine templateEngine;
+
+  /** Image element source attribute. Group 1 is attribute prefix, group 2 is quote and group 3 is attribute value. */
+  private static final Pattern IMAGE_SOURCE = Pattern.compile("(<img\\b[^>]*?\\ssrc\\s*=\\s*)([\"'])([^\"']+)\\2", Pattern.CASE_INSENSITIVE);
+
+  /** Image source URL with scheme, e.g. <code>http:</code>, <code>cid:</code> or <code>data:</code>. */
+  private static final Pattern URL_SCHEME = Pattern.compile("^[a-zA-Z][a-zA-Z0-9+.-]*:");
+
+  /** Link element. */
+  private static final Pattern LINK_ELEMENT = Pattern.compile("<link\\b[^>]*>", Pattern.CASE_INSENSITIVE);
+
+  /** Style sheet relation attribute of link element. */
+  private static final Pattern STYLESHEET_REL = Pattern.compile("\\srel\\s*=\\s*([\"']?)stylesheet\\1", Pattern.CASE_INSENSITIVE);
+
+  /** Hypertext reference attribute of link element. Group 2 is attribute value. */
+  private static final Pattern HREF = Pattern.compile("\\shref\\s*=\\s*([\"'])([^\"']+)\\1", Pattern.CASE_INSENSITIVE);
+
+  /** Template preprocessors, in execution order. Empty if no preprocessor configured. */
+  private final List<TemplatePreprocessor> preprocessors;
+
+  /** Flag true if static images should be embedded into emails. */
+  private final boolean inlineImages;
+
+  /** Flag true if linked style sheets should be loaded into template, that is, CSS inline preprocessor is configured. */
+  private final boolean inlineStyleSheets;
+
+  /**
+   * Create template loader for given template engine and preprocessors list.
+   * 
+   * @param templateEngine template engine,
+   * @param preprocessors comma separated list of preprocessors aliases or class names, null if none configured,
+   * @param inlineImages embed static images referenced by templates.
+   * @throws EmailException if a preprocessor class cannot be instantiated.
+   */
+  TemplateLoader(TemplateEngine templateEngine, String preprocessors, boolean inlineImages)
+  {
+    this.templateEngine = templateEngine;
+    this.inlineImages = inlineImages;
+    if(preprocessors == null) {
+      this.preprocessors = Collections.emptyList();
+      this.inlineStyleSheets = false;
+      return;
+    }
+
+    List<TemplatePreprocessor> list = new ArrayList<>();
+    boolean inlineStyleSheets = false;
+    for(String preprocessor : preprocessors.split(",")) {
+      preprocessor = preprocessor.trim();
+      if(!preprocessor.isEmpty()) {
+        log.debug("Register template preprocessor |{preprocessor}|.", preprocessor);
+        TemplatePreprocessor instance = createPreprocessor(preprocessor);
+        inlineStyleSheets |= instance instanceof CssInlinePreprocessor;
+        list.add(instance);
+      }
+    }
+    this.preprocessors = Collections.unmodifiableList(list);
+    this.inlineStyleSheets = inlineStyleSheets;
+  }
+
+  private static TemplatePreprocessor createPreprocessor(String name)
+  {
+    switch(name) {
+    case "exclude":
+      return new ExcludePreprocessor();
+
+    case "css-inline":
+      return new CssInlinePreprocessor();
+
+    case "minify":
+      return new MinifyPreprocessor();
+
+    default:
+      TemplatePreprocessor preprocessor = Classes.newInstance(name);
+      return preprocessor;
+    }
+  }
+
+  /**
+   * Load template from file, running configured preprocessors, if any, and embedding static images, if enabled.
+   * 
+   * @param templateFile template file.
+   * @return loaded template.
+   * @throws EmailException if template file loading fails.
+   */
+  CachedTemplate load(File templateFile)
+  {
+    try {
+      Set<File> dependencies = new HashSet<>();
+      dependencies.add(templateFile.getCanonicalFile());
+      if(preprocessors.isEmpty() && !inlineImages) {
+        return new CachedTemplate(templateEngine.getTemplate(templateFile), Collections.<InlineImage> emptyList(), dependencies);
+      }
+
+      String source = new String(Files.readAllBytes(templateFile.toPath()), StandardCharsets.UTF_8);
+      if(inlineStyleSheets) {
+        source = embedStyleSheets(templateFile, source, dependencies);
+      }
+      for(TemplatePreprocessor preprocessor : preprocessors) {
+        source = preprocessor.preprocess(source);
+      }
+
+      List<InlineImage> images = new ArrayList<>();
+      if(inlineImages) {
+        source = embedImages(templateFile, source, images, dependencies);
+      }
+      return new CachedTemplate(templateEngine.getTemplate(com.jslib.util.Files.basename(templateFile), new StringReader(source)), images, dependencies);
+    }
+    catch(IOException e) {
+      throw new EmailException("Fail to load template |%s|.", templateFile);
+    }
+  }
+
+  /**
+   * Replace style sheets linked with relative URL by <code>style</code> elements with style sheet content. Links to
+   * missing files and to absolute URLs are not changed.
+   * 
+   * @param templateFile template file, used to resolve relative style sheets path,
+   * @param source template source,
+   * @param dependencies template dependencies, updated by this method with loaded style sheet files.
+   * @return template source with embedded style sheets.
+   * @throws IOException if style sheet file reading fails.
+   */
+  private static String embedStyleSheets(File templateFile, String source, Set<File> dependencies) throws IOException
+  {
+    File templateDir = templateFile.getAbsoluteFile().getParentFile();
+    StringBuilder builder = new StringBuilder(source.length());
+    Matcher matcher = LINK_ELEMENT.matcher(source);
+    int index = 0;
+    while(matcher.find()) {
+      String link = matcher.group();
+      Matcher href = HREF.matcher(link);
+      if(!STYLESHEET_REL.matcher(link).find() || !href.find() || URL_SCHEME.matcher(href.group(2).trim()).find()) {
+        continue;
+      }
+      File styleSheetFile = new File(templateDir, href.group(2).trim()).getCanonicalFile();
+      if(!styleSheetFile.isFile()) {
+        log.warn("Missing style sheet |{style_sheet_file}| linked by template |{template_file}|.", styleSheetFile, templateFile);
+        continue;
+      }
+
+      dependencies.add(styleSheetFile);
+      builder.append(source, index, matcher.start());
+      builder.append("<style type=\"text/css\">");
+      builder.append(new String(Files.readAllBytes(styleSheetFile.toPath()), StandardCharsets.UTF_8));
+      builder.append("</style>");
+      index = matcher.end();
+    }
+    builder.append(source, index, source.length());
+    return builder.toString();
+  }
+
+  /**
+   * Load static images referenced by template source and replace their source attribute with <code>cid:</code> URL.
+   * The same image file referenced multiple times is loaded only once.
+   * 
+   * @param templateFile template file, used to resolve relative images path,
+   * @param source template source,
+   * @param images loaded images list, updated by this method,
+   * @param dependencies template dependencies, updated by this method with loaded image files.
+   * @return template source with replaced image sources.
+   * @throws IOException if image file reading fails.
+   */
+  private static String embedImages(File templateFile, String source, List<InlineImage> images, Set<File> dependencies) throws IOException
+  {
+    File templateDir = templateFile.getAbsoluteFile().getParentFile();
+    Map<File, InlineImage> imagesByFile = new HashMap<>();
+
+    StringBuilder builder = new StringBuilder(source.length());
+    Matcher matcher = IMAGE_SOURCE.matcher(source);
+    int index = 0;
+    while(matcher.find()) {
+      String path = matcher.group(3).trim();
+      if(URL_SCHEME.matcher(path).find()) {
+        continue;
+      }
+      File imageFile = new File(templateDir, path).getCanonicalFile();
+      if(!imageFile.isFile()) {
+        log.warn("Missing image file |{image_file}| referenced by template |{template_file}|.", imageFile, templateFile);
+        continue;
+      }
+
+      InlineImage image = imagesByFile.get(imageFile);
+      if(image == null) {
+        image = new InlineImage(images.size() + "." + imageFile.getName().replaceAll("[^\\w.-]", "_") + "@inline", imageFile);
+        imagesByFile.put(imageFile, image);
+        images.add(image);
+        dependencies.add(imageFile);
+        log.debug("Embed image |{image_file}| into template |{template_file}|.", imageFile, templateFile);
+      }
+
+      builder.append(source, index, matcher.start());
+      builder.append(matcher.group(1)).append(matcher.group(2));
+      builder.append("cid:").append(image.getContentID());
+      builder.append(matcher.group(2));
+      index = matcher.end();
+    }
+    builder.append(source, index, source.length());
+    return builder.toString();
+  }
+}
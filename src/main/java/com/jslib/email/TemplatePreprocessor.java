@@ -0,0 +1,31 @@
+package com.jslib.email;
+
+/**
+ * Template source transformation executed once, when template is loaded into sender templates cache. Preprocessing
+ * runs before template parsing so that transformations cost is not paid for every sent email; also, processed template
+ * is smaller and faster to render.
+ * <p>
+ * Preprocessors are configured by <code>js.template.preprocessors</code> property as a comma separated list, executed
+ * in given order. A list item is either the alias of a built-in preprocessor or the qualified name of a class
+ * implementing this interface, with default constructor. Built-in preprocessors are:
+ * <ul>
+ * <li><code>exclude</code> - remove elements marked with <code>data-exclude="true"</code>, see {@link ExcludePreprocessor},
+ * <li><code>css-inline</code> - inline CSS rules from <code>style</code> elements, see {@link CssInlinePreprocessor},
+ * <li><code>minify</code> - remove comments and collapse white spaces, see {@link MinifyPreprocessor}.
+ * </ul>
+ * Preprocessed source should still be a valid template for configured template engine. Implementations should be
+ * stateless and thread safe since a preprocessor instance is shared by all templates.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public interface TemplatePreprocessor
+{
+  /**
+   * Transform template source and return processed source.
+   * 
+   * @param source template source.
+   * @return processed template source.
+   */
+  String preprocess(String source);
+}
@@ -0,0 +1,65 @@
+package com.jslib.email;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.jslib.util.I18nPool;
+import com.jslib.util.I18nRepository;
+
+/**
+ * Templates repository state published by email sender as a whole: templates pool, registered template files and parsed
+ * templates cache. On templates reload sender creates a new snapshot and replaces current one with a single volatile
+ * write, so that an email is always created from a pool and a cache belonging to the same repository state.
+ * <p>
+ * Templates pool and files index are not changed after snapshot creation. Templates cache is filled on demand with
+ * templates parsed from snapshot files; a template parsed into a replaced snapshot is simply lost.
+ *
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class TemplatesSnapshot
+{
+  /** Templates repository this snapshot was scanned from, used as templates pool factory on incremental reload. */
+  private final I18nRepository repository;
+
+  /** Templates pool mapping template name and locale to template file. */
+  private final I18nPool<File> pool;
+
+  /** Registered template files, with absolute path, mapped to their locale, possible null. In registration order. */
+  private final Map<File, Locale> files;
+
+  /** Parsed templates cache, keyed by template absolute file. */
+  private final ConcurrentMap<File, CachedTemplate> cache;
+
+  TemplatesSnapshot(I18nRepository repository, I18nPool<File> pool, Map<File, Locale> files, Map<File, CachedTemplate> cache)
+  {
+    this.repository = repository;
+    this.pool = pool;
+    this.files = Collections.unmodifiableMap(files);
+    this.cache = new ConcurrentHashMap<>(cache);
+  }
+
+  I18nRepository getRepository()
+  {
+    return repository;
+  }
+
+  I18nPool<File> getPool()
+  {
+    return pool;
+  }
+
+  Map<File, Locale> getFiles()
+  {
+    return files;
+  }
+
+  ConcurrentMap<File, CachedTemplate> getCache()
+  {
+    return cache;
+  }
+}
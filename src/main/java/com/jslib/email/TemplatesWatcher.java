@@ -0,0 +1,169 @@
+package com.jslib.email;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.jslib.api.log.Log;
+import com.jslib.api.log.LogFactory;
+
+/**
+ * Watch templates repository for changes and trigger templates reload on email sender. Watcher runs on its own daemon
+ * thread and uses {@link WatchService} to be notified about created, modified and deleted files. Repository root and
+ * its direct sub-directories are watched since multi-language repositories store templates into locale directories.
+ * <p>
+ * Editors usually generate a burst of events when save a file; in order to avoid reloading on every event, watcher
+ * collects changed files till repository is quiet for {@link #QUIET_PERIOD} milliseconds and only after that invokes
+ * {@link EmailSenderImpl#reloadTemplates(Set)} with the entire batch.
+ *
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class TemplatesWatcher implements Runnable
+{
+  /** Class logger. */
+  private static final Log log = LogFactory.getLog(TemplatesWatcher.class);
+
+  /** Time, in milliseconds, repository should be quiet before changed files batch is reloaded. */
+  private static final long QUIET_PERIOD = 500;
+
+  /** Email sender owning watched templates repository. */
+  private final EmailSenderImpl sender;
+
+  /** Templates repository root directory. */
+  private final Path repositoryDir;
+
+  /** Watch service bound to repository directories. */
+  private final WatchService watchService;
+
+  /** Watcher thread, started by {@link #start()}. */
+  private final Thread thread;
+
+  /**
+   * Create watcher for templates repository and register repository directories to watch service.
+   *
+   * @param sender email sender owning templates repository,
+   * @param repositoryPath templates repository path.
+   * @throws IOException if watch service creation or directories registration fails.
+   */
+  TemplatesWatcher(EmailSenderImpl sender, String repositoryPath) throws IOException
+  {
+    this.sender = sender;
+    this.repositoryDir = Paths.get(repositoryPath);
+    this.watchService = FileSystems.getDefault().newWatchService();
+
+    register(repositoryDir);
+    try (DirectoryStream<Path> directories = Files.newDirectoryStream(repositoryDir)) {
+      for(Path directory : directories) {
+        if(Files.isDirectory(directory)) {
+          register(directory);
+        }
+      }
+    }
+
+    this.thread = new Thread(this, "email-templates-watcher");
+    this.thread.setDaemon(true);
+  }
+
+  private void register(Path directory) throws IOException
+  {
+    log.debug("Watch email templates directory |{directory}|.", directory);
+    directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+  }
+
+  /** Start watcher thread. */
+  void start()
+  {
+    thread.start();
+  }
+
+  /** Stop watcher thread and release watch service. */
+  void stop()
+  {
+    try {
+      watchService.close();
+    }
+    catch(IOException e) {
+      log.error(e);
+    }
+  }
+
+  @Override
+  public void run()
+  {
+    log.debug("Start email templates watcher on |{directory}|.", repositoryDir);
+    try {
+      for(;;) {
+        Set<File> changedFiles = new HashSet<>();
+        // block till first event is detected
+        WatchKey key = watchService.take();
+        // collect events till repository becomes quiet
+        while(key != null) {
+          collect(key, changedFiles);
+          key = watchService.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+        }
+
+        if(!changedFiles.isEmpty()) {
+          try {
+            sender.reloadTemplates(changedFiles);
+          }
+          catch(Throwable t) {
+            // a failing reload should not kill the watcher; next change will retry it
+            log.error(t);
+          }
+        }
+      }
+    }
+    catch(InterruptedException | ClosedWatchServiceException e) {
+      log.debug("Stop email templates watcher on |{directory}|.", repositoryDir);
+    }
+  }
+
+  /**
+   * Collect changed files from watch key events and reset the key. If a new directory is created into repository root
+   * it is registered to watch service. On events overflow changed files set is not reliable and is replaced by
+   * repository root, meaning all templates should be reloaded.
+   *
+   * @param key watch key with pending events,
+   * @param changedFiles changed files set, updated by this method.
+   */
+  private void collect(WatchKey key, Set<File> changedFiles)
+  {
+    Path directory = (Path)key.watchable();
+    for(WatchEvent<?> event : key.pollEvents()) {
+      if(event.kind() == OVERFLOW) {
+        changedFiles.add(repositoryDir.toFile());
+        continue;
+      }
+
+      Path path = directory.resolve((Path)event.context());
+      if(event.kind() == ENTRY_CREATE && directory.equals(repositoryDir) && Files.isDirectory(path)) {
+        try {
+          register(path);
+        }
+        catch(IOException e) {
+          log.error(e);
+        }
+        continue;
+      }
+      changedFiles.add(path.toFile().getAbsoluteFile());
+    }
+    key.reset();
+  }
+}
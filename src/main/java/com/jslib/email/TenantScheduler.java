@@ -0,0 +1,452 @@
+package com.jslib.email;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.jslib.api.email.EmailException;
+import com.jslib.api.log.Log;
+import com.jslib.api.log.LogFactory;
+
+/**
+ * Weighted fair scheduler for transmissions of emails from multiple tenants sharing an email sender, so that a tenant
+ * burst does not delay other tenants emails. Every email has a tenant key, see {@link ExtendedEmail#tenant(String)};
+ * emails without tenant key belong to {@link #DEFAULT_TENANT}. Scheduler admits at most {@link #capacity} concurrent
+ * transmissions and every tenant may have its own limit on transmissions in flight.
+ * <p>
+ * Waiting emails are queued per tenant and admitted using deficit round robin: tenants with waiting emails take turns
+ * and, on its turn, a tenant is admitted as many emails as its weight. A tenant at its in flight limit is skipped
+ * without losing its turn credit. This way a tenant with a large backlog gets its share of capacity while a tenant with
+ * few emails waits at most one round, regardless of other tenants backlog.
+ * <p>
+ * Emails are admitted either on caller thread, see {@link #acquire(String)}, or asynchronously, see
+ * {@link #execute(String, Executor, Runnable, Runnable)}, in which case task is handed to executor only when admitted.
+ * Scheduler capacity should not exceed executor threads, otherwise admitted tasks wait again into executor queue. If
+ * executor rejects an admitted task, transmission is ended and task rejection handler is invoked, after scheduler lock
+ * is released, so that task owner can release its resources.
+ * <p>
+ * For every tenant scheduler collects admitted emails count and total time spent waiting. Tenants are created on first
+ * email and kept for metrics; tenant keys are expected to be a bounded set.
+ *
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class TenantScheduler
+{
+  /** Class logger. */
+  private static final Log log = LogFactory.getLog(TenantScheduler.class);
+
+  /** Tenant key for emails without tenant. */
+  static final String DEFAULT_TENANT = "default";
+
+  /** Weight for tenants without configured weight. */
+  private static final int DEF_WEIGHT = 1;
+
+  /** Maximum number of concurrent transmissions. */
+  private final int capacity;
+
+  /** In flight limit for tenants without configured limit, zero for scheduler capacity. */
+  private final int defaultMaxInFlight;
+
+  /** Configured tenant weights. */
+  private final Map<String, Integer> weights;
+
+  /** Configured tenant in flight limits. */
+  private final Map<String, Integer> maxInFlights;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /** Tenants, created on first email. Guarded by {@link #lock}. */
+  private final Map<String, Tenant> tenants = new HashMap<>();
+
+  /** Tenants with waiting emails, in round robin order; tenant on turn is the first. Guarded by {@link #lock}. */
+  private final Deque<Tenant> activeTenants = new ArrayDeque<>();
+
+  /** Number of transmissions in flight. Guarded by {@link #lock}. */
+  private int inFlight;
+
+  /** Handlers of tasks rejected by executor, invoked by {@link #unlock()}. Guarded by {@link #lock}. */
+  private final List<Runnable> rejections = new ArrayList<>();
+
+  /**
+   * Create tenant scheduler.
+   *
+   * @param capacity maximum number of concurrent transmissions,
+   * @param defaultMaxInFlight in flight limit for tenants without configured limit, zero for no tenant limit,
+   * @param weights tenant weights, tenants not present have weight 1,
+   * @param maxInFlights tenant in flight limits, zero for no tenant limit.
+   */
+  TenantScheduler(int capacity, int defaultMaxInFlight, Map<String, Integer> weights, Map<String, Integer> maxInFlights)
+  {
+    this.capacity = capacity;
+    this.defaultMaxInFlight = defaultMaxInFlight;
+    this.weights = weights;
+    this.maxInFlights = maxInFlights;
+  }
+
+  /**
+   * Wait till email from given tenant is admitted for transmission. Admitted transmission should be ended with
+   * {@link #release(String)}. If current thread executes a send with timeout, see {@link SendDeadline}, waiting is
+   * bounded by send deadline.
+   *
+   * @param tenantKey tenant key.
+   * @return time spent waiting, in nanoseconds.
+   * @throws SendTimeoutException if send deadline expires before admission.
+   * @throws EmailException if waiting thread is interrupted.
+   */
+  long acquire(String tenantKey)
+  {
+    SendDeadline deadline = SendDeadline.current();
+    lock.lock();
+    try {
+      Tenant tenant = tenant(tenantKey);
+      Waiter waiter = new Waiter(tenant, lock.newCondition(), null, null, null);
+      enqueue(waiter);
+      try {
+        while(!waiter.admitted) {
+          if(deadline == null) {
+            waiter.condition.await();
+            continue;
+          }
+          long remaining = deadline.remaining();
+          if(remaining <= 0) {
+            dequeue(waiter);
+            throw deadline.timeout();
+          }
+          waiter.condition.awaitNanos(remaining);
+        }
+      }
+      catch(InterruptedException e) {
+        if(!waiter.admitted) {
+          dequeue(waiter);
+          Thread.currentThread().interrupt();
+          throw new EmailException("Interrupted while waiting on tenant |%s| queue.", tenantKey);
+        }
+        // already admitted; caller releases transmission as usual
+        Thread.currentThread().interrupt();
+      }
+      return waiter.queueNanos;
+    }
+    finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Execute task on given executor when email from given tenant is admitted for transmission. Transmission is ended
+   * when task completes. If executor rejects admitted task, transmission is ended and rejection handler is invoked,
+   * either by this method or by the thread admitting the task. This method does not block.
+   *
+   * @param tenantKey tenant key,
+   * @param executor executor running admitted task,
+   * @param task transmission task,
+   * @param rejected handler invoked if executor rejects task.
+   */
+  void execute(String tenantKey, Executor executor, Runnable task, Runnable rejected)
+  {
+    lock.lock();
+    try {
+      enqueue(new Waiter(tenant(tenantKey), null, executor, task, rejected));
+    }
+    finally {
+      unlock();
+    }
+  }
+
+  /**
+   * End transmission admitted by {@link #acquire(String)} and admit next emails, if any.
+   *
+   * @param tenantKey tenant key.
+   */
+  void release(String tenantKey)
+  {
+    lock.lock();
+    try {
+      Tenant tenant = tenants.get(tenantKey);
+      --tenant.inFlight;
+      --inFlight;
+      schedule();
+    }
+    finally {
+      unlock();
+    }
+  }
+
+  /** Release scheduler lock then invoke handlers of tasks rejected by executor meanwhile, outside lock. */
+  private void unlock()
+  {
+    if(rejections.isEmpty()) {
+      lock.unlock();
+      return;
+    }
+    List<Runnable> handlers = new ArrayList<>(rejections);
+    rejections.clear();
+    lock.unlock();
+    for(Runnable handler : handlers) {
+      try {
+        handler.run();
+      }
+      catch(RuntimeException e) {
+        log.error(e);
+      }
+    }
+  }
+
+  private Tenant tenant(String tenantKey)
+  {
+    return tenants.computeIfAbsent(tenantKey, key -> {
+      int maxInFlight = maxInFlights.getOrDefault(key, defaultMaxInFlight);
+      return new Tenant(key, weights.getOrDefault(key, DEF_WEIGHT), maxInFlight > 0 ? maxInFlight : capacity);
+    });
+  }
+
+  private void enqueue(Waiter waiter)
+  {
+    Tenant tenant = waiter.tenant;
+    if(tenant.waiters.isEmpty()) {
+      activeTenants.addLast(tenant);
+    }
+    tenant.waiters.addLast(waiter);
+    schedule();
+  }
+
+  private void dequeue(Waiter waiter)
+  {
+    Tenant tenant = waiter.tenant;
+    tenant.waiters.remove(waiter);
+    if(tenant.waiters.isEmpty()) {
+      deactivate(tenant);
+    }
+  }
+
+  /** Tenant without waiting emails leaves round robin and loses its turn credit, as by deficit round robin. */
+  private void deactivate(Tenant tenant)
+  {
+    activeTenants.remove(tenant);
+    tenant.deficit = 0;
+  }
+
+  /** Admit waiting emails while there is free capacity. */
+  private void schedule()
+  {
+    while(inFlight < capacity) {
+      Tenant tenant = nextTenant();
+      if(tenant == null) {
+        return;
+      }
+      Waiter waiter = tenant.waiters.pollFirst();
+      if(tenant.waiters.isEmpty()) {
+        deactivate(tenant);
+      }
+      admit(waiter);
+    }
+  }
+
+  /**
+   * Select tenant for next admission. Tenant on turn is granted its weight credit when its turn begins and is charged
+   * one unit per admitted email; when credit is spent, turn passes to next tenant. Tenants at their in flight limit are
+   * moved to round end.
+   *
+   * @return tenant for next admission or null if there is no admissible tenant.
+   */
+  private Tenant nextTenant()
+  {
+    for(int skipped = 0; skipped < activeTenants.size(); ++skipped) {
+      Tenant tenant = activeTenants.peekFirst();
+      if(tenant.inFlight >= tenant.maxInFlight) {
+        activeTenants.addLast(activeTenants.pollFirst());
+        continue;
+      }
+      if(tenant.deficit == 0) {
+        tenant.deficit = tenant.weight;
+      }
+      if(--tenant.deficit == 0) {
+        activeTenants.addLast(activeTenants.pollFirst());
+      }
+      return tenant;
+    }
+    return null;
+  }
+
+  private void admit(Waiter waiter)
+  {
+    Tenant tenant = waiter.tenant;
+    ++tenant.inFlight;
+    ++inFlight;
+    waiter.admitted = true;
+    waiter.queueNanos = System.nanoTime() - waiter.enqueueTime;
+    ++tenant.admittedCount;
+    tenant.queueNanos += waiter.queueNanos;
+
+    if(waiter.condition != null) {
+      waiter.condition.signal();
+      return;
+    }
+    try {
+      waiter.executor.execute(() -> {
+        try {
+          waiter.task.run();
+        }
+        finally {
+          release(tenant.key);
+        }
+      });
+    }
+    catch(RejectedExecutionException e) {
+      --tenant.inFlight;
+      --inFlight;
+      log.error("Executor rejected email transmission for tenant |{tenant}|.", tenant.key);
+      rejections.add(waiter.rejected);
+    }
+  }
+
+  // ----------------------------------------------------------------------------------------------
+  // METRICS
+
+  int getCapacity()
+  {
+    return capacity;
+  }
+
+  int getInFlight()
+  {
+    lock.lock();
+    try {
+      return inFlight;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get keys of tenants that sent at least one email.
+   *
+   * @return tenant keys.
+   */
+  Set<String> getTenants()
+  {
+    lock.lock();
+    try {
+      return new HashSet<>(tenants.keySet());
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of tenant emails waiting for admission.
+   *
+   * @param tenantKey tenant key.
+   * @return tenant queue depth.
+   */
+  int getQueueDepth(String tenantKey)
+  {
+    lock.lock();
+    try {
+      Tenant tenant = tenants.get(tenantKey);
+      return tenant != null ? tenant.waiters.size() : 0;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  int getInFlight(String tenantKey)
+  {
+    lock.lock();
+    try {
+      Tenant tenant = tenants.get(tenantKey);
+      return tenant != null ? tenant.inFlight : 0;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  long getAdmittedCount(String tenantKey)
+  {
+    lock.lock();
+    try {
+      Tenant tenant = tenants.get(tenantKey);
+      return tenant != null ? tenant.admittedCount : 0;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get average time tenant emails spent waiting for admission, in nanoseconds.
+   *
+   * @param tenantKey tenant key.
+   * @return average queue time, zero if no email admitted yet.
+   */
+  long getAverageQueueNanos(String tenantKey)
+  {
+    lock.lock();
+    try {
+      Tenant tenant = tenants.get(tenantKey);
+      return tenant != null && tenant.admittedCount != 0 ? tenant.queueNanos / tenant.admittedCount : 0;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  // ----------------------------------------------------------------------------------------------
+
+  /** Tenant state. All fields are guarded by scheduler lock. */
+  private static final class Tenant
+  {
+    final String key;
+    final int weight;
+    final int maxInFlight;
+    /** Waiting emails, in arrival order. */
+    final Deque<Waiter> waiters = new ArrayDeque<>();
+    int inFlight;
+    /** Admissions left on current turn. */
+    int deficit;
+    long admittedCount;
+    long queueNanos;
+
+    Tenant(String key, int weight, int maxInFlight)
+    {
+      this.key = key;
+      this.weight = weight;
+      this.maxInFlight = maxInFlight;
+    }
+  }
+
+  /** Email waiting for admission, either a thread waiting on condition or a task waiting for executor. */
+  private static final class Waiter
+  {
+    final Tenant tenant;
+    final Condition condition;
+    final Executor executor;
+    final Runnable task;
+    final Runnable rejected;
+    final long enqueueTime = System.nanoTime();
+    boolean admitted;
+    long queueNanos;
+
+    Waiter(Tenant tenant, Condition condition, Executor executor, Runnable task, Runnable rejected)
+    {
+      this.tenant = tenant;
+      this.condition = condition;
+      this.executor = executor;
+      this.task = task;
+      this.rejected = rejected;
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package com.jslib.email;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+import com.jslib.api.email.EmailException;
+
+/**
+ * SSL socket factory with a TLS context cached per email relay. JavaMail creates a default SSL socket factory for every
+ * connection so that every connection pays a full TLS handshake. This factory owns a single TLS context per relay, with
+ * client sessions cache enabled, so that connections to the same relay resume TLS session with an abbreviated
+ * handshake. Factory instance is registered to JavaMail session via <code>mail.smtp.ssl.socketFactory</code> property
+ * and is used for both SMTPS connections and STARTTLS upgrades.
+ * <p>
+ * Factories are kept into a process wide registry, keyed by relay host and port, see
+ * {@link #getInstance(String, int, int, int)}; this way TLS sessions cache survives session factory warm
+ * reconfiguration and is shared by all email senders using the same relay.
+ * <p>
+ * Factory also records handshake statistics: handshakes count, how many were resumed and handshake duration. Duration
+ * is measured from SSL socket creation to handshake completion notification; for STARTTLS, socket is created right
+ * before handshake whereas for SMTPS connected by JavaMail with connection timeout it includes TCP connect.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class TlsSocketFactory extends SSLSocketFactory
+{
+  /** Process wide factories registry, keyed by relay <code>host:port</code>. */
+  private static final ConcurrentMap<String, TlsSocketFactory> factories = new ConcurrentHashMap<>();
+
+  /**
+   * Get socket factory for email relay, creating it on first request. TLS sessions cache parameters are used only when
+   * factory is created.
+   * 
+   * @param host relay host name,
+   * @param port relay port,
+   * @param sessionCacheSize maximum number of cached TLS sessions, zero for no limit,
+   * @param sessionTimeout cached TLS session timeout, in seconds, zero for no limit.
+   * @return relay socket factory.
+   * @throws EmailException if TLS context initialization fails.
+   */
+  static TlsSocketFactory getInstance(String host, int port, int sessionCacheSize, int sessionTimeout)
+  {
+    return factories.computeIfAbsent(host + ':' + port, relay -> new TlsSocketFactory(relay, sessionCacheSize, sessionTimeout));
+  }
+
+  /**
+   * Get all created socket factories.
+   * 
+   * @return socket factories.
+   */
+  static Collection<TlsSocketFactory> getInstances()
+  {
+    return Collections.unmodifiableCollection(factories.values());
+  }
+
+  /** Relay this factory is bound to, in <code>host:port</code> format. */
+  private final String relay;
+
+  /** Socket factory created by cached TLS context. */
+  private final SSLSocketFactory delegate;
+
+  private final LongAdder handshakesCount = new LongAdder();
+  private final LongAdder resumedCount = new LongAdder();
+  private final LongAdder handshakeNanos = new LongAdder();
+  private final AtomicLong maxHandshakeNanos = new AtomicLong();
+
+  private TlsSocketFactory(String relay, int sessionCacheSize, int sessionTimeout)
+  {
+    this(relay, sessionCacheSize, sessionTimeout, null);
+  }
+
+  /**
+   * Create socket factory not registered into process wide registry. Trust managers are used by tests, against a relay
+   * with a certificate not trusted by default trust store.
+   * 
+   * @param relay relay, in <code>host:port</code> format,
+   * @param sessionCacheSize maximum number of cached TLS sessions, zero for no limit,
+   * @param sessionTimeout cached TLS session timeout, in seconds, zero for no limit,
+   * @param trustManagers trust managers, null for default ones.
+   * @throws EmailException if TLS context initialization fails.
+   */
+  TlsSocketFactory(String relay, int sessionCacheSize, int sessionTimeout, TrustManager[] trustManagers)
+  {
+    this.relay = relay;
+    try {
+      SSLContext context = SSLContext.getInstance("TLS");
+      // default key manager and, if not given, default trust managers, the same used by JavaMail default socket factory
+      context.init(null, trustManagers, null);
+      SSLSessionContext sessionContext = context.getClientSessionContext();
+      sessionContext.setSessionCacheSize(sessionCacheSize);
+      sessionContext.setSessionTimeout(sessionTimeout);
+      this.delegate = context.getSocketFactory();
+    }
+    catch(GeneralSecurityException e) {
+      throw new EmailException(e);
+    }
+  }
+
+  @Override
+  public String[] getDefaultCipherSuites()
+  {
+    return delegate.getDefaultCipherSuites();
+  }
+
+  @Override
+  public String[] getSupportedCipherSuites()
+  {
+    return delegate.getSupportedCipherSuites();
+  }
+
+  @Override
+  public Socket createSocket() throws IOException
+  {
+    return instrument(delegate.createSocket());
+  }
+
+  @Override
+  public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException
+  {
+    return instrument(delegate.createSocket(socket, host, port, autoClose));
+  }
+
+  @Override
+  public Socket createSocket(String host, int port) throws IOException
+  {
+    // connect plain socket first so that handshake duration does not include TCP connect
+    return createSocket(new Socket(host, port), host, port, true);
+  }
+
+  @Override
+  public Socket createSocket(String host, int port, InetAddress localAddress, int localPort) throws IOException
+  {
+    return createSocket(new Socket(host, port, localAddress, localPort), host, port, true);
+  }
+
+  @Override
+  public Socket createSocket(InetAddress address, int port) throws IOException
+  {
+    return instrument(delegate.createSocket(address, port));
+  }
+
+  @Override
+  public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+  {
+    return instrument(delegate.createSocket(address, port, localAddress, localPort));
+  }
+
+  /**
+   * Register handshake listener to SSL socket. A handshake is resumed if its TLS session was created before socket.
+   * 
+   * @param socket newly created SSL socket.
+   * @return given socket.
+   */
+  private Socket instrument(Socket socket)
+  {
+    final long startNanos = System.nanoTime();
+    final long startMillis = System.currentTimeMillis();
+    ((SSLSocket)socket).addHandshakeCompletedListener(event -> {
+      long duration = System.nanoTime() - startNanos;
+      SSLSession session = event.getSession();
+      handshakesCount.increment();
+      if(session.getCreationTime() < startMillis) {
+        resumedCount.increment();
+      }
+      handshakeNanos.add(duration);
+      maxHandshakeNanos.accumulateAndGet(duration, Math::max);
+    });
+    return socket;
+  }
+
+  String getRelay()
+  {
+    return relay;
+  }
+
+  long getHandshakesCount()
+  {
+    return handshakesCount.sum();
+  }
+
+  /**
+   * Get the number of handshakes that resumed a cached TLS session.
+   * 
+   * @return resumed handshakes count.
+   */
+  long getResumedCount()
+  {
+    return resumedCount.sum();
+  }
+
+  /**
+   * Get average handshake duration, in nanoseconds.
+   * 
+   * @return average handshake duration, zero if no handshake completed yet.
+   */
+  long getAverageHandshakeNanos()
+  {
+    long count = handshakesCount.sum();
+    return count != 0 ? handshakeNanos.sum() / count : 0;
+  }
+
+  long getMaxHandshakeNanos()
+  {
+    return maxHandshakeNanos.get();
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("%s: handshakes=%d resumed=%d average=%dus max=%dus", relay, getHandshakesCount(), getResumedCount(), TimeUnit.NANOSECONDS.toMicros(getAverageHandshakeNanos()),
+        TimeUnit.NANOSECONDS.toMicros(getMaxHandshakeNanos()));
+  }
+}
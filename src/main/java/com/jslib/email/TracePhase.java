@@ -0,0 +1,34 @@
+package com.jslib.email;
+
+/**
+ * Send phase reported to {@link SendTracer}. Protocol phases are measured from command sending to server reply, except
+ * {@link #CONNECT} that covers the whole connection setup and {@link #CONTENT} that covers message content streaming.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+public enum TracePhase
+{
+  /** Waiting for priority lane and acquiring a connected transport from pool. */
+  ACQUIRE,
+  /** New connection setup: socket connect, server greeting, EHLO, STARTTLS and authentication. */
+  CONNECT,
+  /** EHLO or HELO command, on new connections and after STARTTLS. */
+  EHLO,
+  /** STARTTLS command, not including TLS handshake. */
+  STARTTLS,
+  /** AUTH command; SASL continuation lines are not traced separately but are included into {@link #CONNECT}. */
+  AUTH,
+  /** MAIL FROM command. */
+  MAIL_FROM,
+  /** RCPT TO command, one event per recipient. */
+  RCPT_TO,
+  /** DATA command, till server accepts message content. */
+  DATA,
+  /** Message content streaming, from DATA acceptance to end of data mark. */
+  CONTENT,
+  /** Final reply to end of data mark, that is, server accepting message for delivery. */
+  FINAL_REPLY,
+  /** RSET command, sent after envelope failures. */
+  RSET
+}
@@ -0,0 +1,717 @@
+package com.jslib.email;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import com.jslib.api.email.EmailException;
+import com.jslib.api.log.Log;
+import com.jslib.api.log.LogFactory;
+
+/**
+ * Pool of connected transports bound to a JavaMail session. Reusing transports avoids paying connection, EHLO and
+ * authentication cost for every sent email. Pool is lock free: idle transports are kept into a concurrent deque and
+ * borrowed transports are owned by caller thread till released back.
+ * <p>
+ * Pool keeps at most {@link #maxIdle} idle transports; a transport released when pool is full is closed. Before
+ * returned to caller, an idle transport not known to be alive for longer than {@link #validateAfter} is checked for
+ * connection; JavaMail SMTP transport sends <code>NOOP</code> command for that and a stale connection is closed and
+ * replaced. A transport released by a send or probed by heartbeat within validation window is trusted, so that sending
+ * bursts do not pay a <code>NOOP</code> round trip for every email.
+ * <p>
+ * Pool can be started, see {@link #start()}, in order to connect {@link #minIdle} transports in advance so that first
+ * sends do not pay connection cost. A started pool with heartbeat enabled periodically checks idle transports on a
+ * shared daemon thread: transports idle for more than heartbeat period are probed with <code>NOOP</code> so that server
+ * or middle boxes do not drop the session, and transports approaching server idle timeout are proactively replaced
+ * with fresh connections. Every probe is bounded by transport socket read timeout, see {@link #probeTimeout}, so that
+ * a hung server does not stall heartbeat of all pools. Idle timeout is measured from transport last send since servers may not count
+ * <code>NOOP</code> as activity or may limit their number.
+ * <p>
+ * Pool can limit the number of transports borrowed at a time, see {@link #maxActive}. A caller borrowing from a pool at
+ * limit waits for a transport to be released, at most {@link #maxWait}. Since idle transports are reused before new ones
+ * are connected, this limit also bounds the number of open connections, idle included, and can be used to keep below
+ * email server concurrency limit.
+ * <p>
+ * A tenant pool does not own transports; it borrows them from a pool shared by all email senders using the same relay
+ * and credentials, see {@link SharedTransportPools}. Tenant pool applies its own borrowed transports limit, so that a
+ * tenant cannot exhaust shared pool limit, and binds borrowed transports to tenant session DKIM signer. Tenant pool
+ * session is tenant own session and should be used to create messages; shared pool session is used only for
+ * connections.
+ * <p>
+ * When session is replaced by warm reconfiguration, pool bound to old session is drained, see {@link #drain()}. Idle
+ * transports are closed immediately whereas transports in use are closed when released by their sending threads. A
+ * drained tenant pool returns transports in use to shared pool.
+ * 
+ * @author Iulian Rotaru
+ * @version draft
+ */
+final class TransportPool
+{
+  /** Class logger. */
+  private static final Log log = LogFactory.getLog(TransportPool.class);
+
+  /** JavaMail session pooled transports are bound to. */
+  private final Session session;
+
+  /** Maximum number of idle transports kept by this pool. */
+  private final int maxIdle;
+
+  /** Minimum number of idle transports connected on start and kept by heartbeat. */
+  private final int minIdle;
+
+  /** Heartbeat period, in nanoseconds, zero if heartbeat is disabled. */
+  private final long heartbeatPeriod;
+
+  /**
+   * Maximum time, in milliseconds, heartbeat waits for <code>NOOP</code> reply, from session socket read timeout; zero
+   * if not bounded. Socket read timeout alone does not bound a server trickling reply bytes.
+   */
+  private final long probeTimeout;
+
+  /** Server idle timeout, in nanoseconds, zero if not known. Idle transports are replaced before this timeout. */
+  private final long idleTimeout;
+
+  /** Maximum number of transports borrowed at a time, zero for no limit. */
+  private final int maxActive;
+
+  /** Time, in nanoseconds, an idle transport is trusted without <code>NOOP</code> check; zero to always check. */
+  private final long validateAfter;
+
+  /** Maximum time, in nanoseconds, to wait for a transport when pool is at {@link #maxActive} limit. */
+  private final long maxWait;
+
+  /** Permits for borrowed transports, null if {@link #maxActive} is not limited. */
+  private final Semaphore activePermits;
+
+  /** Shared pool this tenant pool borrows transports from, null if this pool owns its transports. */
+  private final TransportPool sharedPool;
+
+  /** Idle transports, most recent released first. */
+  private final Deque<IdleTransport> idleTransports = new ConcurrentLinkedDeque<>();
+
+  /** Number of idle transports; concurrent deque size is not constant time. */
+  private final AtomicInteger idleCount = new AtomicInteger();
+
+  /** Flag set when this pool is drained; a drained pool closes all released transports. */
+  private volatile boolean drained;
+
+  /** Heartbeat task scheduled by {@link #start()}, null if heartbeat is disabled or pool not started. */
+  private volatile ScheduledFuture<?> heartbeatTask;
+
+  /** Number of connections opened by this pool. */
+  private final LongAdder connectsCount = new LongAdder();
+
+  /** Number of idle transports replaced before server idle timeout. */
+  private final LongAdder replacementsCount = new LongAdder();
+
+  /** Number of transports currently borrowed from this pool. */
+  private final AtomicInteger activeCount = new AtomicInteger();
+
+  /** Number of successful borrows. */
+  private final LongAdder borrowsCount = new LongAdder();
+
+  /** Total time spent by successful borrows, waiting for permit and connecting included, in nanoseconds. */
+  private final LongAdder borrowNanos = new LongAdder();
+
+  /**
+   * Create transports pool bound to JavaMail session, with no pre-connected transports and heartbeat disabled.
+   * 
+   * @param session JavaMail session,
+   * @param maxIdle maximum number of idle transports.
+   */
+  TransportPool(Session session, int maxIdle)
+  {
+    this(session, maxIdle, 0, 0, 0);
+  }
+
+  /**
+   * Create transports pool bound to JavaMail session.
+   * 
+   * @param session JavaMail session,
+   * @param maxIdle maximum number of idle transports,
+   * @param minIdle minimum number of idle transports, not greater than maximum,
+   * @param heartbeatPeriod heartbeat period, in milliseconds, zero to disable heartbeat,
+   * @param idleTimeout server idle timeout, in milliseconds, zero if not known.
+   */
+  TransportPool(Session session, int maxIdle, int minIdle, long heartbeatPeriod, long idleTimeout)
+  {
+    this(session, maxIdle, minIdle, heartbeatPeriod, idleTimeout, 0, 0);
+  }
+
+  /**
+   * Create transports pool bound to JavaMail session, with limited number of borrowed transports.
+   * 
+   * @param session JavaMail session,
+   * @param maxIdle maximum number of idle transports,
+   * @param minIdle minimum number of idle transports, not greater than maximum,
+   * @param heartbeatPeriod heartbeat period, in milliseconds, zero to disable heartbeat,
+   * @param idleTimeout server idle timeout, in milliseconds, zero if not known,
+   * @param maxActive maximum number of transports borrowed at a time, zero for no limit,
+   * @param maxWait maximum time to wait for a transport when pool is at limit, in milliseconds.
+   */
+  TransportPool(Session session, int maxIdle, int minIdle, long heartbeatPeriod, long idleTimeout, int maxActive, long maxWait)
+  {
+    this(session, maxIdle, minIdle, heartbeatPeriod, idleTimeout, maxActive, maxWait, 0);
+  }
+
+  /**
+   * Create transports pool bound to JavaMail session, with limited number of borrowed transports and trusted idle
+   * transports validation window.
+   * 
+   * @param session JavaMail session,
+   * @param maxIdle maximum number of idle transports,
+   * @param minIdle minimum number of idle transports, not greater than maximum,
+   * @param heartbeatPeriod heartbeat period, in milliseconds, zero to disable heartbeat,
+   * @param idleTimeout server idle timeout, in milliseconds, zero if not known,
+   * @param maxActive maximum number of transports borrowed at a time, zero for no limit,
+   * @param maxWait maximum time to wait for a transport when pool is at limit, in milliseconds,
+   * @param validateAfter time an idle transport is trusted without connection check, in milliseconds, zero to always
+   *          check.
+   */
+  TransportPool(Session session, int maxIdle, int minIdle, long heartbeatPeriod, long idleTimeout, int maxActive, long maxWait, long validateAfter)
+  {
+    this.session = session;
+    this.maxIdle = maxIdle;
+    this.minIdle = Math.min(minIdle, maxIdle);
+    this.heartbeatPeriod = TimeUnit.MILLISECONDS.toNanos(heartbeatPeriod);
+    this.probeTimeout = probeTimeout(session);
+    this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+    this.maxActive = maxActive;
+    this.maxWait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+    this.validateAfter = TimeUnit.MILLISECONDS.toNanos(validateAfter);
+    this.activePermits = maxActive > 0 ? new Semaphore(maxActive, true) : null;
+    this.sharedPool = null;
+  }
+
+  /**
+   * Create tenant pool borrowing transports from shared pool. Tenant pool keeps no idle transports and has no heartbeat.
+   * 
+   * @param session tenant JavaMail session, used to create messages,
+   * @param sharedPool shared pool, already started,
+   * @param maxActive maximum number of transports borrowed by tenant at a time, zero for no limit,
+   * @param maxWait maximum time to wait for a transport when tenant is at limit, in milliseconds.
+   */
+  TransportPool(Session session, TransportPool sharedPool, int maxActive, long maxWait)
+  {
+    this.session = session;
+    this.maxIdle = 0;
+    this.minIdle = 0;
+    this.heartbeatPeriod = 0;
+    this.probeTimeout = 0;
+    this.idleTimeout = 0;
+    this.maxActive = maxActive;
+    this.maxWait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+    this.validateAfter = 0;
+    this.activePermits = maxActive > 0 ? new Semaphore(maxActive, true) : null;
+    this.sharedPool = sharedPool;
+  }
+
+  /**
+   * Connect {@link #minIdle} transports and schedule heartbeat, if enabled. Connection failures are logged but not
+   * propagated; if email server is not reachable now, transports are connected on demand later.
+   */
+  void start()
+  {
+    if(sharedPool != null) {
+      return;
+    }
+    refill();
+    if(heartbeatPeriod > 0) {
+      heartbeatTask = Heartbeat.SCHEDULER.scheduleWithFixedDelay(() -> {
+        try {
+          heartbeat(System.nanoTime());
+        }
+        catch(Throwable t) {
+          // scheduled executor cancels periodic task on exception
+          log.error(t);
+        }
+      }, heartbeatPeriod, heartbeatPeriod, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Get JavaMail session this pool is bound to. Messages sent by borrowed transports should be created using this
+   * session.
+   * 
+   * @return JavaMail session.
+   */
+  Session getSession()
+  {
+    return session;
+  }
+
+  /**
+   * Borrow a connected transport. Returns an idle transport, if any, otherwise connect a new one. Borrowed transport
+   * should be returned to pool using {@link #release(Transport, boolean)}. If pool is at {@link #maxActive} limit wait
+   * for a transport to be released.
+   * 
+   * @return connected transport.
+   * @throws SendTimeoutException if current send deadline expires, see {@link SendDeadline}.
+   * @throws EmailException if connection is rejected or waiting for a transport times out or is interrupted.
+   */
+  Transport borrow()
+  {
+    long start = System.nanoTime();
+    acquirePermit();
+    try {
+      Transport transport;
+      if(sharedPool == null) {
+        transport = borrowTransport();
+      }
+      else {
+        transport = sharedPool.borrow();
+        if(transport instanceof ExtendedSMTPTransport) {
+          // shared transport session may belong to another tenant
+          ((ExtendedSMTPTransport)transport).setDkimSigner(DkimSigner.getInstance(session));
+        }
+      }
+      activeCount.incrementAndGet();
+      borrowsCount.increment();
+      borrowNanos.add(System.nanoTime() - start);
+      return transport;
+    }
+    catch(RuntimeException e) {
+      releasePermit();
+      throw e;
+    }
+  }
+
+  /**
+   * Wait for a borrowed transport permit, if {@link #maxActive} is limited. If current thread executes a send with
+   * timeout, see {@link SendDeadline}, waiting is also bounded by send deadline.
+   * 
+   * @throws SendTimeoutException if send deadline expires.
+   * @throws EmailException if waiting times out or is interrupted.
+   */
+  private void acquirePermit()
+  {
+    SendDeadline deadline = SendDeadline.current();
+    if(deadline != null) {
+      deadline.enter(TracePhase.ACQUIRE);
+    }
+    if(activePermits == null) {
+      return;
+    }
+    try {
+      if(!activePermits.tryAcquire(deadline != null ? Math.min(maxWait, deadline.remaining()) : maxWait, TimeUnit.NANOSECONDS)) {
+        if(deadline != null) {
+          deadline.check();
+        }
+        throw new EmailException("Timeout waiting for email transport. All |%d| transports in use.", maxActive);
+      }
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new EmailException("Interrupted while waiting for email transport.");
+    }
+  }
+
+  private void releasePermit()
+  {
+    if(activePermits != null) {
+      activePermits.release();
+    }
+  }
+
+  /**
+   * Get an idle transport, if any, otherwise connect a new one. Idle transport is checked for connection only if not
+   * known to be alive within {@link #validateAfter} window.
+   * 
+   * @return connected transport.
+   * @throws EmailException if connection is rejected.
+   */
+  private Transport borrowTransport()
+  {
+    IdleTransport idleTransport;
+    while((idleTransport = idleTransports.pollFirst()) != null) {
+      idleCount.decrementAndGet();
+      long now = System.nanoTime();
+      if(idleTimeout > 0 && now - idleTransport.releaseTime >= idleTimeout) {
+        // server already dropped session, do not waste a NOOP round trip
+        close(idleTransport.transport);
+        continue;
+      }
+      if(now - idleTransport.checkTime < validateAfter) {
+        return idleTransport.transport;
+      }
+      if(isConnected(idleTransport.transport)) {
+        return idleTransport.transport;
+      }
+      log.debug("Discard stale transport |{transport}|.", idleTransport.transport);
+      close(idleTransport.transport);
+    }
+    return connect();
+  }
+
+  /**
+   * Check idle transport connection with <code>NOOP</code>. If current thread executes a send with timeout, see
+   * {@link SendDeadline}, transport is watched while waiting for server reply so that a hung server does not block
+   * borrow past send deadline.
+   * 
+   * @param transport idle transport.
+   * @return true if transport is connected.
+   * @throws SendTimeoutException if send deadline expires while checking connection.
+   */
+  private static boolean isConnected(Transport transport)
+  {
+    SendDeadline deadline = SendDeadline.current();
+    if(deadline == null || !(transport instanceof ExtendedSMTPTransport)) {
+      return transport.isConnected();
+    }
+    ExtendedSMTPTransport extendedTransport = (ExtendedSMTPTransport)transport;
+    deadline.watch(extendedTransport);
+    boolean connected = false;
+    try {
+      connected = extendedTransport.isConnected();
+    }
+    finally {
+      if(deadline.unwatch()) {
+        extendedTransport.abort();
+      }
+    }
+    if(connected && !extendedTransport.isAborted()) {
+      return true;
+    }
+    if(deadline.isExpired()) {
+      close(transport);
+      throw deadline.timeout();
+    }
+    return false;
+  }
+
+  /**
+   * Create and connect a new transport.
+   * 
+   * @return connected transport.
+   * @throws EmailException if connection is rejected.
+   */
+  private Transport connect()
+  {
+    try {
+      Transport transport = session.getTransport();
+      transport.connect();
+      connectsCount.increment();
+      return transport;
+    }
+    catch(MessagingException e) {
+      throw new EmailException(e);
+    }
+  }
+
+  /**
+   * Return borrowed transport to pool. A not reusable transport, e.g. after a failed send, is closed. Also transport is
+   * closed if this pool is full or drained.
+   * 
+   * @param transport borrowed transport,
+   * @param reusable true if transport can be reused.
+   */
+  void release(Transport transport, boolean reusable)
+  {
+    activeCount.decrementAndGet();
+    try {
+      if(sharedPool != null) {
+        sharedPool.release(transport, reusable);
+      }
+      else {
+        recycle(transport, reusable);
+      }
+    }
+    finally {
+      releasePermit();
+    }
+  }
+
+  private static boolean isAborted(Transport transport)
+  {
+    return transport instanceof ExtendedSMTPTransport && ((ExtendedSMTPTransport)transport).isAborted();
+  }
+
+  /**
+   * Add transport to idle transports or close it if not reusable or if this pool is full or drained. A transport aborted
+   * by send deadline is not reusable even if its last send succeeded, since its socket was closed.
+   * 
+   * @param transport transport, borrowed or newly connected,
+   * @param reusable true if transport can be reused.
+   */
+  private void recycle(Transport transport, boolean reusable)
+  {
+    if(!reusable || drained || isAborted(transport)) {
+      close(transport);
+      return;
+    }
+    if(idleCount.incrementAndGet() > maxIdle) {
+      idleCount.decrementAndGet();
+      close(transport);
+      return;
+    }
+
+    long now = System.nanoTime();
+    offer(new IdleTransport(transport, now, now), true);
+  }
+
+  /**
+   * Add idle transport to pool. Caller should already have incremented {@link #idleCount}.
+   * 
+   * @param idleTransport idle transport,
+   * @param first true to add as most recent idle transport, false to add as oldest one.
+   */
+  private void offer(IdleTransport idleTransport, boolean first)
+  {
+    if(first) {
+      idleTransports.offerFirst(idleTransport);
+    }
+    else {
+      idleTransports.offerLast(idleTransport);
+    }
+    // if pool was drained while transport was released, drain may have missed it
+    if(drained && idleTransports.remove(idleTransport)) {
+      idleCount.decrementAndGet();
+      close(idleTransport.transport);
+    }
+  }
+
+  /**
+   * Check idle transports; executed periodically by heartbeat thread. Idle transports are taken out of pool while
+   * checked so that sending threads never share a transport with heartbeat. A transport is closed if it would reach
+   * server idle timeout before next heartbeat or if it does not respond to <code>NOOP</code>; a transport idle for less
+   * than heartbeat period is not probed. A probed transport is trusted by borrows for {@link #validateAfter} window.
+   * Finally, pool is refilled up to {@link #minIdle} transports.
+   * 
+   * @param now current time, in nanoseconds.
+   */
+  void heartbeat(long now)
+  {
+    List<IdleTransport> checkedTransports = new ArrayList<>();
+    for(int i = idleCount.get(); i > 0; --i) {
+      IdleTransport idleTransport = idleTransports.pollFirst();
+      if(idleTransport == null) {
+        break;
+      }
+      idleCount.decrementAndGet();
+
+      long idleTime = now - idleTransport.releaseTime;
+      if(idleTimeout > 0 && idleTime + heartbeatPeriod >= idleTimeout) {
+        log.debug("Replace transport |{transport}| before server idle timeout.", idleTransport.transport);
+        replacementsCount.increment();
+        close(idleTransport.transport);
+        continue;
+      }
+      if(idleTime >= heartbeatPeriod) {
+        if(!probe(idleTransport.transport)) {
+          log.debug("Discard stale transport |{transport}|.", idleTransport.transport);
+          close(idleTransport.transport);
+          continue;
+        }
+        idleTransport = new IdleTransport(idleTransport.transport, idleTransport.releaseTime, now);
+      }
+      checkedTransports.add(idleTransport);
+    }
+
+    // transports released while checking are more recent so checked transports go to the end, preserving order
+    for(IdleTransport idleTransport : checkedTransports) {
+      idleCount.incrementAndGet();
+      offer(idleTransport, false);
+    }
+    refill();
+  }
+
+  /**
+   * Check idle transport connection on behalf of heartbeat, bounded by {@link #probeTimeout}: transport is watched
+   * by a deadline context, as for sends with timeout, and aborted if server does not reply in time.
+   * 
+   * @param transport idle transport.
+   * @return true if transport is connected.
+   */
+  private boolean probe(Transport transport)
+  {
+    if(probeTimeout == 0) {
+      return transport.isConnected();
+    }
+    SendDeadline deadline = SendDeadline.begin(probeTimeout, System.nanoTime());
+    try {
+      return isConnected(transport);
+    }
+    catch(SendTimeoutException e) {
+      log.warn("Heartbeat probe on transport |{transport}| timed out after |{timeout}| ms.", transport, probeTimeout);
+      return false;
+    }
+    finally {
+      deadline.end();
+    }
+  }
+
+  /**
+   * Get heartbeat probe timeout from session socket read timeout, <code>mail.protocol.timeout</code> property.
+   * 
+   * @param session JavaMail session.
+   * @return probe timeout, in milliseconds, zero if socket read timeout is not configured.
+   */
+  private static long probeTimeout(Session session)
+  {
+    String protocol = session.getProperty("mail.transport.protocol");
+    String timeout = session.getProperty("mail." + (protocol != null ? protocol : "smtp") + ".timeout");
+    if(timeout == null) {
+      return 0;
+    }
+    try {
+      return Math.max(Long.parseLong(timeout.trim()), 0);
+    }
+    catch(NumberFormatException ignore) {
+      return 0;
+    }
+  }
+
+  /**
+   * Connect new transports till pool has {@link #minIdle} idle transports. Open connections are kept within
+   * {@link #maxActive} limit, if any.
+   */
+  private void refill()
+  {
+    while(!drained && idleCount.get() < minIdle && (activePermits == null || idleCount.get() < activePermits.availablePermits())) {
+      Transport transport;
+      try {
+        transport = connect();
+      }
+      catch(EmailException e) {
+        log.warn("Fail to pre-connect transport: {exception}", e.getMessage());
+        return;
+      }
+      recycle(transport, true);
+    }
+  }
+
+  /**
+   * Drain this pool. Close all idle transports and mark pool as drained so that transports still in use are closed on
+   * release.
+   */
+  void drain()
+  {
+    drained = true;
+    ScheduledFuture<?> heartbeatTask = this.heartbeatTask;
+    if(heartbeatTask != null) {
+      heartbeatTask.cancel(false);
+    }
+    IdleTransport idleTransport;
+    while((idleTransport = idleTransports.pollFirst()) != null) {
+      idleCount.decrementAndGet();
+      close(idleTransport.transport);
+    }
+  }
+
+  /**
+   * Close idle transports, e.g. to let relay reclaim connections not needed after a sending burst. Transports in use are
+   * not affected and pool is not drained; next borrows connect new transports and heartbeat refills pool up to
+   * {@link #minIdle}. For a tenant pool closes shared pool idle transports.
+   * 
+   * @return the number of closed transports.
+   */
+  int closeIdle()
+  {
+    if(sharedPool != null) {
+      return sharedPool.closeIdle();
+    }
+    int count = 0;
+    IdleTransport idleTransport;
+    while((idleTransport = idleTransports.pollFirst()) != null) {
+      idleCount.decrementAndGet();
+      close(idleTransport.transport);
+      ++count;
+    }
+    return count;
+  }
+
+  /**
+   * Get the number of idle transports. For a tenant pool returns shared pool idle transports.
+   * 
+   * @return idle transports count.
+   */
+  int getIdleCount()
+  {
+    return sharedPool != null ? sharedPool.getIdleCount() : idleCount.get();
+  }
+
+  long getConnectsCount()
+  {
+    return sharedPool != null ? sharedPool.getConnectsCount() : connectsCount.sum();
+  }
+
+  long getReplacementsCount()
+  {
+    return sharedPool != null ? sharedPool.getReplacementsCount() : replacementsCount.sum();
+  }
+
+  /**
+   * Get the number of transports currently borrowed from this pool. For a tenant pool counts only tenant transports.
+   * 
+   * @return borrowed transports count.
+   */
+  int getActiveCount()
+  {
+    return activeCount.get();
+  }
+
+  /**
+   * Get average time spent by a borrow, waiting for {@link #maxActive} permit and connecting new transport included.
+   * 
+   * @return average borrow time, in nanoseconds, zero if there was no borrow yet.
+   */
+  long getAverageBorrowNanos()
+  {
+    long count = borrowsCount.sum();
+    return count != 0 ? borrowNanos.sum() / count : 0;
+  }
+
+  /**
+   * Close transport. Catch any exceptions and just log to error.
+   * 
+   * @param transport transport to close.
+   */
+  private static void close(Transport transport)
+  {
+    try {
+      transport.close();
+    }
+    catch(MessagingException e) {
+      log.error("Fatal error closing connection.", e);
+    }
+  }
+
+  /** Idle transport with the time it was released by its last send and the time it was last known to be connected. */
+  private static final class IdleTransport
+  {
+    final Transport transport;
+    /** Release time, in nanoseconds. */
+    final long releaseTime;
+    /** Last successful send or heartbeat probe time, in nanoseconds. */
+    final long checkTime;
+
+    IdleTransport(Transport transport, long releaseTime, long checkTime)
+    {
+      this.transport = transport;
+      this.releaseTime = releaseTime;
+      this.checkTime = checkTime;
+    }
+  }
+
+  /** Lazily created daemon thread shared by all pools heartbeats. */
+  private static final class Heartbeat
+  {
+    static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "email-pool-heartbeat");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+}
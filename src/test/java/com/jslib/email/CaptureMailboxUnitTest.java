@@ -0,0 +1,123 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CaptureMailboxUnitTest
+{
+  private CaptureMailbox mailbox;
+
+  @Before
+  public void beforeTest() throws IOException
+  {
+    mailbox = new CaptureMailbox(4, null);
+  }
+
+  @Test
+  public void indexedLookup()
+  {
+    mailbox.add(email("<1@test>", "user-registration", "john@server.com"));
+    mailbox.add(email("<2@test>", "invoice-page", "john@server.com", "jane@server.com"));
+    mailbox.add(email("<3@test>", null, "jane@server.com"));
+
+    assertEquals("<2@test>", mailbox.getByMessageID("<2@test>").getMessageID());
+    assertEquals(2, mailbox.getByRecipient("john@server.com").size());
+    assertEquals(2, mailbox.getByRecipient("jane@server.com").size());
+    assertEquals(1, mailbox.getByTemplate("invoice-page").size());
+    assertTrue(mailbox.getByRecipient("nobody@server.com").isEmpty());
+  }
+
+  @Test
+  public void ringBufferEviction()
+  {
+    for(int i = 0; i < 6; ++i) {
+      mailbox.add(email("<" + i + "@test>", "user-registration", "john@server.com"));
+    }
+
+    assertEquals(6, mailbox.getCapturedCount());
+    assertNull(mailbox.getByMessageID("<0@test>"));
+    assertNull(mailbox.getByMessageID("<1@test>"));
+    assertNotNull(mailbox.getByMessageID("<2@test>"));
+
+    List<CapturedEmail> emails = mailbox.getByRecipient("john@server.com");
+    assertEquals(4, emails.size());
+    assertEquals("<2@test>", emails.get(0).getMessageID());
+    assertEquals(4, mailbox.getByTemplate("user-registration").size());
+
+    List<CapturedEmail> all = mailbox.getAll();
+    assertEquals(4, all.size());
+    assertEquals("<2@test>", all.get(0).getMessageID());
+    assertEquals("<5@test>", all.get(3).getMessageID());
+  }
+
+  @Test
+  public void emailWithoutMessageID()
+  {
+    for(int i = 0; i < 6; ++i) {
+      mailbox.add(email(null, null, "john@server.com"));
+    }
+    assertEquals(4, mailbox.getByRecipient("john@server.com").size());
+    assertEquals(4, mailbox.getAll().size());
+  }
+
+  @Test
+  public void clear()
+  {
+    mailbox.add(email("<1@test>", "user-registration", "john@server.com"));
+    mailbox.clear();
+    assertNull(mailbox.getByMessageID("<1@test>"));
+    assertTrue(mailbox.getAll().isEmpty());
+  }
+
+  @Test
+  public void concurrentIndexing() throws InterruptedException
+  {
+    final int threadsCount = 8;
+    final int emailsCount = 10000;
+    final CountDownLatch startSignal = new CountDownLatch(1);
+    Thread[] threads = new Thread[threadsCount];
+    for(int i = 0; i < threadsCount; ++i) {
+      final int threadIndex = i;
+      threads[i] = new Thread(() -> {
+        try {
+          startSignal.await();
+        }
+        catch(InterruptedException ignore) {
+          return;
+        }
+        for(int j = 0; j < emailsCount; ++j) {
+          // few emails per key so that index queues are often emptied and removed by eviction
+          mailbox.add(email("<" + threadIndex + "." + j + "@test>", "template-" + j % 3, "user" + j % 3 + "@server.com"));
+        }
+      });
+      threads[i].start();
+    }
+    startSignal.countDown();
+    for(Thread thread : threads) {
+      thread.join();
+    }
+
+    // every email still in ring buffer should be reachable by index; lost adds leave buffer emails not indexed
+    List<CapturedEmail> all = mailbox.getAll();
+    assertEquals(4, all.size());
+    for(CapturedEmail email : all) {
+      assertTrue(mailbox.getByRecipient(email.getRecipients().get(0)).contains(email));
+      assertTrue(mailbox.getByTemplate(email.getTemplateName()).contains(email));
+    }
+  }
+
+  private static CapturedEmail email(String messageID, String templateName, String... recipients)
+  {
+    return new CapturedEmail(messageID, templateName, "subject", Arrays.asList(recipients), new byte[0]);
+  }
+}
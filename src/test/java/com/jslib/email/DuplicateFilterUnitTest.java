@@ -0,0 +1,72 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DuplicateFilterUnitTest
+{
+  @Test
+  public void suppressRecentDuplicate()
+  {
+    DuplicateFilter filter = new DuplicateFilter(10, 100, 0.001);
+    assertTrue(filter.register("order:1"));
+    assertFalse(filter.register("order:1"));
+    assertTrue(filter.register("order:2"));
+  }
+
+  @Test
+  public void suppressEvictedDuplicate()
+  {
+    DuplicateFilter filter = new DuplicateFilter(2, 100, 0.001);
+    assertTrue(filter.register("order:1"));
+    assertTrue(filter.register("order:2"));
+    assertTrue(filter.register("order:3"));
+    assertEquals(2, filter.getWindowSize());
+    // order:1 is not in window anymore but still detected by Bloom filter
+    assertFalse(filter.register("order:1"));
+  }
+
+  @Test
+  public void containsDoesNotRegister()
+  {
+    DuplicateFilter filter = new DuplicateFilter(1, 100, 0.001);
+    assertFalse(filter.contains("order:1"));
+    assertTrue(filter.register("order:1"));
+    assertTrue(filter.contains("order:1"));
+    assertTrue(filter.register("order:2"));
+    // order:1 evicted from window is found into Bloom filter
+    assertTrue(filter.contains("order:1"));
+    assertFalse(filter.contains("order:3"));
+    assertEquals(1, filter.getWindowSize());
+  }
+
+  @Test
+  public void forgetOldGenerations()
+  {
+    DuplicateFilter filter = new DuplicateFilter(1, 10, 0.001);
+    for(int i = 0; i < 31; ++i) {
+      assertTrue(filter.register("order:" + i));
+    }
+    // order:0 was in the first generation, discarded after two rotations
+    assertTrue(filter.register("order:0"));
+  }
+
+  @Test
+  public void falsePositiveRate()
+  {
+    DuplicateFilter filter = new DuplicateFilter(1, 10000, 0.01);
+    for(int i = 0; i < 10000; ++i) {
+      filter.register("sent:" + i);
+    }
+    int falsePositives = 0;
+    for(int i = 0; i < 10000; ++i) {
+      if(!filter.register("new:" + i)) {
+        ++falsePositives;
+      }
+    }
+    assertTrue(falsePositives < 300);
+  }
+}
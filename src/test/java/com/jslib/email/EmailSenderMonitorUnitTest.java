@@ -0,0 +1,109 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.jslib.lang.Config;
+import com.jslib.util.Classes;
+
+public class EmailSenderMonitorUnitTest
+{
+  @Test
+  public void register() throws Exception
+  {
+    EmailSenderMonitor monitor = EmailSenderMonitor.register(new EmailSenderImpl(), "monitor-test");
+    ObjectName objectName = monitor.getObjectName();
+    assertNotNull(objectName);
+    assertEquals("com.jslib.email:type=EmailSender,name=\"monitor-test\"", objectName.toString());
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      assertEquals(0L, server.getAttribute(objectName, "SentCount"));
+      assertEquals(0.0, server.getAttribute(objectName, "LatencyP99"));
+      assertEquals(0, server.getAttribute(objectName, "PoolIdleCount"));
+      assertEquals(false, server.getAttribute(objectName, "DrainingPaused"));
+      assertEquals(0, server.invoke(objectName, "flushIdleConnections", null, null));
+      assertEquals(0, server.invoke(objectName, "warmUpTemplates", null, null));
+    }
+    finally {
+      monitor.unregister();
+    }
+    assertFalse(server.isRegistered(objectName));
+  }
+
+  @Test
+  public void closeSender() throws Exception
+  {
+    Path repository = Files.createTempDirectory("templates");
+    String content = "<!DOCTYPE HTML><html><head><meta http-equiv='Content-Type' content='text/html; charset=UTF-8' /></head><body><p>invoice</p></body></html>";
+    Files.write(repository.resolve("invoice.html"), content.getBytes(StandardCharsets.UTF_8));
+
+    Config config = new Config("test");
+    config.setProperty("js.repository.path", repository.toString());
+    config.setProperty("js.files.pattern", "*.html");
+    config.setProperty("js.template.engine", "com.jslib.template.xhtml.XhtmlTemplateEngine");
+    config.setProperty("js.repository.watch", "true");
+    config.setProperty("js.email.jmx", "true");
+    config.setProperty("js.email.jmx.name", "close-test");
+    config.setProperty("js.email.pipeline", "true");
+    config.setProperty("js.email.schedule", "true");
+    config.setProperty("js.email.spool", Files.createTempDirectory("spool").toString());
+    config.setProperty("js.email.spool.workers", "1");
+    config.setProperty("mail.smtp.host", "localhost");
+
+    EmailSenderImpl sender = new EmailSenderImpl();
+    sender.config(config);
+    ObjectName objectName = sender.getMonitor().getObjectName();
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    assertTrue(server.isRegistered(objectName));
+
+    sender.close();
+    assertFalse(server.isRegistered(objectName));
+
+    Thread watcherThread = Classes.getFieldValue(Classes.getFieldValue(sender, "templatesWatcher"), "thread");
+    watcherThread.join(2000);
+    assertFalse(watcherThread.isAlive());
+    HashedTimingWheel<?> timingWheel = Classes.getFieldValue(sender.getSendScheduler(), "timingWheel");
+    Thread timingWheelThread = Classes.getFieldValue(timingWheel, "thread");
+    timingWheelThread.join(2000);
+    assertFalse(timingWheelThread.isAlive());
+    List<Thread> spoolWorkers = Classes.getFieldValue(sender.getSharedSpool(), "workers");
+    for(Thread worker : spoolWorkers) {
+      assertFalse(worker.isAlive());
+    }
+    ForkJoinPool cpuPool = Classes.getFieldValue(sender.getSendPipeline(), "cpuPool");
+    ThreadPoolExecutor ioPool = Classes.getFieldValue(sender.getSendPipeline(), "ioPool");
+    assertTrue(cpuPool.isTerminated());
+    assertTrue(ioPool.isTerminated());
+
+    // closing again does nothing
+    sender.close();
+  }
+
+  @Test
+  public void duplicatedName()
+  {
+    EmailSenderMonitor monitor = EmailSenderMonitor.register(new EmailSenderImpl(), "duplicated");
+    try {
+      assertEquals(null, EmailSenderMonitor.register(new EmailSenderImpl(), "duplicated").getObjectName());
+    }
+    finally {
+      monitor.unregister();
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+public class ExtendedSMTPTransportUnitTest
+{
+  private SmtpServer server;
+  private ExtendedSMTPTransport transport;
+  private Path file;
+
+  @Before
+  public void beforeTest() throws Exception
+  {
+    server = new SmtpServer();
+    server.start();
+
+    Properties properties = new Properties();
+    properties.put("mail.smtp.host", "localhost");
+    properties.put("mail.smtp.port", Integer.toString(server.getPort()));
+    Session session = Session.getInstance(properties);
+    ExtendedSMTPTransport.register(session);
+
+    transport = (ExtendedSMTPTransport)session.getTransport("smtp");
+    transport.connect();
+    file = Files.createTempFile("raw", ".eml");
+  }
+
+  @After
+  public void afterTest() throws Exception
+  {
+    transport.close();
+    server.join(2000);
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void sendRaw() throws Exception
+  {
+    Files.write(file, "Subject: test\r\n\r\nfirst line\r\n.dot line\r\nlast line\r\n".getBytes(StandardCharsets.US_ASCII));
+    List<RecipientStatus> statuses = transport.sendRaw(file, 0, "from@server.com", Collections.singletonList("to@server.com"));
+
+    assertEquals(1, statuses.size());
+    assertTrue(statuses.get(0).isAccepted());
+    assertEquals("MAIL FROM:<from@server.com> BODY=8BITMIME", server.commands.get(0));
+    assertEquals("RCPT TO:<to@server.com>", server.commands.get(1));
+    assertEquals(Arrays.asList("Subject: test", "", "first line", "..dot line", "last line"), server.data);
+  }
+
+  @Test
+  public void sendRawFromOffset() throws Exception
+  {
+    Files.write(file, "X-Spool-To: to@server.com\r\nSubject: test\r\n\r\nbody\r\n".getBytes(StandardCharsets.US_ASCII));
+    transport.sendRaw(file, 27, "", Collections.singletonList("to@server.com"));
+
+    assertEquals("MAIL FROM:<> BODY=8BITMIME", server.commands.get(0));
+    assertEquals(Arrays.asList("Subject: test", "", "body"), server.data);
+  }
+
+  @Test
+  public void sendRawWithRejectedRecipient() throws Exception
+  {
+    Files.write(file, "Subject: test\r\n\r\nbody\r\n".getBytes(StandardCharsets.US_ASCII));
+    List<RecipientStatus> statuses = transport.sendRaw(file, 0, "from@server.com", Arrays.asList("to@server.com", "rejected@server.com"));
+
+    assertEquals(2, statuses.size());
+    assertTrue(statuses.get(0).isAccepted());
+    assertFalse(statuses.get(1).isAccepted());
+    assertEquals(550, statuses.get(1).getReturnCode());
+    assertEquals(Arrays.asList("Subject: test", "", "body"), server.data);
+  }
+
+  @Test
+  public void sendRawWithAllRecipientsRejected() throws Exception
+  {
+    Files.write(file, "Subject: test\r\n\r\nbody\r\n".getBytes(StandardCharsets.US_ASCII));
+    try {
+      transport.sendRaw(file, 0, "from@server.com", Collections.singletonList("rejected@server.com"));
+      fail("All recipients rejected should throw send failed exception.");
+    }
+    catch(SMTPSendFailedException expected) {}
+
+    assertEquals("RSET", server.commands.get(2));
+    assertTrue(server.data.isEmpty());
+  }
+
+  @Test
+  public void sendSigned() throws Exception
+  {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    transport.setDkimSigner(new DkimSigner("server.com", "mail", generator.generateKeyPair().getPrivate(), null));
+
+    MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+    message.setFrom(new InternetAddress("from@server.com"));
+    message.setSubject("test");
+    message.setText("first line\r\n.dot line\r\n", "US-ASCII");
+    message.saveChanges();
+    transport.sendMessage(message, new Address[]
+    {
+        new InternetAddress("to@server.com")
+    });
+
+    // signature header is sent first, followed by message as serialized once into signing stream
+    assertTrue(server.data.get(0).startsWith("DKIM-Signature: v=1; a=rsa-sha256; "));
+    assertEquals(1, server.data.stream().filter(line -> line.startsWith("DKIM-Signature:")).count());
+    assertTrue(server.data.contains("Subject: test"));
+    List<String> body = server.data.subList(server.data.indexOf("") + 1, server.data.size());
+    assertEquals(Arrays.asList("first line", "..dot line"), body);
+    assertNull(message.getHeader("DKIM-Signature"));
+  }
+
+  // --------------------------------------------------------------------------------------------
+  // FIXTURE
+
+  /** Scripted SMTP server accepting a single connection; rejects recipients starting with <code>rejected</code>. */
+  private static class SmtpServer extends Thread
+  {
+    private final ServerSocket serverSocket;
+    final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+    final List<String> data = Collections.synchronizedList(new ArrayList<String>());
+
+    SmtpServer() throws IOException
+    {
+      serverSocket = new ServerSocket(0);
+      setDaemon(true);
+    }
+
+    int getPort()
+    {
+      return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void run()
+    {
+      try (ServerSocket serverSocket = this.serverSocket; Socket socket = serverSocket.accept()) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        OutputStream writer = socket.getOutputStream();
+        reply(writer, "220 localhost ESMTP");
+
+        String line;
+        while((line = reader.readLine()) != null) {
+          if(line.startsWith("EHLO")) {
+            reply(writer, "250-localhost\r\n250 8BITMIME");
+            continue;
+          }
+          if(line.startsWith("QUIT")) {
+            reply(writer, "221 Bye");
+            return;
+          }
+          commands.add(line);
+          if(line.startsWith("RCPT") && line.contains("rejected")) {
+            reply(writer, "550 5.1.1 User unknown");
+          }
+          else if(line.equals("DATA")) {
+            reply(writer, "354 End data with <CR><LF>.<CR><LF>");
+            while(!(line = reader.readLine()).equals(".")) {
+              data.add(line);
+            }
+            reply(writer, "250 2.0.0 Ok: queued as 4F1C2A");
+          }
+          else {
+            reply(writer, "250 OK");
+          }
+        }
+      }
+      catch(IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private static void reply(OutputStream writer, String response) throws IOException
+    {
+      writer.write((response + "\r\n").getBytes(StandardCharsets.US_ASCII));
+      writer.flush();
+    }
+  }
+}
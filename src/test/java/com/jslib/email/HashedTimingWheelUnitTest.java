@@ -0,0 +1,66 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashedTimingWheelUnitTest
+{
+  private BlockingQueue<List<String>> batches;
+
+  @Before
+  public void beforeTest()
+  {
+    batches = new LinkedBlockingQueue<>();
+  }
+
+  @Test
+  public void releaseDueItem() throws Exception
+  {
+    HashedTimingWheel<String> wheel = new HashedTimingWheel<>(10, 8, batches::add);
+    long scheduleTime = System.currentTimeMillis();
+    wheel.schedule("item", scheduleTime + 50);
+    assertEquals(1, wheel.size());
+
+    List<String> batch = batches.poll(2, TimeUnit.SECONDS);
+    assertEquals("item", batch.get(0));
+    assertTrue(System.currentTimeMillis() - scheduleTime >= 50);
+    assertEquals(0, wheel.size());
+    wheel.stop();
+  }
+
+  @Test
+  public void releaseAfterManyRounds() throws Exception
+  {
+    // wheel rotation is 40 milliseconds so item waits several rounds
+    HashedTimingWheel<String> wheel = new HashedTimingWheel<>(10, 4, batches::add);
+    long scheduleTime = System.currentTimeMillis();
+    wheel.schedule("item", scheduleTime + 150);
+
+    List<String> batch = batches.poll(2, TimeUnit.SECONDS);
+    assertEquals("item", batch.get(0));
+    assertTrue(System.currentTimeMillis() - scheduleTime >= 150);
+    wheel.stop();
+  }
+
+  @Test
+  public void releaseBatch() throws Exception
+  {
+    HashedTimingWheel<String> wheel = new HashedTimingWheel<>(50, 8, batches::add);
+    long dueTime = System.currentTimeMillis() + 20;
+    wheel.schedule("item1", dueTime);
+    wheel.schedule("item2", dueTime);
+    wheel.schedule("item3", dueTime - 10000);
+
+    List<String> batch = batches.poll(2, TimeUnit.SECONDS);
+    assertEquals(3, batch.size());
+    wheel.stop();
+  }
+}
@@ -0,0 +1,70 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class HeaderEncoderUnitTest
+{
+  private HeaderEncoder encoder;
+
+  @Before
+  public void beforeTest()
+  {
+    encoder = new HeaderEncoder("UTF-8", 2);
+  }
+
+  @Test
+  public void subject() throws Exception
+  {
+    String subject = "Confirmați adresa de email pentru contul dumneavoastră de client";
+    MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+    message.setSubject(subject, "UTF-8");
+
+    String encoded = encoder.subject(subject);
+    assertEquals(message.getHeader("Subject", null), encoded);
+    assertSame(encoded, encoder.subject(subject));
+  }
+
+  @Test
+  public void address() throws Exception
+  {
+    InternetAddress address = InternetAddress.parse("Departamentul Vânzări <sales@server.com>")[0];
+    InternetAddress encoded = encoder.address(address);
+
+    assertEquals(new InternetAddress("sales@server.com", "Departamentul Vânzări", "UTF-8").toString(), encoded.toString());
+    assertEquals("Departamentul Vânzări", encoded.getPersonal());
+    assertEquals("sales@server.com", encoded.getAddress());
+  }
+
+  @Test
+  public void addressWithoutPersonal() throws Exception
+  {
+    InternetAddress address = new InternetAddress("sales@server.com");
+    assertSame(address, encoder.address(address));
+  }
+
+  @Test
+  public void generationsRotation() throws Exception
+  {
+    String first = encoder.subject("întâi");
+    encoder.subject("al doilea ș");
+    // non ASCII subjects are encoded into new strings; first is still found into previous generation after rotation
+    encoder.subject("al treilea");
+    assertSame(first, encoder.subject("întâi"));
+
+    encoder.subject("al patrulea");
+    encoder.subject("al cincilea");
+    encoder.subject("al șaselea");
+    assertNotSame(first, encoder.subject("întâi"));
+  }
+}
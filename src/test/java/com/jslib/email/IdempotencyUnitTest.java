@@ -0,0 +1,177 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jslib.api.email.EmailException;
+import com.jslib.lang.Config;
+import com.jslib.util.Classes;
+
+public class IdempotencyUnitTest
+{
+  private EmailSenderImpl sender;
+
+  @Before
+  public void beforeTest() throws Exception
+  {
+    Path repository = Files.createTempDirectory("templates");
+    String content = "<!DOCTYPE HTML><html><head><meta http-equiv='Content-Type' content='text/html; charset=UTF-8' /></head><body><p>order shipped</p></body></html>";
+    Files.write(repository.resolve("order-shipped.html"), content.getBytes(StandardCharsets.UTF_8));
+
+    Config config = new Config("test");
+    config.setProperty("js.repository.path", repository.toString());
+    config.setProperty("js.files.pattern", "*.html");
+    config.setProperty("js.template.engine", "com.jslib.template.xhtml.XhtmlTemplateEngine");
+    config.setProperty("js.email.jmx", "false");
+    config.setProperty("mail.smtp.host", "localhost");
+
+    sender = new EmailSenderImpl();
+    sender.config(config);
+    SessionFactory sessionFactory = Classes.getFieldValue(sender, "sessionFactory");
+    sessionFactory.getSession().setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", BlockingTransport.class.getName(), "test", null));
+    BlockingTransport.reset();
+  }
+
+  @Test
+  public void suppressSentDuplicate()
+  {
+    assertEquals(SendResult.Outcome.SENT, email().sendForResult().getOutcome());
+    assertEquals(SendResult.Outcome.SUPPRESSED, email().sendForResult().getOutcome());
+    assertEquals(1, BlockingTransport.sendsCount.get());
+  }
+
+  @Test
+  public void duplicateFilterCreatedOnFirstKey()
+  {
+    BlockingTransport.release.countDown();
+    ((ExtendedEmail)sender.getEmail("order-shipped").from("sender@server.com").to("john@server.com").subject("order")).sendForResult();
+    assertNull(Classes.getFieldValue(sender, "duplicateFilter"));
+
+    email().sendForResult();
+    assertNotNull(Classes.getFieldValue(sender, "duplicateFilter"));
+  }
+
+  @Test
+  public void concurrentRetryWaitsForSuccessfulOriginal() throws Exception
+  {
+    Future<SendResult> original = start(email());
+    assertTrue(BlockingTransport.sending.await(10, TimeUnit.SECONDS));
+    Future<SendResult> retry = start(email());
+    // give retry time to find original send in flight
+    Thread.sleep(100);
+
+    BlockingTransport.release.countDown();
+    assertEquals(SendResult.Outcome.SENT, original.get(10, TimeUnit.SECONDS).getOutcome());
+    assertEquals(SendResult.Outcome.SUPPRESSED, retry.get(10, TimeUnit.SECONDS).getOutcome());
+    assertEquals(1, BlockingTransport.sendsCount.get());
+  }
+
+  @Test
+  public void concurrentRetrySentAfterFailedOriginal() throws Exception
+  {
+    BlockingTransport.failFirst = true;
+    Future<SendResult> original = start(email());
+    assertTrue(BlockingTransport.sending.await(10, TimeUnit.SECONDS));
+    Future<SendResult> retry = start(email());
+    // give retry time to find original send in flight
+    Thread.sleep(100);
+
+    BlockingTransport.release.countDown();
+    try {
+      original.get(10, TimeUnit.SECONDS);
+      fail("Original send should fail.");
+    }
+    catch(ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof EmailException);
+    }
+    assertEquals(SendResult.Outcome.SENT, retry.get(10, TimeUnit.SECONDS).getOutcome());
+    assertEquals(2, BlockingTransport.sendsCount.get());
+  }
+
+  private ExtendedEmail email()
+  {
+    return ((ExtendedEmail)sender.getEmail("order-shipped").from("sender@server.com").to("john@server.com").subject("order shipped")).idempotencyKey("order-shipped:1");
+  }
+
+  private static Future<SendResult> start(ExtendedEmail email)
+  {
+    FutureTask<SendResult> task = new FutureTask<>(() -> email.sendForResult());
+    Thread thread = new Thread(task);
+    thread.setDaemon(true);
+    thread.start();
+    return task;
+  }
+
+  // --------------------------------------------------------------------------------------------
+
+  /** Transport blocking first send till released; first send optionally fails. */
+  public static class BlockingTransport extends Transport
+  {
+    static volatile CountDownLatch sending;
+    static volatile CountDownLatch release;
+    static volatile boolean failFirst;
+    static final AtomicInteger sendsCount = new AtomicInteger();
+
+    static void reset()
+    {
+      sending = new CountDownLatch(1);
+      release = new CountDownLatch(1);
+      failFirst = false;
+      sendsCount.set(0);
+    }
+
+    public BlockingTransport(Session session, URLName urlname)
+    {
+      super(session, urlname);
+    }
+
+    @Override
+    protected boolean protocolConnect(String host, int port, String user, String password)
+    {
+      return true;
+    }
+
+    @Override
+    public void sendMessage(Message message, Address[] addresses) throws MessagingException
+    {
+      int count = sendsCount.incrementAndGet();
+      if(count > 1) {
+        return;
+      }
+      sending.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      }
+      catch(InterruptedException e) {
+        throw new MessagingException("Interrupted.");
+      }
+      if(failFirst) {
+        throw new MessagingException("Relay not available.");
+      }
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.Test;
+
+public class InlineImageUnitTest
+{
+  @Test
+  public void createBodyPart() throws Exception
+  {
+    File file = new File("fixture/file1.jpg");
+    InlineImage image = new InlineImage("0.file1.jpg@inline", file);
+    assertEquals("image/jpeg", image.getContentType());
+
+    MimeBodyPart part1 = image.createBodyPart();
+    MimeBodyPart part2 = image.createBodyPart();
+    assertNotSame(part1, part2);
+    assertEquals("<0.file1.jpg@inline>", part1.getContentID());
+  }
+
+  @Test
+  public void relatedMessage() throws Exception
+  {
+    File file = new File("fixture/file1.jpg");
+    InlineImage image = new InlineImage("0.file1.jpg@inline", file);
+
+    MimeMultipart related = new MimeMultipart("related");
+    MimeBodyPart bodyPart = new MimeBodyPart();
+    bodyPart.setText("<img src=\"cid:0.file1.jpg@inline\" />", "UTF-8", "html");
+    related.addBodyPart(bodyPart);
+    related.addBodyPart(image.createBodyPart());
+
+    Session session = Session.getInstance(new Properties());
+    MimeMessage message = new MimeMessage(session);
+    message.setContent(related);
+    message.saveChanges();
+
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    message.writeTo(stream);
+    assertTrue(stream.toString("US-ASCII").contains("Content-ID: <0.file1.jpg@inline>"));
+
+    // parse written message back and check image content survives pre-encoded write
+    MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(stream.toByteArray()));
+    MimeMultipart parsedRelated = (MimeMultipart)parsed.getContent();
+    assertEquals(2, parsedRelated.getCount());
+    MimeBodyPart imagePart = (MimeBodyPart)parsedRelated.getBodyPart(1);
+    ByteArrayOutputStream imageBytes = new ByteArrayOutputStream();
+    imagePart.getDataHandler().writeTo(imageBytes);
+    assertArrayEquals(Files.readAllBytes(file.toPath()), imageBytes.toByteArray());
+  }
+}
@@ -0,0 +1,62 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramUnitTest
+{
+  @Test
+  public void empty()
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(99));
+    assertEquals(0, histogram.getMax());
+  }
+
+  @Test
+  public void percentiles()
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for(int i = 1; i <= 1000; ++i) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+    }
+
+    assertEquals(1000, histogram.getCount());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), histogram.getMax());
+    assertWithin(500, histogram.getPercentile(50));
+    assertWithin(950, histogram.getPercentile(95));
+    assertWithin(990, histogram.getPercentile(99));
+    assertEquals(histogram.getMax(), histogram.getPercentile(100));
+  }
+
+  @Test
+  public void smallLatencies()
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(TimeUnit.MICROSECONDS.toNanos(3));
+    histogram.record(TimeUnit.MICROSECONDS.toNanos(5));
+    assertEquals(TimeUnit.MICROSECONDS.toNanos(3), histogram.getPercentile(50));
+    assertEquals(TimeUnit.MICROSECONDS.toNanos(5), histogram.getPercentile(100));
+  }
+
+  @Test
+  public void hugeLatency()
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE, histogram.getPercentile(50));
+  }
+
+  /** Assert percentile is not below expected value and within histogram precision. */
+  private static void assertWithin(long expectedMillis, long percentileNanos)
+  {
+    long expected = TimeUnit.MILLISECONDS.toNanos(expectedMillis);
+    assertTrue(percentileNanos >= expected);
+    assertTrue(percentileNanos <= expected * 1.125);
+  }
+}
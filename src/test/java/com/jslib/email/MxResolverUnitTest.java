@@ -0,0 +1,66 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Test;
+
+import com.jslib.api.email.EmailException;
+
+public class MxResolverUnitTest
+{
+  @Test
+  public void cacheRecords()
+  {
+    StubMxResolver stub = new StubMxResolver().add("example.com", 3600, "mx1.example.com", "mx2.example.com");
+    CachingMxResolver resolver = new CachingMxResolver(stub);
+
+    assertEquals(Arrays.asList("mx1.example.com", "mx2.example.com"), resolver.resolve("example.com").getHosts());
+    resolver.resolve("example.com");
+    assertEquals(1, stub.resolveCount);
+  }
+
+  @Test
+  public void expireRecords()
+  {
+    StubMxResolver stub = new StubMxResolver().add("example.com", 0, "mx.example.com");
+    CachingMxResolver resolver = new CachingMxResolver(stub);
+
+    resolver.resolve("example.com");
+    resolver.resolve("example.com");
+    assertEquals(2, stub.resolveCount);
+  }
+
+  @Test(expected = EmailException.class)
+  public void missingDomain()
+  {
+    new CachingMxResolver(new StubMxResolver()).resolve("missing.com");
+  }
+
+  @Test
+  public void parseRecords()
+  {
+    List<String> hosts = JndiMxResolver.parse("example.com", Arrays.asList("20 mx2.example.com.", "10 mx1.example.com.", "20 mx3.example.com."));
+    assertEquals(Arrays.asList("mx1.example.com", "mx2.example.com", "mx3.example.com"), hosts);
+  }
+
+  @Test
+  public void implicitMx()
+  {
+    List<String> hosts = JndiMxResolver.parse("example.com", Collections.<String> emptyList());
+    assertEquals(Arrays.asList("example.com"), hosts);
+  }
+
+  @Test
+  public void recipientDomain() throws Exception
+  {
+    assertEquals("example.com", DirectDelivery.domain(new InternetAddress("John Doe <john.doe@Example.COM>")));
+    assertNull(DirectDelivery.domain(new InternetAddress("postmaster")));
+  }
+}
@@ -0,0 +1,82 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.jslib.api.email.EmailException;
+
+public class PriorityGateUnitTest
+{
+  @Test
+  public void reservedCapacity()
+  {
+    PriorityGate gate = new PriorityGate(3, 1, 1, 0, 10);
+    gate.acquire(Priority.BULK);
+    gate.acquire(Priority.NORMAL);
+    gate.acquire(Priority.TRANSACTIONAL);
+    assertEquals(3, gate.getInUse());
+    assertEquals(1, gate.getAdmittedCount(Priority.BULK));
+  }
+
+  @Test(expected = EmailException.class)
+  public void shedBulkOnTimeout()
+  {
+    PriorityGate gate = new PriorityGate(2, 1, 0, 10, 10);
+    gate.acquire(Priority.BULK);
+    try {
+      gate.acquire(Priority.BULK);
+    }
+    finally {
+      assertEquals(1, gate.getShedCount(Priority.BULK));
+    }
+  }
+
+  @Test(expected = EmailException.class)
+  public void shedBulkOnFullQueue()
+  {
+    PriorityGate gate = new PriorityGate(2, 1, 0, 1000, 0);
+    gate.acquire(Priority.BULK);
+    gate.acquire(Priority.BULK);
+  }
+
+  @Test
+  public void transactionalBeforeBulk() throws Exception
+  {
+    final PriorityGate gate = new PriorityGate(1, 0, 0, 10000, 10);
+    gate.acquire(Priority.NORMAL);
+
+    final StringBuffer order = new StringBuffer();
+    final CountDownLatch done = new CountDownLatch(2);
+    Thread bulk = new Thread(() -> {
+      gate.acquire(Priority.BULK);
+      order.append('B');
+      gate.release();
+      done.countDown();
+    });
+    bulk.start();
+    while(gate.getQueueDepth(Priority.BULK) == 0) {
+      Thread.sleep(1);
+    }
+
+    Thread transactional = new Thread(() -> {
+      gate.acquire(Priority.TRANSACTIONAL);
+      order.append('T');
+      gate.release();
+      done.countDown();
+    });
+    transactional.start();
+    while(gate.getQueueDepth(Priority.TRANSACTIONAL) == 0) {
+      Thread.sleep(1);
+    }
+
+    gate.release();
+    assertTrue(done.await(2, TimeUnit.SECONDS));
+    assertEquals("TB", order.toString());
+    assertTrue(gate.getMaxQueueNanos(Priority.BULK) >= gate.getMaxQueueNanos(Priority.TRANSACTIONAL));
+  }
+}
@@ -20,7 +20,6 @@ import com.jslib.api.email.Email;
 import com.jslib.api.email.EmailSender;
 import com.jslib.lang.Config;
 import com.jslib.util.Classes;
-import com.jslib.util.I18nPool;
 
 public class ProviderUnitTest
 {
@@ -46,8 +45,8 @@ public class ProviderUnitTest
   @Test
   public void templateDocumentsInitialization() throws IOException
   {
-    I18nPool<Document> templatesPool = Classes.getFieldValue(sender, "templatesPool");
-    assertNotNull(templatesPool.get("invoice-page"));
+    TemplatesSnapshot templates = Classes.getFieldValue(sender, "templates");
+    assertNotNull(templates.getPool().get("invoice-page"));
   }
 
   @Test
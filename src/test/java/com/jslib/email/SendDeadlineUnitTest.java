@@ -0,0 +1,227 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SendDeadlineUnitTest
+{
+  @After
+  public void afterTest()
+  {
+    SendDeadline deadline = SendDeadline.current();
+    if(deadline != null) {
+      deadline.end();
+    }
+  }
+
+  @Test
+  public void beginAndEnd()
+  {
+    SendDeadline deadline = SendDeadline.begin(1000, System.nanoTime());
+    assertSame(deadline, SendDeadline.current());
+    assertTrue(deadline.remaining() > 0);
+    assertTrue(deadline.remaining() <= TimeUnit.SECONDS.toNanos(1));
+
+    deadline.end();
+    assertNull(SendDeadline.current());
+  }
+
+  @Test
+  public void enterExpired()
+  {
+    SendDeadline deadline = SendDeadline.begin(1000, System.nanoTime() - TimeUnit.SECONDS.toNanos(2));
+    try {
+      deadline.enter(TracePhase.CONNECT);
+      fail("Expired deadline should throw send timeout.");
+    }
+    catch(SendTimeoutException e) {
+      assertEquals(TracePhase.CONNECT, e.getPhase());
+      assertEquals(1000, e.getTimeout());
+    }
+  }
+
+  @Test
+  public void enterNotExpired()
+  {
+    SendDeadline deadline = SendDeadline.begin(1000, System.nanoTime());
+    deadline.enter(TracePhase.MAIL_FROM);
+    assertEquals(TracePhase.MAIL_FROM, deadline.timeout().getPhase());
+    assertFalse(deadline.isExpired());
+  }
+
+  @Test
+  public void tenantWaitTimeout()
+  {
+    TenantScheduler scheduler = new TenantScheduler(1, 0, Collections.emptyMap(), Collections.emptyMap());
+    scheduler.acquire("A");
+
+    SendDeadline.begin(50, System.nanoTime());
+    try {
+      scheduler.acquire("B");
+      fail("Tenant wait should time out.");
+    }
+    catch(SendTimeoutException e) {
+      assertEquals(TracePhase.ACQUIRE, e.getPhase());
+    }
+    assertEquals(0, scheduler.getQueueDepth("B"));
+    assertEquals(1, scheduler.getInFlight());
+  }
+
+  @Test
+  public void unwatchBeforeWatchdog() throws Exception
+  {
+    Properties properties = new Properties();
+    properties.put("mail.transport.protocol", "smtp");
+    Session session = Session.getInstance(properties);
+    ExtendedSMTPTransport.register(session);
+    ExtendedSMTPTransport transport = (ExtendedSMTPTransport)session.getTransport();
+
+    SendDeadline deadline = SendDeadline.begin(10000, System.nanoTime());
+    deadline.watch(transport);
+    assertFalse(deadline.unwatch());
+    assertFalse(deadline.isExpired());
+    assertFalse(transport.isAborted());
+    assertFalse(deadline.unwatch());
+  }
+
+  @Test
+  public void watchdogAfterCompletion() throws Exception
+  {
+    Properties properties = new Properties();
+    properties.put("mail.transport.protocol", "smtp");
+    Session session = Session.getInstance(properties);
+    ExtendedSMTPTransport.register(session);
+    ExtendedSMTPTransport transport = (ExtendedSMTPTransport)session.getTransport();
+
+    // transport operation completes but watchdog fires before sending thread ends watching
+    SendDeadline deadline = SendDeadline.begin(1, System.nanoTime());
+    deadline.watch(transport);
+    long timeout = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while(!transport.isAborted() && System.nanoTime() < timeout) {
+      Thread.sleep(1);
+    }
+    assertTrue(deadline.unwatch());
+    assertTrue(deadline.isExpired());
+    assertTrue(transport.isAborted());
+
+    TransportPool pool = new TransportPool(session, 1);
+    pool.release(transport, true);
+    assertEquals(0, pool.getIdleCount());
+  }
+
+  @Test
+  public void hungTransportValidation() throws Exception
+  {
+    try (ServerSocket serverSocket = new ServerSocket(0)) {
+      // server replies to connection and EHLO but never to NOOP
+      Thread server = new Thread(() -> {
+        try (Socket socket = serverSocket.accept()) {
+          BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+          OutputStream writer = socket.getOutputStream();
+          writer.write("220 localhost ESMTP\r\n".getBytes(StandardCharsets.US_ASCII));
+          String line;
+          while((line = reader.readLine()) != null) {
+            if(line.startsWith("EHLO")) {
+              writer.write("250 localhost\r\n".getBytes(StandardCharsets.US_ASCII));
+            }
+          }
+        }
+        catch(IOException ignore) {}
+      });
+      server.setDaemon(true);
+      server.start();
+
+      Properties properties = new Properties();
+      properties.put("mail.transport.protocol", "smtp");
+      properties.put("mail.smtp.host", "localhost");
+      properties.put("mail.smtp.port", Integer.toString(serverSocket.getLocalPort()));
+      properties.put("mail.smtp.timeout", "10000");
+      Session session = Session.getInstance(properties);
+      ExtendedSMTPTransport.register(session);
+      TransportPool pool = new TransportPool(session, 1);
+      pool.release(pool.borrow(), true);
+
+      SendDeadline.begin(200, System.nanoTime());
+      long start = System.nanoTime();
+      try {
+        pool.borrow();
+        fail("Hung transport validation should time out.");
+      }
+      catch(SendTimeoutException e) {
+        assertEquals(TracePhase.ACQUIRE, e.getPhase());
+      }
+      // validation is aborted on send deadline, not on socket read timeout
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+      assertEquals(0, pool.getIdleCount());
+      assertEquals(0, pool.getActiveCount());
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void hungTransportHeartbeat() throws Exception
+  {
+    try (ServerSocket serverSocket = new ServerSocket(0)) {
+      // server trickles NOOP reply continuation lines, never ending reply, so socket read timeout never fires
+      Thread server = new Thread(() -> {
+        try (Socket socket = serverSocket.accept()) {
+          BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+          OutputStream writer = socket.getOutputStream();
+          writer.write("220 localhost ESMTP\r\n".getBytes(StandardCharsets.US_ASCII));
+          String line;
+          while((line = reader.readLine()) != null) {
+            if(line.startsWith("EHLO")) {
+              writer.write("250 localhost\r\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            if(line.startsWith("NOOP")) {
+              for(;;) {
+                writer.write("250-wait\r\n".getBytes(StandardCharsets.US_ASCII));
+                writer.flush();
+                Thread.sleep(100);
+              }
+            }
+          }
+        }
+        catch(IOException | InterruptedException ignore) {}
+      });
+      server.setDaemon(true);
+      server.start();
+
+      Properties properties = new Properties();
+      properties.put("mail.transport.protocol", "smtp");
+      properties.put("mail.smtp.host", "localhost");
+      properties.put("mail.smtp.port", Integer.toString(serverSocket.getLocalPort()));
+      properties.put("mail.smtp.timeout", "500");
+      Session session = Session.getInstance(properties);
+      ExtendedSMTPTransport.register(session);
+      TransportPool pool = new TransportPool(session, 1, 0, 100, 0);
+      pool.release(pool.borrow(), true);
+
+      long start = System.nanoTime();
+      pool.heartbeat(start + TimeUnit.MILLISECONDS.toNanos(200));
+      // probe is aborted after socket read timeout even if server keeps sending bytes
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+      assertEquals(0, pool.getIdleCount());
+      assertNull(SendDeadline.current());
+    }
+  }
+}
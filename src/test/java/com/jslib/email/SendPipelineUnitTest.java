@@ -0,0 +1,294 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jslib.api.email.EmailException;
+import com.jslib.lang.Config;
+import com.jslib.util.Classes;
+
+public class SendPipelineUnitTest
+{
+  private EmailSenderImpl sender;
+  private SendPipeline pipeline;
+
+  @Before
+  public void beforeTest() throws Exception
+  {
+    beforeTest(new Config("test"));
+  }
+
+  private void beforeTest(Config config) throws Exception
+  {
+    Path repository = Files.createTempDirectory("templates");
+    String content = "<!DOCTYPE HTML><html><head><meta http-equiv='Content-Type' content='text/html; charset=UTF-8' /></head><body><p>invoice</p></body></html>";
+    Files.write(repository.resolve("invoice.html"), content.getBytes(StandardCharsets.UTF_8));
+
+    config.setProperty("js.repository.path", repository.toString());
+    config.setProperty("js.files.pattern", "*.html");
+    config.setProperty("js.template.engine", "com.jslib.template.xhtml.XhtmlTemplateEngine");
+    config.setProperty("js.email.jmx", "false");
+    config.setProperty("js.email.pipeline", "true");
+    config.setProperty("js.email.pipeline.cpu.threads", "1");
+    config.setProperty("js.email.pipeline.io.threads", "1");
+    config.setProperty("js.email.pipeline.capacity", "2");
+    config.setProperty("mail.smtp.host", "localhost");
+
+    sender = new EmailSenderImpl();
+    sender.config(config);
+    SessionFactory sessionFactory = Classes.getFieldValue(sender, "sessionFactory");
+    sessionFactory.getSession().setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", BlockingTransport.class.getName(), "test", null));
+    BlockingTransport.reset();
+    pipeline = sender.getSendPipeline();
+  }
+
+  @Test
+  public void send() throws Exception
+  {
+    BlockingTransport.release.countDown();
+    SendResult result = email().sendAsync().get(10, TimeUnit.SECONDS);
+    assertEquals(SendResult.Outcome.SENT, result.getOutcome());
+    assertEquals(1, BlockingTransport.sendsCount.get());
+  }
+
+  @Test
+  public void queueDepth() throws Exception
+  {
+    // first email blocks the only I/O thread, next two wait into transmit stage queue
+    List<CompletableFuture<SendResult>> futures = new ArrayList<>();
+    futures.add(email().sendAsync());
+    assertTrue(BlockingTransport.sending.await(10, TimeUnit.SECONDS));
+    futures.add(email().sendAsync());
+    awaitDepth(1);
+    assertEquals(1, pipeline.getTransmitQueueDepth());
+    assertEquals(0, pipeline.getRenderQueueDepth());
+    assertEquals(0, pipeline.getBuildQueueDepth());
+
+    BlockingTransport.release.countDown();
+    for(CompletableFuture<SendResult> future : futures) {
+      assertEquals(SendResult.Outcome.SENT, future.get(10, TimeUnit.SECONDS).getOutcome());
+    }
+    assertEquals(0, pipeline.getTransmitQueueDepth());
+    assertEquals(0, pipeline.getRenderQueueDepth());
+    assertEquals(0, pipeline.getBuildQueueDepth());
+  }
+
+  @Test
+  public void backpressure() throws Exception
+  {
+    // with all stages full, email submission blocks caller thread till transmission resumes
+    final List<CompletableFuture<SendResult>> futures = new ArrayList<>();
+    final CountDownLatch submitted = new CountDownLatch(1);
+    Thread submitter = new Thread(() -> {
+      for(int i = 0; i < 10; ++i) {
+        futures.add(email().sendAsync());
+      }
+      submitted.countDown();
+    });
+    submitter.setDaemon(true);
+    submitter.start();
+
+    assertTrue(BlockingTransport.sending.await(10, TimeUnit.SECONDS));
+    assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+    assertTrue(submitter.isAlive());
+
+    BlockingTransport.release.countDown();
+    assertTrue(submitted.await(10, TimeUnit.SECONDS));
+    submitter.join();
+    for(CompletableFuture<SendResult> future : futures) {
+      assertEquals(SendResult.Outcome.SENT, future.get(10, TimeUnit.SECONDS).getOutcome());
+    }
+    assertEquals(10, BlockingTransport.sendsCount.get());
+  }
+
+  @Test
+  public void fullStagesNotCompensated() throws Exception
+  {
+    // stage threads do not block on full stages so fork-join pool does not add compensation threads
+    List<CompletableFuture<SendResult>> futures = new ArrayList<>();
+    for(int i = 0; i < 6; ++i) {
+      futures.add(email().sendAsync());
+    }
+    assertTrue(BlockingTransport.sending.await(10, TimeUnit.SECONDS));
+    Thread.sleep(200);
+    ForkJoinPool cpuPool = Classes.getFieldValue(pipeline, "cpuPool");
+    assertEquals(1, cpuPool.getPoolSize());
+
+    BlockingTransport.release.countDown();
+    for(CompletableFuture<SendResult> future : futures) {
+      assertEquals(SendResult.Outcome.SENT, future.get(10, TimeUnit.SECONDS).getOutcome());
+    }
+  }
+
+  @Test
+  public void stopWithBacklog() throws Exception
+  {
+    List<CompletableFuture<SendResult>> futures = new ArrayList<>();
+    for(int i = 0; i < 6; ++i) {
+      futures.add(email().sendAsync());
+    }
+    assertTrue(BlockingTransport.sending.await(10, TimeUnit.SECONDS));
+    Thread stopper = new Thread(() -> {
+      try {
+        pipeline.stop();
+      }
+      catch(InterruptedException ignore) {}
+    });
+    stopper.start();
+
+    // emails waiting on stage backlogs are still sent after stop
+    BlockingTransport.release.countDown();
+    stopper.join(10000);
+    assertFalse(stopper.isAlive());
+    for(CompletableFuture<SendResult> future : futures) {
+      assertEquals(SendResult.Outcome.SENT, future.get(10, TimeUnit.SECONDS).getOutcome());
+    }
+    try {
+      email().sendAsync();
+      fail("Stopped pipeline should reject emails.");
+    }
+    catch(EmailException expected) {}
+  }
+
+  @Test
+  public void renderFailure() throws Exception
+  {
+    // more than one model object is rejected by email rendering, on render stage
+    CompletableFuture<SendResult> future = pipeline.submit((EmailImpl)email(), new Object[]
+    {
+        new Object(), new Object()
+    });
+    assertFailure(future, IllegalArgumentException.class);
+    assertEquals(0, BlockingTransport.sendsCount.get());
+  }
+
+  @Test
+  public void buildFailure() throws Exception
+  {
+    // email without recipient is rejected by message building, on build stage
+    CompletableFuture<SendResult> future = ((ExtendedEmail)sender.getEmail("invoice").from("sender@server.com").subject("invoice")).sendAsync();
+    assertFailure(future, EmailException.class);
+    assertEquals(0, BlockingTransport.sendsCount.get());
+  }
+
+  @Test
+  public void transmitFailure() throws Exception
+  {
+    BlockingTransport.fail = true;
+    BlockingTransport.release.countDown();
+    assertFailure(email().sendAsync(), EmailException.class);
+  }
+
+  @Test
+  public void tenantTransmitRejected() throws Exception
+  {
+    Config config = new Config("test");
+    config.setProperty("js.email.tenants.capacity", "1");
+    beforeTest(config);
+    ThreadPoolExecutor ioPool = Classes.getFieldValue(pipeline, "ioPool");
+    ioPool.shutdown();
+
+    // rejected transmissions release transmit stage slots; with leaked slots third email would block build stage
+    for(int i = 0; i < 3; ++i) {
+      assertFailure(email().tenant("acme").sendAsync(), EmailException.class);
+    }
+    assertEquals(0, pipeline.getTransmitQueueDepth());
+    assertEquals(0, sender.getTenantScheduler().getInFlight());
+    assertEquals(0, BlockingTransport.sendsCount.get());
+  }
+
+  private ExtendedEmail email()
+  {
+    return (ExtendedEmail)sender.getEmail("invoice").from("sender@server.com").to("john@server.com").subject("invoice");
+  }
+
+  private void awaitDepth(int depth) throws InterruptedException
+  {
+    for(int i = 0; i < 500 && pipeline.getTransmitQueueDepth() != depth; ++i) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static void assertFailure(CompletableFuture<SendResult> future, Class<? extends Throwable> exceptionClass) throws Exception
+  {
+    try {
+      future.get(10, TimeUnit.SECONDS);
+      fail("Send should fail.");
+    }
+    catch(ExecutionException expected) {
+      assertTrue(expected.getCause().toString(), exceptionClass.isInstance(expected.getCause()));
+    }
+  }
+
+  // --------------------------------------------------------------------------------------------
+
+  /** Transport blocking sends till released; sends optionally fail. */
+  public static class BlockingTransport extends Transport
+  {
+    static volatile CountDownLatch sending;
+    static volatile CountDownLatch release;
+    static volatile boolean fail;
+    static final AtomicInteger sendsCount = new AtomicInteger();
+
+    static void reset()
+    {
+      sending = new CountDownLatch(1);
+      release = new CountDownLatch(1);
+      fail = false;
+      sendsCount.set(0);
+    }
+
+    public BlockingTransport(Session session, URLName urlname)
+    {
+      super(session, urlname);
+    }
+
+    @Override
+    protected boolean protocolConnect(String host, int port, String user, String password)
+    {
+      return true;
+    }
+
+    @Override
+    public void sendMessage(Message message, Address[] addresses) throws MessagingException
+    {
+      sendsCount.incrementAndGet();
+      sending.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      }
+      catch(InterruptedException e) {
+        throw new MessagingException("Interrupted.");
+      }
+      if(fail) {
+        throw new MessagingException("Relay not available.");
+      }
+    }
+  }
+}
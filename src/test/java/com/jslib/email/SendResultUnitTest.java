@@ -0,0 +1,216 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jslib.lang.Config;
+import com.jslib.util.Classes;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+public class SendResultUnitTest
+{
+  private Path repository;
+
+  @Before
+  public void beforeTest() throws Exception
+  {
+    repository = Files.createTempDirectory("templates");
+    String content = "<!DOCTYPE HTML><html><head><meta http-equiv='Content-Type' content='text/html; charset=UTF-8' /></head><body><p>invoice</p></body></html>";
+    Files.write(repository.resolve("invoice.html"), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void sent() throws Exception
+  {
+    EmailSenderImpl sender = sender(new Config("test"));
+    SendResult result = email(sender, "john@server.com", "jane@server.com").sendForResult();
+
+    assertEquals(SendResult.Outcome.SENT, result.getOutcome());
+    assertNotNull(result.getMessageID());
+    List<RecipientStatus> recipients = result.getRecipients();
+    assertEquals(2, recipients.size());
+    assertTrue(recipients.get(0).isAccepted());
+    assertTrue(recipients.get(1).isAccepted());
+
+    assertTrue(result.getRenderNanos() > 0);
+    assertTrue(result.getBuildNanos() > 0);
+    assertTrue(result.getAcquireNanos() > 0);
+    assertTrue(result.getTransmitNanos() > 0);
+    assertEquals(result.getRenderNanos() + result.getBuildNanos() + result.getAcquireNanos() + result.getTransmitNanos(), result.getTotalNanos());
+  }
+
+  @Test
+  public void partialRecipients() throws Exception
+  {
+    EmailSenderImpl sender = sender(new Config("test"));
+    SendResult result = email(sender, "john@server.com", "nobody@server.com").sendForResult();
+
+    assertEquals(SendResult.Outcome.SENT, result.getOutcome());
+    List<RecipientStatus> recipients = result.getRecipients();
+    assertEquals(2, recipients.size());
+
+    RecipientStatus accepted = recipients.get(0);
+    assertEquals("john@server.com", accepted.getAddress());
+    assertTrue(accepted.isAccepted());
+    assertEquals(0, accepted.getReturnCode());
+
+    RecipientStatus rejected = recipients.get(1);
+    assertEquals("nobody@server.com", rejected.getAddress());
+    assertFalse(rejected.isAccepted());
+    assertEquals(550, rejected.getReturnCode());
+    assertTrue(rejected.getResponse().contains("User unknown"));
+    assertTrue(result.getTransmitNanos() > 0);
+  }
+
+  @Test
+  public void suppressed() throws Exception
+  {
+    EmailSenderImpl sender = sender(new Config("test"));
+    ((ExtendedEmail)email(sender, "john@server.com")).idempotencyKey("invoice:1").sendForResult();
+    SendResult result = ((ExtendedEmail)email(sender, "john@server.com")).idempotencyKey("invoice:1").sendForResult();
+
+    assertEquals(SendResult.Outcome.SUPPRESSED, result.getOutcome());
+    assertTrue(result.getRecipients().isEmpty());
+    assertNull(result.getServerResponse());
+    assertTrue(result.getRenderNanos() > 0);
+    assertEquals(0, result.getBuildNanos());
+    assertEquals(0, result.getAcquireNanos());
+    assertEquals(0, result.getTransmitNanos());
+  }
+
+  @Test
+  public void spooled() throws Exception
+  {
+    Config config = new Config("test");
+    config.setProperty("js.email.spool", Files.createTempDirectory("spool").toString());
+    config.setProperty("js.email.spool.workers", "0");
+    EmailSenderImpl sender = sender(config);
+    SendResult result = email(sender, "john@server.com").sendForResult();
+
+    assertEquals(SendResult.Outcome.SPOOLED, result.getOutcome());
+    assertNotNull(result.getMessageID());
+    assertTrue(result.getRecipients().isEmpty());
+    assertTrue(result.getRenderNanos() > 0);
+    assertTrue(result.getBuildNanos() > 0);
+    assertEquals(0, result.getAcquireNanos());
+    // transmit time is spool file writing
+    assertTrue(result.getTransmitNanos() > 0);
+    assertEquals(0, PartialTransport.sendsCount);
+  }
+
+  @Test
+  public void dryRun() throws Exception
+  {
+    Config config = new Config("test");
+    config.setProperty("js.email.dry.run", "true");
+    EmailSenderImpl sender = sender(config);
+    SendResult result = email(sender, "john@server.com").sendForResult();
+
+    assertEquals(SendResult.Outcome.DRY_RUN, result.getOutcome());
+    assertNotNull(result.getMessageID());
+    assertTrue(result.getRecipients().isEmpty());
+    assertTrue(result.getRenderNanos() > 0);
+    assertTrue(result.getBuildNanos() > 0);
+    assertEquals(0, result.getAcquireNanos());
+    // transmit time is message serialization
+    assertTrue(result.getTransmitNanos() > 0);
+    assertEquals(0, PartialTransport.sendsCount);
+  }
+
+  @Test
+  public void recipientStatusToString()
+  {
+    assertEquals("john@server.com", new RecipientStatus("john@server.com", true, 0, null).toString());
+    assertEquals("nobody@server.com: 550 User unknown", new RecipientStatus("nobody@server.com", false, 550, "550 User unknown").toString());
+  }
+
+  private EmailSenderImpl sender(Config config) throws Exception
+  {
+    config.setProperty("js.repository.path", repository.toString());
+    config.setProperty("js.files.pattern", "*.html");
+    config.setProperty("js.template.engine", "com.jslib.template.xhtml.XhtmlTemplateEngine");
+    config.setProperty("js.email.jmx", "false");
+    config.setProperty("mail.smtp.host", "localhost");
+
+    EmailSenderImpl sender = new EmailSenderImpl();
+    sender.config(config);
+    SessionFactory sessionFactory = Classes.getFieldValue(sender, "sessionFactory");
+    sessionFactory.getSession().setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", PartialTransport.class.getName(), "test", null));
+    PartialTransport.sendsCount = 0;
+    return sender;
+  }
+
+  private static ExtendedEmail email(EmailSenderImpl sender, String... to)
+  {
+    return (ExtendedEmail)sender.getEmail("invoice").from("sender@server.com").to(to).subject("invoice");
+  }
+
+  // --------------------------------------------------------------------------------------------
+
+  /** Transport accepting message data but rejecting recipients with <code>nobody</code> user name. */
+  public static class PartialTransport extends Transport
+  {
+    static volatile int sendsCount;
+
+    public PartialTransport(Session session, URLName urlname)
+    {
+      super(session, urlname);
+    }
+
+    @Override
+    protected boolean protocolConnect(String host, int port, String user, String password)
+    {
+      return true;
+    }
+
+    @Override
+    public void sendMessage(Message message, Address[] addresses) throws MessagingException
+    {
+      ++sendsCount;
+      Address rejected = null;
+      Address accepted = null;
+      for(Address address : addresses) {
+        if(address.toString().startsWith("nobody")) {
+          rejected = address;
+        }
+        else {
+          accepted = address;
+        }
+      }
+      if(rejected == null) {
+        return;
+      }
+
+      SMTPSendFailedException exception = new SMTPSendFailedException(".", 250, "250 OK queued", null, new Address[]
+      {
+          accepted
+      }, null, new Address[]
+      {
+          rejected
+      });
+      exception.setNextException(new SMTPAddressFailedException((InternetAddress)rejected, "RCPT TO", 550, "550 5.1.1 User unknown"));
+      throw exception;
+    }
+  }
+}
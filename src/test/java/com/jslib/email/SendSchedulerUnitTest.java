@@ -0,0 +1,320 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jslib.api.email.EmailException;
+import com.jslib.lang.Config;
+import com.jslib.util.Classes;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+public class SendSchedulerUnitTest
+{
+  private Path repository;
+  private Path spool;
+
+  @Before
+  public void beforeTest() throws IOException
+  {
+    repository = Files.createTempDirectory("templates");
+    String content = "<!DOCTYPE HTML><html><head><meta http-equiv='Content-Type' content='text/html; charset=UTF-8' /></head><body><p>invoice</p></body></html>";
+    Files.write(repository.resolve("invoice.html"), content.getBytes(StandardCharsets.UTF_8));
+    spool = Files.createTempDirectory("schedule");
+  }
+
+  @Test
+  public void sendAfter() throws Exception
+  {
+    EmailSenderImpl sender = sender(null);
+    email(sender).sendAfter(Duration.ofMillis(50));
+    assertEquals(1, sender.getSendScheduler().getPendingCount());
+
+    CapturedEmail email = awaitCaptured(sender);
+    assertEquals("john@server.com", email.getRecipients().get(0));
+    assertEquals(0, sender.getSendScheduler().getPendingCount());
+  }
+
+  @Test
+  public void sendAtPast() throws Exception
+  {
+    EmailSenderImpl sender = sender(null);
+    email(sender).sendAt(Instant.now().minusSeconds(60));
+    assertNotNull(awaitCaptured(sender));
+  }
+
+  @Test
+  public void spoolRoundTrip() throws Exception
+  {
+    EmailSenderImpl sender = sender(spool);
+    email(sender).sendAfter(Duration.ofMillis(500));
+    List<Path> files = spoolFiles();
+    assertEquals(1, files.size());
+    String messageID = messageID(files.get(0));
+    sender.getSendScheduler().stop();
+
+    // new sender on the same spool reloads scheduled email and sends it with original message ID
+    EmailSenderImpl restartedSender = sender(spool);
+    assertEquals(1, restartedSender.getSendScheduler().getPendingCount());
+    CapturedEmail email = awaitCaptured(restartedSender);
+    assertEquals(messageID, email.getMessageID());
+    assertEquals("john@server.com", email.getRecipients().get(0));
+
+    for(int i = 0; i < 100 && !spoolFiles().isEmpty(); ++i) {
+      Thread.sleep(10);
+    }
+    assertTrue(spoolFiles().isEmpty());
+  }
+
+  @Test
+  public void spoolKeepFutureEmail() throws Exception
+  {
+    EmailSenderImpl sender = sender(spool);
+    email(sender).sendAt(Instant.now().plusSeconds(3600));
+    sender.getSendScheduler().stop();
+
+    EmailSenderImpl restartedSender = sender(spool);
+    assertEquals(1, restartedSender.getSendScheduler().getPendingCount());
+    assertEquals(1, spoolFiles().size());
+    restartedSender.getSendScheduler().stop();
+  }
+
+  @Test(timeout = 10000)
+  public void truncatedSpoolFile() throws Exception
+  {
+    Files.write(spool.resolve("1.1.1.eml"), "1234".getBytes(StandardCharsets.US_ASCII));
+    Files.write(spool.resolve("2.2.2.eml"), new byte[0]);
+
+    EmailSenderImpl sender = sender(spool);
+    assertEquals(0, sender.getSendScheduler().getPendingCount());
+    sender.getSendScheduler().stop();
+  }
+
+  @Test
+  public void spoolSendAttributes() throws Exception
+  {
+    EmailSenderImpl sender = sender(spool);
+    email(sender).tenant("acme & co").priority(Priority.BULK).timeout(Duration.ofSeconds(30)).idempotencyKey("invoice-1").sendAt(Instant.now().plusSeconds(3600));
+    List<String> header = Files.readAllLines(spoolFiles().get(0), StandardCharsets.US_ASCII).subList(1, 6);
+    assertEquals(Arrays.asList("sender@server.com", "acme+%26+co", "BULK", "30000", "invoice-1"), header);
+    sender.getSendScheduler().stop();
+
+    // idempotency key of reloaded email is still registered so that a duplicate is suppressed after restart
+    EmailSenderImpl restartedSender = sender(spool);
+    assertEquals(1, restartedSender.getSendScheduler().getPendingCount());
+    assertEquals(SendResult.Outcome.SUPPRESSED, email(restartedSender).idempotencyKey("invoice-1").sendForResult().getOutcome());
+    restartedSender.getSendScheduler().stop();
+  }
+
+  @Test
+  public void retryTransientFailure() throws Exception
+  {
+    EmailSenderImpl sender = sender(spool, "js.email.capture", "false", "js.email.schedule.retry.delay", "10");
+    FlakyTransport.failures = 2;
+    FlakyTransport.returnCode = 0;
+    email(sender).sendAfter(Duration.ofMillis(10));
+
+    awaitSendsCount(3);
+    awaitSpoolFiles(".eml", 0);
+    assertEquals(0, FlakyTransport.failures);
+    assertEquals(0, sender.getSendScheduler().getPendingCount());
+    sender.getSendScheduler().stop();
+  }
+
+  @Test
+  public void permanentFailureNotRetried() throws Exception
+  {
+    EmailSenderImpl sender = sender(spool, "js.email.capture", "false", "js.email.schedule.retry.delay", "10");
+    FlakyTransport.failures = 1;
+    FlakyTransport.returnCode = 554;
+    email(sender).sendAfter(Duration.ofMillis(10));
+
+    awaitSpoolFiles(".failed", 1);
+    Thread.sleep(100);
+    assertEquals(1, FlakyTransport.sendsCount);
+    sender.getSendScheduler().stop();
+  }
+
+  @Test
+  public void sendThroughPipeline() throws Exception
+  {
+    EmailSenderImpl sender = sender(null, "js.email.capture", "false", "js.email.pipeline", "true");
+    FlakyTransport.failures = 0;
+    email(sender).sendAfter(Duration.ofMillis(10));
+
+    awaitSendsCount(1);
+    assertTrue(FlakyTransport.threadName.startsWith("email-pipeline-io-"));
+    sender.getSendScheduler().stop();
+  }
+
+  @Test
+  public void schedulerNotEnabled() throws Exception
+  {
+    EmailSenderImpl sender = sender(null, "js.email.schedule", "false");
+    assertNull(sender.getSendScheduler());
+    try {
+      email(sender).sendAfter(Duration.ofMillis(10));
+      fail("Scheduled send should be rejected if scheduler is not enabled.");
+    }
+    catch(EmailException expected) {}
+  }
+
+  @Test
+  public void transientFailures()
+  {
+    assertTrue(SendScheduler.isTransient(new SendTimeoutException(TracePhase.CONNECT, 1000)));
+    assertTrue(SendScheduler.isTransient(new EmailException(new MessagingException("Could not connect.", new IOException()))));
+    assertTrue(SendScheduler.isTransient(new SMTPSendFailedException("DATA", 451, "451 Try again later", null, null, null, null)));
+    assertFalse(SendScheduler.isTransient(new SMTPSendFailedException("DATA", 554, "554 Rejected", null, null, null, null)));
+    assertFalse(SendScheduler.isTransient(new SendFailedException("Invalid addresses")));
+    assertFalse(SendScheduler.isTransient(new IOException("Missing spool file.")));
+  }
+
+  private EmailSenderImpl sender(Path spool, String... properties) throws Exception
+  {
+    Config config = new Config("test");
+    config.setProperty("js.repository.path", repository.toString());
+    config.setProperty("js.files.pattern", "*.html");
+    config.setProperty("js.template.engine", "com.jslib.template.xhtml.XhtmlTemplateEngine");
+    config.setProperty("js.email.jmx", "false");
+    config.setProperty("js.email.capture", "true");
+    config.setProperty("js.email.schedule.tick", "10");
+    if(spool != null) {
+      config.setProperty("js.email.schedule.spool", spool.toString());
+    }
+    else {
+      config.setProperty("js.email.schedule", "true");
+    }
+    config.setProperty("mail.smtp.host", "localhost");
+    for(int i = 0; i < properties.length; i += 2) {
+      config.setProperty(properties[i], properties[i + 1]);
+    }
+
+    EmailSenderImpl sender = new EmailSenderImpl();
+    sender.config(config);
+    SessionFactory sessionFactory = Classes.getFieldValue(sender, "sessionFactory");
+    sessionFactory.getSession().setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", FlakyTransport.class.getName(), "test", null));
+    FlakyTransport.sendsCount = 0;
+    return sender;
+  }
+
+  private static void awaitSendsCount(int sendsCount) throws InterruptedException
+  {
+    for(int i = 0; i < 500 && FlakyTransport.sendsCount < sendsCount; ++i) {
+      Thread.sleep(10);
+    }
+    assertEquals(sendsCount, FlakyTransport.sendsCount);
+  }
+
+  private void awaitSpoolFiles(String extension, int count) throws IOException, InterruptedException
+  {
+    for(int i = 0; i < 500 && spoolFiles(extension).size() != count; ++i) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, spoolFiles(extension).size());
+  }
+
+  private static ExtendedEmail email(EmailSenderImpl sender)
+  {
+    return (ExtendedEmail)sender.getEmail("invoice").from("sender@server.com").to("john@server.com").subject("invoice");
+  }
+
+  private static CapturedEmail awaitCaptured(EmailSenderImpl sender) throws InterruptedException
+  {
+    for(int i = 0; i < 500; ++i) {
+      List<CapturedEmail> emails = sender.getCaptureMailbox().getAll();
+      if(!emails.isEmpty()) {
+        assertEquals(1, emails.size());
+        return emails.get(0);
+      }
+      Thread.sleep(10);
+    }
+    throw new AssertionError("Scheduled email not sent.");
+  }
+
+  private List<Path> spoolFiles() throws IOException
+  {
+    return spoolFiles(".eml");
+  }
+
+  private List<Path> spoolFiles(String extension) throws IOException
+  {
+    try (Stream<Path> files = Files.list(spool)) {
+      return files.filter(file -> file.toString().endsWith(extension)).collect(Collectors.toList());
+    }
+  }
+
+  private static String messageID(Path file) throws IOException
+  {
+    for(String line : Files.readAllLines(file, StandardCharsets.US_ASCII)) {
+      if(line.startsWith("Message-ID: ")) {
+        return line.substring(12);
+      }
+    }
+    fail("Missing message ID.");
+    return null;
+  }
+
+  // --------------------------------------------------------------------------------------------
+
+  /** Transport failing configured number of sends, with given SMTP reply code or, if zero, with a connection error. */
+  public static class FlakyTransport extends Transport
+  {
+    static volatile int failures;
+    static volatile int returnCode;
+    static volatile int sendsCount;
+    static volatile String threadName;
+
+    public FlakyTransport(Session session, URLName urlname)
+    {
+      super(session, urlname);
+    }
+
+    @Override
+    protected boolean protocolConnect(String host, int port, String user, String password)
+    {
+      return true;
+    }
+
+    @Override
+    public void sendMessage(Message message, Address[] addresses) throws MessagingException
+    {
+      threadName = Thread.currentThread().getName();
+      ++sendsCount;
+      if(failures == 0) {
+        return;
+      }
+      --failures;
+      if(returnCode == 0) {
+        throw new MessagingException("Connection reset.", new IOException());
+      }
+      throw new SMTPSendFailedException("DATA", returnCode, returnCode + " Rejected", null, null, null, null);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SendTraceUnitTest
+{
+  private RecordingTracer tracer;
+
+  @Before
+  public void beforeTest()
+  {
+    tracer = new RecordingTracer();
+  }
+
+  @Test
+  public void protocolPhases()
+  {
+    SendTrace trace = SendTrace.begin(tracer, "<id@server.com>", "user-registration");
+    assertSame(trace, SendTrace.current());
+
+    // server greeting has no command and is not traced
+    trace.replyReceived(220);
+    trace.commandSent("EHLO localhost");
+    trace.replyReceived(250);
+    trace.commandSent("MAIL FROM:<from@server.com>");
+    trace.replyReceived(250);
+    trace.commandSent("RCPT TO:<to@server.com>");
+    trace.replyReceived(250);
+    trace.commandSent("DATA");
+    trace.replyReceived(354);
+    trace.commandSent(".");
+    trace.replyReceived(250);
+    trace.commandSent("QUIT");
+    trace.end(true);
+
+    assertNull(SendTrace.current());
+    assertEquals(Arrays.asList(TracePhase.EHLO, TracePhase.MAIL_FROM, TracePhase.RCPT_TO, TracePhase.DATA, TracePhase.CONTENT, TracePhase.FINAL_REPLY), tracer.phases);
+    assertEquals(Arrays.asList(250, 250, 250, 354, 0, 250), tracer.returnCodes);
+    assertEquals("<id@server.com>", tracer.messageID);
+    assertEquals("user-registration", tracer.templateName);
+    assertTrue(tracer.success);
+  }
+
+  @Test
+  public void pipelinedCommands()
+  {
+    SendTrace trace = SendTrace.begin(tracer, "<id@server.com>", null);
+    trace.commandSent("MAIL FROM:<from@server.com>");
+    trace.commandSent("RCPT TO:<to1@server.com>");
+    trace.commandSent("RCPT TO:<to2@server.com>");
+    trace.replyReceived(250);
+    trace.replyReceived(250);
+    trace.replyReceived(550);
+    trace.commandSent("RSET");
+    trace.replyReceived(250);
+    trace.end(false);
+
+    assertEquals(Arrays.asList(TracePhase.MAIL_FROM, TracePhase.RCPT_TO, TracePhase.RCPT_TO, TracePhase.RSET), tracer.phases);
+    assertEquals(Arrays.asList(250, 250, 550, 250), tracer.returnCodes);
+  }
+
+  @Test
+  public void slowSendLogger()
+  {
+    SlowSendLogger logger = new SlowSendLogger(0);
+    SendTrace trace = SendTrace.begin(logger, "<id@server.com>", "user-registration");
+    trace.phase(TracePhase.ACQUIRE, 1000, 0);
+    trace.commandSent("MAIL FROM:<from@server.com>");
+    trace.replyReceived(250);
+    trace.end(true);
+    assertNull(SendTrace.current());
+  }
+
+  // --------------------------------------------------------------------------------------------
+  // FIXTURE
+
+  private static class RecordingTracer implements SendTracer
+  {
+    final List<TracePhase> phases = new ArrayList<>();
+    final List<Integer> returnCodes = new ArrayList<>();
+    String messageID;
+    String templateName;
+    boolean success;
+
+    @Override
+    public void onPhase(String messageID, String templateName, TracePhase phase, long nanos, int returnCode)
+    {
+      phases.add(phase);
+      returnCodes.add(returnCode);
+    }
+
+    @Override
+    public void onComplete(String messageID, String templateName, long nanos, boolean success)
+    {
+      this.messageID = messageID;
+      this.templateName = templateName;
+      this.success = success;
+    }
+  }
+}
@@ -3,14 +3,30 @@ package com.jslib.email;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.mail.Address;
 import javax.mail.Session;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -20,11 +36,11 @@ import com.jslib.api.email.Email;
 import com.jslib.api.email.EmailSender;
 import com.jslib.lang.Config;
 import com.jslib.util.Classes;
-import com.jslib.util.I18nPool;
 
 public class SenderUnitTest
 {
   private EmailSender sender;
+  private final List<EmailSenderImpl> senders = new ArrayList<>();
 
   @Before
   public void beforeTest() throws Exception
@@ -43,11 +59,241 @@ public class SenderUnitTest
     sender.config(config);
   }
 
+  @After
+  public void afterTest()
+  {
+    // release management bean, scheduler and spool threads and transports
+    ((EmailSenderImpl)sender).close();
+    for(EmailSenderImpl sender : senders) {
+      sender.close();
+    }
+  }
+
   @Test
   public void templateDocumentsInitialization() throws IOException
   {
-    I18nPool<Document> templatesPool = Classes.getFieldValue(sender, "templatesPool");
-    assertNotNull(templatesPool.get("invoice-page"));
+    TemplatesSnapshot templates = Classes.getFieldValue(sender, "templates");
+    assertNotNull(templates.getPool().get("invoice-page"));
+  }
+
+  @Test
+  public void templatesReload() throws IOException
+  {
+    Email email = sender.getEmail("invoice-page");
+    TemplatesSnapshot templates = Classes.getFieldValue(sender, "templates");
+    assertEquals(1, templates.getCache().size());
+
+    File templateFile = templates.getCache().keySet().iterator().next();
+    ((EmailSenderImpl)sender).reloadTemplates(Collections.singleton(templateFile));
+    templates = Classes.getFieldValue(sender, "templates");
+    assertTrue(templates.getCache().isEmpty());
+    assertNotNull(email.templateName());
+    assertNotNull(templates.getPool().get("invoice-page"));
+  }
+
+  @Test
+  public void templatesIncrementalReload() throws Exception
+  {
+    Path repository = Files.createTempDirectory("templates");
+    File invoice = template(repository, "invoice");
+    File registration = template(repository, "registration");
+    EmailSenderImpl sender = newSender();
+    sender.config(repositoryConfig(repository));
+    sender.getEmail("invoice");
+    sender.getEmail("registration");
+
+    File reminder = template(repository, "reminder");
+    Files.delete(registration.toPath());
+    Set<File> changedFiles = new HashSet<>(Arrays.asList(invoice.getAbsoluteFile(), registration.getAbsoluteFile(), reminder.getAbsoluteFile()));
+    sender.reloadTemplates(changedFiles);
+
+    TemplatesSnapshot templates = sender.getTemplates();
+    assertNotNull(templates.getPool().get("invoice"));
+    assertNotNull(templates.getPool().get("reminder"));
+    assertNull(templates.getPool().get("registration"));
+    assertTrue(templates.getCache().isEmpty());
+  }
+
+  @Test
+  public void unchangedTemplatesKept() throws Exception
+  {
+    Path repository = Files.createTempDirectory("templates");
+    File invoice = template(repository, "invoice");
+    template(repository, "registration");
+    EmailSenderImpl sender = newSender();
+    sender.config(repositoryConfig(repository));
+    sender.getEmail("invoice");
+    sender.getEmail("registration");
+
+    sender.reloadTemplates(Collections.singleton(invoice.getAbsoluteFile()));
+    Map<File, CachedTemplate> cache = sender.getTemplates().getCache();
+    assertEquals(1, cache.size());
+    assertTrue(cache.containsKey(repository.resolve("registration.html").toFile().getAbsoluteFile()));
+  }
+
+  @Test
+  public void imageChangeEvictsTemplate() throws Exception
+  {
+    Path repository = Files.createTempDirectory("templates");
+    Files.copy(Paths.get("fixture/file1.jpg"), repository.resolve("logo.jpg"));
+    template(repository, "invoice", "<img src='logo.jpg' />");
+    template(repository, "registration");
+    EmailSenderImpl sender = newSender();
+    Config config = repositoryConfig(repository);
+    config.setProperty("js.email.inline.images", "true");
+    sender.config(config);
+    sender.getEmail("invoice");
+    sender.getEmail("registration");
+    TemplatesSnapshot templates = sender.getTemplates();
+
+    sender.reloadTemplates(Collections.singleton(repository.resolve("logo.jpg").toFile().getAbsoluteFile()));
+    assertEquals(1, sender.getTemplates().getCache().size());
+    assertNotNull(sender.getTemplates().getPool().get("invoice"));
+    assertEquals(templates.getFiles(), sender.getTemplates().getFiles());
+  }
+
+  @Test
+  public void styleSheetChangeEvictsTemplate() throws Exception
+  {
+    Path repository = Files.createTempDirectory("templates");
+    File styleSheet = repository.resolve("style.css").toFile();
+    Files.write(styleSheet.toPath(), "p { color: red; }".getBytes(StandardCharsets.UTF_8));
+    template(repository, "invoice", "<link rel='stylesheet' href='style.css' /><p>invoice</p>");
+    EmailSenderImpl sender = newSender();
+    Config config = repositoryConfig(repository);
+    config.setProperty("js.template.preprocessors", "css-inline");
+    sender.config(config);
+    sender.getEmail("invoice");
+
+    CachedTemplate template = sender.getTemplates().getCache().values().iterator().next();
+    assertTrue(template.getDependencies().contains(styleSheet.getCanonicalFile()));
+    sender.reloadTemplates(Collections.singleton(styleSheet.getAbsoluteFile()));
+    assertTrue(sender.getTemplates().getCache().isEmpty());
+  }
+
+  @Test
+  public void dryRun() throws Exception
+  {
+    Path repository = Files.createTempDirectory("templates");
+    template(repository, "invoice", "<p>invoice</p>");
+    EmailSenderImpl sender = newSender();
+    Config config = repositoryConfig(repository);
+    config.setProperty("js.email.dry.run", "true");
+    sender.config(config);
+
+    File attachment = new File("fixture/file1.jpg");
+    Email email = sender.getEmail("invoice").from("sender@server.com").to("john@server.com").subject("invoice").file(attachment);
+    SendResult result = ((ExtendedEmail)email).sendForResult();
+    assertEquals(SendResult.Outcome.DRY_RUN, result.getOutcome());
+    assertNotNull(result.getMessageID());
+    assertTrue(result.getTransmitNanos() > 0);
+
+    DryRunStats stats = sender.getDryRunStats();
+    assertEquals(1, stats.getMessagesCount());
+    // full MIME message is serialized, including base64 encoded attachment
+    assertTrue(stats.getBytesCount() > attachment.length() * 4 / 3);
+    assertEquals(stats.getBytesCount(), stats.getBytesPerMessage());
+    assertTrue(stats.getSerializeNanos() > 0);
+
+    // no transport is borrowed so no connection attempt is made to not existing server
+    SessionFactory sessionFactory = Classes.getFieldValue(sender, "sessionFactory");
+    assertEquals(0, sessionFactory.getTransportPool().getConnectsCount());
+    assertEquals(0, sessionFactory.getTransportPool().getAverageBorrowNanos());
+    assertEquals(0, sessionFactory.getTransportPool().getActiveCount());
+
+    stats.reset();
+    assertEquals(0, stats.getMessagesCount());
+    assertEquals(0, stats.getBytesCount());
+    assertEquals(0.0, stats.getThroughput(), 0);
+  }
+
+  @Test
+  public void captureRawWithoutMessageID() throws Exception
+  {
+    Path repository = Files.createTempDirectory("templates");
+    template(repository, "invoice");
+    EmailSenderImpl sender = newSender();
+    Config config = repositoryConfig(repository);
+    config.setProperty("js.email.capture", "true");
+    sender.config(config);
+
+    Path file = Files.createTempFile("raw", ".eml");
+    Files.write(file, "Subject: raw\r\n\r\nraw body\r\n".getBytes(StandardCharsets.US_ASCII));
+    SendResult result = sender.sendRaw(file, "sender@server.com", Collections.singletonList("john@server.com"));
+    assertEquals(SendResult.Outcome.CAPTURED, result.getOutcome());
+    assertNull(result.getMessageID());
+
+    CapturedEmail email = sender.getCaptureMailbox().getByRecipient("john@server.com").get(0);
+    assertNull(email.getMessageID());
+    assertEquals("raw", email.getSubject());
+
+    // header-less file has neither message ID nor subject
+    Files.write(file, "\r\nraw body\r\n".getBytes(StandardCharsets.US_ASCII));
+    assertEquals(SendResult.Outcome.CAPTURED, sender.sendRaw(file, "sender@server.com", Collections.singletonList("john@server.com")).getOutcome());
+    assertEquals(2, sender.getCaptureMailbox().getByRecipient("john@server.com").size());
+    Files.delete(file);
+  }
+
+  @Test
+  public void dumpRawInDevelopmentMode() throws Exception
+  {
+    Path repository = Files.createTempDirectory("templates");
+    template(repository, "invoice");
+    EmailSenderImpl sender = newSender();
+    Config config = repositoryConfig(repository);
+    config.setProperty("js.dev.mode", "true");
+    sender.config(config);
+
+    Path file = Files.createTempFile("raw", ".eml");
+    Files.write(file, "Message-ID: <raw@server.com>\r\nSubject: raw\r\n\r\nraw body\r\n".getBytes(StandardCharsets.US_ASCII));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PrintStream stdout = System.out;
+    System.setOut(new PrintStream(out, true, "UTF-8"));
+    SendResult result;
+    try {
+      result = sender.sendRaw(file, "sender@server.com", Collections.singletonList("john@server.com"));
+    }
+    finally {
+      System.setOut(stdout);
+    }
+    assertEquals(SendResult.Outcome.DUMPED, result.getOutcome());
+    assertEquals("<raw@server.com>", result.getMessageID());
+
+    String dump = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    assertTrue(dump.contains("ENVELOPE FROM: sender@server.com"));
+    assertTrue(dump.contains("TO: john@server.com"));
+    assertTrue(dump.contains("raw body"));
+
+    // no connection attempt is made to relay
+    SessionFactory sessionFactory = Classes.getFieldValue(sender, "sessionFactory");
+    assertEquals(0, sessionFactory.getTransportPool().getConnectsCount());
+    Files.delete(file);
+  }
+
+  private EmailSenderImpl newSender()
+  {
+    EmailSenderImpl sender = new EmailSenderImpl();
+    senders.add(sender);
+    return sender;
+  }
+
+  private static File template(Path repository, String name, String... body) throws IOException
+  {
+    File file = repository.resolve(name + ".html").toFile();
+    String content = "<!DOCTYPE HTML><html><head><meta http-equiv='Content-Type' content='text/html; charset=UTF-8' /></head><body>" + String.join("", body) + "</body></html>";
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  private static Config repositoryConfig(Path repository)
+  {
+    Config config = new Config("test");
+    config.setProperty("js.repository.path", repository.toString());
+    config.setProperty("js.files.pattern", "*.html");
+    config.setProperty("js.template.engine", "com.jslib.template.xhtml.XhtmlTemplateEngine");
+    config.setProperty("js.email.jmx", "false");
+    config.setProperty("mail.smtp.host", "localhost");
+    return config;
   }
 
   // TODO: work in progress
@@ -0,0 +1,323 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jslib.lang.Config;
+
+public class SharedSpoolUnitTest
+{
+  private static final byte[] CONTENT = "Subject: test\r\n\r\nbody\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  private Path spoolDir;
+
+  @Before
+  public void beforeTest() throws IOException
+  {
+    spoolDir = Files.createTempDirectory("spool");
+  }
+
+  @After
+  public void afterTest() throws IOException
+  {
+    delete(spoolDir.toFile());
+  }
+
+  @Test
+  public void deliverWithEnvelope() throws Exception
+  {
+    final List<String> envelope = new ArrayList<>();
+    SharedSpool spool = new SharedSpool(spoolDir, (file, offset, from, recipients) -> {
+      envelope.add(from);
+      envelope.addAll(recipients);
+      try (InputStream stream = Files.newInputStream(file)) {
+        stream.skip(offset);
+        byte[] content = new byte[CONTENT.length];
+        assertEquals(CONTENT.length, stream.read(content));
+        assertTrue(Arrays.equals(CONTENT, content));
+      }
+    }, 10, 60000);
+
+    spool.submit("bounce@server.com", Arrays.asList("john.doe@server.com", "jane.doe@server.com"), stream -> stream.write(CONTENT));
+    assertEquals(1, spool.drainIncoming());
+    assertEquals(Arrays.asList("bounce@server.com", "john.doe@server.com", "jane.doe@server.com"), envelope);
+    assertEquals(1, count("done"));
+    assertEquals(0, count("processing"));
+  }
+
+  @Test
+  public void moveFailedDelivery() throws Exception
+  {
+    SharedSpool spool = new SharedSpool(spoolDir, (file, offset, from, recipients) -> {
+      throw new IOException("Relay down.");
+    }, 10, 60000);
+
+    spool.submit(null, Collections.singletonList("john.doe@server.com"), stream -> stream.write(CONTENT));
+    spool.drainIncoming();
+    assertEquals(1, spool.getFailedCount());
+    assertEquals(1, count("failed"));
+  }
+
+  @Test
+  public void concurrentWorkersClaimOnce() throws Exception
+  {
+    final AtomicInteger deliveries = new AtomicInteger();
+    final SharedSpool spool = new SharedSpool(spoolDir, (file, offset, from, recipients) -> deliveries.incrementAndGet(), 10, 60000);
+    for(int i = 0; i < 200; ++i) {
+      spool.submit(null, Collections.singletonList("john.doe@server.com"), stream -> stream.write(CONTENT));
+    }
+
+    List<Thread> workers = new ArrayList<>();
+    for(int i = 0; i < 4; ++i) {
+      Thread worker = new Thread(() -> {
+        try {
+          spool.drainIncoming();
+        }
+        catch(IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      workers.add(worker);
+      worker.start();
+    }
+    for(Thread worker : workers) {
+      worker.join();
+    }
+
+    assertEquals(200, deliveries.get());
+    assertEquals(200, count("done"));
+  }
+
+  @Test
+  public void recoverStaleClaim() throws Exception
+  {
+    SharedSpool spool = new SharedSpool(spoolDir, (file, offset, from, recipients) -> {
+    }, 10, 1000);
+    Path file = Files.write(spoolDir.resolve("processing").resolve("crashed.eml"), CONTENT);
+    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 5000));
+
+    spool.recoverStaleClaims();
+    assertEquals(1, spool.getRecoveredCount());
+    assertEquals(1, count("incoming"));
+  }
+
+  @Test
+  public void multipleJvms() throws Exception
+  {
+    SharedSpool spool = new SharedSpool(spoolDir, (file, offset, from, recipients) -> {
+    }, 10, 60000);
+    for(int i = 0; i < 300; ++i) {
+      spool.submit(null, Collections.singletonList("john.doe@server.com"), stream -> stream.write(CONTENT));
+    }
+
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    List<Process> processes = new ArrayList<>();
+    for(int i = 0; i < 3; ++i) {
+      ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), SpoolWorker.class.getName(), spoolDir.toString(), Integer.toString(i));
+      builder.inheritIO();
+      processes.add(builder.start());
+    }
+    for(Process process : processes) {
+      assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+      assertEquals(0, process.exitValue());
+    }
+
+    List<String> delivered = new ArrayList<>();
+    for(int i = 0; i < 3; ++i) {
+      delivered.addAll(Files.readAllLines(spoolDir.resolve("delivered-" + i + ".log"), StandardCharsets.UTF_8));
+    }
+    Set<String> unique = new HashSet<>(delivered);
+    assertEquals(300, delivered.size());
+    assertEquals(300, unique.size());
+    assertEquals(300, count("done"));
+  }
+
+  @Test
+  public void pauseDraining() throws Exception
+  {
+    final AtomicInteger deliveries = new AtomicInteger();
+    SharedSpool spool = new SharedSpool(spoolDir, (file, offset, from, recipients) -> deliveries.incrementAndGet(), 10, 60000);
+    spool.pause();
+    spool.start(1);
+    try {
+      spool.submit(null, Collections.singletonList("john.doe@server.com"), stream -> stream.write(CONTENT));
+      Thread.sleep(100);
+      assertEquals(0, deliveries.get());
+      assertEquals(1, spool.getIncomingCount());
+
+      spool.resume();
+      long deadline = System.currentTimeMillis() + 2000;
+      while(deliveries.get() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, deliveries.get());
+    }
+    finally {
+      spool.stop();
+    }
+  }
+
+  @Test
+  public void spooledMessageWithoutBcc() throws Exception
+  {
+    Path repository = Files.createTempDirectory("templates");
+    String content = "<!DOCTYPE HTML><html><head><meta http-equiv='Content-Type' content='text/html; charset=UTF-8' /></head><body><p>invoice</p></body></html>";
+    Files.write(repository.resolve("invoice.html"), content.getBytes(StandardCharsets.UTF_8));
+
+    SmtpServer server = new SmtpServer();
+    server.start();
+    Config config = new Config("test");
+    config.setProperty("js.repository.path", repository.toString());
+    config.setProperty("js.files.pattern", "*.html");
+    config.setProperty("js.template.engine", "com.jslib.template.xhtml.XhtmlTemplateEngine");
+    config.setProperty("js.email.spool", spoolDir.toString());
+    config.setProperty("js.email.spool.workers", "0");
+    config.setProperty("mail.smtp.host", "localhost");
+    config.setProperty("mail.smtp.port", Integer.toString(server.getPort()));
+
+    EmailSenderImpl sender = new EmailSenderImpl();
+    sender.config(config);
+    try {
+      sender.getEmail("invoice").from("sender@server.com").to("john@server.com").bcc("audit@server.com").subject("invoice").send();
+      assertEquals(1, sender.getSharedSpool().drainIncoming());
+    }
+    finally {
+      sender.close();
+      server.close();
+    }
+
+    // blind recipient is on envelope but not into delivered content
+    assertTrue(server.commands.contains("RCPT TO:<audit@server.com>"));
+    assertTrue(server.data.contains("To: john@server.com"));
+    for(String line : server.data) {
+      assertFalse(line, line.startsWith("Bcc:"));
+    }
+  }
+
+  // --------------------------------------------------------------------------------------------
+
+  private int count(String directory) throws IOException
+  {
+    int count = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(spoolDir.resolve(directory))) {
+      for(@SuppressWarnings("unused")
+      Path file : files) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  private static void delete(File file)
+  {
+    File[] children = file.listFiles();
+    if(children != null) {
+      for(File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  /** Scripted SMTP server accepting connections till closed and recording commands and message data lines. */
+  private static class SmtpServer extends Thread
+  {
+    private final ServerSocket serverSocket;
+    final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+    final List<String> data = Collections.synchronizedList(new ArrayList<String>());
+
+    SmtpServer() throws IOException
+    {
+      serverSocket = new ServerSocket(0);
+      setDaemon(true);
+    }
+
+    int getPort()
+    {
+      return serverSocket.getLocalPort();
+    }
+
+    void close() throws IOException
+    {
+      serverSocket.close();
+    }
+
+    @Override
+    public void run()
+    {
+      for(;;) {
+        try {
+          Socket socket = serverSocket.accept();
+          Thread connection = new Thread(() -> serve(socket));
+          connection.setDaemon(true);
+          connection.start();
+        }
+        catch(IOException e) {
+          return;
+        }
+      }
+    }
+
+    private void serve(Socket socket)
+    {
+      try (Socket connection = socket) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.US_ASCII));
+        OutputStream writer = connection.getOutputStream();
+        reply(writer, "220 localhost ESMTP");
+        String line;
+        while((line = reader.readLine()) != null) {
+          if(line.startsWith("EHLO")) {
+            reply(writer, "250-localhost\r\n250 8BITMIME");
+            continue;
+          }
+          if(line.startsWith("QUIT")) {
+            reply(writer, "221 Bye");
+            return;
+          }
+          commands.add(line);
+          if(line.equals("DATA")) {
+            reply(writer, "354 End data with <CR><LF>.<CR><LF>");
+            while(!(line = reader.readLine()).equals(".")) {
+              data.add(line);
+            }
+          }
+          reply(writer, "250 OK");
+        }
+      }
+      catch(IOException ignore) {}
+    }
+
+    private static void reply(OutputStream writer, String response) throws IOException
+    {
+      writer.write((response + "\r\n").getBytes(StandardCharsets.US_ASCII));
+      writer.flush();
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.jslib.email;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Spool worker process used by {@link SharedSpoolUnitTest} to simulate multiple nodes sharing the same spool directory.
+ * Worker delivers by appending spool file name to a log file private to this process and exits when spool incoming
+ * directory is drained.
+ * 
+ * @author Iulian Rotaru
+ */
+public class SpoolWorker
+{
+  public static void main(String... args) throws Exception
+  {
+    Path spoolDir = Paths.get(args[0]);
+    Path logFile = spoolDir.resolve("delivered-" + args[1] + ".log");
+
+    try (final Writer log = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8)) {
+      SharedSpool spool = new SharedSpool(spoolDir, (file, offset, from, recipients) -> {
+        synchronized(log) {
+          log.write(file.getFileName().toString());
+          log.write('\n');
+        }
+      }, 10, 60000);
+      spool.start(4);
+
+      while(!drained(spool)) {
+        Thread.sleep(100);
+      }
+      spool.stop();
+    }
+  }
+
+  private static boolean drained(SharedSpool spool) throws IOException
+  {
+    return spool.getIncomingCount() == 0;
+  }
+}
@@ -0,0 +1,35 @@
+package com.jslib.email;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.jslib.api.email.EmailException;
+
+/**
+ * In-memory MX resolver for tests. Records are registered per domain and resolve calls are counted.
+ * 
+ * @author Iulian Rotaru
+ */
+public class StubMxResolver implements MxResolver
+{
+  private final Map<String, MxRecords> records = new HashMap<>();
+  int resolveCount;
+
+  public StubMxResolver add(String domain, long ttl, String... hosts)
+  {
+    records.put(domain, new MxRecords(Arrays.asList(hosts), ttl));
+    return this;
+  }
+
+  @Override
+  public MxRecords resolve(String domain)
+  {
+    ++resolveCount;
+    MxRecords mx = records.get(domain);
+    if(mx == null) {
+      throw new EmailException("Email domain |%s| not found.", domain);
+    }
+    return mx;
+  }
+}
@@ -0,0 +1,59 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TemplatePreprocessorUnitTest
+{
+  @Test
+  public void excludeHead()
+  {
+    String source = "<html><head data-exclude=\"true\"><meta name=\"subject\" content=\"test\" /><title>Test</title></head><body><h1>Test</h1></body></html>";
+    assertEquals("<html><body><h1>Test</h1></body></html>", new ExcludePreprocessor().preprocess(source));
+  }
+
+  @Test
+  public void excludeNestedElements()
+  {
+    String source = "<body><div data-exclude='true'><div>nested</div></div><div>kept</div></body>";
+    assertEquals("<body><div>kept</div></body>", new ExcludePreprocessor().preprocess(source));
+  }
+
+  @Test
+  public void minify()
+  {
+    String source = "<html>\r\n\t<!-- comment -->\r\n\t<body>\r\n\t\t<p>Dear   <b>John</b>,</p>\r\n\t\t<pre>  keep\r\n  this</pre>\r\n\t</body>\r\n</html>";
+    assertEquals("<html>\n<body>\n<p>Dear <b>John</b>,</p>\n<pre>  keep\r\n  this</pre>\n</body>\n</html>", new MinifyPreprocessor().preprocess(source));
+  }
+
+  @Test
+  public void minifyKeepsConditionalComments()
+  {
+    String source = "<body><!--[if mso]><table><![endif]--></body>";
+    assertEquals(source, new MinifyPreprocessor().preprocess(source));
+  }
+
+  @Test
+  public void cssInline()
+  {
+    String source = "<html><head><style type=\"text/css\">p { color: red; } .note { font-size: 10px } #footer { color: blue } a:hover { color: green }</style></head>" + //
+        "<body><p>one</p><p class=\"note\" style=\"margin: 0\">two</p><p id=\"footer\" class=\"note\">three</p></body></html>";
+    String processed = new CssInlinePreprocessor().preprocess(source);
+
+    assertTrue(processed.contains("<p style=\"color: red\">one</p>"));
+    assertTrue(processed.contains("<p class=\"note\" style=\"color: red; font-size: 10px; margin: 0\">two</p>"));
+    assertTrue(processed.contains("<p id=\"footer\" class=\"note\" style=\"color: red; font-size: 10px; color: blue\">three</p>"));
+    assertTrue(processed.contains("<style type=\"text/css\">a:hover{color: green}</style>"));
+    assertFalse(processed.contains("#footer"));
+  }
+
+  @Test
+  public void cssInlineWithoutStyleSheet()
+  {
+    String source = "<html><body><p>one</p></body></html>";
+    assertEquals(source, new CssInlinePreprocessor().preprocess(source));
+  }
+}
@@ -0,0 +1,169 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TenantSchedulerUnitTest
+{
+  private static final Runnable NOT_REJECTED = () -> fail("Task should not be rejected.");
+
+  @Test
+  public void acquireAndRelease()
+  {
+    TenantScheduler scheduler = new TenantScheduler(2, 0, Collections.emptyMap(), Collections.emptyMap());
+    scheduler.acquire("acme");
+    scheduler.acquire(TenantScheduler.DEFAULT_TENANT);
+    assertEquals(2, scheduler.getInFlight());
+    assertEquals(1, scheduler.getInFlight("acme"));
+
+    scheduler.release("acme");
+    assertEquals(1, scheduler.getInFlight());
+    assertEquals(0, scheduler.getInFlight("acme"));
+    assertEquals(1, scheduler.getAdmittedCount("acme"));
+  }
+
+  @Test
+  public void weightedRoundRobin()
+  {
+    Map<String, Integer> weights = new HashMap<>();
+    weights.put("A", 2);
+    TenantScheduler scheduler = new TenantScheduler(1, 0, weights, Collections.emptyMap());
+    scheduler.acquire("X");
+
+    QueueExecutor executor = new QueueExecutor();
+    StringBuilder order = new StringBuilder();
+    for(int i = 0; i < 6; ++i) {
+      scheduler.execute("A", executor, () -> order.append('A'), NOT_REJECTED);
+    }
+    for(int i = 0; i < 3; ++i) {
+      scheduler.execute("B", executor, () -> order.append('B'), NOT_REJECTED);
+    }
+    assertEquals(6, scheduler.getQueueDepth("A"));
+    assertEquals(3, scheduler.getQueueDepth("B"));
+
+    scheduler.release("X");
+    executor.runAll();
+    assertEquals("AABAABAAB", order.toString());
+    assertEquals(0, scheduler.getInFlight());
+  }
+
+  @Test
+  public void smallTenantNotBehindBurst()
+  {
+    TenantScheduler scheduler = new TenantScheduler(1, 0, Collections.emptyMap(), Collections.emptyMap());
+    scheduler.acquire("X");
+
+    QueueExecutor executor = new QueueExecutor();
+    StringBuilder order = new StringBuilder();
+    for(int i = 0; i < 100; ++i) {
+      scheduler.execute("campaign", executor, () -> order.append('C'), NOT_REJECTED);
+    }
+    scheduler.execute("small", executor, () -> order.append('S'), NOT_REJECTED);
+
+    scheduler.release("X");
+    executor.runAll();
+    assertEquals(1, order.indexOf("S"));
+  }
+
+  @Test
+  public void tenantMaxInFlight()
+  {
+    Map<String, Integer> maxInFlights = new HashMap<>();
+    maxInFlights.put("A", 1);
+    TenantScheduler scheduler = new TenantScheduler(2, 0, Collections.emptyMap(), maxInFlights);
+
+    QueueExecutor executor = new QueueExecutor();
+    StringBuilder order = new StringBuilder();
+    scheduler.execute("A", executor, () -> order.append('A'), NOT_REJECTED);
+    scheduler.execute("A", executor, () -> order.append('A'), NOT_REJECTED);
+    scheduler.execute("B", executor, () -> order.append('B'), NOT_REJECTED);
+
+    assertEquals(2, executor.tasks.size());
+    assertEquals(1, scheduler.getInFlight("A"));
+    assertEquals(1, scheduler.getQueueDepth("A"));
+    assertEquals(1, scheduler.getInFlight("B"));
+
+    executor.runAll();
+    assertEquals("ABA", order.toString());
+  }
+
+  @Test
+  public void waitForTurn() throws Exception
+  {
+    final TenantScheduler scheduler = new TenantScheduler(1, 0, Collections.emptyMap(), Collections.emptyMap());
+    scheduler.acquire("A");
+
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread thread = new Thread(() -> {
+      scheduler.acquire("B");
+      scheduler.release("B");
+      done.countDown();
+    });
+    thread.start();
+    while(scheduler.getQueueDepth("B") == 0) {
+      Thread.sleep(1);
+    }
+
+    scheduler.release("A");
+    assertTrue(done.await(2, TimeUnit.SECONDS));
+    assertTrue(scheduler.getAverageQueueNanos("B") > 0);
+  }
+
+  @Test
+  public void rejectedTask()
+  {
+    TenantScheduler scheduler = new TenantScheduler(1, 0, Collections.emptyMap(), Collections.emptyMap());
+    scheduler.acquire("X");
+
+    Executor executor = task -> {
+      throw new RejectedExecutionException();
+    };
+    AtomicInteger rejectedCount = new AtomicInteger();
+    scheduler.execute("A", executor, () -> fail("Rejected task should not run."), rejectedCount::incrementAndGet);
+    scheduler.execute("A", executor, () -> fail("Rejected task should not run."), rejectedCount::incrementAndGet);
+    assertEquals(0, rejectedCount.get());
+    assertEquals(2, scheduler.getQueueDepth("A"));
+
+    // both tasks are admitted and rejected on release; rejection ends their transmissions
+    scheduler.release("X");
+    assertEquals(2, rejectedCount.get());
+    assertEquals(0, scheduler.getInFlight());
+    assertEquals(0, scheduler.getInFlight("A"));
+    assertEquals(0, scheduler.getQueueDepth("A"));
+  }
+
+  // --------------------------------------------------------------------------------------------
+
+  /** Executor collecting tasks, run by test thread in submit order. */
+  private static class QueueExecutor implements Executor
+  {
+    final List<Runnable> tasks = new ArrayList<>();
+
+    @Override
+    public void execute(Runnable task)
+    {
+      tasks.add(task);
+    }
+
+    void runAll()
+    {
+      for(int i = 0; i < tasks.size(); ++i) {
+        tasks.get(i).run();
+      }
+    }
+  }
+}
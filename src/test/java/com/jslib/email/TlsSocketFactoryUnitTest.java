@@ -0,0 +1,92 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.Test;
+
+public class TlsSocketFactoryUnitTest
+{
+  @Test
+  public void cachePerRelay()
+  {
+    TlsSocketFactory factory = TlsSocketFactory.getInstance("relay.example.com", 587, 16, 3600);
+    assertSame(factory, TlsSocketFactory.getInstance("relay.example.com", 587, 32, 60));
+    assertNotSame(factory, TlsSocketFactory.getInstance("relay.example.com", 465, 16, 3600));
+    assertEquals("relay.example.com:587", factory.getRelay());
+    assertTrue(TlsSocketFactory.getInstances().contains(factory));
+  }
+
+  @Test
+  public void initialStatistics()
+  {
+    TlsSocketFactory factory = TlsSocketFactory.getInstance("stats.example.com", 25, 16, 3600);
+    assertEquals(0, factory.getHandshakesCount());
+    assertEquals(0, factory.getResumedCount());
+    assertEquals(0, factory.getAverageHandshakeNanos());
+  }
+
+  @Test
+  public void resumeSession() throws Exception
+  {
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    try (InputStream stream = new FileInputStream("fixture/tls-relay.p12")) {
+      keyStore.load(stream, "changeit".toCharArray());
+    }
+    KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagers.init(keyStore, "changeit".toCharArray());
+    SSLContext serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(keyManagers.getKeyManagers(), null, null);
+    TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagers.init(keyStore);
+
+    try (SSLServerSocket serverSocket = (SSLServerSocket)serverContext.getServerSocketFactory().createServerSocket(0)) {
+      Thread server = new Thread(() -> {
+        for(int i = 0; i < 2; ++i) {
+          try (Socket socket = serverSocket.accept()) {
+            // TLS 1.3 session ticket is processed by client on first read after handshake
+            socket.getOutputStream().write('+');
+            socket.getOutputStream().flush();
+            socket.getInputStream().read();
+          }
+          catch(IOException ignore) {
+            return;
+          }
+        }
+      });
+      server.setDaemon(true);
+      server.start();
+
+      TlsSocketFactory factory = new TlsSocketFactory("localhost:" + serverSocket.getLocalPort(), 16, 3600, trustManagers.getTrustManagers());
+      for(int i = 0; i < 2; ++i) {
+        try (SSLSocket socket = (SSLSocket)factory.createSocket("localhost", serverSocket.getLocalPort())) {
+          socket.startHandshake();
+          assertEquals('+', socket.getInputStream().read());
+        }
+      }
+
+      // handshake completed listeners are notified on a separated thread
+      for(int i = 0; i < 500 && factory.getHandshakesCount() < 2; ++i) {
+        Thread.sleep(10);
+      }
+      assertEquals(2, factory.getHandshakesCount());
+      assertEquals(1, factory.getResumedCount());
+      assertTrue(factory.getAverageHandshakeNanos() > 0);
+      assertTrue(factory.getMaxHandshakeNanos() >= factory.getAverageHandshakeNanos());
+    }
+  }
+}
@@ -0,0 +1,316 @@
+package com.jslib.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jslib.api.email.EmailException;
+import com.jslib.lang.Config;
+
+public class TransportPoolUnitTest
+{
+  private TransportPool pool;
+
+  @Before
+  public void beforeTest()
+  {
+    pool = new TransportPool(Session.getInstance(new Properties()), 2);
+  }
+
+  @Test
+  public void reuseReleasedTransport()
+  {
+    MockTransport transport = new MockTransport(pool.getSession());
+    pool.release(transport, true);
+    assertSame(transport, pool.borrow());
+    assertFalse(transport.closed);
+  }
+
+  @Test
+  public void closeNotReusableTransport()
+  {
+    MockTransport transport = new MockTransport(pool.getSession());
+    pool.release(transport, false);
+    assertTrue(transport.closed);
+  }
+
+  @Test
+  public void closeTransportOnFullPool()
+  {
+    MockTransport[] transports = new MockTransport[3];
+    for(int i = 0; i < transports.length; ++i) {
+      transports[i] = new MockTransport(pool.getSession());
+      pool.release(transports[i], true);
+    }
+    assertFalse(transports[0].closed);
+    assertFalse(transports[1].closed);
+    assertTrue(transports[2].closed);
+  }
+
+  @Test
+  public void drain()
+  {
+    MockTransport idleTransport = new MockTransport(pool.getSession());
+    pool.release(idleTransport, true);
+    pool.drain();
+    assertTrue(idleTransport.closed);
+
+    MockTransport busyTransport = new MockTransport(pool.getSession());
+    pool.release(busyTransport, true);
+    assertTrue(busyTransport.closed);
+  }
+
+  @Test
+  public void discardStaleTransport()
+  {
+    MockTransport staleTransport = new MockTransport(pool.getSession());
+    MockTransport transport = new MockTransport(pool.getSession());
+    pool.release(transport, true);
+    pool.release(staleTransport, true);
+    staleTransport.connected = false;
+
+    assertSame(transport, pool.borrow());
+    assertTrue(staleTransport.closed);
+    assertEquals(1, staleTransport.closeCount);
+  }
+
+  @Test
+  public void trustRecentTransport()
+  {
+    pool = new TransportPool(Session.getInstance(new Properties()), 2, 0, 0, 0, 0, 0, 60000);
+    MockTransport transport = new MockTransport(pool.getSession());
+    pool.release(transport, true);
+
+    assertSame(transport, pool.borrow());
+    assertEquals(0, transport.noopCount);
+  }
+
+  @Test
+  public void validateOldTransport() throws InterruptedException
+  {
+    pool = new TransportPool(Session.getInstance(new Properties()), 2, 0, 0, 0, 0, 0, 10);
+    MockTransport staleTransport = new MockTransport(pool.getSession());
+    MockTransport transport = new MockTransport(pool.getSession());
+    pool.release(transport, true);
+    pool.release(staleTransport, true);
+    staleTransport.connected = false;
+    Thread.sleep(20);
+
+    assertSame(transport, pool.borrow());
+    assertTrue(staleTransport.closed);
+    assertEquals(1, transport.noopCount);
+  }
+
+  @Test
+  public void heartbeatReplaceBeforeIdleTimeout()
+  {
+    pool = new TransportPool(Session.getInstance(new Properties()), 2, 0, 100, 1000);
+    MockTransport transport = new MockTransport(pool.getSession());
+    pool.release(transport, true);
+
+    pool.heartbeat(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(950));
+    assertTrue(transport.closed);
+    assertEquals(0, pool.getIdleCount());
+    assertEquals(1, pool.getReplacementsCount());
+  }
+
+  @Test
+  public void heartbeatDiscardStaleTransport()
+  {
+    pool = new TransportPool(Session.getInstance(new Properties()), 2, 0, 100, 0);
+    MockTransport staleTransport = new MockTransport(pool.getSession());
+    MockTransport transport = new MockTransport(pool.getSession());
+    pool.release(transport, true);
+    pool.release(staleTransport, true);
+    staleTransport.connected = false;
+
+    pool.heartbeat(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200));
+    assertTrue(staleTransport.closed);
+    assertFalse(transport.closed);
+    assertEquals(1, transport.noopCount);
+    assertEquals(1, pool.getIdleCount());
+  }
+
+  @Test
+  public void heartbeatSkipRecentTransport()
+  {
+    pool = new TransportPool(Session.getInstance(new Properties()), 2, 0, 100, 0);
+    MockTransport transport = new MockTransport(pool.getSession());
+    pool.release(transport, true);
+
+    pool.heartbeat(System.nanoTime());
+    assertEquals(0, transport.noopCount);
+    assertSame(transport, pool.borrow());
+  }
+
+  @Test
+  public void tenantBorrowFromSharedPool()
+  {
+    MockTransport transport = new MockTransport(pool.getSession());
+    pool.release(transport, true);
+    TransportPool tenantPool = new TransportPool(Session.getInstance(new Properties()), pool, 0, 0);
+
+    assertSame(transport, tenantPool.borrow());
+    assertEquals(0, tenantPool.getIdleCount());
+    tenantPool.release(transport, true);
+    assertEquals(1, pool.getIdleCount());
+  }
+
+  @Test
+  public void tenantLimit()
+  {
+    MockTransport transport = new MockTransport(pool.getSession());
+    pool.release(new MockTransport(pool.getSession()), true);
+    pool.release(transport, true);
+    TransportPool tenantPool = new TransportPool(Session.getInstance(new Properties()), pool, 1, 10);
+
+    assertSame(transport, tenantPool.borrow());
+    try {
+      tenantPool.borrow();
+      fail("Borrow over tenant limit should time out.");
+    }
+    catch(EmailException expected) {}
+
+    tenantPool.release(transport, true);
+    assertSame(transport, tenantPool.borrow());
+  }
+
+  @Test
+  public void drainedTenantReleaseToSharedPool()
+  {
+    MockTransport transport = new MockTransport(pool.getSession());
+    pool.release(transport, true);
+    TransportPool tenantPool = new TransportPool(Session.getInstance(new Properties()), pool, 0, 0);
+
+    assertSame(transport, tenantPool.borrow());
+    tenantPool.drain();
+    tenantPool.release(transport, true);
+    assertFalse(transport.closed);
+    assertEquals(1, pool.getIdleCount());
+  }
+
+  @Test
+  public void closeIdle()
+  {
+    MockTransport[] transports = new MockTransport[2];
+    for(int i = 0; i < transports.length; ++i) {
+      transports[i] = new MockTransport(pool.getSession());
+      pool.release(transports[i], true);
+    }
+    TransportPool tenantPool = new TransportPool(Session.getInstance(new Properties()), pool, 0, 0);
+
+    assertEquals(2, tenantPool.closeIdle());
+    assertTrue(transports[0].closed);
+    assertTrue(transports[1].closed);
+    assertEquals(0, pool.getIdleCount());
+  }
+
+  @Test
+  public void activeCount()
+  {
+    MockTransport transport = new MockTransport(pool.getSession());
+    pool.release(transport, true);
+    TransportPool tenantPool = new TransportPool(Session.getInstance(new Properties()), pool, 0, 0);
+
+    assertSame(transport, tenantPool.borrow());
+    assertEquals(1, tenantPool.getActiveCount());
+    tenantPool.release(transport, true);
+    assertEquals(0, tenantPool.getActiveCount());
+  }
+
+  @Test
+  public void sharedPoolsReferences()
+  {
+    MockTransport transport = new MockTransport(pool.getSession());
+    pool.release(transport, true);
+    int[] createCount = new int[1];
+    Supplier<TransportPool> factory = () -> {
+      ++createCount[0];
+      return pool;
+    };
+
+    assertSame(pool, SharedTransportPools.acquire("smtp://localhost:25/plain", factory));
+    assertSame(pool, SharedTransportPools.acquire("smtp://localhost:25/plain", factory));
+    assertEquals(1, createCount[0]);
+
+    SharedTransportPools.release("smtp://localhost:25/plain");
+    assertFalse(transport.closed);
+    SharedTransportPools.release("smtp://localhost:25/plain");
+    assertTrue(transport.closed);
+    assertFalse(SharedTransportPools.getInstances().containsKey("smtp://localhost:25/plain"));
+  }
+
+  @Test
+  public void sharedPoolRelayKey()
+  {
+    String relay = SessionFactory.relay(relayConfig("secret", "5000"));
+    assertTrue(relay, relay.startsWith("smtp://user@relay.server.com:587/starttls#"));
+    assertEquals(relay, SessionFactory.relay(relayConfig("secret", "5000")));
+    assertFalse(relay.contains("secret"));
+
+    // email senders with different password or session properties do not share pool
+    assertFalse(relay.equals(SessionFactory.relay(relayConfig("other", "5000"))));
+    assertFalse(relay.equals(SessionFactory.relay(relayConfig("secret", "9000"))));
+  }
+
+  // --------------------------------------------------------------------------------------------
+
+  private static Config relayConfig(String password, String timeout)
+  {
+    Config config = new Config("test");
+    config.setProperty("mail.transport.protocol", "smtp");
+    config.setProperty("mail.smtp.host", "relay.server.com");
+    config.setProperty("mail.smtp.port", "587");
+    config.setProperty("mail.smtp.starttls.enable", "true");
+    config.setProperty("mail.smtp.timeout", timeout);
+    config.setProperty("js.email.user", "user");
+    config.setProperty("js.email.password", password);
+    return config;
+  }
+
+  private static class MockTransport extends Transport
+  {
+    boolean connected = true;
+    boolean closed;
+    int closeCount;
+    int noopCount;
+
+    MockTransport(Session session)
+    {
+      super(session, null);
+    }
+
+    @Override
+    public boolean isConnected()
+    {
+      ++noopCount;
+      return connected;
+    }
+
+    @Override
+    public void sendMessage(Message message, javax.mail.Address[] addresses) throws MessagingException
+    {
+    }
+
+    @Override
+    public void close() throws MessagingException
+    {
+      closed = true;
+      ++closeCount;
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package com.jslib.email.bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.activation.DataHandler;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.jslib.api.template.Template;
+import com.jslib.template.xhtml.XhtmlTemplateEngine;
+
+/**
+ * Compare per message cost of rendered body handling: string body left to JavaMail text handler, that encodes it on
+ * every content access, against body pre-encoded once to content type charset. Every benchmark iteration builds a
+ * message, saves changes - that detects transfer encoding, reads content as SMTP transport does when checks for 8bit
+ * conversion and writes message. Template rendering is the same for both variants and is measured separately, by
+ * {@link Template#serialize(Object)} alone and followed by body encoding, so that encoding cost can be weighed against
+ * rendering cost.
+ * 
+ * @author Iulian Rotaru
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BodyEncodingBenchmark
+{
+  private static final String CONTENT_TYPE = "text/html; charset=UTF-8";
+
+  @Param(
+  {
+      "Dear customer, your account was successfully created. Please confirm your email address.", //
+      "Stimate client, contul dumneavoastră a fost creat cu succes. Vă rugăm să confirmați adresa de email."
+  })
+  public String paragraph;
+
+  private Session session;
+  private String body;
+  private Template template;
+  private Model model;
+
+  @Setup
+  public void setup()
+  {
+    session = Session.getInstance(new Properties());
+    StringBuilder builder = new StringBuilder();
+    builder.append("<!DOCTYPE HTML>\r\n<html>\r\n<body style=\"font-family: Tahoma, Geneva, Sans-Serif; font-size: 11px;\">\r\n");
+    for(int i = 0; i < 40; ++i) {
+      builder.append("\t<p>").append(paragraph).append("</p>\r\n");
+    }
+    builder.append("</body>\r\n</html>\r\n");
+    body = builder.toString();
+
+    // same body with paragraphs text injected from model
+    builder.setLength(0);
+    builder.append("<!DOCTYPE HTML>\r\n<html>\r\n<body style=\"font-family: Tahoma, Geneva, Sans-Serif; font-size: 11px;\">\r\n");
+    for(int i = 0; i < 40; ++i) {
+      builder.append("\t<p data-text=\"paragraph\"></p>\r\n");
+    }
+    builder.append("</body>\r\n</html>\r\n");
+    template = new XhtmlTemplateEngine().getTemplate("body", new StringReader(builder.toString()));
+    model = new Model(paragraph);
+  }
+
+  @Benchmark
+  public int serializeTemplate() throws Exception
+  {
+    return template.serialize(model).length();
+  }
+
+  @Benchmark
+  public int serializeAndEncode() throws Exception
+  {
+    return template.serialize(model).getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  @Benchmark
+  public long stringBody() throws Exception
+  {
+    MimeMessage message = new MimeMessage(session);
+    message.setDataHandler(new DataHandler(body, CONTENT_TYPE));
+    return send(message);
+  }
+
+  @Benchmark
+  public long encodedBody() throws Exception
+  {
+    MimeMessage message = new MimeMessage(session);
+    message.setDataHandler(new DataHandler(new ByteArrayDataSource(body.getBytes(StandardCharsets.UTF_8), CONTENT_TYPE)));
+    return send(message);
+  }
+
+  private static long send(MimeMessage message) throws Exception
+  {
+    message.saveChanges();
+    CountingStream stream = new CountingStream();
+    try (InputStream content = message.getInputStream()) {
+      byte[] buffer = new byte[4096];
+      while(content.read(buffer) != -1) {
+      }
+    }
+    message.writeTo(stream);
+    return stream.count;
+  }
+
+  private static class Model
+  {
+    @SuppressWarnings("unused")
+    private final String paragraph;
+
+    Model(String paragraph)
+    {
+      this.paragraph = paragraph;
+    }
+  }
+
+  private static class CountingStream extends OutputStream
+  {
+    long count;
+
+    @Override
+    public void write(int b)
+    {
+      ++count;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+      count += len;
+    }
+  }
+
+  public static void main(String... args) throws Exception
+  {
+    new Runner(new OptionsBuilder().include(BodyEncodingBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -0,0 +1,87 @@
+package com.jslib.email.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPairGenerator;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.jslib.email.DkimSigner;
+
+/**
+ * Measure DKIM signing cost per message for different body sizes. Private key is parsed once, at setup, as signer does
+ * at configuration time; measured cost is message serialization through signing stream, body canonicalization and
+ * hashing plus RSA signature.
+ *
+ * @author Iulian Rotaru
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DkimSigningBenchmark
+{
+  /** Body size, in kilobytes. */
+  @Param(
+  {
+      "1", "10", "100"
+  })
+  public int bodySize;
+
+  private DkimSigner signer;
+  private MimeMessage message;
+  private ByteArrayOutputStream stream;
+
+  @Setup
+  public void setup() throws Exception
+  {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    signer = new DkimSigner("server.com", "mail", generator.generateKeyPair().getPrivate(), null);
+
+    StringBuilder body = new StringBuilder();
+    while(body.length() < bodySize * 1024) {
+      body.append("\t<p>Dear customer, your account was successfully created.  Please confirm your email address. </p>\r\n");
+    }
+    message = new MimeMessage(Session.getInstance(new Properties()));
+    message.setFrom(new InternetAddress("from@server.com"));
+    message.setSubject("Account created");
+    message.setText(body.toString(), "UTF-8", "html");
+    message.saveChanges();
+    stream = new ByteArrayOutputStream(bodySize * 2048);
+  }
+
+  @Benchmark
+  public int sign() throws Exception
+  {
+    stream.reset();
+    DkimSigner.SigningStream signingStream = signer.signingStream(message, null, stream);
+    message.writeTo(signingStream);
+    signingStream.finish();
+    return stream.size();
+  }
+
+  public static void main(String... args) throws Exception
+  {
+    new Runner(new OptionsBuilder().include(DkimSigningBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -0,0 +1,142 @@
+package com.jslib.email.bench;
+
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.activation.DataHandler;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compare message serialization using transfer encoding selected by JavaMail - quoted-printable or base64, against 8bit
+ * transfer encoding used when server advertises 8BITMIME. Body is a localized UTF-8 HTML email; language parameter
+ * controls the ratio of non-ASCII characters. Serialized message sizes are printed on setup.
+ * 
+ * @author Iulian Rotaru
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TransferEncodingBenchmark
+{
+  private static final String CONTENT_TYPE = "text/html; charset=UTF-8";
+
+  /** Paragraphs of localized text used to build email body. */
+  private static final String[][] PARAGRAPHS =
+  {
+      {
+          "en", "Dear customer, your account was successfully created. Please confirm your email address."
+      },
+      {
+          "ro", "Stimate client, contul dumneavoastră a fost creat cu succes. Vă rugăm să confirmați adresa de email și să păstrați această notificare."
+      },
+      {
+          "ru", "Уважаемый клиент, ваша учётная запись успешно создана. Пожалуйста, подтвердите адрес электронной почты."
+      }
+  };
+
+  @Param(
+  {
+      "en", "ro", "ru"
+  })
+  public String language;
+
+  private MimeMessage encodedMessage;
+  private MimeMessage eightBitMessage;
+
+  @Setup
+  public void setup() throws Exception
+  {
+    String body = body(language);
+    Session session = Session.getInstance(new Properties());
+
+    encodedMessage = new MimeMessage(session);
+    encodedMessage.setDataHandler(new DataHandler(body, CONTENT_TYPE));
+    encodedMessage.saveChanges();
+
+    eightBitMessage = new MimeMessage(session);
+    eightBitMessage.setDataHandler(new DataHandler(body, CONTENT_TYPE));
+    eightBitMessage.saveChanges();
+    // this is what SMTP transport does when server supports 8BITMIME
+    eightBitMessage.setHeader("Content-Transfer-Encoding", "8bit");
+
+    System.out.printf("%n%s: %s %d bytes, 8bit %d bytes%n", language, encodedMessage.getEncoding(), size(encodedMessage), size(eightBitMessage));
+  }
+
+  @Benchmark
+  public long encoded() throws Exception
+  {
+    return size(encodedMessage);
+  }
+
+  @Benchmark
+  public long eightBit() throws Exception
+  {
+    return size(eightBitMessage);
+  }
+
+  private static long size(MimeMessage message) throws Exception
+  {
+    CountingStream stream = new CountingStream();
+    message.writeTo(stream);
+    return stream.count;
+  }
+
+  private static String body(String language)
+  {
+    String paragraph = null;
+    for(String[] entry : PARAGRAPHS) {
+      if(entry[0].equals(language)) {
+        paragraph = entry[1];
+      }
+    }
+
+    StringBuilder builder = new StringBuilder();
+    builder.append("<!DOCTYPE HTML>\r\n<html>\r\n<body style=\"font-family: Tahoma, Geneva, Sans-Serif; font-size: 11px;\">\r\n");
+    for(int i = 0; i < 40; ++i) {
+      builder.append("\t<p>").append(paragraph).append("</p>\r\n");
+    }
+    builder.append("</body>\r\n</html>\r\n");
+    return builder.toString();
+  }
+
+  private static class CountingStream extends OutputStream
+  {
+    long count;
+
+    @Override
+    public void write(int b)
+    {
+      ++count;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+      count += len;
+    }
+  }
+
+  public static void main(String... args) throws Exception
+  {
+    new Runner(new OptionsBuilder().include(TransferEncodingBenchmark.class.getSimpleName()).build()).run();
+  }
+}